@@ -0,0 +1,143 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryModified;
+import org.infinispan.notifications.cachelistener.event.CacheEntryModifiedEvent;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Tells the other nodes of a cluster sharing one repository when the policies change. A node sees the policy
+ * changes made through it in its repository events, and the decisions and policy assignments it keeps are only
+ * dropped for those. Each node therefore publishes its policy generation in a replicated Infinispan cache, and a
+ * new generation from another node invalidates the local policy index as if the change had been made here, which
+ * in turn drops every decision cache keyed by the policy generation.
+ *
+ * Parsed policies need no invalidation, since they are cached by the content version read from the repository.
+ */
+@Listener
+public class ClusterPolicyInvalidation {
+
+    private static final Logger LOGGER = getLogger(ClusterPolicyInvalidation.class);
+
+    /**
+     * The name of the cache that holds the generation of each node, unless another is given.
+     */
+    public static final String DEFAULT_CACHE_NAME = "fcrepo-xacml-policy-generations";
+
+    @Autowired
+    private EffectivePolicyIndex effectivePolicyIndex;
+
+    private final Cache<String, Long> generations;
+
+    /**
+     * The key of this node in the cache.
+     */
+    private final String origin;
+
+    private final AtomicLong published = new AtomicLong();
+
+    private final AtomicLong received = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param cacheManager the clustered cache manager
+     */
+    public ClusterPolicyInvalidation(final EmbeddedCacheManager cacheManager) {
+        this(cacheManager, DEFAULT_CACHE_NAME);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param cacheManager the clustered cache manager
+     * @param cacheName the name of the cache, which is defined as an asynchronously replicated cache if the cache
+     *        manager has no configuration for it
+     */
+    public ClusterPolicyInvalidation(final EmbeddedCacheManager cacheManager, final String cacheName) {
+        if (null == cacheManager) {
+            throw new IllegalArgumentException("Cache manager is null!");
+        }
+        if (cacheManager.getTransport() == null) {
+            throw new IllegalArgumentException("Cache manager is not clustered!");
+        }
+        if (cacheManager.getCacheConfiguration(cacheName) == null) {
+            cacheManager.defineConfiguration(cacheName,
+                    new ConfigurationBuilder().clustering().cacheMode(CacheMode.REPL_ASYNC).build());
+        }
+        this.generations = cacheManager.getCache(cacheName);
+        this.origin = String.valueOf(cacheManager.getAddress());
+    }
+
+    /**
+     * Starts listening for the generations of other nodes.
+     */
+    @PostConstruct
+    public void init() {
+        generations.addListener(this);
+    }
+
+    /**
+     * Stops listening for the generations of other nodes.
+     */
+    @PreDestroy
+    public void close() {
+        generations.removeListener(this);
+    }
+
+    /**
+     * Tells the other nodes that the policies changed.
+     */
+    public void publish() {
+        generations.putAsync(origin, published.incrementAndGet());
+    }
+
+    /**
+     * @return the number of policy changes received from other nodes
+     */
+    public long getReceived() {
+        return received.get();
+    }
+
+    /**
+     * Invalidates the policy index when another node publishes a generation.
+     *
+     * @param event the change of a generation
+     */
+    @CacheEntryModified
+    public void generationChanged(final CacheEntryModifiedEvent<String, Long> event) {
+        if (event.isPre() || event.isOriginLocal()) {
+            return;
+        }
+        LOGGER.debug("Policy generation {} of {}", event.getValue(), event.getKey());
+        received.incrementAndGet();
+        effectivePolicyIndex.invalidateFromCluster();
+    }
+}
@@ -0,0 +1,435 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Collection;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+
+/**
+ * Writes an audit trail of authorization decisions to a local file. Decisions are put on a bounded lock-free
+ * queue by the request threads and written in batches by a background thread, so auditing never blocks a request
+ * on I/O. When the queue is full, decisions are dropped and counted, and the drop is reported in the log.
+ *
+ * If the file cannot be written, the decisions of the failed batch are dropped and counted, the log reports itself
+ * unhealthy, and the writer opens the file again after a delay that doubles with each failure, up to a minute.
+ * Decisions keep queueing meanwhile, up to the queue capacity.
+ *
+ * Each decision is one tab-separated line: time, principal, roles, path, actions, effective policy ID, decision
+ * and evaluation time in microseconds. The file is rotated when it reaches its maximum size, keeping a configured
+ * number of old files as file.1, file.2 and so on.
+ */
+public class DecisionAuditLog implements Closeable {
+
+    private static final Logger LOGGER = getLogger(DecisionAuditLog.class);
+
+    private static final long MAX_RETRY_INTERVAL = 60000;
+
+    private final File file;
+
+    private int capacity = 10000;
+
+    private int batchSize = 500;
+
+    private long flushInterval = 1000;
+
+    private long maxFileSize = 10L * 1024 * 1024;
+
+    private int maxFiles = 10;
+
+    private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final AtomicLong written = new AtomicLong();
+
+    private volatile boolean running;
+
+    private volatile boolean healthy = true;
+
+    private Thread writerThread;
+
+    /**
+     * Constructor
+     *
+     * @param file the audit file, created if it does not exist
+     */
+    public DecisionAuditLog(final File file) {
+        if (null == file) {
+            throw new IllegalArgumentException("Audit file is null!");
+        }
+        final File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IllegalArgumentException("Cannot create audit directory " + dir);
+        }
+        this.file = file.getAbsoluteFile();
+    }
+
+    /**
+     * @param capacity the number of decisions that may wait to be written before new ones are dropped
+     */
+    public void setCapacity(final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Audit queue capacity must be positive!");
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * @param batchSize the number of queued decisions that wakes the writer before the flush interval
+     */
+    public void setBatchSize(final int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Audit batch size must be positive!");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param flushInterval the longest time in milliseconds a decision waits to be written
+     */
+    public void setFlushInterval(final long flushInterval) {
+        if (flushInterval < 1) {
+            throw new IllegalArgumentException("Audit flush interval must be positive!");
+        }
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * @param maxFileSize the size in bytes at which the audit file is rotated
+     */
+    public void setMaxFileSize(final long maxFileSize) {
+        if (maxFileSize < 1) {
+            throw new IllegalArgumentException("Audit file size must be positive!");
+        }
+        this.maxFileSize = maxFileSize;
+    }
+
+    /**
+     * @param maxFiles the number of rotated audit files kept
+     */
+    public void setMaxFiles(final int maxFiles) {
+        if (maxFiles < 0) {
+            throw new IllegalArgumentException("Number of audit files must not be negative!");
+        }
+        this.maxFiles = maxFiles;
+    }
+
+    /**
+     * Starts the writer thread.
+     */
+    @PostConstruct
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        writerThread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "xacml-audit-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Stops the writer thread after it has written the queued decisions.
+     */
+    @PreDestroy
+    @Override
+    public synchronized void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues a decision for the audit file. This never blocks; if the queue is full the decision is dropped.
+     *
+     * @param principal the user principal name
+     * @param roles the effective roles
+     * @param path the node or property path
+     * @param actions the requested actions
+     * @param policyId the ID of the effective policy, or null
+     * @param permit whether the request was permitted
+     * @param micros the evaluation time in microseconds
+     * @return false if the decision was dropped
+     */
+    public boolean record(final String principal, final Collection<String> roles, final String path,
+            final Collection<String> actions, final String policyId, final boolean permit, final long micros) {
+        if (queued.incrementAndGet() > capacity) {
+            queued.decrementAndGet();
+            dropped.incrementAndGet();
+            return false;
+        }
+        queue.offer(new Entry(System.currentTimeMillis(), principal, roles, path, actions, policyId, permit, micros));
+        if (queued.get() >= batchSize) {
+            LockSupport.unpark(writerThread);
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of decisions dropped because the queue was full or the audit file could not be written
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return false if the last attempt to write the audit file failed
+     */
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    /**
+     * @return the number of decisions written to the audit file
+     */
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    private void writeLoop() {
+        final SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        timeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        final StringBuilder line = new StringBuilder(256);
+        long reportedDrops = 0;
+        long retryInterval = flushInterval;
+        long retryAt = 0;
+        Writer out = null;
+        long size = 0;
+        // decisions taken from the queue and not yet flushed to the file
+        int unflushed = 0;
+        while (running || !queue.isEmpty()) {
+            if (!healthy && running && System.nanoTime() < retryAt) {
+                LockSupport.parkNanos(retryAt - System.nanoTime());
+                continue;
+            }
+            if (queue.isEmpty()) {
+                LockSupport.parkNanos(MILLISECONDS.toNanos(flushInterval));
+                continue;
+            }
+            try {
+                for (Entry entry = queue.poll(); entry != null; entry = queue.poll()) {
+                    queued.decrementAndGet();
+                    unflushed++;
+                    line.setLength(0);
+                    entry.format(line, timeFormat);
+                    final String text = line.toString();
+                    final int length = text.getBytes(UTF_8).length;
+                    if (out != null && size + length > maxFileSize) {
+                        out.close();
+                        out = null;
+                        // the current decision is not written yet
+                        written.addAndGet(unflushed - 1);
+                        unflushed = 1;
+                        rotate();
+                    }
+                    if (out == null) {
+                        out = open();
+                        size = file.length();
+                    }
+                    out.write(text);
+                    size += length;
+                }
+                out.flush();
+                written.addAndGet(unflushed);
+                unflushed = 0;
+                if (!healthy) {
+                    LOGGER.info("Writing audit file {} again", file);
+                    healthy = true;
+                    retryInterval = flushInterval;
+                }
+            } catch (final IOException e) {
+                dropped.addAndGet(unflushed);
+                unflushed = 0;
+                closeQuietly(out);
+                out = null;
+                if (healthy) {
+                    LOGGER.error("Cannot write audit file {}, retrying in {} ms", file, retryInterval, e);
+                    healthy = false;
+                } else {
+                    LOGGER.debug("Cannot write audit file {}, retrying in {} ms", file, retryInterval, e);
+                }
+                if (!running) {
+                    // closing, so the queued decisions will not be written
+                    for (Entry entry = queue.poll(); entry != null; entry = queue.poll()) {
+                        queued.decrementAndGet();
+                        dropped.incrementAndGet();
+                    }
+                }
+                retryAt = System.nanoTime() + MILLISECONDS.toNanos(retryInterval);
+                retryInterval = Math.min(retryInterval * 2, Math.max(MAX_RETRY_INTERVAL, flushInterval));
+            }
+
+            final long drops = dropped.get();
+            if (drops > reportedDrops) {
+                LOGGER.warn("Dropped {} audit records because the audit queue was full or the audit file could " +
+                        "not be written", drops - reportedDrops);
+                reportedDrops = drops;
+            }
+        }
+        closeQuietly(out);
+    }
+
+    private void closeQuietly(final Writer out) {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (final IOException e) {
+                LOGGER.warn("Cannot close audit file {}", file, e);
+            }
+        }
+    }
+
+    /**
+     * Opens the audit file for appending, creating its directory again if it was removed.
+     */
+    private Writer open() throws IOException {
+        final File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create audit directory " + dir);
+        }
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), UTF_8), 64 * 1024);
+    }
+
+    /**
+     * Renames file.n to file.n+1 and the current file to file.1, discarding the oldest.
+     */
+    private void rotate() {
+        final File oldest = new File(file.getPath() + "." + maxFiles);
+        if (oldest.exists() && !oldest.delete()) {
+            LOGGER.warn("Cannot remove old audit file {}", oldest);
+        }
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            final File from = new File(file.getPath() + "." + i);
+            if (from.exists() && !from.renameTo(new File(file.getPath() + "." + (i + 1)))) {
+                LOGGER.warn("Cannot rotate audit file {}", from);
+            }
+        }
+        if (maxFiles == 0 ? !file.delete() : !file.renameTo(new File(file.getPath() + ".1"))) {
+            LOGGER.warn("Cannot rotate audit file {}", file);
+        }
+    }
+
+    /**
+     * A queued decision.
+     */
+    private static final class Entry {
+
+        private final long time;
+
+        private final String principal;
+
+        private final Collection<String> roles;
+
+        private final String path;
+
+        private final Collection<String> actions;
+
+        private final String policyId;
+
+        private final boolean permit;
+
+        private final long micros;
+
+        Entry(final long time, final String principal, final Collection<String> roles, final String path,
+                final Collection<String> actions, final String policyId, final boolean permit, final long micros) {
+            this.time = time;
+            this.principal = principal;
+            this.roles = roles;
+            this.path = path;
+            this.actions = actions;
+            this.policyId = policyId;
+            this.permit = permit;
+            this.micros = micros;
+        }
+
+        void format(final StringBuilder line, final SimpleDateFormat timeFormat) {
+            line.append(timeFormat.format(new Date(time))).append('\t');
+            append(line, principal).append('\t');
+            appendAll(line, roles).append('\t');
+            append(line, path).append('\t');
+            appendAll(line, actions).append('\t');
+            append(line, policyId).append('\t');
+            line.append(permit ? "PERMIT" : "DENY").append('\t');
+            line.append(micros).append('\n');
+        }
+
+        private static StringBuilder appendAll(final StringBuilder line, final Collection<String> values) {
+            if (values == null || values.isEmpty()) {
+                return line.append('-');
+            }
+            boolean first = true;
+            for (final String value : values) {
+                if (!first) {
+                    line.append(',');
+                }
+                append(line, value);
+                first = false;
+            }
+            return line;
+        }
+
+        /**
+         * Appends a value, with tabs, line breaks and commas replaced by spaces so that the line stays parseable.
+         */
+        private static StringBuilder append(final StringBuilder line, final String value) {
+            if (value == null || value.isEmpty()) {
+                return line.append('-');
+            }
+            for (int i = 0; i < value.length(); i++) {
+                final char c = value.charAt(i);
+                line.append(c == '\t' || c == '\n' || c == '\r' || c == ',' ? ' ' : c);
+            }
+            return line;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import org.jboss.security.xacml.sunxacml.ctx.Result;
+import org.jboss.security.xacml.sunxacml.ctx.Status;
+
+/**
+ * A traced authorization decision: the request attributes supplied by the repository and the results of the
+ * PDP, see {@link DecisionTrace}.
+ */
+public class DecisionRecord {
+
+    private final Date time;
+
+    private final String principal;
+
+    private final String[] roles;
+
+    private final String[] groups;
+
+    private final String path;
+
+    private final String[] actions;
+
+    private final String remoteAddress;
+
+    private final String workspace;
+
+    private final boolean permit;
+
+    private final String[] results;
+
+    private final long evaluationMillis;
+
+    /**
+     * Constructor for a request that has not been decided yet.
+     *
+     * @param principal the user principal name
+     * @param roles the effective roles
+     * @param groups the group principal names
+     * @param path the node or property path
+     * @param actions the requested actions
+     * @param remoteAddress the address the request came from
+     * @param workspace the workspace name
+     */
+    public DecisionRecord(final String principal, final Collection<String> roles, final Collection<String> groups,
+            final String path, final String[] actions, final String remoteAddress, final String workspace) {
+        this(new Date(), principal, toArray(roles), toArray(groups), path, actions.clone(), remoteAddress,
+                workspace, false, new String[0], 0);
+    }
+
+    private DecisionRecord(final Date time, final String principal, final String[] roles, final String[] groups,
+            final String path, final String[] actions, final String remoteAddress, final String workspace,
+            final boolean permit, final String[] results, final long evaluationMillis) {
+        this.time = time;
+        this.principal = principal;
+        this.roles = roles;
+        this.groups = groups;
+        this.path = path;
+        this.actions = actions;
+        this.remoteAddress = remoteAddress;
+        this.workspace = workspace;
+        this.permit = permit;
+        this.results = results;
+        this.evaluationMillis = evaluationMillis;
+    }
+
+    /**
+     * Completes the record with the decision.
+     *
+     * @param decision whether the request was permitted
+     * @param pdpResults the {@link Result}s of the PDP
+     * @param millis the time taken to evaluate the request
+     * @return the completed record
+     */
+    public DecisionRecord withDecision(final boolean decision, final Collection<?> pdpResults, final long millis) {
+        final List<String> summaries = new ArrayList<>(pdpResults.size());
+        for (final Object o : pdpResults) {
+            final Result result = (Result) o;
+            final Status status = result.getStatus();
+            final String decisionName = Result.DECISIONS[result.getDecision()];
+            summaries.add(status == null || status.getMessage() == null ? decisionName :
+                    decisionName + ": " + status.getMessage());
+        }
+        return new DecisionRecord(time, principal, roles, groups, path, actions, remoteAddress, workspace, decision,
+                toArray(summaries), millis);
+    }
+
+    /**
+     * @return when the request was made
+     */
+    public Date getTime() {
+        return time;
+    }
+
+    /**
+     * @return the user principal name
+     */
+    public String getPrincipal() {
+        return principal;
+    }
+
+    /**
+     * @return the effective roles of the user
+     */
+    public String[] getRoles() {
+        return roles.clone();
+    }
+
+    /**
+     * @return the groups of the user
+     */
+    public String[] getGroups() {
+        return groups.clone();
+    }
+
+    /**
+     * @return the node or property path
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return the requested actions
+     */
+    public String[] getActions() {
+        return actions.clone();
+    }
+
+    /**
+     * @return the address the request came from
+     */
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    /**
+     * @return the workspace name
+     */
+    public String getWorkspace() {
+        return workspace;
+    }
+
+    /**
+     * @return whether the request was permitted
+     */
+    public boolean isPermit() {
+        return permit;
+    }
+
+    /**
+     * @return the decision and status message of each PDP result
+     */
+    public String[] getResults() {
+        return results.clone();
+    }
+
+    /**
+     * @return the time taken to evaluate the request
+     */
+    public long getEvaluationMillis() {
+        return evaluationMillis;
+    }
+
+    @Override
+    public String toString() {
+        return (permit ? "Permit " : "Deny ") + principal + " " + Arrays.toString(actions) + " " + path;
+    }
+
+    private static String[] toArray(final Collection<String> values) {
+        return values == null ? new String[0] : values.toArray(new String[values.size()]);
+    }
+}
@@ -0,0 +1,250 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps the most recent authorization decisions in a bounded ring buffer for diagnosis. Tracing is off by
+ * default. When on, requests can be narrowed to one user, a path prefix or an action, and sampled. Records hold
+ * the request attributes and results as plain values, so tracing does not serialize request or response XML.
+ *
+ * The trace is managed and read through JMX as {@value #OBJECT_NAME}.
+ */
+@Component("decisionTrace")
+public class DecisionTrace implements DecisionTraceMXBean {
+
+    private static final Logger LOGGER = getLogger(DecisionTrace.class);
+
+    /**
+     * The JMX name of the trace.
+     */
+    public static final String OBJECT_NAME = "org.fcrepo.auth.xacml:type=DecisionTrace";
+
+    private volatile boolean enabled = false;
+
+    private volatile String principalFilter;
+
+    private volatile String pathPrefixFilter;
+
+    private volatile String actionFilter;
+
+    private volatile double sampleRate = 1.0;
+
+    private DecisionRecord[] buffer = new DecisionRecord[100];
+
+    private int size;
+
+    private long tracedCount;
+
+    private ObjectName registeredName;
+
+    /**
+     * Registers the trace with the platform MBean server.
+     */
+    @PostConstruct
+    public void register() {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                LOGGER.warn("Another decision trace is registered as {}, not registering this one", OBJECT_NAME);
+                return;
+            }
+            server.registerMBean(this, name);
+            registeredName = name;
+        } catch (final JMException e) {
+            LOGGER.warn("Cannot register decision trace as {}", OBJECT_NAME, e);
+        }
+    }
+
+    /**
+     * Unregisters the trace from the platform MBean server.
+     */
+    @PreDestroy
+    public void unregister() {
+        if (registeredName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+            } catch (final JMException e) {
+                LOGGER.warn("Cannot unregister decision trace {}", registeredName, e);
+            }
+            registeredName = null;
+        }
+    }
+
+    /**
+     * Decides whether a request is traced. This is called for every request, before any request details are
+     * gathered for the trace.
+     *
+     * @param principal the user principal name
+     * @param path the node or property path
+     * @param actions the requested actions
+     * @return true if the decision should be recorded
+     */
+    public boolean isTraced(final String principal, final String path, final String[] actions) {
+        if (!enabled) {
+            return false;
+        }
+        final String principalMatch = principalFilter;
+        if (principalMatch != null && !principalMatch.equals(principal)) {
+            return false;
+        }
+        final String pathPrefix = pathPrefixFilter;
+        if (pathPrefix != null && (path == null || !path.startsWith(pathPrefix))) {
+            return false;
+        }
+        final String actionMatch = actionFilter;
+        if (actionMatch != null && !contains(actions, actionMatch)) {
+            return false;
+        }
+        final double rate = sampleRate;
+        return rate >= 1.0 || ThreadLocalRandom.current().nextDouble() < rate;
+    }
+
+    /**
+     * Records a decision, replacing the oldest one if the buffer is full.
+     *
+     * @param decision the decision
+     */
+    public synchronized void add(final DecisionRecord decision) {
+        buffer[(int) (tracedCount % buffer.length)] = decision;
+        tracedCount++;
+        size = Math.min(size + 1, buffer.length);
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(final boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Override
+    public String getPrincipalFilter() {
+        return principalFilter;
+    }
+
+    @Override
+    public void setPrincipalFilter(final String principal) {
+        this.principalFilter = emptyToNull(principal);
+    }
+
+    @Override
+    public String getPathPrefixFilter() {
+        return pathPrefixFilter;
+    }
+
+    @Override
+    public void setPathPrefixFilter(final String pathPrefix) {
+        this.pathPrefixFilter = emptyToNull(pathPrefix);
+    }
+
+    @Override
+    public String getActionFilter() {
+        return actionFilter;
+    }
+
+    @Override
+    public void setActionFilter(final String action) {
+        this.actionFilter = emptyToNull(action);
+    }
+
+    @Override
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public void setSampleRate(final double sampleRate) {
+        if (sampleRate < 0 || sampleRate > 1) {
+            throw new IllegalArgumentException("Sample rate must be between 0 and 1!");
+        }
+        this.sampleRate = sampleRate;
+    }
+
+    @Override
+    public synchronized int getCapacity() {
+        return buffer.length;
+    }
+
+    @Override
+    public synchronized void setCapacity(final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Decision trace capacity must be positive!");
+        }
+        final List<DecisionRecord> kept = getDecisions();
+        buffer = new DecisionRecord[capacity];
+        size = Math.min(kept.size(), capacity);
+        long i = tracedCount - size;
+        for (final DecisionRecord decision : kept.subList(kept.size() - size, kept.size())) {
+            buffer[(int) (i++ % capacity)] = decision;
+        }
+    }
+
+    @Override
+    public synchronized long getTracedCount() {
+        return tracedCount;
+    }
+
+    @Override
+    public synchronized List<DecisionRecord> getDecisions() {
+        final List<DecisionRecord> decisions = new ArrayList<>(size);
+        for (long i = tracedCount - size; i < tracedCount; i++) {
+            decisions.add(buffer[(int) (i % buffer.length)]);
+        }
+        return decisions;
+    }
+
+    @Override
+    public synchronized void clear() {
+        buffer = new DecisionRecord[buffer.length];
+        size = 0;
+        tracedCount = 0;
+    }
+
+    private static boolean contains(final String[] values, final String value) {
+        if (values != null) {
+            for (final String v : values) {
+                if (value.equals(v)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String emptyToNull(final String value) {
+        return value == null || value.trim().isEmpty() ? null : value;
+    }
+}
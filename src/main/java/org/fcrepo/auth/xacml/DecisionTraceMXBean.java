@@ -0,0 +1,99 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import java.util.List;
+
+/**
+ * JMX management interface of the {@link DecisionTrace}.
+ */
+public interface DecisionTraceMXBean {
+
+    /**
+     * @return whether decisions are traced
+     */
+    boolean isEnabled();
+
+    /**
+     * @param enabled whether decisions are traced
+     */
+    void setEnabled(boolean enabled);
+
+    /**
+     * @return the user principal name of traced requests, or null for any user
+     */
+    String getPrincipalFilter();
+
+    /**
+     * @param principal the user principal name of traced requests, or null for any user
+     */
+    void setPrincipalFilter(String principal);
+
+    /**
+     * @return the path prefix of traced requests, or null for any path
+     */
+    String getPathPrefixFilter();
+
+    /**
+     * @param pathPrefix the path prefix of traced requests, or null for any path
+     */
+    void setPathPrefixFilter(String pathPrefix);
+
+    /**
+     * @return an action of traced requests, or null for any action
+     */
+    String getActionFilter();
+
+    /**
+     * @param action an action of traced requests, or null for any action
+     */
+    void setActionFilter(String action);
+
+    /**
+     * @return the fraction of matching requests that are traced
+     */
+    double getSampleRate();
+
+    /**
+     * @param sampleRate the fraction of matching requests that are traced, from 0 to 1
+     */
+    void setSampleRate(double sampleRate);
+
+    /**
+     * @return the number of decisions kept
+     */
+    int getCapacity();
+
+    /**
+     * @param capacity the number of decisions kept
+     */
+    void setCapacity(int capacity);
+
+    /**
+     * @return the number of decisions traced since the trace was cleared
+     */
+    long getTracedCount();
+
+    /**
+     * @return the kept decisions, oldest first
+     */
+    List<DecisionRecord> getDecisions();
+
+    /**
+     * Discards the kept decisions.
+     */
+    void clear();
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import org.slf4j.Logger;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.CountingInputStream;
+
+/**
+ * Keeps policy artifacts as files in a local directory, one file per policy binary. Each file records the path
+ * and content version it was made from, and is replaced atomically so that concurrent readers, including other
+ * processes sharing the directory, never see a partial artifact.
+ */
+public class DirectoryPolicyArtifactStore implements PolicyArtifactStore {
+
+    private static final Logger LOGGER = getLogger(DirectoryPolicyArtifactStore.class);
+
+    /**
+     * Leading bytes of an artifact file, "FXA" and the file format version.
+     */
+    private static final int MAGIC = 0x46584101;
+
+    private final File directory;
+
+    /**
+     * Constructor
+     *
+     * @param directory the cache directory, created if it does not exist
+     */
+    public DirectoryPolicyArtifactStore(final File directory) {
+        if (null == directory) {
+            throw new IllegalArgumentException("Policy artifact directory is null!");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("Cannot create policy artifact directory " +
+                                                       directory.getAbsolutePath());
+        }
+        this.directory = directory;
+    }
+
+    @Override
+    public ByteBuffer get(final String path, final String version) {
+        final File file = fileFor(path);
+        try (final FileInputStream stream = new FileInputStream(file);
+                final CountingInputStream counter = new CountingInputStream(new BufferedInputStream(stream));
+                final DataInputStream in = new DataInputStream(counter)) {
+            if (in.readInt() != MAGIC || !path.equals(in.readUTF()) || !version.equals(in.readUTF())) {
+                LOGGER.debug("Stale policy artifact for {}", path);
+                return null;
+            }
+            // check the recorded length against the opened file, so a corrupt length cannot allocate
+            final int length = in.readInt();
+            if (length < 0 || length != stream.getChannel().size() - counter.getCount()) {
+                throw new IOException("Policy artifact length " + length + " does not match the file");
+            }
+            final byte[] artifact = new byte[length];
+            in.readFully(artifact);
+            return ByteBuffer.wrap(artifact).asReadOnlyBuffer();
+        } catch (final FileNotFoundException e) {
+            return null;
+        } catch (final IOException e) {
+            LOGGER.warn("Cannot read policy artifact {}", file, e);
+            return null;
+        }
+    }
+
+    @Override
+    public void put(final String path, final String version, final byte[] artifact) {
+        final File file = fileFor(path);
+        File tmp = null;
+        try {
+            tmp = File.createTempFile(file.getName(), ".tmp", directory);
+            try (final DataOutputStream out =
+                    new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeUTF(path);
+                out.writeUTF(version);
+                out.writeInt(artifact.length);
+                out.write(artifact);
+            }
+            Files.move(tmp.toPath(), file.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+            tmp = null;
+        } catch (final IOException e) {
+            LOGGER.warn("Cannot write policy artifact {}", file, e);
+        } finally {
+            if (tmp != null && !tmp.delete()) {
+                LOGGER.debug("Cannot remove {}", tmp);
+            }
+        }
+    }
+
+    private File fileFor(final String path) {
+        return new File(directory, Hashing.sha1().hashUnencodedChars(path).toString() + ".policy");
+    }
+}
@@ -0,0 +1,367 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static javax.jcr.observation.Event.NODE_MOVED;
+import static javax.jcr.observation.Event.NODE_REMOVED;
+import static javax.jcr.observation.Event.PROPERTY_ADDED;
+import static javax.jcr.observation.Event.PROPERTY_CHANGED;
+import static javax.jcr.observation.Event.PROPERTY_REMOVED;
+import static org.fcrepo.auth.xacml.URIConstants.XACML_POLICY_PROPERTY;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.query.Query;
+
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Knows which nodes have a policy assigned, so that the node whose policy governs a path can be found in memory
+ * instead of by walking up the repository hierarchy. The index is read with a query on first use and is read
+ * again after a policy is assigned, changed or removed anywhere in the repository.
+ *
+ * The index also counts policy generations. The generation changes whenever policy assignments change, or the
+ * content of a policy that the policy finder has loaded changes, so that decisions derived from the policies
+ * can be dropped. Changes are seen through repository events, which are delivered asynchronously, so there is a
+ * short delay between a policy change and its effect on the index. The policy finder validates and prepares
+ * each changed or newly assigned policy as its events arrive, so that requests do not parse it.
+ */
+@Component("effectivePolicyIndex")
+public class EffectivePolicyIndex implements EventListener {
+
+    private static final Logger LOGGER = getLogger(EffectivePolicyIndex.class);
+
+    private static final String POLICY_NODES_QUERY =
+            "SELECT [jcr:path] FROM [nt:base] WHERE [" + XACML_POLICY_PROPERTY + "] IS NOT NULL";
+
+    private static final int EVENT_TYPES =
+            PROPERTY_ADDED | PROPERTY_CHANGED | PROPERTY_REMOVED | NODE_REMOVED | NODE_MOVED;
+
+    @Autowired
+    private SessionFactory sessionFactory;
+
+    @Autowired
+    private FedoraPolicyFinderModule fedoraPolicyFinderModule;
+
+    /**
+     * Tells the other nodes of a cluster about policy changes, if the repository is shared by a cluster.
+     */
+    @Autowired(required = false)
+    private ClusterPolicyInvalidation clusterPolicyInvalidation;
+
+    /**
+     * The session that receives repository events and reads the index, opened on first use.
+     */
+    private Session session;
+
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * The current index, or null if it must be read again.
+     */
+    private volatile Snapshot snapshot;
+
+    /**
+     * @return the current policy generation
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Finds the node whose policy governs a path, which is the nearest node at or above the path that has a
+     * policy assigned.
+     *
+     * @param modepath the raw ModeShape path of a node or property
+     * @return the repository path of the governing node, "/" for the root node, or null if no node has a policy
+     *         or the index cannot be read
+     */
+    public String getEffectivePolicyNode(final String modepath) {
+        final Snapshot current = snapshot();
+        if (current == null) {
+            return null;
+        }
+        for (String path = modepath; path.contains("/{"); path = path.substring(0, path.lastIndexOf("/{"))) {
+            final String node = current.policyNodes.get(PolicyUtil.normalizeModePath(path));
+            if (node != null) {
+                return node;
+            }
+        }
+        return current.rootHasPolicy ? "/" : null;
+    }
+
+    /**
+     * Finds the node whose policy governs a path, with the generation it was found in. The generation is read
+     * first, so a change that arrives during the lookup leaves the result with the older generation.
+     *
+     * @param modepath the raw ModeShape path of a node or property
+     * @return the policy version, or null if no node has a policy or the index cannot be read
+     */
+    public PolicyVersion getPolicyVersion(final String modepath) {
+        final long current = generation.get();
+        final String node = getEffectivePolicyNode(modepath);
+        return node == null ? null : new PolicyVersion(node, current);
+    }
+
+    /**
+     * Finds the nodes below a node that have a policy assigned.
+     *
+     * @param path the repository path of a node
+     * @return the repository paths of the nodes below it that have a policy, or null if the index cannot be read
+     */
+    public List<String> getPolicyNodesBelow(final String path) {
+        final Snapshot current = snapshot();
+        if (current == null) {
+            return null;
+        }
+        final String prefix = "/".equals(path) ? path : path + "/";
+        final List<String> nodes = new ArrayList<>();
+        for (final String node : current.policyNodes.values()) {
+            if (node.startsWith(prefix)) {
+                nodes.add(node);
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Closes the event session.
+     */
+    @PreDestroy
+    public synchronized void close() {
+        if (session != null) {
+            try {
+                session.getWorkspace().getObservationManager().removeEventListener(this);
+            } catch (final RepositoryException e) {
+                LOGGER.warn("Cannot remove the policy event listener", e);
+            }
+            session.logout();
+            session = null;
+        }
+        snapshot = null;
+    }
+
+    /**
+     * Reads the policy assignments again and starts a new generation, after a policy change made through another
+     * node of a cluster.
+     */
+    public void invalidateFromCluster() {
+        invalidate();
+    }
+
+    @Override
+    public void onEvent(final EventIterator events) {
+        final long before = generation.get();
+        // policies are validated and prepared once per batch of events, before decisions are dropped
+        final Set<String> assigned = new HashSet<>();
+        final Set<String> stored = new HashSet<>();
+        while (events.hasNext()) {
+            final Event event = events.nextEvent();
+            try {
+                final String path = event.getPath();
+                switch (event.getType()) {
+                    case PROPERTY_ADDED:
+                    case PROPERTY_CHANGED:
+                    case PROPERTY_REMOVED:
+                        if (path.endsWith("/" + XACML_POLICY_PROPERTY)) {
+                            if (event.getType() != PROPERTY_REMOVED && assigned.add(path)) {
+                                fedoraPolicyFinderModule.precompileAssigned(path);
+                            }
+                            invalidate();
+                        } else {
+                            final String binary = getPolicyBinary(path);
+                            if (binary != null) {
+                                if (stored.add(binary)) {
+                                    fedoraPolicyFinderModule.precompile(binary);
+                                }
+                                generation.incrementAndGet();
+                            }
+                        }
+                        break;
+                    case NODE_MOVED:
+                        final Object source = event.getInfo().get("srcAbsPath");
+                        if (covers(path) || source != null && covers(source.toString())) {
+                            invalidate();
+                        }
+                        break;
+                    default:
+                        if (covers(path)) {
+                            invalidate();
+                        }
+                        break;
+                }
+            } catch (final RepositoryException e) {
+                LOGGER.warn("Cannot read policy event, reading policy assignments again", e);
+                invalidate();
+            }
+        }
+        if (clusterPolicyInvalidation != null && generation.get() != before) {
+            clusterPolicyInvalidation.publish();
+        }
+    }
+
+    private void invalidate() {
+        generation.incrementAndGet();
+        snapshot = null;
+        fedoraPolicyFinderModule.forgetMissingPaths();
+    }
+
+    /**
+     * @return the path of the loaded policy binary that a property belongs to, directly or through its content
+     *         node, or null if it is not a property of a policy
+     */
+    private String getPolicyBinary(final String propertyPath) {
+        final String node = propertyPath.substring(0, Math.max(propertyPath.lastIndexOf('/'), 1));
+        if (fedoraPolicyFinderModule.isPolicyPath(node)) {
+            return node;
+        }
+        final String parent = node.substring(0, Math.max(node.lastIndexOf('/'), 1));
+        return fedoraPolicyFinderModule.isPolicyPath(parent) ? parent : null;
+    }
+
+    /**
+     * @return whether removing or moving the node at the path affects a policy assignment or a loaded policy
+     */
+    private boolean covers(final String path) {
+        final String prefix = path + "/";
+        final Snapshot current = snapshot;
+        if (current != null) {
+            for (final String node : current.policyNodes.values()) {
+                if (node.equals(path) || node.startsWith(prefix)) {
+                    return true;
+                }
+            }
+        }
+        return fedoraPolicyFinderModule.coversPolicyPath(path);
+    }
+
+    private Snapshot snapshot() {
+        final Snapshot current = snapshot;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            if (snapshot != null) {
+                return snapshot;
+            }
+            try {
+                final long before = generation.get();
+                final Snapshot read = read();
+                snapshot = read;
+                if (generation.get() != before) {
+                    // changed while reading, use the result once and read again next time
+                    snapshot = null;
+                }
+                return read;
+            } catch (final RepositoryException e) {
+                LOGGER.warn("Cannot read policy assignments", e);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Reads the nodes that have a policy assigned. The event listener is registered before the query, so that an
+     * assignment made while the query runs is either in its results or invalidates them.
+     */
+    private Snapshot read() throws RepositoryException {
+        if (session == null) {
+            session = sessionFactory.getInternalSession();
+            session.getWorkspace().getObservationManager().addEventListener(this, EVENT_TYPES, "/", true, null,
+                    null, false);
+        } else {
+            session.refresh(false);
+        }
+
+        final Map<String, String> policyNodes = new HashMap<>();
+        boolean rootHasPolicy = false;
+        final Query query = session.getWorkspace().getQueryManager().createQuery(POLICY_NODES_QUERY, Query.JCR_SQL2);
+        for (final NodeIterator nodes = query.execute().getNodes(); nodes.hasNext();) {
+            final Node node = nodes.nextNode();
+            if (node.getDepth() == 0) {
+                rootHasPolicy = true;
+            } else {
+                final String modepath = PolicyUtil.getModePath(node.getPath(), session);
+                policyNodes.put(PolicyUtil.normalizeModePath(modepath), node.getPath());
+            }
+        }
+        LOGGER.debug("Read {} policy assignments below the root", policyNodes.size());
+        return new Snapshot(policyNodes, rootHasPolicy);
+    }
+
+    /**
+     * The policy in effect for a path in a generation: the node it is assigned to. Two equal versions have the same
+     * policy assignments and policy content, as far as the repository events that have arrived tell.
+     */
+    public static final class PolicyVersion {
+
+        private final String node;
+
+        private final long generation;
+
+        PolicyVersion(final String node, final long generation) {
+            this.node = node;
+            this.generation = generation;
+        }
+
+        /**
+         * @return the repository path of the node whose policy is in effect
+         */
+        public String getNode() {
+            return node;
+        }
+
+        /**
+         * @return the policy generation the node was found in
+         */
+        public long getGeneration() {
+            return generation;
+        }
+    }
+
+    /**
+     * The policy assignments below the root, by normalized raw path.
+     */
+    private static class Snapshot {
+
+        private final Map<String, String> policyNodes;
+
+        private final boolean rootHasPolicy;
+
+        Snapshot(final Map<String, String> policyNodes, final boolean rootHasPolicy) {
+            this.policyNodes = policyNodes;
+            this.rootHasPolicy = rootHasPolicy;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonList;
+import static java.util.Collections.unmodifiableMap;
+import static java.util.Collections.unmodifiableSet;
+import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_ENVIRONMENT_CURRENT_DATE;
+import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_ENVIRONMENT_CURRENT_DATETIME;
+import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_ENVIRONMENT_CURRENT_TIME;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.ENVIRONMENT_TARGET;
+import static org.jboss.security.xacml.sunxacml.attr.BagAttribute.createEmptyBag;
+import static org.jboss.security.xacml.sunxacml.ctx.Status.STATUS_PROCESSING_ERROR;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.net.URI;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jboss.security.xacml.sunxacml.EvaluationCtx;
+import org.jboss.security.xacml.sunxacml.ParsingException;
+import org.jboss.security.xacml.sunxacml.UnknownIdentifierException;
+import org.jboss.security.xacml.sunxacml.attr.AttributeFactory;
+import org.jboss.security.xacml.sunxacml.attr.AttributeValue;
+import org.jboss.security.xacml.sunxacml.attr.BagAttribute;
+import org.jboss.security.xacml.sunxacml.attr.DateAttribute;
+import org.jboss.security.xacml.sunxacml.attr.DateTimeAttribute;
+import org.jboss.security.xacml.sunxacml.attr.TimeAttribute;
+import org.jboss.security.xacml.sunxacml.cond.EvaluationResult;
+import org.jboss.security.xacml.sunxacml.ctx.Status;
+import org.jboss.security.xacml.sunxacml.finder.AttributeFinderModule;
+import org.slf4j.Logger;
+import org.springframework.stereotype.Component;
+
+/**
+ * Finds environment attributes: the current time, date and date and time, and the attributes the deployment
+ * defines, such as a maintenance mode or read-only flag.
+ *
+ * The current time is read from a clock that advances at most once per resolution, so that all requests within
+ * the same interval share one set of time attributes, instead of each request making its own as
+ * {@code CurrentEnvModule} does. An interval begins when the clock is first read after the previous one ended,
+ * and its attributes hold that time, so a request may see a time up to one resolution earlier than the actual
+ * time. The default resolution of 1 ms keeps this within the precision of the clock; a coarser resolution
+ * should only be set where the time conditions of the policies tolerate that skew.
+ *
+ * Deployment attributes are kept as strings, and each is made into a bag of the designated type once, when a
+ * policy first asks for it.
+ */
+@Component("environmentAttributeFinderModule")
+public class EnvironmentAttributeFinderModule extends AttributeFinderModule {
+
+    private static final Logger LOGGER = getLogger(EnvironmentAttributeFinderModule.class);
+
+    private static final URI TIME_TYPE = URI.create(TimeAttribute.identifier);
+
+    private static final URI DATE_TYPE = URI.create(DateAttribute.identifier);
+
+    private static final URI DATETIME_TYPE = URI.create(DateTimeAttribute.identifier);
+
+    /**
+     * Supported designator types.
+     */
+    private static final Set<Integer> DESIGNATOR_TYPES = unmodifiableSet(singleton(ENVIRONMENT_TARGET));
+
+    private long resolution = 1;
+
+    /**
+     * The time attributes of the current interval of the clock.
+     */
+    private volatile Now now;
+
+    private volatile Environment environment = new Environment(new HashMap<String, String>());
+
+    /**
+     * @param resolution the interval in milliseconds at which the clock advances, and so the most by which the
+     *        reported time can trail the actual time
+     */
+    public void setResolution(final long resolution) {
+        if (resolution < 1) {
+            throw new IllegalArgumentException("Clock resolution must be positive!");
+        }
+        this.resolution = resolution;
+        this.now = null;
+    }
+
+    /**
+     * @param attributes the values of the deployment attributes, by attribute ID
+     */
+    public void setAttributes(final Map<String, String> attributes) {
+        environment = new Environment(attributes);
+    }
+
+    /**
+     * Sets the value of a deployment attribute, such as switching a maintenance mode on or off.
+     *
+     * @param attributeId the attribute ID
+     * @param value the value, or null to remove the attribute
+     */
+    public synchronized void setAttribute(final String attributeId, final String value) {
+        final Map<String, String> attributes = new HashMap<>(environment.values);
+        if (value == null) {
+            attributes.remove(attributeId);
+        } else {
+            attributes.put(attributeId, value);
+        }
+        environment = new Environment(attributes);
+    }
+
+    /**
+     * @return the values of the deployment attributes, by attribute ID
+     */
+    public Map<String, String> getAttributes() {
+        return environment.values;
+    }
+
+    /**
+     * Supports designators.
+     *
+     * @return true
+     */
+    @Override
+    public final boolean isDesignatorSupported() {
+        return true;
+    }
+
+    /**
+     * Supports environment designators.
+     *
+     * @return the environment designator type
+     */
+    @Override
+    public final Set<Integer> getSupportedDesignatorTypes() {
+        return DESIGNATOR_TYPES;
+    }
+
+    /**
+     * Finds the values of an environment attribute.
+     *
+     * @see org.jboss.security.xacml.sunxacml.finder.AttributeFinderModule#findAttribute (java.net.URI, java.net.URI,
+     *      java.net.URI, java.net.URI, org.jboss.security.xacml.sunxacml.EvaluationCtx, int)
+     */
+    @Override
+    public final EvaluationResult findAttribute(final URI attributeType,
+                                                final URI attributeId,
+                                                final URI issuer,
+                                                final URI subjectCategory,
+                                                final EvaluationCtx context,
+                                                final int designatorType) {
+        if (designatorType != ENVIRONMENT_TARGET) {
+            return new EvaluationResult(createEmptyBag(attributeType));
+        }
+        if (ATTRIBUTEID_ENVIRONMENT_CURRENT_TIME.equals(attributeId)) {
+            return TIME_TYPE.equals(attributeType) ? now().time : new EvaluationResult(createEmptyBag(attributeType));
+        }
+        if (ATTRIBUTEID_ENVIRONMENT_CURRENT_DATE.equals(attributeId)) {
+            return DATE_TYPE.equals(attributeType) ? now().date : new EvaluationResult(createEmptyBag(attributeType));
+        }
+        if (ATTRIBUTEID_ENVIRONMENT_CURRENT_DATETIME.equals(attributeId)) {
+            return DATETIME_TYPE.equals(attributeType) ? now().dateTime :
+                    new EvaluationResult(createEmptyBag(attributeType));
+        }
+        return environment.bag(attributeType, attributeId);
+    }
+
+    /**
+     * @return the time attributes of the current interval, made at the time of the first read once the clock has
+     *         advanced
+     */
+    private Now now() {
+        final long millis = System.currentTimeMillis();
+        Now current = now;
+        if (current == null || millis - current.millis >= resolution || millis < current.millis) {
+            current = new Now(millis);
+            now = current;
+        }
+        return current;
+    }
+
+    private static EvaluationResult bag(final URI type, final AttributeValue value) {
+        return new EvaluationResult(new BagAttribute(type, singletonList(value)));
+    }
+
+    /**
+     * The time attributes of one interval of the clock.
+     */
+    private static final class Now {
+
+        private final long millis;
+
+        private final EvaluationResult time;
+
+        private final EvaluationResult date;
+
+        private final EvaluationResult dateTime;
+
+        private Now(final long millis) {
+            this.millis = millis;
+            final Date start = new Date(millis);
+            this.time = bag(TIME_TYPE, new TimeAttribute(start));
+            this.date = bag(DATE_TYPE, new DateAttribute(start));
+            this.dateTime = bag(DATETIME_TYPE, new DateTimeAttribute(start));
+        }
+    }
+
+    /**
+     * The deployment attributes, with the bags made from them so far. A change replaces the whole environment, so
+     * that no bag outlives the value it was made from.
+     */
+    private static final class Environment {
+
+        private final Map<String, String> values;
+
+        private final Map<List<URI>, EvaluationResult> bags = new ConcurrentHashMap<>();
+
+        private Environment(final Map<String, String> values) {
+            this.values = unmodifiableMap(new HashMap<>(values));
+        }
+
+        private EvaluationResult bag(final URI type, final URI id) {
+            final List<URI> key = asList(type, id);
+            EvaluationResult bag = bags.get(key);
+            if (bag == null) {
+                bag = make(type, id);
+                bags.put(key, bag);
+            }
+            return bag;
+        }
+
+        private EvaluationResult make(final URI type, final URI id) {
+            final String value = values.get(id.toString());
+            if (value == null) {
+                return new EvaluationResult(createEmptyBag(type));
+            }
+            try {
+                return EnvironmentAttributeFinderModule.bag(type, AttributeFactory.getInstance().createValue(type,
+                        value));
+            } catch (final UnknownIdentifierException | ParsingException e) {
+                LOGGER.warn("Cannot make {} value of environment attribute {}", type, id, e);
+                return new EvaluationResult(new Status(singletonList(STATUS_PROCESSING_ERROR),
+                        "Cannot make value of environment attribute " + id));
+            }
+        }
+    }
+}
@@ -0,0 +1,420 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.util.Collections.unmodifiableList;
+import static java.util.Collections.unmodifiableSet;
+import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_ACTION_ID;
+import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_ENVIRONMENT_ORIGINAL_IP_ADDRESS;
+import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_RESOURCE_ID;
+import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_RESOURCE_WORKSPACE;
+import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_SUBJECT_ID;
+import static org.fcrepo.auth.xacml.URIConstants.FCREPO_SUBJECT_GROUP;
+import static org.fcrepo.auth.xacml.URIConstants.FCREPO_SUBJECT_ROLE;
+import static org.fcrepo.auth.xacml.URIConstants.SUBJECT_CATEGORY_ACCESS_SUBJECT;
+import static org.fcrepo.auth.xacml.URIConstants.XML_SCHEMA_STRING;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.ACTION_TARGET;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.ENVIRONMENT_TARGET;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.RESOURCE_TARGET;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.SUBJECT_TARGET;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.fcrepo.auth.xacml.TripleAttributeFinderModule.ResourceTriples;
+import org.jboss.security.xacml.sunxacml.EvaluationCtx;
+import org.jboss.security.xacml.sunxacml.attr.AttributeValue;
+import org.jboss.security.xacml.sunxacml.attr.BagAttribute;
+import org.jboss.security.xacml.sunxacml.attr.DateAttribute;
+import org.jboss.security.xacml.sunxacml.attr.DateTimeAttribute;
+import org.jboss.security.xacml.sunxacml.attr.StringAttribute;
+import org.jboss.security.xacml.sunxacml.attr.TimeAttribute;
+import org.jboss.security.xacml.sunxacml.cond.EvaluationResult;
+import org.jboss.security.xacml.sunxacml.finder.AttributeFinder;
+import org.w3c.dom.Node;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * The evaluation context of a Fedora authorization request. Besides the request attributes it carries the main
+ * request values in plain form, resource attributes that are loaded ahead of evaluation, and the policy that was
+ * selected for the request.
+ *
+ * The attributes of a Fedora request are always the same few: the user, roles and groups of the access subject,
+ * the resource ID and workspace, and the action IDs and client address. They are held in fields, and their bags
+ * are made once, on first use. Any other attribute, and any of these asked for with another type, issuer or
+ * subject category, is looked up by the attribute finder, as {@code BasicEvaluationCtx} would. The request has no
+ * XML form, so attribute selectors are left to the finder as well.
+ *
+ * The context also notes whether the decision used any attribute other than the subject roles and the action IDs.
+ * A decision that did not can be reused for the same roles and actions anywhere the same policy governs.
+ */
+public class FedoraEvaluationCtx implements EvaluationCtx {
+
+    private static final InternedAttributes ROLES = new InternedAttributes();
+
+    private static final InternedAttributes GROUPS = new InternedAttributes();
+
+    private static final InternedAttributes ACTIONS = new InternedAttributes();
+
+    private static final InternedAttributes WORKSPACES = new InternedAttributes();
+
+    private final AttributeFinder finder;
+
+    private final String principalName;
+
+    private final Set<String> roles;
+
+    private final List<String> groups;
+
+    private final String resourcePath;
+
+    private final String workspace;
+
+    private final List<String> actions;
+
+    private final String originalIp;
+
+    private volatile AttributeValue resourceId;
+
+    private volatile EvaluationResult subjectIdBag;
+
+    private volatile EvaluationResult roleBag;
+
+    private volatile EvaluationResult groupBag;
+
+    private volatile EvaluationResult resourceIdBag;
+
+    private volatile EvaluationResult workspaceBag;
+
+    private volatile EvaluationResult actionBag;
+
+    private volatile EvaluationResult originalIpBag;
+
+    private TimeAttribute currentTime;
+
+    private DateAttribute currentDate;
+
+    private DateTimeAttribute currentDateTime;
+
+    private volatile ListenableFuture<ResourceTriples> resourceTriples;
+
+    private volatile String effectivePolicyId;
+
+    private volatile String effectivePolicyNode;
+
+    private volatile boolean attributeDependent;
+
+    /**
+     * Constructor
+     *
+     * @param finder the finder for attributes not in the request
+     * @param principalName the user principal name, or null
+     * @param roles the effective roles of the user
+     * @param groups the groups of the user
+     * @param resourcePath the node or property path
+     * @param workspace the workspace name, or null
+     * @param actions the requested actions
+     * @param originalIp the address of the client, or null
+     */
+    FedoraEvaluationCtx(final AttributeFinder finder, final String principalName, final Set<String> roles,
+            final Collection<String> groups, final String resourcePath, final String workspace,
+            final List<String> actions, final String originalIp) {
+        this.finder = finder;
+        this.principalName = principalName;
+        this.roles = unmodifiableSet(new HashSet<>(roles));
+        this.groups = unmodifiableList(new ArrayList<>(groups));
+        this.resourcePath = resourcePath;
+        this.workspace = workspace;
+        this.actions = unmodifiableList(new ArrayList<>(actions));
+        this.originalIp = originalIp;
+        this.resourceId = new StringAttribute(resourcePath);
+    }
+
+    /**
+     * @return the user principal name, or null
+     */
+    public String getPrincipalName() {
+        return principalName;
+    }
+
+    /**
+     * @return the effective roles of the user
+     */
+    public Set<String> getRoles() {
+        return roles;
+    }
+
+    /**
+     * @return the groups of the user
+     */
+    public List<String> getGroups() {
+        return groups;
+    }
+
+    /**
+     * @return the node or property path
+     */
+    public String getResourcePath() {
+        return resourcePath;
+    }
+
+    /**
+     * @return the requested actions
+     */
+    public List<String> getActions() {
+        return actions;
+    }
+
+    /**
+     * @return the ID of the policy that the policy finder selected for the request, or null
+     */
+    public String getEffectivePolicyId() {
+        return effectivePolicyId;
+    }
+
+    /**
+     * @param effectivePolicyId the ID of the policy that the policy finder selected for the request
+     */
+    void setEffectivePolicyId(final String effectivePolicyId) {
+        this.effectivePolicyId = effectivePolicyId;
+    }
+
+    /**
+     * @return the prefetched properties of the requested resource, or null if they are not prefetched
+     */
+    ListenableFuture<ResourceTriples> getResourceTriples() {
+        return resourceTriples;
+    }
+
+    /**
+     * @param resourceTriples the properties of the requested resource, being loaded
+     */
+    void setResourceTriples(final ListenableFuture<ResourceTriples> resourceTriples) {
+        this.resourceTriples = resourceTriples;
+    }
+
+    /**
+     * @return the repository path of the node whose policy the policy finder selected, or null
+     */
+    String getEffectivePolicyNode() {
+        return effectivePolicyNode;
+    }
+
+    /**
+     * @param effectivePolicyNode the repository path of the node whose policy the policy finder selected
+     */
+    void setEffectivePolicyNode(final String effectivePolicyNode) {
+        this.effectivePolicyNode = effectivePolicyNode;
+    }
+
+    /**
+     * @return whether an attribute other than the subject roles and action IDs was used since
+     *         {@link #resetAttributeUse()}
+     */
+    boolean isAttributeDependent() {
+        return attributeDependent;
+    }
+
+    /**
+     * Notes that the decision depends on an attribute other than the subject roles and action IDs, for a choice
+     * made from such an attribute without looking it up.
+     */
+    void setAttributeDependent() {
+        attributeDependent = true;
+    }
+
+    /**
+     * Forgets the attributes used so far, called before the evaluation starts.
+     */
+    void resetAttributeUse() {
+        attributeDependent = false;
+    }
+
+    /**
+     * @return null, since the request has no XML form
+     */
+    @Override
+    public Node getRequestRoot() {
+        return null;
+    }
+
+    /**
+     * @return {@link EvaluationCtx#SCOPE_IMMEDIATE}, since Fedora requests are for a single resource
+     */
+    @Override
+    public int getScope() {
+        return SCOPE_IMMEDIATE;
+    }
+
+    @Override
+    public AttributeValue getResourceId() {
+        return resourceId;
+    }
+
+    @Override
+    public void setResourceId(final AttributeValue resourceId) {
+        this.resourceId = resourceId;
+        this.resourceIdBag = null;
+    }
+
+    @Override
+    public synchronized TimeAttribute getCurrentTime() {
+        attributeDependent = true;
+        if (currentTime == null) {
+            currentTime = new TimeAttribute();
+        }
+        return currentTime;
+    }
+
+    @Override
+    public synchronized DateAttribute getCurrentDate() {
+        attributeDependent = true;
+        if (currentDate == null) {
+            currentDate = new DateAttribute();
+        }
+        return currentDate;
+    }
+
+    @Override
+    public synchronized DateTimeAttribute getCurrentDateTime() {
+        attributeDependent = true;
+        if (currentDateTime == null) {
+            currentDateTime = new DateTimeAttribute();
+        }
+        return currentDateTime;
+    }
+
+    @Override
+    public EvaluationResult getSubjectAttribute(final URI type, final URI id, final URI category) {
+        return getSubjectAttribute(type, id, null, category);
+    }
+
+    @Override
+    public EvaluationResult getSubjectAttribute(final URI type, final URI id, final URI issuer,
+            final URI category) {
+        if (!FCREPO_SUBJECT_ROLE.equals(id)) {
+            attributeDependent = true;
+        }
+        EvaluationResult bag = null;
+        if (isRequestAttribute(type, issuer) && SUBJECT_CATEGORY_ACCESS_SUBJECT.equals(category)) {
+            if (FCREPO_SUBJECT_ROLE.equals(id)) {
+                if (roleBag == null) {
+                    roleBag = bag(ROLES, roles);
+                }
+                bag = roleBag;
+            } else if (FCREPO_SUBJECT_GROUP.equals(id)) {
+                if (groupBag == null) {
+                    groupBag = bag(GROUPS, groups);
+                }
+                bag = groupBag;
+            } else if (ATTRIBUTEID_SUBJECT_ID.equals(id) && principalName != null) {
+                if (subjectIdBag == null) {
+                    subjectIdBag = bag(new StringAttribute(principalName));
+                }
+                bag = subjectIdBag;
+            }
+        }
+        return bag != null ? bag : finder.findAttribute(type, id, issuer, category, this, SUBJECT_TARGET);
+    }
+
+    @Override
+    public EvaluationResult getResourceAttribute(final URI type, final URI id, final URI issuer) {
+        attributeDependent = true;
+        EvaluationResult bag = null;
+        if (isRequestAttribute(type, issuer)) {
+            if (ATTRIBUTEID_RESOURCE_ID.equals(id)) {
+                if (resourceIdBag == null) {
+                    resourceIdBag = bag(resourceId);
+                }
+                bag = resourceIdBag;
+            } else if (ATTRIBUTEID_RESOURCE_WORKSPACE.equals(id) && workspace != null) {
+                if (workspaceBag == null) {
+                    workspaceBag = bag(WORKSPACES.get(workspace));
+                }
+                bag = workspaceBag;
+            }
+        }
+        return bag != null ? bag : finder.findAttribute(type, id, issuer, null, this, RESOURCE_TARGET);
+    }
+
+    @Override
+    public EvaluationResult getActionAttribute(final URI type, final URI id, final URI issuer) {
+        if (!ATTRIBUTEID_ACTION_ID.equals(id)) {
+            attributeDependent = true;
+        }
+        EvaluationResult bag = null;
+        if (isRequestAttribute(type, issuer)) {
+            if (ATTRIBUTEID_ACTION_ID.equals(id)) {
+                if (actionBag == null) {
+                    actionBag = bag(ACTIONS, actions);
+                }
+                bag = actionBag;
+            } else if (ATTRIBUTEID_ENVIRONMENT_ORIGINAL_IP_ADDRESS.equals(id) && originalIp != null) {
+                // the client address is an action attribute, as it has always been
+                if (originalIpBag == null) {
+                    originalIpBag = bag(new StringAttribute(originalIp));
+                }
+                bag = originalIpBag;
+            }
+        }
+        return bag != null ? bag : finder.findAttribute(type, id, issuer, null, this, ACTION_TARGET);
+    }
+
+    @Override
+    public EvaluationResult getEnvironmentAttribute(final URI type, final URI id, final URI issuer) {
+        attributeDependent = true;
+        return finder.findAttribute(type, id, issuer, null, this, ENVIRONMENT_TARGET);
+    }
+
+    @Override
+    public EvaluationResult getAttribute(final String contextPath, final Node namespaceNode, final URI type,
+            final String xpathVersion) {
+        attributeDependent = true;
+        return finder.findAttribute(contextPath, namespaceNode, type, this, xpathVersion);
+    }
+
+    /**
+     * @return whether an attribute of the type and issuer can be in the request, which only has string
+     *         attributes without an issuer
+     */
+    private static boolean isRequestAttribute(final URI type, final URI issuer) {
+        return issuer == null && XML_SCHEMA_STRING.equals(type);
+    }
+
+    /**
+     * @return a bag of the shared values of the names, or null if there are none, so that the finder is asked
+     */
+    private static EvaluationResult bag(final InternedAttributes vocabulary, final Collection<String> names) {
+        if (names.isEmpty()) {
+            return null;
+        }
+        final List<AttributeValue> values = new ArrayList<>(names.size());
+        for (final String name : names) {
+            values.add(vocabulary.get(name));
+        }
+        return new EvaluationResult(new BagAttribute(XML_SCHEMA_STRING, values));
+    }
+
+    private static EvaluationResult bag(final AttributeValue value) {
+        return new EvaluationResult(new BagAttribute(XML_SCHEMA_STRING, Arrays.asList(value)));
+    }
+}
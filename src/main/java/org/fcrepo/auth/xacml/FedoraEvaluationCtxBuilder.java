@@ -15,29 +15,12 @@
  */
 package org.fcrepo.auth.xacml;
 
-import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_ACTION_ID;
-import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_ENVIRONMENT_ORIGINAL_IP_ADDRESS;
-import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_RESOURCE_ID;
-import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_RESOURCE_WORKSPACE;
-import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_SUBJECT_ID;
-import static org.fcrepo.auth.xacml.URIConstants.FCREPO_SUBJECT_GROUP;
-import static org.fcrepo.auth.xacml.URIConstants.FCREPO_SUBJECT_ROLE;
-
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.security.Principal;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 
-import org.jboss.security.xacml.sunxacml.BasicEvaluationCtx;
-import org.jboss.security.xacml.sunxacml.EvaluationCtx;
-import org.jboss.security.xacml.sunxacml.ParsingException;
-import org.jboss.security.xacml.sunxacml.attr.AttributeValue;
-import org.jboss.security.xacml.sunxacml.attr.StringAttribute;
-import org.jboss.security.xacml.sunxacml.ctx.Attribute;
-import org.jboss.security.xacml.sunxacml.ctx.RequestCtx;
-import org.jboss.security.xacml.sunxacml.ctx.Subject;
 import org.jboss.security.xacml.sunxacml.finder.AttributeFinder;
 import org.jboss.security.xacml.sunxacml.finder.AttributeFinderModule;
 import org.slf4j.Logger;
@@ -56,29 +39,24 @@ public class FedoraEvaluationCtxBuilder {
     private static final Logger LOGGER = LoggerFactory.getLogger(FedoraEvaluationCtxBuilder.class);
 
     /**
-     * The list of other subjects.
+     * The user principal name, roles, groups, resource path and workspace of the request.
      */
-    private final List<Subject> subjectList = new ArrayList<Subject>();
+    private String principalName;
 
-    /**
-     * This list of resource attributes.
-     */
-    private final List<Attribute> resourceList = new ArrayList<Attribute>();
+    private Set<String> roles = Collections.emptySet();
 
-    /**
-     * The ID of the resource.
-     */
-    private AttributeValue resourceId;
+    private final List<String> groups = new ArrayList<>();
 
-    /**
-     * This list of action attributes.
-     */
-    private final List<Attribute> actionList = new ArrayList<Attribute>();
+    private String resourcePath;
+
+    private String workspace;
 
     /**
-     * This list of environment attributes.
+     * The actions and client address of the request.
      */
-    private final List<Attribute> environmentList = new ArrayList<Attribute>();
+    private final List<String> actionIds = new ArrayList<>();
+
+    private String originalIp;
 
     /**
      * The list of attribute finder modules.
@@ -90,26 +68,14 @@ public class FedoraEvaluationCtxBuilder {
      *
      * @return the evaluation context
      */
-    public final EvaluationCtx build() {
-        final RequestCtx rc = new RequestCtx(subjectList, resourceList, actionList, environmentList);
-        if (LOGGER.isDebugEnabled()) {
-            try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-                rc.encode(baos);
-                LOGGER.debug("RequestCtx dump:\n{}", baos.toString("utf-8"));
-            } catch (final IOException e) {
-                LOGGER.info("Cannot print request context", e);
-            }
+    public final FedoraEvaluationCtx build() {
+        if (resourcePath == null) {
+            throw new Error("The request must have a resource ID");
         }
-
         final AttributeFinder af = new AttributeFinder();
         af.setModules(attributeFinderModules);
-        try {
-            final BasicEvaluationCtx result = new BasicEvaluationCtx(rc, af);
-            // result.setResourceId(resourceId);
-            return result;
-        } catch (final ParsingException e) {
-            throw new Error(e);
-        }
+        return new FedoraEvaluationCtx(af, principalName, roles, groups, resourcePath, workspace, actionIds,
+                originalIp);
     }
 
     /**
@@ -131,22 +97,12 @@ public class FedoraEvaluationCtxBuilder {
      * @return the builder
      */
     public final FedoraEvaluationCtxBuilder addSubject(final String username, final Set<String> roles) {
-        final List<Attribute> subjectAttrs = new ArrayList<>();
-        if (username != null) {
-            final StringAttribute v = new StringAttribute(username);
-            final Attribute sid = new Attribute(ATTRIBUTEID_SUBJECT_ID, null, null, v);
-            subjectAttrs.add(sid);
+        if (principalName == null && username != null) {
+            principalName = username;
         }
-
-        if (roles != null) {
-            for (final String role : roles) {
-                final StringAttribute roleAttr = new StringAttribute(role);
-                final Attribute roleId = new Attribute(FCREPO_SUBJECT_ROLE, null, null, roleAttr);
-                subjectAttrs.add(roleId);
-            }
+        if (roles != null && this.roles.isEmpty()) {
+            this.roles = roles;
         }
-
-        this.subjectList.add(new Subject(subjectAttrs));
         return this;
     }
 
@@ -157,8 +113,7 @@ public class FedoraEvaluationCtxBuilder {
      * @return the builder
      */
     public final FedoraEvaluationCtxBuilder addResourceID(final String rawModeShapePath) {
-        final Attribute rid = new Attribute(ATTRIBUTEID_RESOURCE_ID, null, null, new StringAttribute(rawModeShapePath));
-        resourceList.add(rid);
+        resourcePath = rawModeShapePath;
         return this;
     }
 
@@ -169,8 +124,7 @@ public class FedoraEvaluationCtxBuilder {
      * @return the builder
      */
     public final FedoraEvaluationCtxBuilder addWorkspace(final String name) {
-        final Attribute wid = new Attribute(ATTRIBUTEID_RESOURCE_WORKSPACE, null, null, new StringAttribute(name));
-        resourceList.add(wid);
+        workspace = name;
         return this;
     }
 
@@ -183,8 +137,7 @@ public class FedoraEvaluationCtxBuilder {
     public final FedoraEvaluationCtxBuilder addActions(final String[] actions) {
         if (actions != null) {
             for (final String action : actions) {
-                final Attribute a = new Attribute(ATTRIBUTEID_ACTION_ID, null, null, new StringAttribute(action));
-                actionList.add(a);
+                actionIds.add(action);
                 // if ("remove".equals(action)) {
                 // final Attribute scope =
                 // new Attribute(ATTRIBUTEID_RESOURCE_SCOPE, null, null,
@@ -200,11 +153,7 @@ public class FedoraEvaluationCtxBuilder {
      * @param remoteAddr
      */
     public void addOriginalRequestIP(final String remoteAddr) {
-        final Attribute a = new Attribute(ATTRIBUTEID_ENVIRONMENT_ORIGINAL_IP_ADDRESS,
-                                          null,
-                                          null,
-                                          new StringAttribute(remoteAddr));
-        actionList.add(a);
+        originalIp = remoteAddr;
     }
 
     /**
@@ -222,16 +171,12 @@ public class FedoraEvaluationCtxBuilder {
             return this;
         }
 
-        final List<Attribute> subjectAttrs = new ArrayList<>();
         for (final Principal group : allGroups) {
             // Do not include the user principal in the group attributes.
             if (!group.equals(user)) {
-                final StringAttribute groupAttr = new StringAttribute(group.getName());
-                final Attribute groupId = new Attribute(FCREPO_SUBJECT_GROUP, null, null, groupAttr);
-                subjectAttrs.add(groupId);
+                groups.add(group.getName());
             }
         }
-        this.subjectList.add(new Subject(subjectAttrs));
         return this;
     }
 
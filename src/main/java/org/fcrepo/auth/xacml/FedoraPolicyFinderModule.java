@@ -15,18 +15,39 @@
  */
 package org.fcrepo.auth.xacml;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static javax.xml.XMLConstants.W3C_XML_SCHEMA_NS_URI;
+import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_RESOURCE_ID;
+import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_RESOURCE_WORKSPACE;
 import static org.fcrepo.auth.xacml.URIConstants.POLICY_URI_PREFIX;
 import static org.fcrepo.auth.xacml.URIConstants.XACML_POLICY_PROPERTY;
+import static org.jboss.security.xacml.sunxacml.ctx.Status.STATUS_PROCESSING_ERROR;
 import static org.slf4j.LoggerFactory.getLogger;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.net.URI;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 
 import javax.jcr.Node;
 import javax.jcr.Property;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
 
 import org.fcrepo.http.commons.session.SessionFactory;
 import org.fcrepo.kernel.Datastream;
@@ -37,12 +58,14 @@ import org.fcrepo.kernel.services.NodeService;
 import org.jboss.security.xacml.sunxacml.AbstractPolicy;
 import org.jboss.security.xacml.sunxacml.EvaluationCtx;
 import org.jboss.security.xacml.sunxacml.MatchResult;
-import org.jboss.security.xacml.sunxacml.Policy;
+import org.jboss.security.xacml.sunxacml.ParsingException;
 import org.jboss.security.xacml.sunxacml.PolicyMetaData;
+import org.jboss.security.xacml.sunxacml.PolicyReference;
 import org.jboss.security.xacml.sunxacml.PolicySet;
 import org.jboss.security.xacml.sunxacml.VersionConstraints;
 import org.jboss.security.xacml.sunxacml.attr.AttributeValue;
-import org.jboss.security.xacml.sunxacml.cond.EvaluationResult;
+import org.jboss.security.xacml.sunxacml.combine.PolicyCombiningAlgorithm;
+import org.jboss.security.xacml.sunxacml.ctx.Status;
 import org.jboss.security.xacml.sunxacml.finder.PolicyFinder;
 import org.jboss.security.xacml.sunxacml.finder.PolicyFinderModule;
 import org.jboss.security.xacml.sunxacml.finder.PolicyFinderResult;
@@ -51,6 +74,11 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 
 /**
@@ -64,6 +92,11 @@ public class FedoraPolicyFinderModule extends PolicyFinderModule {
 
     private static final Logger LOGGER = getLogger(FedoraPolicyFinderModule.class);
 
+    /**
+     * ID of the policy sets that combine a policy with the policies of its ancestors.
+     */
+    private static final String INHERITED_POLICY_SET_ID = "info:fedora/policies/inherited";
+
     @Autowired
     private SessionFactory sessionFactory;
 
@@ -73,6 +106,59 @@ public class FedoraPolicyFinderModule extends PolicyFinderModule {
     @Autowired
     private NodeService nodeService;
 
+    /**
+     * Optional store of pre-parsed policies that survives restarts.
+     */
+    @Autowired(required = false)
+    private PolicyArtifactStore artifactStore;
+
+    /**
+     * Parsed policies by binary path.
+     */
+    private Cache<String, CachedPolicy> policyCache = CacheBuilder.newBuilder().maximumSize(1000).build();
+
+    /**
+     * Paths of all policy binaries that have been loaded.
+     */
+    private final Set<String> policyPaths = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Content versions that were rejected as invalid policies, by binary path.
+     */
+    private final Map<String, String> rejectedVersions = new ConcurrentHashMap<>();
+
+    /**
+     * Optional schema that policy documents are validated against before they are parsed.
+     */
+    private Schema policySchema;
+
+    /**
+     * Combined policy chains by the path of the node nearest to the resource with a policy.
+     */
+    private Cache<String, InheritedPolicy> inheritedPolicyCache =
+            CacheBuilder.newBuilder().maximumSize(1000).build();
+
+    /**
+     * Policy loads in progress, by binary path and content version.
+     */
+    private final SingleFlight<String, AbstractPolicy> policyLoads = new SingleFlight<>();
+
+    /**
+     * Paths that were recently found not to exist, such as the paths of nodes about to be created.
+     */
+    private Cache<String, Boolean> missingPaths =
+            CacheBuilder.newBuilder().maximumSize(10000).expireAfterWrite(2000, MILLISECONDS).build();
+
+    private boolean inheritPolicies = false;
+
+    private boolean useTargetIndex = true;
+
+    /**
+     * Empty policy set carrying the combining algorithm and the match-all target of combined chains.
+     */
+    private PolicySet inheritanceTemplate = createInheritanceTemplate(
+            "urn:oasis:names:tc:xacml:1.0:policy-combining-algorithm:first-applicable");
+
     private PolicyFinder finder;
 
     /*
@@ -96,46 +182,278 @@ public class FedoraPolicyFinderModule extends PolicyFinderModule {
     }
 
     /**
-     * Creates a new policy or policy set object from the given policy node
+     * @param policyCacheSize the maximum number of parsed policies kept in memory
+     */
+    public void setPolicyCacheSize(final long policyCacheSize) {
+        this.policyCache = CacheBuilder.newBuilder().maximumSize(policyCacheSize).build();
+    }
+
+    /**
+     * A node created within this time of its path being found missing is not seen by policy lookups, unless
+     * policy assignments change in the meantime. This does not change the effective policy unless the new node
+     * has a policy of its own, and new policy assignments clear the missing paths.
+     *
+     * @param missingPathTtl the time in milliseconds for which a path that does not exist is remembered
+     */
+    public void setMissingPathTtl(final long missingPathTtl) {
+        if (missingPathTtl < 1) {
+            throw new IllegalArgumentException("Missing path time to live must be positive!");
+        }
+        this.missingPaths =
+                CacheBuilder.newBuilder().maximumSize(10000).expireAfterWrite(missingPathTtl, MILLISECONDS).build();
+    }
+
+    /**
+     * Forgets the paths that were found not to exist, after policy assignments have changed.
+     */
+    public void forgetMissingPaths() {
+        missingPaths.invalidateAll();
+    }
+
+    /**
+     * @param useTargetIndex whether the child policies of a policy set whose targets cannot match the roles,
+     *        groups or actions of a request are left out before the policy set is evaluated. The index is not
+     *        used when policies are inherited.
+     */
+    public void setUseTargetIndex(final boolean useTargetIndex) {
+        this.useTargetIndex = useTargetIndex;
+        this.policyCache.invalidateAll();
+    }
+
+    /**
+     * @param schemaLocation the XACML policy schema that policy documents are validated against, in addition to
+     *        the checks of the policy parser
+     */
+    public void setPolicySchema(final URL schemaLocation) {
+        try {
+            policySchema = SchemaFactory.newInstance(W3C_XML_SCHEMA_NS_URI).newSchema(schemaLocation);
+        } catch (final SAXException e) {
+            throw new IllegalArgumentException("Cannot read policy schema " + schemaLocation, e);
+        }
+    }
+
+    /**
+     * @param inheritPolicies whether the policy of a node is combined with the policies of its ancestors, instead
+     *        of only the nearest policy applying
+     */
+    public void setInheritPolicies(final boolean inheritPolicies) {
+        this.inheritPolicies = inheritPolicies;
+    }
+
+    /**
+     * Policies are passed to the algorithm nearest first, so the default first-applicable lets a subtree
+     * policy override the policies above it.
+     *
+     * @param algorithmId the XACML policy combining algorithm for inherited policies
+     */
+    public void setInheritanceCombiningAlgorithm(final String algorithmId) {
+        this.inheritanceTemplate = createInheritanceTemplate(algorithmId);
+        this.inheritedPolicyCache.invalidateAll();
+    }
+
+    private static PolicySet createInheritanceTemplate(final String algorithmId) {
+        final String xml = "<PolicySet xmlns=\"urn:oasis:names:tc:xacml:1.0:policy\" PolicySetId=\"" +
+                INHERITED_POLICY_SET_ID + "\" PolicyCombiningAlgId=\"" + algorithmId + "\"><Target/></PolicySet>";
+        try {
+            final PolicySet template =
+                    PolicySet.getInstance(PolicyUtil.parse(new ByteArrayInputStream(xml.getBytes(UTF_8)))
+                            .getDocumentElement());
+            if (template != null && !(template.getCombiningAlg() instanceof PolicyCombiningAlgorithm)) {
+                throw new IllegalArgumentException(algorithmId + " is not a policy combining algorithm!");
+            }
+            return template;
+        } catch (final IllegalArgumentException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new IllegalArgumentException("Unknown policy combining algorithm " + algorithmId + "!", e);
+        }
+    }
+
+    /**
+     * @param path a repository path
+     * @return whether a policy has been loaded from the binary at the path
+     */
+    public boolean isPolicyPath(final String path) {
+        return policyPaths.contains(path);
+    }
+
+    /**
+     * @param path a repository path
+     * @return whether a policy has been loaded from a binary at or below the path
+     */
+    public boolean coversPolicyPath(final String path) {
+        final String prefix = path + "/";
+        for (final String policyPath : policyPaths) {
+            if (policyPath.equals(path) || policyPath.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Creates a new policy or policy set object from the given policy node. Parsed policies are cached by binary
+     * path and content version. On a cache miss the policy is rebuilt from its artifact, if an artifact store is
+     * configured and holds one for the current content, and otherwise from the XML. Concurrent misses for the same
+     * content wait for a single load.
+     *
+     * Content that is not a valid policy is rejected once per version, and the binary has no valid policy until
+     * its content is replaced with a valid policy, so that requests governed by it are not permitted. A previous
+     * valid version is never used instead, whether it is still cached or not.
      *
      * @param policyBinary
-     * @return
+     * @return the policy, or null if there is no valid policy for the binary
      */
     private AbstractPolicy loadPolicy(final FedoraBinary policyBinary) {
-        String policyName = "unparsed";
+        String path = null;
+        String version = null;
         try {
-            // create the factory
-            final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            factory.setIgnoringComments(true);
-            factory.setNamespaceAware(true);
-            factory.setValidating(false);
-
-            final DocumentBuilder db = factory.newDocumentBuilder();
-
-            // Parse the policy content
-            final Document doc = db.parse(policyBinary.getContent());
-
-            // handle the policy, if it's a known type
-            final Element root = doc.getDocumentElement();
-            final String name = root.getTagName();
-
-            policyName = PolicyUtil.getID(doc);
-            if (name.equals("Policy")) {
-                return Policy.getInstance(root);
-            } else if (name.equals("PolicySet")) {
-                return PolicySet.getInstance(root, finder);
-            } else {
-                // this isn't a root type that we know how to handle
-                throw new Exception("Unknown root document type: " + name);
+            path = policyBinary.getPath();
+            version = path == null ? null : PolicyUtil.getPolicyVersion(policyBinary);
+            if (path != null) {
+                policyPaths.add(path);
+            }
+            if (version == null) {
+                return createPolicy(policyBinary, path, null);
+            }
+
+            final CachedPolicy cached = policyCache.getIfPresent(path);
+            if (cached != null && cached.version.equals(version)) {
+                return cached.policy;
             }
+            if (version.equals(rejectedVersions.get(path))) {
+                return null;
+            }
+            final String cacheVersion = version;
+            final String cachePath = path;
+            return policyLoads.load(path + " " + version, new Callable<AbstractPolicy>() {
+
+                @Override
+                public AbstractPolicy call() throws Exception {
+                    // a load that finished just before this one started has already cached the policy
+                    final CachedPolicy loaded = policyCache.getIfPresent(cachePath);
+                    if (loaded != null && loaded.version.equals(cacheVersion)) {
+                        return loaded.policy;
+                    }
+                    return createPolicy(policyBinary, cachePath, cacheVersion);
+                }
+            });
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof ParsingException || e.getCause() instanceof SAXException) {
+                return reject(path, version, e.getCause());
+            }
+            LOGGER.error("Unable to parse policy from {}", path, e.getCause());
+        } catch (final ParsingException | SAXException e) {
+            return reject(path, version, e);
         } catch (final Exception e) {
-            LOGGER.error("Unable to parse policy from {}", policyName, e);
+            LOGGER.error("Unable to parse policy from {}", path, e);
         }
 
         // a default fall-through in the case of an error
         return null;
     }
 
+    /**
+     * Notes that a version of a policy binary is not a valid policy, so that it is not parsed again, and drops the
+     * previous valid version.
+     *
+     * @return null, since the binary has no valid policy
+     */
+    private AbstractPolicy reject(final String path, final String version, final Throwable cause) {
+        LOGGER.error("Rejected invalid policy at {}", path, cause);
+        if (path != null && version != null) {
+            rejectedVersions.put(path, version);
+            policyCache.invalidate(path);
+        }
+        return null;
+    }
+
+    /**
+     * Validates and parses a policy, and caches it if its content has a version.
+     */
+    private AbstractPolicy createPolicy(final FedoraBinary policyBinary, final String path, final String version)
+            throws Exception {
+        final Document doc = parsePolicy(policyBinary, path, version);
+        if (policySchema != null) {
+            policySchema.newValidator().validate(new DOMSource(doc));
+        }
+        final AbstractPolicy policy = PolicyUtil.validatePolicy(doc.getDocumentElement(), finder);
+        if (version != null) {
+            final PolicyTargetIndex targetIndex =
+                    useTargetIndex ? PolicyTargetIndex.build(doc.getDocumentElement()) : null;
+            policyCache.put(path, new CachedPolicy(version, policy, targetIndex, referencePaths(policy),
+                    readsResourceProperties(doc.getDocumentElement())));
+            rejectedVersions.remove(path);
+        }
+        return policy;
+    }
+
+    /**
+     * Reads the document of a policy binary, from its artifact if an artifact store is configured. The content is
+     * validated and rejected as for evaluation, see {@link #loadPolicy}, so that no document is read for a binary
+     * without a valid policy.
+     *
+     * @param policyBinary the policy binary
+     * @return the Policy or PolicySet element, or null if the binary has no valid policy or cannot be read
+     */
+    public Element getPolicyElement(final FedoraBinary policyBinary) {
+        if (loadPolicy(policyBinary) == null) {
+            return null;
+        }
+        try {
+            final String path = policyBinary.getPath();
+            final String version = path == null ? null : PolicyUtil.getPolicyVersion(policyBinary);
+            return parsePolicy(policyBinary, path, version).getDocumentElement();
+        } catch (final Exception e) {
+            LOGGER.warn("Unable to read policy from {}", policyBinary.getPath(), e);
+            return null;
+        }
+    }
+
+    /**
+     * @return whether the policies of ancestors are combined with the nearest policy
+     */
+    public boolean isInheritPolicies() {
+        return inheritPolicies;
+    }
+
+    /**
+     * @return the number of policies parsed or rebuilt from their artifacts
+     */
+    public long getPolicyLoads() {
+        return policyLoads.getLoads();
+    }
+
+    /**
+     * @return the number of policy cache misses that waited for a concurrent load of the same policy
+     */
+    public long getCoalescedPolicyLoads() {
+        return policyLoads.getCoalesced();
+    }
+
+    /**
+     * Gets the policy DOM from the artifact store, or parses the binary content and stores its artifact.
+     */
+    private Document parsePolicy(final FedoraBinary policyBinary, final String path, final String version)
+            throws Exception {
+        if (artifactStore == null || version == null) {
+            return PolicyUtil.parse(policyBinary.getContent());
+        }
+
+        final ByteBuffer artifact = artifactStore.get(path, version);
+        if (artifact != null) {
+            try {
+                return PolicyCodec.decode(artifact);
+            } catch (final IOException e) {
+                LOGGER.warn("Ignoring unreadable policy artifact for {}", path, e);
+            }
+        }
+
+        final Document doc = PolicyUtil.parse(policyBinary.getContent());
+        artifactStore.put(path, version, PolicyCodec.encode(doc.getDocumentElement()));
+        return doc;
+    }
+
     /*
      * Find a policy in ModeShape that is appropriate for the evaluation
      * context.
@@ -145,9 +463,8 @@ public class FedoraPolicyFinderModule extends PolicyFinderModule {
      */
     @Override
     public final PolicyFinderResult findPolicy(final EvaluationCtx context) {
-        final EvaluationResult ridEvalRes = context.getResourceAttribute(
-                URI.create("http://www.w3.org/2001/XMLSchema#string"), URIConstants.ATTRIBUTEID_RESOURCE_ID, null);
-        final AttributeValue resourceIdAttValue = ridEvalRes.getAttributeValue();
+        // read the ID directly, so that selecting the policy is not counted as a use of resource attributes
+        final AttributeValue resourceIdAttValue = context.getResourceId();
         String path = resourceIdAttValue.getValue().toString();
 
         if ("".equals(path.trim())) {
@@ -158,16 +475,15 @@ public class FedoraPolicyFinderModule extends PolicyFinderModule {
             final Session internalSession = sessionFactory.getInternalSession();
 
             // Walk up the hierarchy to find the first node with a policy assigned
-            Node nodeWithPolicy = PolicyUtil.getFirstRealNode(path, internalSession);
-            while (nodeWithPolicy != null && !nodeWithPolicy.hasProperty(XACML_POLICY_PROPERTY)) {
-                nodeWithPolicy = nodeWithPolicy.getParent();
-            }
-
-            // This should never happen, as PolicyUtil.getFirstRealNode() at least returns the root node.
+            final Node nodeWithPolicy = PolicyUtil.getEffectivePolicyNode(path, internalSession, missingPaths);
             if (null == nodeWithPolicy) {
                 return new PolicyFinderResult();
             }
 
+            if (context instanceof FedoraEvaluationCtx) {
+                ((FedoraEvaluationCtx) context).setEffectivePolicyNode(nodeWithPolicy.getPath());
+            }
+
             final Property prop = nodeWithPolicy.getProperty(XACML_POLICY_PROPERTY);
             final FedoraBinary policyBinary = binaryService.asBinary(prop.getNode());
 
@@ -175,7 +491,19 @@ public class FedoraPolicyFinderModule extends PolicyFinderModule {
                 return new PolicyFinderResult();
             }
 
-            final AbstractPolicy policy = loadPolicy(policyBinary);
+            final AbstractPolicy nearestPolicy = loadPolicy(policyBinary);
+            if (nearestPolicy == null) {
+                return invalidPolicy("No valid policy at " + policyBinary.getPath());
+            }
+            final AbstractPolicy policy;
+            if (inheritPolicies) {
+                policy = loadInheritedPolicy(nodeWithPolicy, nearestPolicy);
+                if (policy == null) {
+                    return invalidPolicy("No valid policy inherited by " + nodeWithPolicy.getPath());
+                }
+            } else {
+                policy = selectCandidates(policyBinary.getPath(), nearestPolicy, context);
+            }
 
             // Evaluate if the policy targets match the current context
             final MatchResult match = policy.match(context);
@@ -187,6 +515,9 @@ public class FedoraPolicyFinderModule extends PolicyFinderModule {
 
             // Found a good policy, return it
             if (result == MatchResult.MATCH) {
+                if (context instanceof FedoraEvaluationCtx && nearestPolicy.getId() != null) {
+                    ((FedoraEvaluationCtx) context).setEffectivePolicyId(nearestPolicy.getId().toString());
+                }
                 return new PolicyFinderResult(policy);
             }
 
@@ -197,6 +528,70 @@ public class FedoraPolicyFinderModule extends PolicyFinderModule {
         }
     }
 
+    /**
+     * Leaves out the child policies that cannot match the request, using the target index of the cached policy.
+     *
+     * @param path the path of the policy binary
+     * @param policy the loaded policy
+     * @param context the request
+     * @return the policy set over the candidate children, or the given policy
+     */
+    private AbstractPolicy selectCandidates(final String path, final AbstractPolicy policy,
+            final EvaluationCtx context) {
+        if (path == null || !(context instanceof FedoraEvaluationCtx)) {
+            return policy;
+        }
+        final CachedPolicy cached = policyCache.getIfPresent(path);
+        if (cached == null || cached.policy != policy || cached.targetIndex == null) {
+            return policy;
+        }
+        return cached.targetIndex.select((FedoraEvaluationCtx) context, policy, finder);
+    }
+
+    /**
+     * Combines the policy of a node with the policies of its ancestors, nearest first. The combined policy set is
+     * cached by node path, and reused as long as every policy in the chain is the same cached policy.
+     *
+     * @param nodeWithPolicy the node nearest to the resource with a policy
+     * @param nearestPolicy the policy of that node
+     * @return the combined policy set, the nearest policy if no ancestor has a policy, or null if the policy of an
+     *         ancestor is not valid, since leaving it out could permit what it denies
+     */
+    private AbstractPolicy loadInheritedPolicy(final Node nodeWithPolicy, final AbstractPolicy nearestPolicy)
+            throws RepositoryException {
+        final List<AbstractPolicy> chain = new ArrayList<>();
+        chain.add(nearestPolicy);
+        for (Node node = nodeWithPolicy; node.getDepth() > 0;) {
+            node = node.getParent();
+            if (node.hasProperty(XACML_POLICY_PROPERTY)) {
+                final FedoraBinary binary = binaryService.asBinary(node.getProperty(XACML_POLICY_PROPERTY).getNode());
+                if (binary != null) {
+                    final AbstractPolicy policy = loadPolicy(binary);
+                    if (policy == null) {
+                        LOGGER.warn("Policy at {} inherited by {} is not valid", binary.getPath(),
+                                nodeWithPolicy.getPath());
+                        return null;
+                    }
+                    chain.add(policy);
+                }
+            }
+        }
+        if (chain.size() == 1) {
+            return nearestPolicy;
+        }
+
+        final String path = nodeWithPolicy.getPath();
+        final InheritedPolicy cached = inheritedPolicyCache.getIfPresent(path);
+        if (cached != null && cached.chain.equals(chain)) {
+            return cached.policySet;
+        }
+        final PolicySet template = inheritanceTemplate;
+        final PolicySet policySet = new PolicySet(URI.create(INHERITED_POLICY_SET_ID),
+                (PolicyCombiningAlgorithm) template.getCombiningAlg(), template.getTarget(), chain);
+        inheritedPolicyCache.put(path, new InheritedPolicy(chain, policySet));
+        return policySet;
+    }
+
     /*
      * Find a policy in ModeShape by reference URI.
      * @see
@@ -221,7 +616,7 @@ public class FedoraPolicyFinderModule extends PolicyFinderModule {
             final FedoraBinary policyBinary = binaryService.findOrCreateBinary(internalSession, path);
             final AbstractPolicy policy = loadPolicy(policyBinary);
 
-            return new PolicyFinderResult(policy);
+            return policy == null ? invalidPolicy("No valid policy at " + path) : new PolicyFinderResult(policy);
 
         } catch (final RepositoryRuntimeException e) {
             LOGGER.warn("Failed to retrieve a policy for " + idReference.toString(), e);
@@ -229,6 +624,245 @@ public class FedoraPolicyFinderModule extends PolicyFinderModule {
         }
     }
 
+    /**
+     * Tells whether the policies in effect at a node read resource properties, which are then worth loading ahead
+     * of evaluation. These are the policy of the node, the policies it refers to, and the policies of its
+     * ancestors if policies are inherited.
+     *
+     * @param policyNode the repository path of the node whose policy is in effect
+     * @return whether one of the policies reads resource properties, or null if one of them is not loaded
+     */
+    Boolean readsResourceProperties(final String policyNode) {
+        final Session session = sessionFactory.getInternalSession();
+        try {
+            final Set<String> read = new HashSet<>();
+            boolean readsProperties = false;
+            for (Node node = session.getNode(policyNode);; node = node.getParent()) {
+                if (node.hasProperty(XACML_POLICY_PROPERTY)) {
+                    final FedoraBinary binary =
+                            binaryService.asBinary(node.getProperty(XACML_POLICY_PROPERTY).getNode());
+                    final Boolean reads = binary == null ? null : readsResourceProperties(binary, session, read);
+                    if (reads == null) {
+                        return null;
+                    }
+                    readsProperties |= reads;
+                }
+                if (!inheritPolicies || node.getDepth() == 0) {
+                    break;
+                }
+            }
+            return readsProperties;
+        } catch (final RepositoryException | RepositoryRuntimeException e) {
+            LOGGER.debug("Cannot read the policies in effect at {}", policyNode, e);
+            return null;
+        } finally {
+            session.logout();
+        }
+    }
+
+    /**
+     * @return whether a loaded policy or one it refers to reads resource properties, or null if one of them is not
+     *         loaded
+     */
+    private Boolean readsResourceProperties(final FedoraBinary binary, final Session session,
+            final Set<String> read) throws RepositoryException {
+        final String path = binary.getPath();
+        if (!read.add(path)) {
+            return false;
+        }
+        final CachedPolicy cached = policyCache.getIfPresent(path);
+        if (cached == null) {
+            return null;
+        }
+        boolean readsProperties = cached.readsProperties;
+        for (final String reference : cached.references) {
+            final FedoraBinary referenced =
+                    session.nodeExists(reference) ? binaryService.asBinary(session.getNode(reference)) : null;
+            final Boolean reads = referenced == null ? null : readsResourceProperties(referenced, session, read);
+            if (reads == null) {
+                return null;
+            }
+            readsProperties |= reads;
+        }
+        return readsProperties;
+    }
+
+    /**
+     * @param message the reason
+     * @return an indeterminate result for a policy that is not valid, so that the request is not permitted
+     */
+    private static PolicyFinderResult invalidPolicy(final String message) {
+        return new PolicyFinderResult(new Status(singletonList(STATUS_PROCESSING_ERROR), message));
+    }
+
+    /**
+     * Validates and prepares the policy of a binary that has been stored, and the policies it references, so that
+     * requests find them parsed. Content that is not a valid policy is rejected, see {@link #loadPolicy}.
+     *
+     * @param path the repository path of the policy binary
+     * @return whether the binary holds a valid policy
+     */
+    public boolean precompile(final String path) {
+        final Session session = sessionFactory.getInternalSession();
+        try {
+            return session.nodeExists(path) && precompile(binaryService.asBinary(session.getNode(path)), session);
+        } catch (final RepositoryException | RepositoryRuntimeException e) {
+            LOGGER.warn("Cannot precompile policy at {}", path, e);
+            return false;
+        } finally {
+            session.logout();
+        }
+    }
+
+    /**
+     * Validates and prepares the policy that a policy assignment refers to, see {@link #precompile(String)}.
+     *
+     * @param propertyPath the repository path of the policy assignment property
+     * @return whether the assigned binary holds a valid policy
+     */
+    public boolean precompileAssigned(final String propertyPath) {
+        final Session session = sessionFactory.getInternalSession();
+        try {
+            return session.propertyExists(propertyPath) &&
+                    precompile(binaryService.asBinary(session.getProperty(propertyPath).getNode()), session);
+        } catch (final RepositoryException | RepositoryRuntimeException e) {
+            LOGGER.warn("Cannot precompile policy assigned by {}", propertyPath, e);
+            return false;
+        } finally {
+            session.logout();
+        }
+    }
+
+    private boolean precompile(final FedoraBinary policyBinary, final Session session)
+            throws RepositoryException {
+        if (policyBinary == null) {
+            return false;
+        }
+        final AbstractPolicy policy = loadPolicy(policyBinary);
+        if (policy == null) {
+            return false;
+        }
+        final Set<String> resolved = new HashSet<>();
+        resolved.add(policyBinary.getPath());
+        resolveReferences(policy, session, resolved);
+        return true;
+    }
+
+    /**
+     * Loads the policies that a policy set refers to, and those they refer to in turn. A reference that cannot be
+     * resolved does not make the policy set invalid, since the policy it names may be stored later, but it is
+     * reported.
+     *
+     * @param policy the policy or policy set
+     * @param session a session
+     * @param resolved the paths of the policies already loaded
+     */
+    private void resolveReferences(final AbstractPolicy policy, final Session session, final Set<String> resolved)
+            throws RepositoryException {
+        for (final String path : referencePaths(policy)) {
+            if (!resolved.add(path)) {
+                continue;
+            }
+            final FedoraBinary binary = session.nodeExists(path) ? binaryService.asBinary(session.getNode(path)) : null;
+            final AbstractPolicy referenced = binary == null ? null : loadPolicy(binary);
+            if (referenced == null) {
+                LOGGER.warn("Policy {} refers to {}, which is not a valid policy", policy.getId(), path);
+            } else {
+                resolveReferences(referenced, session, resolved);
+            }
+        }
+    }
+
+    /**
+     * @param policy a policy or policy set
+     * @return the repository paths of the policies that it or its inline policy sets refer to
+     */
+    private static List<String> referencePaths(final AbstractPolicy policy) {
+        final List<String> paths = new ArrayList<>();
+        addReferencePaths(policy, paths);
+        return paths;
+    }
+
+    private static void addReferencePaths(final AbstractPolicy policy, final List<String> paths) {
+        final List<?> children = policy.getChildren();
+        if (children == null) {
+            return;
+        }
+        for (final Object child : children) {
+            if (child instanceof PolicyReference) {
+                final String id = ((PolicyReference) child).getReference().toString();
+                if (id.startsWith(POLICY_URI_PREFIX)) {
+                    paths.add(PolicyUtil.getPathForId(id));
+                } else {
+                    LOGGER.warn("Policy {} refers to {}, which is not a repository policy", policy.getId(), id);
+                }
+            } else if (child instanceof AbstractPolicy) {
+                addReferencePaths((AbstractPolicy) child, paths);
+            }
+        }
+    }
+
+    /**
+     * @param policy the root element of a policy document
+     * @return whether the policy reads resource attributes other than the resource ID and workspace of the
+     *         request, which are looked up in the resource properties
+     */
+    static boolean readsResourceProperties(final Element policy) {
+        if (policy.getElementsByTagNameNS("*", "AttributeSelector").getLength() > 0) {
+            return true;
+        }
+        final NodeList designators = policy.getElementsByTagNameNS("*", "ResourceAttributeDesignator");
+        for (int i = 0; i < designators.getLength(); i++) {
+            final String id = ((Element) designators.item(i)).getAttribute("AttributeId");
+            if (!ATTRIBUTEID_RESOURCE_ID.toString().equals(id) &&
+                    !ATTRIBUTEID_RESOURCE_WORKSPACE.toString().equals(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A parsed policy, the version of the content it was parsed from, the index of its child targets, the paths
+     * of the policies it refers to, and whether it reads resource properties.
+     */
+    private static class CachedPolicy {
+
+        private final String version;
+
+        private final AbstractPolicy policy;
+
+        private final PolicyTargetIndex targetIndex;
+
+        private final List<String> references;
+
+        private final boolean readsProperties;
+
+        CachedPolicy(final String version, final AbstractPolicy policy, final PolicyTargetIndex targetIndex,
+                final List<String> references, final boolean readsProperties) {
+            this.version = version;
+            this.policy = policy;
+            this.targetIndex = targetIndex;
+            this.references = references;
+            this.readsProperties = readsProperties;
+        }
+    }
+
+    /**
+     * A combined policy set and the policies it was combined from.
+     */
+    private static class InheritedPolicy {
+
+        private final List<AbstractPolicy> chain;
+
+        private final PolicySet policySet;
+
+        InheritedPolicy(final List<AbstractPolicy> chain, final PolicySet policySet) {
+            this.chain = chain;
+            this.policySet = policySet;
+        }
+    }
+
     /*
      * (non-Javadoc)
      * @see
@@ -0,0 +1,126 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.infinispan.Cache;
+import org.infinispan.commons.CacheException;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.slf4j.Logger;
+
+/**
+ * Keeps policy artifacts in an Infinispan cache, so that the nodes of a cluster share them and a policy is parsed
+ * once for the whole cluster. Each entry records the content version it was made from, like the files of
+ * {@link DirectoryPolicyArtifactStore}. A cache configured with a persistent store keeps the artifacts over
+ * restarts.
+ */
+public class InfinispanPolicyArtifactStore implements PolicyArtifactStore {
+
+    private static final Logger LOGGER = getLogger(InfinispanPolicyArtifactStore.class);
+
+    /**
+     * The name of the cache that holds the artifacts, unless another is given.
+     */
+    public static final String DEFAULT_CACHE_NAME = "fcrepo-xacml-policy-artifacts";
+
+    /**
+     * Leading bytes of an artifact entry, "FXI" and the entry format version.
+     */
+    private static final int MAGIC = 0x46584901;
+
+    private final Cache<String, byte[]> artifacts;
+
+    /**
+     * Constructor
+     *
+     * @param cacheManager the cache manager
+     */
+    public InfinispanPolicyArtifactStore(final EmbeddedCacheManager cacheManager) {
+        this(cacheManager, DEFAULT_CACHE_NAME);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param cacheManager the cache manager
+     * @param cacheName the name of the cache, which is defined as a synchronously replicated cache if the cache
+     *        manager has no configuration for it
+     */
+    public InfinispanPolicyArtifactStore(final EmbeddedCacheManager cacheManager, final String cacheName) {
+        if (null == cacheManager) {
+            throw new IllegalArgumentException("Cache manager is null!");
+        }
+        if (cacheManager.getCacheConfiguration(cacheName) == null) {
+            final CacheMode mode = cacheManager.getTransport() == null ? CacheMode.LOCAL : CacheMode.REPL_SYNC;
+            cacheManager.defineConfiguration(cacheName, new ConfigurationBuilder().clustering().cacheMode(mode)
+                    .build());
+        }
+        this.artifacts = cacheManager.getCache(cacheName);
+    }
+
+    @Override
+    public ByteBuffer get(final String path, final String version) {
+        final byte[] entry;
+        try {
+            entry = artifacts.get(path);
+        } catch (final CacheException e) {
+            LOGGER.warn("Cannot read policy artifact for {}", path, e);
+            return null;
+        }
+        if (entry == null) {
+            return null;
+        }
+        try (final DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry))) {
+            if (in.readInt() != MAGIC || !version.equals(in.readUTF())) {
+                LOGGER.debug("Stale policy artifact for {}", path);
+                return null;
+            }
+            final int length = in.readInt();
+            return ByteBuffer.wrap(entry, entry.length - length, length).slice().asReadOnlyBuffer();
+        } catch (final IOException e) {
+            LOGGER.warn("Cannot read policy artifact for {}", path, e);
+            return null;
+        }
+    }
+
+    @Override
+    public void put(final String path, final String version, final byte[] artifact) {
+        final ByteArrayOutputStream entry = new ByteArrayOutputStream(artifact.length + 64);
+        try (final DataOutputStream out = new DataOutputStream(entry)) {
+            out.writeInt(MAGIC);
+            out.writeUTF(version);
+            out.writeInt(artifact.length);
+            out.write(artifact);
+        } catch (final IOException e) {
+            throw new Error("Cannot write policy artifact entry", e);
+        }
+        try {
+            artifacts.put(path, entry.toByteArray());
+        } catch (final CacheException e) {
+            LOGGER.warn("Cannot write policy artifact for {}", path, e);
+        }
+    }
+}
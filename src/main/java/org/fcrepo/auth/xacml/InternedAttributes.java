@@ -0,0 +1,53 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jboss.security.xacml.sunxacml.attr.StringAttribute;
+
+/**
+ * Shared attribute values for the small vocabularies that recur in every request, such as role, action, group
+ * and workspace names. Attribute values are immutable, so one instance per name can be used by all requests
+ * instead of allocating new ones each time.
+ *
+ * Each vocabulary holds at most {@value #MAX_VALUES} names, after which further names are allocated per request,
+ * so that an unexpectedly large vocabulary cannot grow without bound.
+ */
+final class InternedAttributes {
+
+    private static final int MAX_VALUES = 1024;
+
+    private final ConcurrentMap<String, StringAttribute> values = new ConcurrentHashMap<>();
+
+    /**
+     * @param name a name, or null, which is not shared
+     * @return a string attribute value of the name
+     */
+    StringAttribute get(final String name) {
+        final StringAttribute value = name == null ? null : values.get(name);
+        if (value != null) {
+            return value;
+        }
+        final StringAttribute created = new StringAttribute(name);
+        if (name == null || values.size() >= MAX_VALUES) {
+            return created;
+        }
+        final StringAttribute raced = values.putIfAbsent(name, created);
+        return raced == null ? created : raced;
+    }
+}
@@ -0,0 +1,456 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+
+/**
+ * Keeps policy artifacts in a single memory-mapped file that can be shared by several repository instances on
+ * the same host and survives restarts. Artifacts are returned as read-only views of the mapping, so reading an
+ * artifact does not copy it.
+ *
+ * The file is a header followed by an append-only log of records, each holding a policy path, the content
+ * version the artifact was made from, and the artifact. The path index is rebuilt from the records when the file
+ * is opened, and records appended by other processes are picked up on the next lookup. Appends are made under an
+ * exclusive file lock. When the file reaches its maximum size, or has a damaged tail or a header from another
+ * format version, it is rebuilt with only the current records into a new file that atomically replaces the old
+ * one, and the old file is marked obsolete so that other processes reopen it.
+ *
+ * Java file locks are held per process, so only one instance of this class should use a given file in a JVM.
+ */
+public class MappedPolicyArtifactStore implements PolicyArtifactStore, Closeable {
+
+    private static final Logger LOGGER = getLogger(MappedPolicyArtifactStore.class);
+
+    /**
+     * Leading bytes of the cache file, "FXM" and the file format version.
+     */
+    private static final int MAGIC = 0x46584D01;
+
+    private static final int LIVE = 0;
+
+    private static final int OBSOLETE = 1;
+
+    private static final int INVALID = -1;
+
+    private static final int STATE_OFFSET = 4;
+
+    private static final int HEADER_LENGTH = 8;
+
+    /**
+     * The record length, checksum, two string lengths and the artifact length.
+     */
+    private static final int MIN_RECORD_LENGTH = 20;
+
+    private final File file;
+
+    private long maxSize = 64L * 1024 * 1024;
+
+    private FileChannel channel;
+
+    private MappedByteBuffer mapped;
+
+    /**
+     * Offset of the first byte after the last complete record read.
+     */
+    private int scanned;
+
+    /**
+     * Size of the file when its records were last read.
+     */
+    private long refreshed;
+
+    private final Map<String, Entry> index = new HashMap<>();
+
+    /**
+     * Lookups share the read lock while the file is unchanged; reading new records, appending and reopening take
+     * the write lock.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Constructor
+     *
+     * @param file the cache file, created if it does not exist
+     */
+    public MappedPolicyArtifactStore(final File file) {
+        if (null == file) {
+            throw new IllegalArgumentException("Policy cache file is null!");
+        }
+        final File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IllegalArgumentException("Cannot create policy cache directory " + dir);
+        }
+        this.file = file.getAbsoluteFile();
+        try {
+            open();
+        } catch (final IOException e) {
+            throw new IllegalArgumentException("Cannot open policy cache file " + file, e);
+        }
+    }
+
+    /**
+     * @param maxSize the size in bytes at which the cache file is rebuilt
+     */
+    public void setMaxSize(final long maxSize) {
+        if (maxSize <= HEADER_LENGTH || maxSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Policy cache file size must be between " + HEADER_LENGTH + " and " +
+                                                       Integer.MAX_VALUE + " bytes!");
+        }
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public ByteBuffer get(final String path, final String version) {
+        lock.readLock().lock();
+        try {
+            if (unchanged()) {
+                return lookup(path, version);
+            }
+        } catch (final IOException e) {
+            LOGGER.warn("Cannot read policy cache file {}", file, e);
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        lock.writeLock().lock();
+        try {
+            if (!refresh()) {
+                reopen();
+            }
+            return lookup(path, version);
+        } catch (final IOException e) {
+            LOGGER.warn("Cannot read policy cache file {}", file, e);
+            return null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void put(final String path, final String version, final byte[] artifact) {
+        final byte[] record = record(path, version, artifact);
+        lock.writeLock().lock();
+        try {
+            boolean rebuilt = false;
+            while (!rebuilt) {
+                try (final FileLock fileLock = channel.lock()) {
+                    if (refresh()) {
+                        final long size = channel.size();
+                        if (scanned == size && size + record.length <= maxSize) {
+                            write(channel, ByteBuffer.wrap(record), size);
+                            refresh();
+                            return;
+                        }
+                        index.remove(path);
+                        if (liveLength() + record.length > maxSize) {
+                            LOGGER.warn("Policy cache file {} is full, not caching {}", file, path);
+                            return;
+                        }
+                        LOGGER.info("Rebuilding policy cache file {}", file);
+                        rebuild(record);
+                        rebuilt = true;
+                    }
+                }
+                // the file was replaced, by this or another process
+                reopen();
+            }
+        } catch (final IOException e) {
+            LOGGER.warn("Cannot write policy cache file {}", file, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            channel.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private ByteBuffer lookup(final String path, final String version) {
+        final Entry entry = index.get(path);
+        if (entry == null || !entry.version.equals(version)) {
+            return null;
+        }
+        return entry.artifact(mapped);
+    }
+
+    /**
+     * @return true if the file is live and has not grown since its records were last read
+     */
+    private boolean unchanged() throws IOException {
+        return mapped.capacity() >= HEADER_LENGTH && mapped.getInt(STATE_OFFSET) == LIVE &&
+                Math.min(channel.size(), Integer.MAX_VALUE) == refreshed;
+    }
+
+    /**
+     * Opens the cache file, creating or replacing it if it is empty, was written in another format, or was left
+     * marked obsolete without being replaced.
+     */
+    private void open() throws IOException {
+        while (true) {
+            channel = FileChannel.open(file.toPath(), CREATE, READ, WRITE);
+            index.clear();
+            mapped = null;
+            scanned = HEADER_LENGTH;
+            try (final FileLock fileLock = channel.lock()) {
+                final int state = readState(channel);
+                if (state == LIVE) {
+                    refresh();
+                    return;
+                }
+                if (state == INVALID && channel.size() == 0) {
+                    write(channel, header(LIVE), 0);
+                    refresh();
+                    return;
+                }
+                if (state == INVALID) {
+                    LOGGER.info("Replacing policy cache file {} written by another version", file);
+                    rebuild(null);
+                } else if (obsoleteInPlace()) {
+                    LOGGER.info("Replacing obsolete policy cache file {}", file);
+                    rebuild(null);
+                }
+            }
+            channel.close();
+        }
+    }
+
+    /**
+     * A file is marked obsolete only after its replacement has been moved into place, so an obsolete file that is
+     * still found at the cache path will never be replaced by another process.
+     */
+    private boolean obsoleteInPlace() throws IOException {
+        try (final FileChannel current = FileChannel.open(file.toPath(), READ)) {
+            return readState(current) == OBSOLETE;
+        }
+    }
+
+    private void reopen() throws IOException {
+        channel.close();
+        open();
+    }
+
+    private static int readState(final FileChannel channel) throws IOException {
+        if (channel.size() < HEADER_LENGTH) {
+            return INVALID;
+        }
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+            // read the whole header
+        }
+        final int state = header.getInt(STATE_OFFSET);
+        return header.getInt(0) != MAGIC || (state != LIVE && state != OBSOLETE) ? INVALID : state;
+    }
+
+    /**
+     * Maps any growth of the file and indexes the records appended since the last call.
+     *
+     * @return false if the file has been replaced and must be reopened
+     */
+    private boolean refresh() throws IOException {
+        final long size = Math.min(channel.size(), Integer.MAX_VALUE);
+        if (mapped == null || size > mapped.capacity()) {
+            mapped = channel.map(READ_ONLY, 0, size);
+        }
+        refreshed = size;
+        if (mapped.capacity() < HEADER_LENGTH || mapped.getInt(STATE_OFFSET) != LIVE) {
+            return false;
+        }
+
+        int pos = scanned;
+        while (pos + MIN_RECORD_LENGTH <= size) {
+            final int length = mapped.getInt(pos);
+            if (length < MIN_RECORD_LENGTH || pos + (long) length > size) {
+                break;
+            }
+            final ByteBuffer record = mapped.duplicate();
+            record.position(pos + 8);
+            record.limit(pos + length);
+            final CRC32 crc = new CRC32();
+            crc.update(bytes(record.duplicate()));
+            if ((int) crc.getValue() != mapped.getInt(pos + 4)) {
+                break;
+            }
+            try {
+                final String path = readString(record);
+                final String version = readString(record);
+                final int artifactLength = record.getInt();
+                if (artifactLength != record.remaining()) {
+                    break;
+                }
+                index.put(path, new Entry(version, pos, length, record.position(), artifactLength));
+            } catch (final BufferUnderflowException | IllegalArgumentException e) {
+                break;
+            }
+            pos += length;
+        }
+        scanned = pos;
+        return true;
+    }
+
+    /**
+     * Writes the indexed records and the given record to a new file, moves it over the cache file, and marks the
+     * open file obsolete. The caller holds the file lock and reopens the cache file afterwards.
+     */
+    private void rebuild(final byte[] record) throws IOException {
+        final File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        try {
+            try (final FileChannel out = FileChannel.open(tmp.toPath(), WRITE)) {
+                long pos = write(out, header(LIVE), 0);
+                for (final Entry entry : index.values()) {
+                    pos += write(out, entry.record(mapped), pos);
+                }
+                if (record != null) {
+                    write(out, ByteBuffer.wrap(record), pos);
+                }
+                out.force(true);
+            }
+            Files.move(tmp.toPath(), file.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+        } finally {
+            if (tmp.exists() && !tmp.delete()) {
+                LOGGER.debug("Cannot remove {}", tmp);
+            }
+        }
+        write(channel, header(OBSOLETE), 0);
+    }
+
+    private long liveLength() {
+        long length = HEADER_LENGTH;
+        for (final Entry entry : index.values()) {
+            length += entry.recordLength;
+        }
+        return length;
+    }
+
+    private static ByteBuffer header(final int state) {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(MAGIC).putInt(state).flip();
+        return header;
+    }
+
+    private static byte[] record(final String path, final String version, final byte[] artifact) {
+        final byte[] pathBytes = path.getBytes(UTF_8);
+        final byte[] versionBytes = version.getBytes(UTF_8);
+        final int length = MIN_RECORD_LENGTH + pathBytes.length + versionBytes.length + artifact.length;
+        final ByteBuffer record = ByteBuffer.allocate(length);
+        record.putInt(length).putInt(0);
+        record.putInt(pathBytes.length).put(pathBytes);
+        record.putInt(versionBytes.length).put(versionBytes);
+        record.putInt(artifact.length).put(artifact);
+
+        final CRC32 crc = new CRC32();
+        crc.update(record.array(), 8, length - 8);
+        record.putInt(4, (int) crc.getValue());
+        return record.array();
+    }
+
+    private static String readString(final ByteBuffer record) {
+        final int length = record.getInt();
+        if (length < 0 || length > record.remaining()) {
+            throw new IllegalArgumentException("Bad string length " + length);
+        }
+        final byte[] bytes = new byte[length];
+        record.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static byte[] bytes(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static int write(final FileChannel channel, final ByteBuffer buffer, final long position)
+            throws IOException {
+        final int length = buffer.remaining();
+        long pos = position;
+        while (buffer.hasRemaining()) {
+            pos += channel.write(buffer, pos);
+        }
+        return length;
+    }
+
+    /**
+     * The location of the current record for a policy path.
+     */
+    private static class Entry {
+
+        private final String version;
+
+        private final int recordOffset;
+
+        private final int recordLength;
+
+        private final int artifactOffset;
+
+        private final int artifactLength;
+
+        Entry(final String version, final int recordOffset, final int recordLength, final int artifactOffset,
+                final int artifactLength) {
+            this.version = version;
+            this.recordOffset = recordOffset;
+            this.recordLength = recordLength;
+            this.artifactOffset = artifactOffset;
+            this.artifactLength = artifactLength;
+        }
+
+        ByteBuffer record(final MappedByteBuffer mapped) {
+            return slice(mapped, recordOffset, recordLength);
+        }
+
+        ByteBuffer artifact(final MappedByteBuffer mapped) {
+            return slice(mapped, artifactOffset, artifactLength);
+        }
+
+        private static ByteBuffer slice(final MappedByteBuffer mapped, final int offset, final int length) {
+            final ByteBuffer view = mapped.duplicate();
+            view.position(offset);
+            view.limit(offset + length);
+            return view.slice();
+        }
+    }
+}
@@ -0,0 +1,635 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.util.Collections.singleton;
+import static javax.jcr.observation.Event.NODE_ADDED;
+import static javax.jcr.observation.Event.NODE_MOVED;
+import static javax.jcr.observation.Event.NODE_REMOVED;
+import static javax.jcr.observation.Event.PROPERTY_ADDED;
+import static javax.jcr.observation.Event.PROPERTY_CHANGED;
+import static javax.jcr.observation.Event.PROPERTY_REMOVED;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.rbacl;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A materialized index of the nodes that a subject may act on, kept as a bitmap of node numbers for each
+ * combination of roles, groups and action that is asked for. Filtering a listing is then an intersection of the
+ * listed nodes with the bitmap, instead of an evaluation of each node.
+ *
+ * Bitmaps are built in the background, and a listing is evaluated node by node until the bitmap it needs is
+ * ready. The first build numbers every node in the workspace. A bitmap is built by evaluating the policy of each
+ * node that has one for the subject and action with the query authorization filter, which leaves a condition on
+ * the node type and properties, and testing that condition on each node the policy governs, in parallel. Nodes
+ * whose condition is always or never true are not read. The bitmaps are updated from repository events as nodes
+ * are added, changed, moved and removed, and are built again after the policy generation changes, keeping the
+ * node numbers. The numbers of removed nodes are given to the next nodes added.
+ *
+ * Fedora resolves the roles of a subject for a path from the nearest node with role assignments, while the index
+ * takes the roles as given for the whole workspace. It only answers while no node other than the root has role
+ * assignments. It also cannot answer when policies are inherited, or when a policy depends on attributes other
+ * than the node type and properties, and each node must then be evaluated.
+ */
+public class PermissionBitmapIndex implements EventListener {
+
+    private static final Logger LOGGER = getLogger(PermissionBitmapIndex.class);
+
+    private static final int EVENT_TYPES =
+            NODE_ADDED | NODE_REMOVED | NODE_MOVED | PROPERTY_ADDED | PROPERTY_CHANGED | PROPERTY_REMOVED;
+
+    /**
+     * The path of the role assignments of the root node, which apply to the whole workspace.
+     */
+    private static final String ROOT_ROLE_ASSIGNMENTS = "/" + rbacl.getQualified();
+
+    @Autowired
+    private SessionFactory sessionFactory;
+
+    @Autowired
+    private QueryAuthorizationFilter queryAuthorizationFilter;
+
+    @Autowired
+    private EffectivePolicyIndex effectivePolicyIndex;
+
+    @Autowired
+    private FedoraPolicyFinderModule fedoraPolicyFinderModule;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private int maxBitmaps = 64;
+
+    /**
+     * Guards the index. Filtering does not wait for it, so that a listing is never held up by a build.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Builds bitmaps one at a time.
+     */
+    private ExecutorService builder;
+
+    /**
+     * Tests the nodes of a new bitmap.
+     */
+    private ExecutorService executor;
+
+    /**
+     * The session that receives repository events and numbers nodes, opened by the first build.
+     */
+    private Session session;
+
+    /**
+     * The numbers of the indexed nodes, by path.
+     */
+    private final NavigableMap<String, Integer> numbers = new TreeMap<>();
+
+    /**
+     * The paths of the indexed nodes by number, null for removed nodes.
+     */
+    private final List<String> paths = new ArrayList<>();
+
+    /**
+     * The numbers of removed nodes, which are given to the next nodes added.
+     */
+    private final BitSet free = new BitSet();
+
+    /**
+     * The paths of the role assignments of nodes other than the root.
+     */
+    private final NavigableSet<String> roleAssignments = new TreeSet<>();
+
+    /**
+     * The bitmaps of the current generation by subject and action, in order of use.
+     */
+    private final Map<List<Object>, Bitmap> bitmaps = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * The subjects and actions whose bitmaps are waiting to be built.
+     */
+    private final Set<List<Object>> building = new HashSet<>();
+
+    private long generation = -1;
+
+    /**
+     * The nodes with a policy in the current generation, or null if they must be read again.
+     */
+    private Set<String> policyNodes;
+
+    /**
+     * @param threads the number of threads that test the nodes of a new bitmap
+     */
+    public void setThreads(final int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Number of bitmap threads must be positive!");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * @param maxBitmaps the number of subject and action combinations that are kept, the least recently used is
+     *        dropped first
+     */
+    public void setMaxBitmaps(final int maxBitmaps) {
+        if (maxBitmaps < 1) {
+            throw new IllegalArgumentException("Maximum number of bitmaps must be positive!");
+        }
+        this.maxBitmaps = maxBitmaps;
+    }
+
+    /**
+     * Starts the threads that build bitmaps.
+     */
+    @PostConstruct
+    public void init() {
+        builder = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("xacml-permission-bitmap-builder").setDaemon(true).build());
+        executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("xacml-permission-bitmap-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Stops the threads that build bitmaps and closes the event session.
+     */
+    @PreDestroy
+    public void close() {
+        // interrupt a build before waiting for the lock it holds
+        if (builder != null) {
+            builder.shutdownNow();
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        lock.lock();
+        try {
+            if (session != null) {
+                try {
+                    session.getWorkspace().getObservationManager().removeEventListener(this);
+                } catch (final RepositoryException e) {
+                    LOGGER.warn("Cannot remove the permission bitmap event listener", e);
+                }
+                session.logout();
+                session = null;
+            }
+            forget();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Selects the nodes that a subject may act on.
+     *
+     * @param candidates the repository paths of the nodes, such as the children of a listed node
+     * @param roles the roles of the subject
+     * @param groups the groups of the subject
+     * @param action the action the nodes must permit, such as read
+     * @return the permitted paths, in the order given, or null if each node must be evaluated
+     */
+    public List<String> filter(final Collection<String> candidates, final Set<String> roles,
+            final Set<String> groups, final String action) {
+        if (fedoraPolicyFinderModule.isInheritPolicies()) {
+            return null;
+        }
+        if (!lock.tryLock()) {
+            LOGGER.debug("Permission bitmaps are being built or updated");
+            return null;
+        }
+        try {
+            if (!roleAssignments.isEmpty()) {
+                LOGGER.debug("Roles are assigned below the root, at {}", roleAssignments.first());
+                return null;
+            }
+            final Bitmap bitmap = bitmap(roles, groups, action);
+            if (bitmap == null || bitmap.permitted == null) {
+                return null;
+            }
+
+            final BitSet listed = new BitSet();
+            for (final String path : candidates) {
+                final Integer number = numbers.get(path);
+                if (number == null) {
+                    LOGGER.debug("Node {} is not indexed yet", path);
+                    return null;
+                }
+                listed.set(number);
+            }
+            listed.and(bitmap.permitted);
+
+            final List<String> permitted = new ArrayList<>(listed.cardinality());
+            for (final String path : candidates) {
+                if (listed.get(numbers.get(path))) {
+                    permitted.add(path);
+                }
+            }
+            return permitted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the bitmap for a subject and action, or null if it is not built yet, in which case it is built in
+     *         the background
+     */
+    private Bitmap bitmap(final Set<String> roles, final Set<String> groups, final String action) {
+        checkGeneration();
+        final Set<String> roleSet = new TreeSet<>(roles);
+        final Set<String> groupSet = new TreeSet<>(groups);
+        final List<Object> key = Arrays.<Object>asList(roleSet, groupSet, action);
+        final Bitmap kept = bitmaps.get(key);
+        if (kept == null && building.add(key)) {
+            try {
+                builder.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        build(key, roleSet, groupSet, action);
+                    }
+                });
+            } catch (final RejectedExecutionException e) {
+                LOGGER.debug("Permission bitmaps are no longer built", e);
+                building.remove(key);
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Builds and keeps the bitmap for a subject and action.
+     */
+    private void build(final List<Object> key, final Set<String> roles, final Set<String> groups,
+            final String action) {
+        lock.lock();
+        try {
+            final long current = checkGeneration();
+            final Bitmap built = build(QueryAuthorizationFilter.knownAttributes(roles, groups, singleton(action)));
+            if (built != null && effectivePolicyIndex.getGeneration() == current) {
+                if (bitmaps.size() >= maxBitmaps) {
+                    final Iterator<Bitmap> eldest = bitmaps.values().iterator();
+                    eldest.next();
+                    eldest.remove();
+                }
+                bitmaps.put(key, built);
+            }
+        } catch (final RepositoryException | RuntimeException e) {
+            LOGGER.warn("Cannot build the permission bitmap of {} for {}", roles, action, e);
+        } finally {
+            building.remove(key);
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the bitmaps of an earlier policy generation.
+     *
+     * @return the current generation
+     */
+    private long checkGeneration() {
+        final long current = effectivePolicyIndex.getGeneration();
+        if (current != generation) {
+            bitmaps.clear();
+            policyNodes = null;
+            generation = current;
+        }
+        return current;
+    }
+
+    /**
+     * Evaluates the policy of each region for the subject and tests each node against the condition of its region.
+     *
+     * @return the bitmap, which has no node numbers if a policy cannot be reduced to a condition, or null if the
+     *         policy assignments cannot be read
+     */
+    private Bitmap build(final Map<String, Set<String>> knownAttributes) throws RepositoryException {
+        if (session == null) {
+            session = sessionFactory.getInternalSession();
+            session.getWorkspace().getObservationManager().addEventListener(this, EVENT_TYPES, "/", true, null,
+                    null, false);
+            index(session.getRootNode());
+            LOGGER.info("Numbered {} nodes for permission bitmaps", numbers.size());
+        }
+        if (policyNodes == null) {
+            final List<String> below = effectivePolicyIndex.getPolicyNodesBelow("/");
+            if (below == null) {
+                return null;
+            }
+            policyNodes = new HashSet<>(below);
+            if ("/".equals(effectivePolicyIndex.getEffectivePolicyNode("/"))) {
+                policyNodes.add("/");
+            }
+        }
+
+        final Map<String, ResidualConstraint> conditions = new HashMap<>();
+        final Session reader = sessionFactory.getInternalSession();
+        try {
+            for (final String node : policyNodes) {
+                final ResidualConstraint condition = queryAuthorizationFilter.permitted(reader, node, knownAttributes);
+                if (condition.isOpaque()) {
+                    LOGGER.debug("Cannot build a permission bitmap for {}: {}", knownAttributes, condition);
+                    return new Bitmap(null, conditions);
+                }
+                conditions.put(node, condition);
+            }
+        } finally {
+            reader.logout();
+        }
+
+        final Bitmap bitmap = new Bitmap(new BitSet(paths.size()), conditions);
+        final int chunk = Math.max(1, (paths.size() + threads - 1) / threads);
+        final List<Future<BitSet>> parts = new ArrayList<>();
+        for (int from = 0; from < paths.size(); from += chunk) {
+            parts.add(executor.submit(new NodeTest(bitmap, from, Math.min(from + chunk, paths.size()))));
+        }
+        try {
+            for (final Future<BitSet> part : parts) {
+                bitmap.permitted.or(part.get());
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof RepositoryException) {
+                throw (RepositoryException) e.getCause();
+            }
+            throw new IllegalStateException("Cannot test nodes for a permission bitmap", e.getCause());
+        }
+        LOGGER.debug("Built a permission bitmap of {} nodes for {}", bitmap.permitted.cardinality(),
+                knownAttributes);
+        return bitmap;
+    }
+
+    /**
+     * @return the condition that the policy governing a path leaves for the bitmap
+     */
+    private ResidualConstraint conditionOf(final Bitmap bitmap, final String path) {
+        for (String node = path;; node = node.substring(0, Math.max(node.lastIndexOf('/'), 1))) {
+            if (policyNodes.contains(node)) {
+                return bitmap.conditions.get(node);
+            }
+            if ("/".equals(node)) {
+                return ResidualConstraint.FALSE;
+            }
+        }
+    }
+
+    @Override
+    public void onEvent(final EventIterator events) {
+        lock.lock();
+        try {
+            onEvents(events);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onEvents(final EventIterator events) {
+        if (session == null) {
+            return;
+        }
+        try {
+            session.refresh(false);
+            while (events.hasNext()) {
+                final Event event = events.nextEvent();
+                final String path = event.getPath();
+                switch (event.getType()) {
+                    case NODE_ADDED:
+                        index(path);
+                        break;
+                    case NODE_REMOVED:
+                        remove(path);
+                        break;
+                    case NODE_MOVED:
+                        final Object source = event.getInfo().get("srcAbsPath");
+                        if (source != null) {
+                            remove(source.toString());
+                        }
+                        index(path);
+                        break;
+                    default:
+                        update(path.substring(0, Math.max(path.lastIndexOf('/'), 1)));
+                        break;
+                }
+            }
+        } catch (final RepositoryException e) {
+            LOGGER.warn("Cannot read change event, numbering nodes again", e);
+            forget();
+            session.logout();
+            session = null;
+        }
+    }
+
+    /**
+     * Numbers the node at a path and the nodes below it.
+     */
+    private void index(final String path) throws RepositoryException {
+        try {
+            index(session.getNode(path));
+        } catch (final PathNotFoundException e) {
+            LOGGER.debug("Node {} was removed before it was indexed", path);
+        }
+    }
+
+    private void index(final Node root) throws RepositoryException {
+        final Deque<Node> nodes = new ArrayDeque<>();
+        nodes.push(root);
+        while (!nodes.isEmpty()) {
+            final Node node = nodes.pop();
+            final String path = node.getPath();
+            if (!numbers.containsKey(path)) {
+                final int number = free.isEmpty() ? paths.size() : free.nextSetBit(0);
+                if (number == paths.size()) {
+                    paths.add(path);
+                } else {
+                    paths.set(number, path);
+                    free.clear(number);
+                }
+                numbers.put(path, number);
+            }
+            if (path.endsWith(ROOT_ROLE_ASSIGNMENTS) && !path.equals(ROOT_ROLE_ASSIGNMENTS)) {
+                roleAssignments.add(path);
+            }
+            test(node);
+            for (final NodeIterator children = node.getNodes(); children.hasNext();) {
+                final Node child = children.nextNode();
+                if (!"jcr:system".equals(child.getName())) {
+                    nodes.push(child);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tests a changed node for every bitmap.
+     */
+    private void update(final String path) throws RepositoryException {
+        if (!numbers.containsKey(path)) {
+            return;
+        }
+        try {
+            test(session.getNode(path));
+        } catch (final PathNotFoundException e) {
+            LOGGER.debug("Node {} was removed before it was tested", path);
+        }
+    }
+
+    private void test(final Node node) throws RepositoryException {
+        final int number = numbers.get(node.getPath());
+        for (final Bitmap bitmap : bitmaps.values()) {
+            if (bitmap.permitted != null) {
+                bitmap.permitted.set(number, conditionOf(bitmap, node.getPath()).holdsFor(node));
+            }
+        }
+    }
+
+    /**
+     * Drops the node at a path and the nodes below it, freeing their numbers.
+     */
+    private void remove(final String path) {
+        final List<Integer> removed = new ArrayList<>();
+        final Integer number = numbers.remove(path);
+        if (number != null) {
+            removed.add(number);
+        }
+        final Map<String, Integer> below = numbers.subMap(path + "/", true, path + "/" + Character.MAX_VALUE, true);
+        removed.addAll(below.values());
+        below.clear();
+        roleAssignments.remove(path);
+        roleAssignments.subSet(path + "/", true, path + "/" + Character.MAX_VALUE, true).clear();
+        for (final int n : removed) {
+            paths.set(n, null);
+            free.set(n);
+            for (final Bitmap bitmap : bitmaps.values()) {
+                if (bitmap.permitted != null) {
+                    bitmap.permitted.clear(n);
+                }
+            }
+        }
+    }
+
+    private void forget() {
+        numbers.clear();
+        paths.clear();
+        free.clear();
+        roleAssignments.clear();
+        bitmaps.clear();
+        policyNodes = null;
+    }
+
+    /**
+     * The permitted node numbers of a subject and action, and the condition of each node with a policy.
+     */
+    private static class Bitmap {
+
+        /**
+         * The permitted node numbers, or null if the policies cannot be reduced to conditions.
+         */
+        private final BitSet permitted;
+
+        private final Map<String, ResidualConstraint> conditions;
+
+        Bitmap(final BitSet permitted, final Map<String, ResidualConstraint> conditions) {
+            this.permitted = permitted;
+            this.conditions = conditions;
+        }
+    }
+
+    /**
+     * Tests a range of node numbers on its own session.
+     */
+    private class NodeTest implements Callable<BitSet> {
+
+        private final Bitmap bitmap;
+
+        private final int from;
+
+        private final int to;
+
+        NodeTest(final Bitmap bitmap, final int from, final int to) {
+            this.bitmap = bitmap;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public BitSet call() throws RepositoryException {
+            final BitSet permitted = new BitSet(to);
+            final Session reader = sessionFactory.getInternalSession();
+            try {
+                for (int n = from; n < to; n++) {
+                    final String path = paths.get(n);
+                    if (path == null) {
+                        continue;
+                    }
+                    final ResidualConstraint condition = conditionOf(bitmap, path);
+                    if (condition.isTrue()) {
+                        permitted.set(n);
+                    } else if (!condition.isFalse()) {
+                        try {
+                            permitted.set(n, condition.holdsFor(reader.getNode(path)));
+                        } catch (final PathNotFoundException e) {
+                            LOGGER.debug("Node {} was removed before it was tested", path);
+                        }
+                    }
+                }
+            } finally {
+                reader.logout();
+            }
+            return permitted;
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.fcrepo.auth.xacml.EffectivePolicyIndex.PolicyVersion;
+import org.jboss.security.xacml.sunxacml.ctx.ResponseCtx;
+import org.jboss.security.xacml.sunxacml.ctx.Result;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Decisions by role set and action set for each effective policy, kept for the pairs whose decision does not
+ * depend on resource or environment attributes.
+ *
+ * Role sets and action sets are numbered as they are first seen, and each effective policy, identified by the
+ * node it is assigned to, has a dense matrix of cells indexed by those numbers. A cell is unknown, permit, deny,
+ * or dependent, and is filled in by the first full evaluation of a request with its role set and action set. A
+ * cell is permit or deny if the PDP reached a definite decision using no attribute other than the subject roles
+ * and action IDs, and dependent otherwise, such as reading a master file where the mime type decides. Requests for
+ * permit and deny cells are answered by array indexing, and only the unknown and dependent cells are evaluated in
+ * full.
+ *
+ * Each matrix belongs to a policy generation, see {@link EffectivePolicyIndex#getPolicyVersion}, so a request is
+ * answered with a lookup in memory and no repository read. A new generation starts when the repository events of a
+ * change to a policy, a policy it refers to, or the policy assignments arrive, and the matrices of older
+ * generations are then no longer used. Events arrive shortly after the change is saved, and in that window a
+ * request may still be answered by the policy as it was before the change. Only a full evaluation whose policy
+ * finder selected the same node as the index fills in a cell.
+ */
+class PermissionMatrix {
+
+    private static final byte UNKNOWN = 0;
+
+    private static final byte PERMIT = 1;
+
+    private static final byte DENY = 2;
+
+    private static final byte DEPENDENT = 3;
+
+    /**
+     * The maximum number of role sets and of action sets that are numbered. Requests with others are always
+     * evaluated in full.
+     */
+    private static final int MAX_SETS = 64;
+
+    private final Numbering roleSets = new Numbering();
+
+    private final Numbering actionSets = new Numbering();
+
+    /**
+     * The matrix of the latest generation of each effective policy, by node.
+     */
+    private final Cache<String, Matrix> matrices = CacheBuilder.newBuilder().maximumSize(10000).build();
+
+    /**
+     * Finds a kept decision for a request.
+     *
+     * @param policy the version of the policy in effect for the request, or null
+     * @param roles the effective roles of the user
+     * @param actions the requested actions
+     * @return the decision, or null if the request must be evaluated
+     */
+    Decision lookup(final PolicyVersion policy, final Set<String> roles, final String[] actions) {
+        if (policy == null) {
+            return null;
+        }
+        final Matrix matrix = matrices.getIfPresent(policy.getNode());
+        if (matrix == null || matrix.generation != policy.getGeneration()) {
+            return null;
+        }
+        final int row = roleSets.get(roles);
+        final int column = actionSets.get(new HashSet<>(Arrays.asList(actions)));
+        if (row < 0 || column < 0) {
+            return null;
+        }
+        switch (matrix.get(row, column)) {
+            case PERMIT:
+                return matrix.permit;
+            case DENY:
+                return matrix.deny;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Fills in the cell of a full evaluation.
+     *
+     * @param evaluationCtx the evaluated request
+     * @param response the PDP response
+     * @param policy the version of the policy in effect, found before the evaluation started, or null
+     */
+    void learn(final FedoraEvaluationCtx evaluationCtx, final ResponseCtx response, final PolicyVersion policy) {
+        if (policy == null || !policy.getNode().equals(evaluationCtx.getEffectivePolicyNode())) {
+            return;
+        }
+        final byte cell = cellOf(evaluationCtx, response);
+        if (cell == UNKNOWN) {
+            return;
+        }
+        final Matrix matrix = matrix(policy);
+        if (matrix != null) {
+            matrix.put(evaluationCtx.getRoles(), new HashSet<>(evaluationCtx.getActions()), cell,
+                    evaluationCtx.getEffectivePolicyId());
+        }
+    }
+
+    /**
+     * @return the matrix of a policy version, replacing the matrix of an older generation of the same policy, or
+     *         null if the policy already has a matrix of a newer generation
+     */
+    private Matrix matrix(final PolicyVersion policy) {
+        final ConcurrentMap<String, Matrix> byNode = matrices.asMap();
+        while (true) {
+            final Matrix existing = byNode.get(policy.getNode());
+            if (existing != null && existing.generation >= policy.getGeneration()) {
+                return existing.generation == policy.getGeneration() ? existing : null;
+            }
+            final Matrix created = new Matrix(policy.getGeneration());
+            if (existing == null ? byNode.putIfAbsent(policy.getNode(), created) == null :
+                    byNode.replace(policy.getNode(), existing, created)) {
+                return created;
+            }
+        }
+    }
+
+    /**
+     * @return the cell for an evaluation
+     */
+    private static byte cellOf(final FedoraEvaluationCtx evaluationCtx, final ResponseCtx response) {
+        if (evaluationCtx.isAttributeDependent()) {
+            return DEPENDENT;
+        }
+        boolean permit = true;
+        for (final Object o : response.getResults()) {
+            final int decision = ((Result) o).getDecision();
+            if (decision == Result.DECISION_INDETERMINATE) {
+                return UNKNOWN;
+            }
+            permit &= decision == Result.DECISION_PERMIT;
+        }
+        return permit ? PERMIT : DENY;
+    }
+
+    /**
+     * A kept decision.
+     */
+    static class Decision {
+
+        private final boolean permit;
+
+        private final String policyId;
+
+        Decision(final boolean permit, final String policyId) {
+            this.permit = permit;
+            this.policyId = policyId;
+        }
+
+        /**
+         * @return true if every action is permitted
+         */
+        boolean isPermit() {
+            return permit;
+        }
+
+        /**
+         * @return the ID of the effective policy
+         */
+        String getPolicyId() {
+            return policyId;
+        }
+    }
+
+    /**
+     * The cells of an effective policy in one generation. Rows are role sets and columns are action sets. A cell
+     * is written once per generation with the same value by any thread that computes it, so cells are read and written
+     * without locking, and a stale read only costs an evaluation.
+     */
+    private class Matrix {
+
+        private final long generation;
+
+        private final AtomicReferenceArray<byte[]> rows = new AtomicReferenceArray<>(MAX_SETS);
+
+        private volatile Decision permit = new Decision(true, null);
+
+        private volatile Decision deny = new Decision(false, null);
+
+        Matrix(final long generation) {
+            this.generation = generation;
+        }
+
+        byte get(final int row, final int column) {
+            final byte[] cells = rows.get(row);
+            return cells == null ? UNKNOWN : cells[column];
+        }
+
+        void put(final Set<String> roleSet, final Set<String> actionSet, final byte cell, final String policyId) {
+            final int row = roleSets.add(roleSet);
+            final int column = actionSets.add(actionSet);
+            if (row < 0 || column < 0) {
+                return;
+            }
+            if (policyId != null && permit.policyId == null) {
+                permit = new Decision(true, policyId);
+                deny = new Decision(false, policyId);
+            }
+            rows.compareAndSet(row, null, new byte[MAX_SETS]);
+            rows.get(row)[column] = cell;
+        }
+    }
+
+    /**
+     * Numbers sets of strings in the order they are first added, up to {@link #MAX_SETS}.
+     */
+    private static class Numbering {
+
+        private final ConcurrentMap<Set<String>, Integer> numbers = new ConcurrentHashMap<>();
+
+        private int next;
+
+        /**
+         * @return the number of the set, or -1 if it has none
+         */
+        int get(final Set<String> set) {
+            final Integer number = numbers.get(set);
+            return number == null ? -1 : number;
+        }
+
+        /**
+         * @return the number of the set, or -1 if all numbers are taken
+         */
+        int add(final Set<String> set) {
+            final Integer number = numbers.get(set);
+            if (number != null) {
+                return number;
+            }
+            synchronized (this) {
+                final Integer raced = numbers.get(set);
+                if (raced != null) {
+                    return raced;
+                }
+                if (next == MAX_SETS) {
+                    return -1;
+                }
+                numbers.put(new HashSet<>(set), next);
+                return next++;
+            }
+        }
+    }
+}
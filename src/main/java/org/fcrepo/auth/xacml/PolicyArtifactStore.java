@@ -0,0 +1,45 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Storage for pre-parsed policy artifacts, see {@link PolicyCodec}. Artifacts are keyed by the repository path of
+ * the policy binary and tagged with a version of the binary content, so that an artifact for content that has
+ * since changed is never returned.
+ */
+public interface PolicyArtifactStore {
+
+    /**
+     * Get the artifact for a policy binary.
+     *
+     * @param path the repository path of the policy binary
+     * @param version the current version of the policy content
+     * @return a read-only view of the artifact, or null if there is none for this version
+     */
+    ByteBuffer get(String path, String version);
+
+    /**
+     * Store the artifact for a policy binary, replacing any previous version.
+     *
+     * @param path the repository path of the policy binary
+     * @param version the version of the policy content the artifact was made from
+     * @param artifact the encoded policy
+     */
+    void put(String path, String version, byte[] artifact);
+
+}
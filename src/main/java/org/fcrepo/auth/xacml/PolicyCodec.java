@@ -0,0 +1,275 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Compact binary form of a parsed policy document. The element tree is written depth first with every name,
+ * namespace and value stored once in a string table, so that loading a policy rebuilds the DOM directly
+ * instead of tokenizing and namespace-resolving the XML again.
+ *
+ * Comments are dropped, and whitespace-only text is dropped from elements that have element children, which
+ * matches what the XACML policy parser reads.
+ */
+public final class PolicyCodec {
+
+    /**
+     * Leading bytes of an encoded policy, "FXP" and the format version.
+     */
+    private static final int MAGIC = 0x46585001;
+
+    private static final int END = 0;
+
+    private static final int ELEMENT = 1;
+
+    private static final int TEXT = 2;
+
+    private static final DocumentBuilderFactory FACTORY = DocumentBuilderFactory.newInstance();
+
+    static {
+        FACTORY.setNamespaceAware(true);
+    }
+
+    /**
+     * Document builders are not thread safe, so each thread creates its own from the shared factory.
+     */
+    private static final ThreadLocal<DocumentBuilder> BUILDER = new ThreadLocal<DocumentBuilder>() {
+
+        @Override
+        protected DocumentBuilder initialValue() {
+            try {
+                synchronized (FACTORY) {
+                    return FACTORY.newDocumentBuilder();
+                }
+            } catch (final ParserConfigurationException e) {
+                throw new Error("Cannot create policy document", e);
+            }
+        }
+    };
+
+    private PolicyCodec() {
+        //not called
+    }
+
+    /**
+     * Encodes a policy document element.
+     *
+     * @param root the Policy or PolicySet element
+     * @return the encoded policy
+     */
+    public static byte[] encode(final Element root) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        try (final DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            writeElement(out, root, new HashMap<String, Integer>());
+            out.writeByte(END);
+        } catch (final IOException e) {
+            throw new Error("Cannot encode policy", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes a policy into a new namespace-aware document.
+     *
+     * @param encoded the encoded policy
+     * @return the policy document
+     * @throws IOException if the bytes are not an encoded policy
+     */
+    public static Document decode(final byte[] encoded) throws IOException {
+        return decode(ByteBuffer.wrap(encoded));
+    }
+
+    /**
+     * Decodes a policy into a new namespace-aware document, reading directly from the buffer. The position of the
+     * given buffer is not changed.
+     *
+     * @param encoded the encoded policy
+     * @return the policy document
+     * @throws IOException if the bytes are not an encoded policy
+     */
+    public static Document decode(final ByteBuffer encoded) throws IOException {
+        final Document doc = BUILDER.get().newDocument();
+        final ByteBuffer in = encoded.duplicate();
+        try {
+            if (in.getInt() != MAGIC) {
+                throw new IOException("Not an encoded policy");
+            }
+            final List<String> strings = new ArrayList<>();
+            if (in.get() != ELEMENT) {
+                throw new IOException("Encoded policy has no root element");
+            }
+            doc.appendChild(readElement(in, doc, strings));
+        } catch (final BufferUnderflowException e) {
+            throw new IOException("Truncated encoded policy", e);
+        }
+        return doc;
+    }
+
+    private static void writeElement(final DataOutputStream out, final Element element,
+            final Map<String, Integer> strings) throws IOException {
+        out.writeByte(ELEMENT);
+        writeString(out, element.getNamespaceURI(), strings);
+        writeString(out, element.getTagName(), strings);
+
+        final NamedNodeMap attributes = element.getAttributes();
+        writeVarInt(out, attributes.getLength());
+        for (int i = 0; i < attributes.getLength(); i++) {
+            final Attr attr = (Attr) attributes.item(i);
+            writeString(out, attr.getNamespaceURI(), strings);
+            writeString(out, attr.getName(), strings);
+            writeString(out, attr.getValue(), strings);
+        }
+
+        boolean hasElementChild = false;
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                hasElementChild = true;
+                break;
+            }
+        }
+
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            switch (child.getNodeType()) {
+                case Node.ELEMENT_NODE:
+                    writeElement(out, (Element) child, strings);
+                    break;
+                case Node.TEXT_NODE:
+                case Node.CDATA_SECTION_NODE:
+                    final String text = child.getNodeValue();
+                    if (!hasElementChild || !text.trim().isEmpty()) {
+                        out.writeByte(TEXT);
+                        writeString(out, text, strings);
+                    }
+                    break;
+                default:
+                    // comments and processing instructions are not part of the policy
+                    break;
+            }
+        }
+        out.writeByte(END);
+    }
+
+    private static Element readElement(final ByteBuffer in, final Document doc, final List<String> strings)
+            throws IOException {
+        final String ns = readString(in, strings);
+        final Element element = doc.createElementNS(ns, readString(in, strings));
+
+        final int attributes = readVarInt(in);
+        for (int i = 0; i < attributes; i++) {
+            final String attrNs = readString(in, strings);
+            final String name = readString(in, strings);
+            element.setAttributeNS(attrNs, name, readString(in, strings));
+        }
+
+        for (int type = in.get(); type != END; type = in.get()) {
+            if (type == ELEMENT) {
+                element.appendChild(readElement(in, doc, strings));
+            } else if (type == TEXT) {
+                element.appendChild(doc.createTextNode(readString(in, strings)));
+            } else {
+                throw new IOException("Unknown node type " + type + " in encoded policy");
+            }
+        }
+        return element;
+    }
+
+    /**
+     * Writes a string as a back reference into the string table, or as a new entry. Zero is null, odd numbers
+     * are references to the table, and even numbers are the UTF-8 length of a new string that follows.
+     */
+    private static void writeString(final DataOutputStream out, final String s, final Map<String, Integer> strings)
+            throws IOException {
+        if (s == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        final Integer index = strings.get(s);
+        if (index != null) {
+            writeVarInt(out, (index << 1) | 1);
+            return;
+        }
+        strings.put(s, strings.size());
+        final byte[] utf8 = s.getBytes(UTF_8);
+        writeVarInt(out, (utf8.length + 1) << 1);
+        out.write(utf8);
+    }
+
+    private static String readString(final ByteBuffer in, final List<String> strings) throws IOException {
+        final int code = readVarInt(in);
+        if (code == 0) {
+            return null;
+        }
+        if ((code & 1) == 1) {
+            final int index = code >>> 1;
+            if (index >= strings.size()) {
+                throw new IOException("Bad string reference in encoded policy");
+            }
+            return strings.get(index);
+        }
+        final int length = (code >>> 1) - 1;
+        if (length > in.remaining()) {
+            throw new IOException("Truncated string in encoded policy");
+        }
+        final byte[] utf8 = new byte[length];
+        in.get(utf8);
+        final String s = new String(utf8, UTF_8);
+        strings.add(s);
+        return s;
+    }
+
+    private static void writeVarInt(final DataOutputStream out, final int value) throws IOException {
+        int v = value;
+        while ((v & ~0x7F) != 0) {
+            out.writeByte((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+
+    private static int readVarInt(final ByteBuffer in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            final int b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed length in encoded policy");
+    }
+}
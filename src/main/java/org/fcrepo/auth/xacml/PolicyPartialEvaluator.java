@@ -0,0 +1,421 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static org.fcrepo.auth.xacml.ResidualConstraint.FALSE;
+import static org.fcrepo.auth.xacml.ResidualConstraint.TRUE;
+import static org.fcrepo.auth.xacml.ResidualConstraint.and;
+import static org.fcrepo.auth.xacml.ResidualConstraint.not;
+import static org.fcrepo.auth.xacml.ResidualConstraint.opaque;
+import static org.fcrepo.auth.xacml.ResidualConstraint.or;
+import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_RESOURCE_ID;
+import static org.fcrepo.auth.xacml.URIConstants.SUBJECT_CATEGORY_ACCESS_SUBJECT;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Evaluates policy documents for a request whose subject and action attributes are known but whose resource is
+ * not, and gives the condition on resource attributes under which the request is permitted. This lets a query
+ * return only the nodes that a user may see, instead of evaluating the policies for every result.
+ *
+ * Subject, action and environment matches are decided from the known attribute values. Resource matches on
+ * rdf:type, on other resource attributes named by URI and on the resource-id are kept as tests of the node. Any
+ * other match, a rule condition, an attribute selector, an attribute that is not known, or a combining algorithm
+ * other than permit-overrides, deny-overrides and first-applicable makes the affected part of the result opaque.
+ * Opaque parts that cannot change the result are simplified away.
+ *
+ * Indeterminate results are tracked where a resource attribute that must be present is missing. Where deny
+ * overrides, permission is only granted if nothing could be indeterminate, so the condition never permits more
+ * than the PDP would.
+ */
+public final class PolicyPartialEvaluator {
+
+    private static final String STRING_EQUAL = "urn:oasis:names:tc:xacml:1.0:function:string-equal";
+
+    private static final String ANYURI_EQUAL = "urn:oasis:names:tc:xacml:1.0:function:anyURI-equal";
+
+    private static final String REGEXP_STRING_MATCH = "urn:oasis:names:tc:xacml:1.0:function:regexp-string-match";
+
+    private static final String ALGORITHM_PREFIX = "urn:oasis:names:tc:xacml:1.0:";
+
+    private static final int MAX_REFERENCE_DEPTH = 32;
+
+    /**
+     * Finds policy documents by ID, for policy references.
+     */
+    public interface PolicyResolver {
+
+        /**
+         * @param policyId the ID of a policy or policy set
+         * @return its Policy or PolicySet element, or null if there is none
+         */
+        Element resolve(String policyId);
+    }
+
+    private final PolicyResolver resolver;
+
+    private final Map<String, Set<String>> knownAttributes;
+
+    /**
+     * Constructor
+     *
+     * @param resolver finds referenced policies
+     * @param knownAttributes the values of the subject, action and environment attributes of the request, by
+     *        attribute ID, such as the subject roles and the action IDs
+     */
+    public PolicyPartialEvaluator(final PolicyResolver resolver, final Map<String, Set<String>> knownAttributes) {
+        this.resolver = resolver;
+        this.knownAttributes = knownAttributes;
+    }
+
+    /**
+     * @param policy a Policy or PolicySet element
+     * @return the condition on the resource under which the policy permits the request
+     */
+    public ResidualConstraint permitted(final Element policy) {
+        return evaluatePolicy(policy, 0).permit;
+    }
+
+    private Outcome evaluatePolicy(final Element policy, final int depth) {
+        final String name = localName(policy);
+        if (name.equals("PolicySetIdReference") || name.equals("PolicyIdReference")) {
+            final String id = text(policy).trim();
+            final Element referenced = depth < MAX_REFERENCE_DEPTH ? resolver.resolve(id) : null;
+            if (referenced == null) {
+                return Outcome.opaque("reference " + id);
+            }
+            return evaluatePolicy(referenced, depth + 1);
+        }
+
+        final Match target = evaluateTarget(firstChild(policy, "Target"));
+        final List<Outcome> children = new ArrayList<>();
+        final String algorithm;
+        if (name.equals("PolicySet")) {
+            algorithm = policy.getAttribute("PolicyCombiningAlgId");
+            for (final Element child : elementChildren(policy)) {
+                final String childName = localName(child);
+                if (childName.equals("Policy") || childName.equals("PolicySet") ||
+                        childName.equals("PolicyIdReference") || childName.equals("PolicySetIdReference")) {
+                    children.add(evaluatePolicy(child, depth));
+                }
+            }
+        } else if (name.equals("Policy")) {
+            algorithm = policy.getAttribute("RuleCombiningAlgId");
+            for (final Element rule : children(policy, "Rule")) {
+                children.add(evaluateRule(rule));
+            }
+        } else {
+            return Outcome.opaque("element " + name);
+        }
+
+        final Outcome combined = combine(algorithm, children);
+        return new Outcome(and(target.match, combined.permit), and(target.match, combined.deny),
+                or(target.indeterminate, and(target.match, combined.indeterminate)));
+    }
+
+    private Outcome evaluateRule(final Element rule) {
+        final Match target = evaluateTarget(firstChild(rule, "Target"));
+        ResidualConstraint applies = target.match;
+        ResidualConstraint indeterminate = target.indeterminate;
+        if (firstChild(rule, "Condition") != null) {
+            final ResidualConstraint condition = opaque("condition of rule " + rule.getAttribute("RuleId"));
+            indeterminate = or(indeterminate, and(applies, condition));
+            applies = and(applies, condition);
+        }
+        final boolean permit = "Permit".equals(rule.getAttribute("Effect"));
+        return new Outcome(permit ? applies : FALSE, permit ? FALSE : applies, indeterminate);
+    }
+
+    /**
+     * Combines the outcomes of the children of a policy or policy set, in document order.
+     */
+    private static Outcome combine(final String algorithm, final List<Outcome> children) {
+        final String name = algorithm.startsWith(ALGORITHM_PREFIX) ?
+                algorithm.substring(algorithm.lastIndexOf(':') + 1) : algorithm;
+        final List<ResidualConstraint> permits = new ArrayList<>();
+        final List<ResidualConstraint> denies = new ArrayList<>();
+        final List<ResidualConstraint> indeterminates = new ArrayList<>();
+        for (final Outcome child : children) {
+            permits.add(child.permit);
+            denies.add(child.deny);
+            indeterminates.add(child.indeterminate);
+        }
+        switch (name) {
+            case "permit-overrides":
+                final ResidualConstraint anyPermit = or(permits);
+                final ResidualConstraint permitDeny = and(not(anyPermit), or(denies));
+                return new Outcome(anyPermit, permitDeny,
+                        and(not(anyPermit), not(permitDeny), or(indeterminates)));
+            case "deny-overrides":
+                final ResidualConstraint anyDeny = or(denies);
+                final ResidualConstraint anyIndeterminate = or(indeterminates);
+                return new Outcome(and(not(anyDeny), not(anyIndeterminate), or(permits)), anyDeny,
+                        and(not(anyDeny), anyIndeterminate));
+            case "first-applicable":
+                final List<ResidualConstraint> permit = new ArrayList<>();
+                final List<ResidualConstraint> deny = new ArrayList<>();
+                final List<ResidualConstraint> indeterminate = new ArrayList<>();
+                ResidualConstraint notApplicableSoFar = TRUE;
+                for (final Outcome child : children) {
+                    permit.add(and(notApplicableSoFar, child.permit));
+                    deny.add(and(notApplicableSoFar, child.deny));
+                    indeterminate.add(and(notApplicableSoFar, child.indeterminate));
+                    notApplicableSoFar = and(notApplicableSoFar, not(child.permit), not(child.deny),
+                            not(child.indeterminate));
+                    if (notApplicableSoFar.isFalse()) {
+                        break;
+                    }
+                }
+                return new Outcome(or(permit), or(deny), or(indeterminate));
+            default:
+                return Outcome.opaque("combining algorithm " + algorithm);
+        }
+    }
+
+    /**
+     * Evaluates a target: each section that is present must match, and within a section one alternative must
+     * match all of its matches.
+     */
+    private Match evaluateTarget(final Element target) {
+        final List<Match> sections = new ArrayList<>();
+        if (target != null) {
+            for (final Element section : elementChildren(target)) {
+                final List<Match> alternatives = new ArrayList<>();
+                for (final Element alternative : elementChildren(section)) {
+                    final List<Match> matches = new ArrayList<>();
+                    for (final Element match : elementChildren(alternative)) {
+                        matches.add(evaluateMatch(match));
+                    }
+                    alternatives.add(Match.all(matches));
+                }
+                sections.add(Match.any(alternatives));
+            }
+        }
+        return Match.all(sections);
+    }
+
+    private Match evaluateMatch(final Element match) {
+        final Element value = firstChild(match, "AttributeValue");
+        Element designator = null;
+        for (final Element child : elementChildren(match)) {
+            if (localName(child).endsWith("AttributeDesignator")) {
+                designator = child;
+            }
+        }
+        if (value == null || designator == null || designator.hasAttribute("Issuer")) {
+            return Match.opaque("match " + match.getAttribute("MatchId"));
+        }
+
+        final String function = match.getAttribute("MatchId");
+        final String literal = text(value);
+        final String attributeId = designator.getAttribute("AttributeId");
+        final boolean mustBePresent = "true".equals(designator.getAttribute("MustBePresent"));
+        if (localName(designator).equals("ResourceAttributeDesignator")) {
+            return evaluateResourceMatch(function, literal, attributeId, mustBePresent);
+        }
+
+        if (localName(designator).equals("SubjectAttributeDesignator")) {
+            final String category = designator.getAttribute("SubjectCategory");
+            if (!category.isEmpty() && !SUBJECT_CATEGORY_ACCESS_SUBJECT.toString().equals(category)) {
+                return Match.opaque("subject category " + category);
+            }
+        }
+        final Set<String> values = knownAttributes.get(attributeId);
+        if (values == null) {
+            return Match.opaque("attribute " + attributeId);
+        }
+        if (values.isEmpty()) {
+            return mustBePresent ? Match.INDETERMINATE : Match.NO_MATCH;
+        }
+        for (final String requestValue : values) {
+            final Boolean matches = apply(function, literal, requestValue);
+            if (matches == null) {
+                return Match.opaque("function " + function);
+            }
+            if (matches) {
+                return Match.MATCH;
+            }
+        }
+        return Match.NO_MATCH;
+    }
+
+    private static Match evaluateResourceMatch(final String function, final String literal,
+            final String attributeId, final boolean mustBePresent) {
+        final ResidualConstraint test;
+        if (ATTRIBUTEID_RESOURCE_ID.toString().equals(attributeId)) {
+            test = STRING_EQUAL.equals(function) ? ResidualConstraint.resourceId(literal) : null;
+        } else if (attributeId.startsWith("urn:") || !attributeId.contains(":")) {
+            test = null;
+        } else {
+            test = STRING_EQUAL.equals(function) || ANYURI_EQUAL.equals(function) ?
+                    ResidualConstraint.attribute(attributeId, literal) : null;
+        }
+        if (test == null) {
+            return Match.opaque("resource match " + function + " on " + attributeId);
+        }
+        final ResidualConstraint missing = mustBePresent && !ATTRIBUTEID_RESOURCE_ID.toString().equals(attributeId) ?
+                not(ResidualConstraint.present(attributeId)) : FALSE;
+        return new Match(test, missing);
+    }
+
+    /**
+     * @return whether the function holds for the policy literal and a request value, or null if it is not known
+     */
+    private static Boolean apply(final String function, final String literal, final String requestValue) {
+        switch (function) {
+            case STRING_EQUAL:
+            case ANYURI_EQUAL:
+                return literal.equals(requestValue);
+            case REGEXP_STRING_MATCH:
+                try {
+                    return Pattern.compile(literal).matcher(requestValue).find();
+                } catch (final PatternSyntaxException e) {
+                    return null;
+                }
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * The permit, deny and indeterminate outcomes of a policy or rule, which exclude each other. It is not
+     * applicable where none of them holds.
+     */
+    private static final class Outcome {
+
+        private final ResidualConstraint permit;
+
+        private final ResidualConstraint deny;
+
+        private final ResidualConstraint indeterminate;
+
+        Outcome(final ResidualConstraint permit, final ResidualConstraint deny,
+                final ResidualConstraint indeterminate) {
+            this.permit = permit;
+            this.deny = deny;
+            this.indeterminate = indeterminate;
+        }
+
+        static Outcome opaque(final String description) {
+            final ResidualConstraint unknown = ResidualConstraint.opaque(description);
+            return new Outcome(unknown, unknown, unknown);
+        }
+    }
+
+    /**
+     * The match and indeterminate outcomes of a target or match, which exclude each other.
+     */
+    private static final class Match {
+
+        static final Match MATCH = new Match(TRUE, FALSE);
+
+        static final Match NO_MATCH = new Match(FALSE, FALSE);
+
+        static final Match INDETERMINATE = new Match(FALSE, TRUE);
+
+        private final ResidualConstraint match;
+
+        private final ResidualConstraint indeterminate;
+
+        Match(final ResidualConstraint match, final ResidualConstraint indeterminate) {
+            this.match = match;
+            this.indeterminate = indeterminate;
+        }
+
+        static Match opaque(final String description) {
+            final ResidualConstraint unknown = ResidualConstraint.opaque(description);
+            return new Match(unknown, unknown);
+        }
+
+        /**
+         * No match if any does not match, otherwise indeterminate if any is, otherwise a match.
+         */
+        static Match all(final List<Match> matches) {
+            if (matches.size() == 1) {
+                return matches.get(0);
+            }
+            final List<ResidualConstraint> all = new ArrayList<>();
+            final List<ResidualConstraint> noMatch = new ArrayList<>();
+            final List<ResidualConstraint> indeterminate = new ArrayList<>();
+            for (final Match m : matches) {
+                all.add(m.match);
+                noMatch.add(and(not(m.match), not(m.indeterminate)));
+                indeterminate.add(m.indeterminate);
+            }
+            return new Match(and(all), and(not(or(noMatch)), or(indeterminate)));
+        }
+
+        /**
+         * A match if any matches, otherwise indeterminate if any is, otherwise no match.
+         */
+        static Match any(final List<Match> matches) {
+            if (matches.size() == 1) {
+                return matches.get(0);
+            }
+            final List<ResidualConstraint> any = new ArrayList<>();
+            final List<ResidualConstraint> indeterminate = new ArrayList<>();
+            for (final Match m : matches) {
+                any.add(m.match);
+                indeterminate.add(m.indeterminate);
+            }
+            final ResidualConstraint matched = or(any);
+            return new Match(matched, and(not(matched), or(indeterminate)));
+        }
+    }
+
+    private static String text(final Element element) {
+        // the string value is the first text node, as the XACML parser reads it
+        final Node text = element.getFirstChild();
+        return text == null ? "" : text.getNodeValue();
+    }
+
+    private static List<Element> elementChildren(final Element parent) {
+        final List<Element> elements = new ArrayList<>();
+        for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                elements.add((Element) child);
+            }
+        }
+        return elements;
+    }
+
+    private static List<Element> children(final Element parent, final String name) {
+        final List<Element> elements = new ArrayList<>();
+        for (final Element child : elementChildren(parent)) {
+            if (name.equals(localName(child))) {
+                elements.add(child);
+            }
+        }
+        return elements;
+    }
+
+    private static Element firstChild(final Element parent, final String name) {
+        final List<Element> matches = children(parent, name);
+        return matches.isEmpty() ? null : matches.get(0);
+    }
+
+    private static String localName(final Node node) {
+        return node.getLocalName() != null ? node.getLocalName() : node.getNodeName();
+    }
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static javax.xml.XMLConstants.XMLNS_ATTRIBUTE;
+import static javax.xml.XMLConstants.XMLNS_ATTRIBUTE_NS_URI;
+import static javax.xml.stream.XMLStreamConstants.CHARACTERS;
+import static javax.xml.stream.XMLStreamConstants.CDATA;
+import static javax.xml.stream.XMLStreamConstants.END_ELEMENT;
+import static javax.xml.stream.XMLStreamConstants.START_ELEMENT;
+
+import java.io.InputStream;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.w3c.dom.DOMImplementation;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Streaming reader for policy documents. The ID of a policy is read from its root element without reading the
+ * rest of the document, and a policy is read into a compact DOM built directly from the stream, which is the form
+ * the XACML policy parser builds its policy objects from.
+ *
+ * The compact DOM is fully built as it is read, rather than expanded on first use, and leaves out what the XACML
+ * policy parser does not read: comments, processing instructions, and whitespace-only text in elements that have
+ * element children. This is the same content that {@link PolicyCodec} keeps.
+ */
+public final class PolicyReader {
+
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    private static final DOMImplementation DOM;
+
+    static {
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, true);
+        INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        try {
+            final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            DOM = factory.newDocumentBuilder().getDOMImplementation();
+        } catch (final ParserConfigurationException e) {
+            throw new Error("Cannot create policy documents", e);
+        }
+    }
+
+    private PolicyReader() {
+        //not called
+    }
+
+    /**
+     * Reads the ID of a policy or policy set document, stopping at the root element.
+     *
+     * @param policyStream the policy input, which is not closed
+     * @return the PolicyId or PolicySetId, or null if the root element is not a policy or policy set
+     * @throws XMLStreamException if the document cannot be read up to its root element
+     */
+    public static String readId(final InputStream policyStream) throws XMLStreamException {
+        final XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(policyStream);
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() == START_ELEMENT) {
+                    final String name = reader.getLocalName();
+                    if (name.equals("Policy")) {
+                        return reader.getAttributeValue(null, "PolicyId");
+                    } else if (name.equals("PolicySet")) {
+                        return reader.getAttributeValue(null, "PolicySetId");
+                    }
+                    return null;
+                }
+            }
+            return null;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Reads a policy or policy set document into a compact namespace-aware DOM.
+     *
+     * @param policyStream the policy input, which is not closed
+     * @return the policy document
+     * @throws XMLStreamException if the input is not well-formed XML
+     */
+    public static Document read(final InputStream policyStream) throws XMLStreamException {
+        final XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(policyStream);
+        try {
+            final Document doc = DOM.createDocument(null, null, null);
+            final StringBuilder text = new StringBuilder();
+            Node parent = doc;
+            // whether the element being read has an element child, for each open element
+            boolean[] nested = new boolean[16];
+            int depth = 0;
+
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case START_ELEMENT:
+                        if (depth > 0) {
+                            nested[depth - 1] = true;
+                            appendText(doc, parent, text, true);
+                        }
+                        final Element element = createElement(doc, reader);
+                        parent.appendChild(element);
+                        parent = element;
+                        if (depth == nested.length) {
+                            final boolean[] grown = new boolean[depth * 2];
+                            System.arraycopy(nested, 0, grown, 0, depth);
+                            nested = grown;
+                        }
+                        nested[depth++] = false;
+                        break;
+                    case END_ELEMENT:
+                        appendText(doc, parent, text, nested[--depth]);
+                        parent = parent.getParentNode();
+                        break;
+                    case CHARACTERS:
+                    case CDATA:
+                        if (depth > 0) {
+                            text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                        }
+                        break;
+                    default:
+                        // comments, processing instructions and ignorable whitespace are not part of the policy
+                        break;
+                }
+            }
+            return doc;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static Element createElement(final Document doc, final XMLStreamReader reader) {
+        final Element element = doc.createElementNS(emptyToNull(reader.getNamespaceURI()),
+                qualifiedName(reader.getPrefix(), reader.getLocalName()));
+
+        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+            final String prefix = reader.getNamespacePrefix(i);
+            element.setAttributeNS(XMLNS_ATTRIBUTE_NS_URI,
+                    prefix == null || prefix.isEmpty() ? XMLNS_ATTRIBUTE : XMLNS_ATTRIBUTE + ":" + prefix,
+                    reader.getNamespaceURI(i));
+        }
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            element.setAttributeNS(emptyToNull(reader.getAttributeNamespace(i)),
+                    qualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i)),
+                    reader.getAttributeValue(i));
+        }
+        return element;
+    }
+
+    /**
+     * Appends the text read since the last tag to an element, unless it is whitespace between element children.
+     */
+    private static void appendText(final Document doc, final Node parent, final StringBuilder text,
+            final boolean hasElementChild) {
+        if (text.length() == 0) {
+            return;
+        }
+        if (!hasElementChild || !isWhitespace(text)) {
+            parent.appendChild(doc.createTextNode(text.toString()));
+        }
+        text.setLength(0);
+    }
+
+    private static boolean isWhitespace(final CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String qualifiedName(final String prefix, final String localName) {
+        return prefix == null || prefix.isEmpty() ? localName : prefix + ":" + localName;
+    }
+
+    private static String emptyToNull(final String s) {
+        return s == null || s.isEmpty() ? null : s;
+    }
+}
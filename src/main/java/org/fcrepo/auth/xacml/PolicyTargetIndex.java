@@ -0,0 +1,346 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_ACTION_ID;
+import static org.fcrepo.auth.xacml.URIConstants.FCREPO_SUBJECT_GROUP_VALUE;
+import static org.fcrepo.auth.xacml.URIConstants.FCREPO_SUBJECT_ROLE_VALUE;
+import static org.fcrepo.auth.xacml.URIConstants.SUBJECT_CATEGORY_ACCESS_SUBJECT;
+import static org.fcrepo.auth.xacml.URIConstants.XML_SCHEMA_STRING;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import org.jboss.security.xacml.sunxacml.AbstractPolicy;
+import org.jboss.security.xacml.sunxacml.finder.PolicyFinder;
+import org.slf4j.Logger;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Inverted index from the subject role, subject group and action ID literals in the targets of the child policies
+ * of a policy set to those children, built when the policy set is loaded.
+ *
+ * For a request, the children whose targets cannot match its roles, groups and actions are left out, and the
+ * policy set is evaluated over the remaining candidates only. A child can only be left out if each alternative
+ * in its Subjects, or each alternative in its Actions, requires a string-equal match of one of these attributes
+ * against a value that the request does not have. Children without such a requirement, including references to
+ * other policies, are always candidates. Leaving out children that do not apply does not change the result of
+ * any of the standard combining algorithms.
+ *
+ * Policy sets over each distinct candidate set are parsed once from the encoded policy and kept.
+ */
+final class PolicyTargetIndex {
+
+    private static final Logger LOGGER = getLogger(PolicyTargetIndex.class);
+
+    private static final String STRING_EQUAL = "urn:oasis:names:tc:xacml:1.0:function:string-equal";
+
+    private final byte[] encoded;
+
+    private final int children;
+
+    private final BitSet anySubject = new BitSet();
+
+    private final BitSet anyAction = new BitSet();
+
+    private final Map<String, BitSet> byRole = new HashMap<>();
+
+    private final Map<String, BitSet> byGroup = new HashMap<>();
+
+    private final Map<String, BitSet> byAction = new HashMap<>();
+
+    /**
+     * The children with a Subject alternative that requires a group.
+     */
+    private final BitSet groupTargeted = new BitSet();
+
+    private final Cache<BitSet, AbstractPolicy> selections = CacheBuilder.newBuilder().maximumSize(64).build();
+
+    private PolicyTargetIndex(final byte[] encoded, final int children) {
+        this.encoded = encoded;
+        this.children = children;
+    }
+
+    /**
+     * Indexes the child policies of a policy document.
+     *
+     * @param root the Policy or PolicySet element
+     * @return the index, or null if the policy is not a policy set with children that can be left out
+     */
+    static PolicyTargetIndex build(final Element root) {
+        if (!"PolicySet".equals(localName(root)) || firstChild(root, "PolicyCombinerParameters") != null) {
+            return null;
+        }
+        final List<Element> policies = policyChildren(root);
+        final PolicyTargetIndex index = new PolicyTargetIndex(PolicyCodec.encode(root), policies.size());
+        for (int i = 0; i < policies.size(); i++) {
+            final Element target = firstChild(policies.get(i), "Target");
+            if (!index.indexSubjects(i, target == null ? null : firstChild(target, "Subjects"))) {
+                index.anySubject.set(i);
+            }
+            if (!index.indexActions(i, target == null ? null : firstChild(target, "Actions"))) {
+                index.anyAction.set(i);
+            }
+        }
+        if (index.anySubject.cardinality() == index.children && index.anyAction.cardinality() == index.children) {
+            return null;
+        }
+        return index;
+    }
+
+    /**
+     * Gets the policy set over the children that can match the request.
+     *
+     * @param context the request
+     * @param policy the policy set over all children
+     * @param finder the finder for policy references
+     * @return the policy set over the candidates, or the given policy set if all children are candidates
+     */
+    AbstractPolicy select(final FedoraEvaluationCtx context, final AbstractPolicy policy, final PolicyFinder finder) {
+        final BitSet candidates = candidates(context);
+        if (candidates.cardinality() == children) {
+            return policy;
+        }
+        try {
+            return selections.get(candidates, new Callable<AbstractPolicy>() {
+
+                @Override
+                public AbstractPolicy call() throws Exception {
+                    final Element root = PolicyCodec.decode(encoded).getDocumentElement();
+                    final List<Element> policies = policyChildren(root);
+                    for (int i = 0; i < policies.size(); i++) {
+                        if (!candidates.get(i)) {
+                            root.removeChild(policies.get(i));
+                        }
+                    }
+                    return PolicyUtil.createPolicy(root, finder);
+                }
+            });
+        } catch (final ExecutionException | UncheckedExecutionException e) {
+            LOGGER.warn("Unable to narrow policy set {}, evaluating all of its policies", policy.getId(), e);
+            return policy;
+        }
+    }
+
+    /**
+     * Finds the children that can match a request. Roles and action IDs are the key of kept decisions, but groups
+     * are not, so when a child that a group could have admitted is left out, the request is marked as depending
+     * on attributes, as if the child had been evaluated and its group match had failed.
+     *
+     * @param context the request
+     * @return the positions of the child policies that can match the request
+     */
+    BitSet candidates(final FedoraEvaluationCtx context) {
+        final BitSet candidates = (BitSet) anySubject.clone();
+        addMatches(candidates, byRole, context.getRoles());
+        addMatches(candidates, byGroup, context.getGroups());
+
+        final BitSet actionCandidates = (BitSet) anyAction.clone();
+        addMatches(actionCandidates, byAction, context.getActions());
+        candidates.and(actionCandidates);
+
+        final BitSet excludedByGroup = (BitSet) groupTargeted.clone();
+        excludedByGroup.and(actionCandidates);
+        excludedByGroup.andNot(candidates);
+        if (!excludedByGroup.isEmpty()) {
+            context.setAttributeDependent();
+        }
+        return candidates;
+    }
+
+    /**
+     * Adds the children that match any of the request values. When the request has no values, they may be found
+     * by an attribute finder module, so every child that requires a value is added.
+     */
+    private static void addMatches(final BitSet candidates, final Map<String, BitSet> index,
+            final Collection<String> values) {
+        if (values.isEmpty()) {
+            for (final BitSet matches : index.values()) {
+                candidates.or(matches);
+            }
+            return;
+        }
+        for (final String value : values) {
+            final BitSet matches = index.get(value);
+            if (matches != null) {
+                candidates.or(matches);
+            }
+        }
+    }
+
+    /**
+     * @return whether every Subject alternative of the child requires a role or group value, which are then
+     *         indexed
+     */
+    private boolean indexSubjects(final int child, final Element subjects) {
+        final List<Element> alternatives = subjects == null ? new ArrayList<Element>() : children(subjects, "Subject");
+        if (alternatives.isEmpty()) {
+            return false;
+        }
+        final List<String[]> keys = new ArrayList<>(alternatives.size());
+        for (final Element alternative : alternatives) {
+            final String[] key = subjectKey(alternative);
+            if (key == null) {
+                return false;
+            }
+            keys.add(key);
+        }
+        for (final String[] key : keys) {
+            if (FCREPO_SUBJECT_ROLE_VALUE.equals(key[0])) {
+                add(byRole, key[1], child);
+            } else {
+                add(byGroup, key[1], child);
+                groupTargeted.set(child);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return whether every Action alternative of the child requires an action ID, which are then indexed
+     */
+    private boolean indexActions(final int child, final Element actions) {
+        final List<Element> alternatives = actions == null ? new ArrayList<Element>() : children(actions, "Action");
+        if (alternatives.isEmpty()) {
+            return false;
+        }
+        final List<String> keys = new ArrayList<>(alternatives.size());
+        for (final Element alternative : alternatives) {
+            final String key = actionKey(alternative);
+            if (key == null) {
+                return false;
+            }
+            keys.add(key);
+        }
+        for (final String key : keys) {
+            add(byAction, key, child);
+        }
+        return true;
+    }
+
+    /**
+     * @return the attribute ID and value of a role or group that the Subject requires, or null
+     */
+    private static String[] subjectKey(final Element subject) {
+        for (final Element match : children(subject, "SubjectMatch")) {
+            final Element designator = firstChild(match, "SubjectAttributeDesignator");
+            final String value = requiredValue(match, designator);
+            if (value == null) {
+                continue;
+            }
+            final String category = designator.getAttribute("SubjectCategory");
+            if (!category.isEmpty() && !SUBJECT_CATEGORY_ACCESS_SUBJECT.toString().equals(category)) {
+                continue;
+            }
+            final String id = designator.getAttribute("AttributeId");
+            if (FCREPO_SUBJECT_ROLE_VALUE.equals(id) || FCREPO_SUBJECT_GROUP_VALUE.equals(id)) {
+                return new String[] { id, value };
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the action ID that the Action requires, or null
+     */
+    private static String actionKey(final Element action) {
+        for (final Element match : children(action, "ActionMatch")) {
+            final Element designator = firstChild(match, "ActionAttributeDesignator");
+            final String value = requiredValue(match, designator);
+            if (value != null && ATTRIBUTEID_ACTION_ID.toString().equals(designator.getAttribute("AttributeId"))) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the literal of a string-equal match on a string request attribute without an issuer, or null
+     */
+    private static String requiredValue(final Element match, final Element designator) {
+        final Element value = firstChild(match, "AttributeValue");
+        if (value == null || designator == null || !STRING_EQUAL.equals(match.getAttribute("MatchId")) ||
+                !XML_SCHEMA_STRING.toString().equals(value.getAttribute("DataType")) ||
+                !XML_SCHEMA_STRING.toString().equals(designator.getAttribute("DataType")) ||
+                designator.hasAttribute("Issuer")) {
+            return null;
+        }
+        // the string value is the first text node, as the XACML parser reads it
+        final Node text = value.getFirstChild();
+        return text == null ? "" : text.getNodeValue();
+    }
+
+    private static void add(final Map<String, BitSet> index, final String value, final int child) {
+        BitSet matches = index.get(value);
+        if (matches == null) {
+            matches = new BitSet();
+            index.put(value, matches);
+        }
+        matches.set(child);
+    }
+
+    /**
+     * @return the child policies, policy sets and references, in document order
+     */
+    private static List<Element> policyChildren(final Element root) {
+        final List<Element> policies = new ArrayList<>();
+        for (Node child = root.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                final String name = localName(child);
+                if (name.equals("Policy") || name.equals("PolicySet") || name.equals("PolicyIdReference") ||
+                        name.equals("PolicySetIdReference")) {
+                    policies.add((Element) child);
+                }
+            }
+        }
+        return policies;
+    }
+
+    private static List<Element> children(final Element parent, final String name) {
+        final List<Element> elements = new ArrayList<>();
+        for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE && name.equals(localName(child))) {
+                elements.add((Element) child);
+            }
+        }
+        return elements;
+    }
+
+    private static Element firstChild(final Element parent, final String name) {
+        for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE && name.equals(localName(child))) {
+                return (Element) child;
+            }
+        }
+        return null;
+    }
+
+    private static String localName(final Node node) {
+        return node.getLocalName() != null ? node.getLocalName() : node.getNodeName();
+    }
+}
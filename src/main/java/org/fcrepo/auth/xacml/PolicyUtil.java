@@ -15,8 +15,13 @@
  */
 package org.fcrepo.auth.xacml;
 
+import static java.lang.Boolean.TRUE;
+import static org.fcrepo.auth.xacml.URIConstants.XACML_POLICY_PROPERTY;
+
 import java.io.InputStream;
 import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -24,14 +29,22 @@ import javax.jcr.Node;
 import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLStreamException;
 
+import org.fcrepo.kernel.FedoraBinary;
+import org.jboss.security.xacml.sunxacml.AbstractPolicy;
 import org.jboss.security.xacml.sunxacml.EvaluationCtx;
+import org.jboss.security.xacml.sunxacml.ParsingException;
+import org.jboss.security.xacml.sunxacml.Policy;
+import org.jboss.security.xacml.sunxacml.PolicySet;
 import org.jboss.security.xacml.sunxacml.attr.AttributeValue;
 import org.jboss.security.xacml.sunxacml.cond.EvaluationResult;
+import org.jboss.security.xacml.sunxacml.finder.PolicyFinder;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.xml.sax.SAXException;
+
+import com.google.common.cache.Cache;
 
 /**
  * @author Gregory Jansen
@@ -39,6 +52,12 @@ import org.w3c.dom.Element;
  */
 public class PolicyUtil {
 
+    /**
+     * The namespaces of XACML 2.0 policies, and of XACML 1.0 policies, which the PDP still reads.
+     */
+    private static final Set<String> XACML_POLICY_NAMESPACES = new HashSet<>(Arrays.asList(
+            "urn:oasis:names:tc:xacml:2.0:policy:schema:os", "urn:oasis:names:tc:xacml:1.0:policy"));
+
     private PolicyUtil() {
         //not called
     }
@@ -50,26 +69,73 @@ public class PolicyUtil {
      * @return an identifier
      */
     public static String getID(final InputStream policyStream) {
+        final String result;
         try {
-            // create the factory
-            final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            factory.setIgnoringComments(true);
+            result = PolicyReader.readId(policyStream);
+        } catch (final XMLStreamException e) {
+            throw new Error("Unable to parse policy", e);
+        }
+        if (result == null) {
+            throw new Error("Cannot find policy ID");
+        }
+        return result;
+    }
 
-            factory.setNamespaceAware(true);
-            factory.setValidating(false);
-            final DocumentBuilder db = factory.newDocumentBuilder();
+    /**
+     * Parse a policy or policy set document into a compact namespace-aware DOM, see {@link PolicyReader}.
+     *
+     * @param policyStream the policy input
+     * @return the DOM
+     * @throws SAXException if the input is not well-formed XML
+     */
+    public static Document parse(final InputStream policyStream) throws SAXException {
+        try {
+            return PolicyReader.read(policyStream);
+        } catch (final XMLStreamException e) {
+            throw new SAXException("Unable to parse policy", e);
+        }
+    }
 
-            // Parse the policy content
-            final Document doc = db.parse(policyStream);
+    /**
+     * Creates a policy or policy set object from the root element of a policy document.
+     *
+     * @param root the document element
+     * @param finder the finder used to resolve policy references, may be null
+     * @return the policy or policy set
+     * @throws ParsingException if the element is not a policy or cannot be parsed
+     */
+    public static AbstractPolicy createPolicy(final Element root, final PolicyFinder finder)
+            throws ParsingException {
+        final String name = root.getTagName();
+        if (name.equals("Policy")) {
+            return Policy.getInstance(root);
+        } else if (name.equals("PolicySet")) {
+            return PolicySet.getInstance(root, finder);
+        } else {
+            // this isn't a root type that we know how to handle
+            throw new ParsingException("Unknown root document type: " + name);
+        }
+    }
 
-            final String result = getID(doc);
-            if (result == null) {
-                throw new Error("Cannot find policy ID");
-            }
-            return result;
-        } catch (final Exception e) {
-            throw new Error("Unable to parse policy", e);
+    /**
+     * Validates a policy or policy set document and creates its policy object. The root element must be a policy
+     * or policy set with an ID in a XACML policy namespace, and every element below it must parse.
+     *
+     * @param root the document element
+     * @param finder the finder used to resolve policy references, may be null
+     * @return the policy or policy set
+     * @throws ParsingException if the document is not a valid policy
+     */
+    public static AbstractPolicy validatePolicy(final Element root, final PolicyFinder finder)
+            throws ParsingException {
+        if (!XACML_POLICY_NAMESPACES.contains(root.getNamespaceURI())) {
+            throw new ParsingException("Not in a XACML policy namespace: " + root.getNamespaceURI());
         }
+        final String id = getID(root.getOwnerDocument());
+        if (id == null || id.isEmpty()) {
+            throw new ParsingException("Cannot find policy ID");
+        }
+        return createPolicy(root, finder);
     }
 
     /**
@@ -91,6 +157,17 @@ public class PolicyUtil {
         }
     }
 
+    /**
+     * Gets a version tag for the current content of a policy binary, used to detect stale cached policies.
+     *
+     * @param policyBinary the policy binary
+     * @return the content digest, or null if the binary has none
+     */
+    public static String getPolicyVersion(final FedoraBinary policyBinary) {
+        final URI digest = policyBinary.getContentDigest();
+        return digest == null ? null : digest.toString();
+    }
+
     /**
      * Gets the repository path for a policy ID.
      *
@@ -109,46 +186,128 @@ public class PolicyUtil {
      * @return a Node in session
      */
     public static Node getFirstRealNode(final String modepath, final Session session) {
-        Node node = null;
-        for (String path = modepath; path.contains("/{"); path = path.substring(0, path.lastIndexOf("/{"))) {
-            try {
-                node = session.getNode(path);
-                break;
-            } catch (final PathNotFoundException expected) {
-            } catch (final RepositoryException e) {
-                throw new Error("Cannot reach repository", e);
+        return getFirstRealNode(modepath, session, null);
+    }
+
+    /**
+     * Find the nearest real Modeshape node for a given Modeshape path, checking for each path whether it exists
+     * rather than failing to get it. Paths found not to exist are added to the given cache, and paths in the
+     * cache are skipped.
+     *
+     * @param modepath the path in ModeShape
+     * @param session a session
+     * @param missingPaths paths known not to exist, or null
+     * @return a Node in session
+     */
+    public static Node getFirstRealNode(final String modepath, final Session session,
+            final Cache<String, Boolean> missingPaths) {
+        try {
+            for (String path = modepath; path.contains("/{"); path = path.substring(0, path.lastIndexOf("/{"))) {
+                if (missingPaths != null && missingPaths.getIfPresent(path) != null) {
+                    continue;
+                }
+                if (session.nodeExists(path)) {
+                    try {
+                        return session.getNode(path);
+                    } catch (final PathNotFoundException removed) {
+                        // removed since it was checked
+                    }
+                }
+                if (missingPaths != null) {
+                    missingPaths.put(path, TRUE);
+                }
             }
+            return session.getRootNode();
+        } catch (final RepositoryException e) {
+            throw new Error("Cannot reach repository", e);
         }
-        if (node == null) {
-            try {
-                node = session.getRootNode();
-            } catch (final RepositoryException e) {
-                throw new Error("Cannot reach repository", e);
+    }
+
+    /**
+     * Find the node whose policy governs a Modeshape path, which is the nearest real node at or above the path
+     * that has a policy assigned.
+     *
+     * @param modepath the path in ModeShape
+     * @param session a session
+     * @return a Node in session, or null if no node up to the root has a policy
+     * @throws RepositoryException
+     */
+    public static Node getEffectivePolicyNode(final String modepath, final Session session)
+            throws RepositoryException {
+        return getEffectivePolicyNode(modepath, session, null);
+    }
+
+    /**
+     * Find the node whose policy governs a Modeshape path, skipping paths known not to exist.
+     *
+     * @param modepath the path in ModeShape
+     * @param session a session
+     * @param missingPaths paths known not to exist, or null
+     * @return a Node in session, or null if no node up to the root has a policy
+     * @throws RepositoryException
+     */
+    public static Node getEffectivePolicyNode(final String modepath, final Session session,
+            final Cache<String, Boolean> missingPaths) throws RepositoryException {
+        Node node = getFirstRealNode(modepath, session, missingPaths);
+        while (!node.hasProperty(XACML_POLICY_PROPERTY)) {
+            if (node.getDepth() == 0) {
+                return null;
             }
+            node = node.getParent();
         }
         return node;
     }
 
+    /**
+     * Drops the empty braces of names without a namespace, which a raw ModeShape path may or may not have, so
+     * that paths to the same node compare equal.
+     *
+     * @param modepath the path in ModeShape
+     * @return the normalized path
+     */
+    public static String normalizeModePath(final String modepath) {
+        return modepath.replace("/{}", "/");
+    }
+
+    /**
+     * Converts a repository path with namespace prefixes into a Modeshape path, with namespace URIs in braces.
+     *
+     * @param jcrPath the repository path
+     * @param session a session, for the namespace prefixes
+     * @return the path in ModeShape
+     * @throws RepositoryException
+     */
+    public static String getModePath(final String jcrPath, final Session session) throws RepositoryException {
+        final StringBuilder modepath = new StringBuilder();
+        for (final String segment : jcrPath.substring(1).split("/")) {
+            final int colon = segment.indexOf(':');
+            modepath.append("/{");
+            if (colon > 0) {
+                modepath.append(session.getNamespaceURI(segment.substring(0, colon)));
+            }
+            modepath.append('}').append(segment.substring(colon + 1));
+        }
+        return modepath.toString();
+    }
+
     /**
      * Get the action ids.
      *
      * @param context the evaluation context
-     * @return a set of actions
+     * @return an unmodifiable set of actions
      */
     public static Set<String> getActions(final EvaluationCtx context) {
-        final Set<String> result = new HashSet<String>();
         final EvaluationResult eval =
-                context.getActionAttribute(URI.create("http://www.w3.org/2001/XMLSchema#string"),
-                        URIConstants.ATTRIBUTEID_ACTION_ID, null);
+                context.getActionAttribute(URIConstants.XML_SCHEMA_STRING, URIConstants.ATTRIBUTEID_ACTION_ID, null);
         if (eval == null) {
             return null;
         }
         if (eval.getStatus() == null) {
             final AttributeValue val = eval.getAttributeValue();
             if (val != null && val.getValue() != null) {
-                result.add(val.getValue().toString());
+                return Collections.singleton(val.getValue().toString());
             }
         }
-        return result;
+        return Collections.emptySet();
     }
 }
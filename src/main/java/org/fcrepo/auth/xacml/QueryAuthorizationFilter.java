@@ -0,0 +1,257 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static org.fcrepo.auth.xacml.ResidualConstraint.and;
+import static org.fcrepo.auth.xacml.ResidualConstraint.descendant;
+import static org.fcrepo.auth.xacml.ResidualConstraint.not;
+import static org.fcrepo.auth.xacml.ResidualConstraint.or;
+import static org.fcrepo.auth.xacml.ResidualConstraint.sameNode;
+import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_ACTION_ID;
+import static org.fcrepo.auth.xacml.URIConstants.FCREPO_SUBJECT_GROUP_VALUE;
+import static org.fcrepo.auth.xacml.URIConstants.FCREPO_SUBJECT_ROLE_VALUE;
+import static org.fcrepo.auth.xacml.URIConstants.XACML_POLICY_PROPERTY;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.fcrepo.kernel.FedoraBinary;
+import org.fcrepo.kernel.services.BinaryService;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.w3c.dom.Element;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Builds query constraints that select only the nodes a subject may act on, so that search and listing results
+ * do not have to be checked one by one.
+ *
+ * A scope is split into regions by the nodes that have a policy assigned: the scope itself, governed by its
+ * effective policy, and each node below it with a policy, down to the next such node. The policy of each region
+ * is evaluated for the subject and actions with {@link PolicyPartialEvaluator}, and the constraint is the union
+ * of each region with the condition its policy leaves. The subject roles are taken as given for the whole scope.
+ *
+ * When a constraint cannot be built, because a policy depends on something that a query cannot test, the scope
+ * has too many regions, or policies are inherited, no constraint is returned and each result must be evaluated.
+ */
+@Component("queryAuthorizationFilter")
+public class QueryAuthorizationFilter {
+
+    private static final Logger LOGGER = getLogger(QueryAuthorizationFilter.class);
+
+    @Autowired
+    private SessionFactory sessionFactory;
+
+    @Autowired
+    private BinaryService binaryService;
+
+    @Autowired
+    private FedoraPolicyFinderModule fedoraPolicyFinderModule;
+
+    @Autowired
+    private EffectivePolicyIndex effectivePolicyIndex;
+
+    private int maxRegions = 100;
+
+    /**
+     * Conditions by the path of the node with the policy and the known attributes, for the cached generation.
+     */
+    private final Cache<String, ResidualConstraint> residuals = CacheBuilder.newBuilder().maximumSize(1000).build();
+
+    private long cachedGeneration = -1;
+
+    /**
+     * @param maxRegions the largest number of differently governed regions in a scope that a constraint covers
+     */
+    public void setMaxRegions(final int maxRegions) {
+        if (maxRegions < 1) {
+            throw new IllegalArgumentException("Maximum number of regions must be positive!");
+        }
+        this.maxRegions = maxRegions;
+    }
+
+    /**
+     * Gets a constraint for a subject with the given roles and groups.
+     *
+     * @param selector the name of the query selector to constrain
+     * @param scopePath the repository path of the node at the top of the searched subtree
+     * @param roles the roles of the subject
+     * @param groups the groups of the subject
+     * @param actions the actions the results must permit, such as read
+     * @return the JCR-SQL2 constraint, or null if each result must be evaluated
+     */
+    public String getConstraint(final String selector, final String scopePath, final Set<String> roles,
+            final Set<String> groups, final Set<String> actions) {
+        return getConstraint(selector, scopePath, knownAttributes(roles, groups, actions));
+    }
+
+    /**
+     * @return the attribute values of a subject with the given roles and groups, by attribute ID
+     */
+    static Map<String, Set<String>> knownAttributes(final Set<String> roles, final Set<String> groups,
+            final Set<String> actions) {
+        final Map<String, Set<String>> attributes = new HashMap<>();
+        attributes.put(FCREPO_SUBJECT_ROLE_VALUE, roles);
+        attributes.put(FCREPO_SUBJECT_GROUP_VALUE, groups);
+        attributes.put(ATTRIBUTEID_ACTION_ID.toString(), actions);
+        return attributes;
+    }
+
+    /**
+     * Gets a constraint for a subject with the given attributes.
+     *
+     * @param selector the name of the query selector to constrain
+     * @param scopePath the repository path of the node at the top of the searched subtree
+     * @param knownAttributes the subject, action and environment attribute values, by attribute ID
+     * @return the JCR-SQL2 constraint, or null if each result must be evaluated
+     */
+    public String getConstraint(final String selector, final String scopePath,
+            final Map<String, Set<String>> knownAttributes) {
+        if (fedoraPolicyFinderModule.isInheritPolicies()) {
+            return null;
+        }
+        final List<String> below = effectivePolicyIndex.getPolicyNodesBelow(scopePath);
+        if (below == null || below.size() >= maxRegions) {
+            LOGGER.debug("Not filtering the query below {}: {} policy assignments", scopePath,
+                    below == null ? "unknown" : below.size());
+            return null;
+        }
+
+        final Session session = sessionFactory.getInternalSession();
+        try {
+            final String governing =
+                    effectivePolicyIndex.getEffectivePolicyNode(PolicyUtil.getModePath(scopePath, session));
+            final List<ResidualConstraint> regions = new ArrayList<>(below.size() + 1);
+            regions.add(and(subtree(scopePath), notBelow(scopePath, below),
+                    governing == null ? ResidualConstraint.FALSE : permitted(session, governing, knownAttributes)));
+            for (final String node : below) {
+                regions.add(and(subtree(node), notBelow(node, below), permitted(session, node, knownAttributes)));
+            }
+
+            final ResidualConstraint constraint = or(regions);
+            if (constraint.isOpaque()) {
+                LOGGER.debug("Not filtering the query below {}: {}", scopePath, constraint);
+                return null;
+            }
+            return constraint.toJcrSql2(selector, session.getWorkspace().getNamespaceRegistry());
+        } catch (final RepositoryException e) {
+            LOGGER.warn("Cannot build an authorization constraint below {}", scopePath, e);
+            return null;
+        } finally {
+            session.logout();
+        }
+    }
+
+    private static ResidualConstraint subtree(final String path) {
+        return or(sameNode(path), descendant(path));
+    }
+
+    /**
+     * @return a condition that excludes the subtrees of the nodes below the given node
+     */
+    private static ResidualConstraint notBelow(final String path, final List<String> nodes) {
+        final String prefix = "/".equals(path) ? path : path + "/";
+        final List<ResidualConstraint> excluded = new ArrayList<>();
+        for (final String node : nodes) {
+            if (node.startsWith(prefix)) {
+                excluded.add(subtree(node));
+            }
+        }
+        return not(or(excluded));
+    }
+
+    /**
+     * Evaluates the policy assigned to a node, or reuses the condition from an earlier evaluation in the same
+     * policy generation.
+     */
+    ResidualConstraint permitted(final Session session, final String nodePath,
+            final Map<String, Set<String>> knownAttributes) throws RepositoryException {
+        final long generation = effectivePolicyIndex.getGeneration();
+        synchronized (residuals) {
+            if (generation != cachedGeneration) {
+                residuals.invalidateAll();
+                cachedGeneration = generation;
+            }
+        }
+        final String key = nodePath + " " + sorted(knownAttributes);
+        final ResidualConstraint cached = residuals.getIfPresent(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        final Node node = session.getNode(nodePath);
+        final FedoraBinary binary = binaryService.asBinary(node.getProperty(XACML_POLICY_PROPERTY).getNode());
+        final Element policy = binary == null ? null : fedoraPolicyFinderModule.getPolicyElement(binary);
+        final ResidualConstraint residual = policy == null ?
+                ResidualConstraint.opaque("policy of " + nodePath) :
+                new PolicyPartialEvaluator(new RepositoryPolicyResolver(session), knownAttributes).permitted(policy);
+        if (effectivePolicyIndex.getGeneration() == generation) {
+            residuals.put(key, residual);
+        }
+        return residual;
+    }
+
+    private static Map<String, Set<String>> sorted(final Map<String, Set<String>> attributes) {
+        final Map<String, Set<String>> sorted = new TreeMap<>();
+        for (final Map.Entry<String, Set<String>> entry : attributes.entrySet()) {
+            sorted.put(entry.getKey(), entry.getValue() == null ? Collections.<String>emptySet() :
+                    new TreeSet<>(entry.getValue()));
+        }
+        return sorted;
+    }
+
+    /**
+     * Finds referenced policies by the repository path for their ID.
+     */
+    private class RepositoryPolicyResolver implements PolicyPartialEvaluator.PolicyResolver {
+
+        private final Session session;
+
+        RepositoryPolicyResolver(final Session session) {
+            this.session = session;
+        }
+
+        @Override
+        public Element resolve(final String policyId) {
+            try {
+                final String path = PolicyUtil.getPathForId(policyId);
+                if (!session.nodeExists(path)) {
+                    return null;
+                }
+                final FedoraBinary binary = binaryService.asBinary(session.getNode(path));
+                return binary == null ? null : fedoraPolicyFinderModule.getPolicyElement(binary);
+            } catch (final RepositoryException | RuntimeException e) {
+                LOGGER.debug("Cannot resolve policy {}", policyId, e);
+                return null;
+            }
+        }
+    }
+}
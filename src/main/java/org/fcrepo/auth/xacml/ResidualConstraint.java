@@ -0,0 +1,537 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static org.fcrepo.kernel.RdfLexicon.JCR_NAMESPACE;
+import static org.fcrepo.kernel.RdfLexicon.JCR_NT_NAMESPACE;
+import static org.fcrepo.kernel.RdfLexicon.LDP_NAMESPACE;
+import static org.fcrepo.kernel.RdfLexicon.MIX_NAMESPACE;
+import static org.fcrepo.kernel.RdfLexicon.MODE_NAMESPACE;
+import static org.fcrepo.kernel.RdfLexicon.PREMIS_NAMESPACE;
+import static org.fcrepo.kernel.RdfLexicon.REPOSITORY_NAMESPACE;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+import javax.jcr.NamespaceException;
+import javax.jcr.NamespaceRegistry;
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+
+/**
+ * A condition on resource attributes under which a request is permitted, left over after evaluating the policies
+ * for a known subject and action. Conditions are built from the attribute tests that the policies make and from
+ * node and subtree tests, combined with and, or and not, and are simplified as they are built.
+ *
+ * A condition that contains a test which cannot be expressed as a repository query, such as a policy condition or
+ * an attribute of the request that was not given, is opaque. An opaque condition cannot be used to filter a query,
+ * and each result must then be evaluated on its own.
+ *
+ * A resource attribute is a triple of the resource. Only attributes that are stored as a JCR property of the same
+ * name on the node itself can be tested by a query. Triples that the repository computes, and properties such as
+ * the mime type of a binary that are stored on its jcr:content node, are opaque.
+ */
+public final class ResidualConstraint {
+
+    private static final String RDF_TYPE = "http://www.w3.org/1999/02/22-rdf-syntax-ns#type";
+
+    /**
+     * Namespaces of triples that are computed rather than read from a property of the same name.
+     */
+    private static final Set<String> COMPUTED_NAMESPACES = new HashSet<>(Arrays.asList(JCR_NAMESPACE,
+            MIX_NAMESPACE, JCR_NT_NAMESPACE, MODE_NAMESPACE, LDP_NAMESPACE, PREMIS_NAMESPACE));
+
+    /**
+     * Local names of the repository namespace whose jcr: properties are stored on the node itself as strings.
+     */
+    private static final Set<String> STORED_REPOSITORY_PROPERTIES = new HashSet<>(Arrays.asList("createdBy",
+            "lastModifiedBy"));
+
+    private enum Kind {
+        TRUE, FALSE, AND, OR, NOT, TYPE, PROPERTY, PRESENT, RESOURCE_ID, SAME_NODE, DESCENDANT, OPAQUE, SQL
+    }
+
+    /**
+     * Always holds.
+     */
+    public static final ResidualConstraint TRUE = new ResidualConstraint(Kind.TRUE, null, null);
+
+    /**
+     * Never holds.
+     */
+    public static final ResidualConstraint FALSE = new ResidualConstraint(Kind.FALSE, null, null);
+
+    private final Kind kind;
+
+    private final String name;
+
+    private final String value;
+
+    private final List<ResidualConstraint> operands;
+
+    private ResidualConstraint(final Kind kind, final String name, final String value) {
+        this(kind, name, value, Collections.<ResidualConstraint>emptyList());
+    }
+
+    private ResidualConstraint(final Kind kind, final String name, final String value,
+            final List<ResidualConstraint> operands) {
+        this.kind = kind;
+        this.name = name;
+        this.value = value;
+        this.operands = operands;
+    }
+
+    /**
+     * @param attributeId the ID of a resource attribute
+     * @param value the required value
+     * @return a test that the resource has the attribute value, where rdf:type values are node types, or an opaque
+     *         test if the attribute is not stored on the node
+     */
+    public static ResidualConstraint attribute(final String attributeId, final String value) {
+        if (RDF_TYPE.equals(attributeId)) {
+            return COMPUTED_NAMESPACES.contains(namespaceOf(value)) ? opaque("type " + value) :
+                    new ResidualConstraint(Kind.TYPE, attributeId, value);
+        }
+        return storedOnNode(attributeId) ? new ResidualConstraint(Kind.PROPERTY, attributeId, value) :
+                opaque("attribute " + attributeId + " = " + value);
+    }
+
+    /**
+     * @param attributeId the ID of a resource attribute
+     * @return a test that the resource has some value of the attribute, or an opaque test if the attribute is not
+     *         stored on the node
+     */
+    public static ResidualConstraint present(final String attributeId) {
+        if (RDF_TYPE.equals(attributeId)) {
+            return TRUE;
+        }
+        return storedOnNode(attributeId) ? new ResidualConstraint(Kind.PRESENT, attributeId, null) :
+                opaque("attribute " + attributeId);
+    }
+
+    /**
+     * @return whether a predicate is read from a JCR property of the same name on the node it describes
+     */
+    private static boolean storedOnNode(final String uri) {
+        final String namespace = namespaceOf(uri);
+        if (REPOSITORY_NAMESPACE.equals(namespace)) {
+            return STORED_REPOSITORY_PROPERTIES.contains(uri.substring(namespace.length()));
+        }
+        return !COMPUTED_NAMESPACES.contains(namespace);
+    }
+
+    private static String namespaceOf(final String uri) {
+        return uri.substring(0, Math.max(uri.lastIndexOf('#'), uri.lastIndexOf('/')) + 1);
+    }
+
+    /**
+     * @param modePath the raw ModeShape path that is the resource-id of a node
+     * @return a test that the resource is that node
+     */
+    public static ResidualConstraint resourceId(final String modePath) {
+        return new ResidualConstraint(Kind.RESOURCE_ID, modePath, null);
+    }
+
+    /**
+     * @param path the repository path of a node
+     * @return a test that the resource is that node
+     */
+    public static ResidualConstraint sameNode(final String path) {
+        return new ResidualConstraint(Kind.SAME_NODE, path, null);
+    }
+
+    /**
+     * @param path the repository path of a node
+     * @return a test that the resource is below that node
+     */
+    public static ResidualConstraint descendant(final String path) {
+        return new ResidualConstraint(Kind.DESCENDANT, path, null);
+    }
+
+    /**
+     * @param description what the test is, for logging
+     * @return a test that cannot be expressed as a query
+     */
+    public static ResidualConstraint opaque(final String description) {
+        return new ResidualConstraint(Kind.OPAQUE, description, null);
+    }
+
+    /**
+     * @param operands the conditions
+     * @return a condition that holds if all operands hold
+     */
+    public static ResidualConstraint and(final ResidualConstraint... operands) {
+        return combine(Kind.AND, Arrays.asList(operands));
+    }
+
+    /**
+     * @param operands the conditions
+     * @return a condition that holds if all operands hold
+     */
+    public static ResidualConstraint and(final List<ResidualConstraint> operands) {
+        return combine(Kind.AND, operands);
+    }
+
+    /**
+     * @param operands the conditions
+     * @return a condition that holds if any operand holds
+     */
+    public static ResidualConstraint or(final ResidualConstraint... operands) {
+        return combine(Kind.OR, Arrays.asList(operands));
+    }
+
+    /**
+     * @param operands the conditions
+     * @return a condition that holds if any operand holds
+     */
+    public static ResidualConstraint or(final List<ResidualConstraint> operands) {
+        return combine(Kind.OR, operands);
+    }
+
+    /**
+     * @param operand the condition
+     * @return a condition that holds if the operand does not
+     */
+    public static ResidualConstraint not(final ResidualConstraint operand) {
+        switch (operand.kind) {
+            case TRUE:
+                return FALSE;
+            case FALSE:
+                return TRUE;
+            case NOT:
+                return operand.operands.get(0);
+            default:
+                return new ResidualConstraint(Kind.NOT, null, null, Collections.singletonList(operand));
+        }
+    }
+
+    /**
+     * Flattens nested operands of the same kind, drops neutral and repeated operands and folds absorbing ones.
+     */
+    private static ResidualConstraint combine(final Kind kind, final List<ResidualConstraint> operands) {
+        final ResidualConstraint neutral = kind == Kind.AND ? TRUE : FALSE;
+        final ResidualConstraint absorbing = kind == Kind.AND ? FALSE : TRUE;
+        final Set<ResidualConstraint> flat = new LinkedHashSet<>();
+        for (final ResidualConstraint operand : operands) {
+            if (operand.kind == absorbing.kind) {
+                return absorbing;
+            }
+            if (operand.kind == kind) {
+                flat.addAll(operand.operands);
+            } else if (operand.kind != neutral.kind) {
+                flat.add(operand);
+            }
+        }
+        for (final ResidualConstraint operand : flat) {
+            if (flat.contains(not(operand))) {
+                return absorbing;
+            }
+        }
+        if (flat.isEmpty()) {
+            return neutral;
+        }
+        if (flat.size() == 1) {
+            return flat.iterator().next();
+        }
+        return new ResidualConstraint(kind, null, null, Collections.unmodifiableList(new ArrayList<>(flat)));
+    }
+
+    /**
+     * @return whether the condition always holds
+     */
+    public boolean isTrue() {
+        return kind == Kind.TRUE;
+    }
+
+    /**
+     * @return whether the condition never holds
+     */
+    public boolean isFalse() {
+        return kind == Kind.FALSE;
+    }
+
+    /**
+     * @return whether the condition contains a test that cannot be expressed as a query
+     */
+    public boolean isOpaque() {
+        if (kind == Kind.OPAQUE) {
+            return true;
+        }
+        for (final ResidualConstraint operand : operands) {
+            if (operand.isOpaque()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes the condition as a JCR-SQL2 constraint on a selector. Node types, properties and paths in namespaces
+     * that are not registered cannot exist, so tests of them are false.
+     *
+     * @param selector the name of the selector the constraint applies to
+     * @param namespaces the namespace registry of the session that runs the query
+     * @return the constraint
+     * @throws RepositoryException if the namespaces cannot be read
+     * @throws IllegalStateException if the condition is opaque
+     */
+    public String toJcrSql2(final String selector, final NamespaceRegistry namespaces) throws RepositoryException {
+        final ResidualConstraint resolved = resolve(selector, namespaces);
+        switch (resolved.kind) {
+            case TRUE:
+                return selector + ".[jcr:primaryType] IS NOT NULL";
+            case FALSE:
+                return selector + ".[jcr:primaryType] IS NULL";
+            default:
+                final StringBuilder sql = new StringBuilder();
+                resolved.write(sql);
+                return sql.toString();
+        }
+    }
+
+    /**
+     * Tests the condition on a node, as a query with the condition would. Node types and properties in namespaces
+     * that are not registered cannot exist, so tests of them are false.
+     *
+     * @param node the node
+     * @return whether the condition holds for the node
+     * @throws RepositoryException if the node cannot be read
+     * @throws IllegalStateException if the condition is opaque
+     */
+    public boolean holdsFor(final Node node) throws RepositoryException {
+        switch (kind) {
+            case TRUE:
+                return true;
+            case FALSE:
+                return false;
+            case AND:
+                for (final ResidualConstraint operand : operands) {
+                    if (!operand.holdsFor(node)) {
+                        return false;
+                    }
+                }
+                return true;
+            case OR:
+                for (final ResidualConstraint operand : operands) {
+                    if (operand.holdsFor(node)) {
+                        return true;
+                    }
+                }
+                return false;
+            case NOT:
+                return !operands.get(0).holdsFor(node);
+            case TYPE:
+                final String type = toJcrName(value, namespaces(node));
+                return type != null && node.isNodeType(type);
+            case PROPERTY:
+                final String property = toJcrName(name, namespaces(node));
+                if (property == null || !node.hasProperty(property)) {
+                    return false;
+                }
+                final Property values = node.getProperty(property);
+                if (!values.isMultiple()) {
+                    return value.equals(values.getString());
+                }
+                for (final Value v : values.getValues()) {
+                    if (value.equals(v.getString())) {
+                        return true;
+                    }
+                }
+                return false;
+            case PRESENT:
+                final String present = toJcrName(name, namespaces(node));
+                return present != null && node.hasProperty(present);
+            case RESOURCE_ID:
+                return node.getPath().equals(toJcrPath(name, namespaces(node)));
+            case SAME_NODE:
+                return node.getPath().equals(name);
+            case DESCENDANT:
+                return node.getPath().startsWith("/".equals(name) ? name : name + "/") && node.getDepth() > 0;
+            default:
+                throw new IllegalStateException("Cannot test " + this + " on a node");
+        }
+    }
+
+    private static NamespaceRegistry namespaces(final Node node) throws RepositoryException {
+        return node.getSession().getWorkspace().getNamespaceRegistry();
+    }
+
+    /**
+     * Replaces every test by a query fragment, or by false if it names something that cannot exist.
+     */
+    private ResidualConstraint resolve(final String selector, final NamespaceRegistry namespaces)
+            throws RepositoryException {
+        switch (kind) {
+            case TRUE:
+            case FALSE:
+                return this;
+            case AND:
+            case OR:
+                final List<ResidualConstraint> resolved = new ArrayList<>(operands.size());
+                for (final ResidualConstraint operand : operands) {
+                    resolved.add(operand.resolve(selector, namespaces));
+                }
+                return combine(kind, resolved);
+            case NOT:
+                return not(operands.get(0).resolve(selector, namespaces));
+            case TYPE:
+                final String type = toJcrName(value, namespaces);
+                return type == null ? FALSE : sql("(" + selector + ".[jcr:primaryType] = " + literal(type) + " OR " +
+                        selector + ".[jcr:mixinTypes] = " + literal(type) + ")");
+            case PROPERTY:
+                final String property = toJcrName(name, namespaces);
+                return property == null ? FALSE : sql(selector + ".[" + property + "] = " + literal(value));
+            case PRESENT:
+                final String present = toJcrName(name, namespaces);
+                return present == null ? FALSE : sql(selector + ".[" + present + "] IS NOT NULL");
+            case RESOURCE_ID:
+                final String path = toJcrPath(name, namespaces);
+                return path == null ? FALSE : sql("ISSAMENODE(" + selector + ", [" + path + "])");
+            case SAME_NODE:
+                return sql("ISSAMENODE(" + selector + ", [" + name + "])");
+            case DESCENDANT:
+                return sql("ISDESCENDANTNODE(" + selector + ", [" + name + "])");
+            case SQL:
+                return this;
+            default:
+                throw new IllegalStateException("Cannot express " + this + " as a query");
+        }
+    }
+
+    private static ResidualConstraint sql(final String fragment) {
+        return new ResidualConstraint(Kind.SQL, fragment, null);
+    }
+
+    private void write(final StringBuilder sql) {
+        switch (kind) {
+            case AND:
+            case OR:
+                sql.append('(');
+                for (int i = 0; i < operands.size(); i++) {
+                    if (i > 0) {
+                        sql.append(kind == Kind.AND ? " AND " : " OR ");
+                    }
+                    operands.get(i).write(sql);
+                }
+                sql.append(')');
+                break;
+            case NOT:
+                sql.append("NOT ");
+                operands.get(0).write(sql);
+                break;
+            default:
+                sql.append(name);
+                break;
+        }
+    }
+
+    private static String literal(final String value) {
+        return "'" + value.replace("'", "''") + "'";
+    }
+
+    /**
+     * @return the prefixed JCR name of an RDF URI, or null if its namespace is not registered. As in JcrRdfTools,
+     *         the repository namespace stands for the JCR namespace.
+     */
+    private static String toJcrName(final String uri, final NamespaceRegistry namespaces)
+            throws RepositoryException {
+        final String namespace = namespaceOf(uri);
+        return toJcrName(REPOSITORY_NAMESPACE.equals(namespace) ? JCR_NAMESPACE : namespace,
+                uri.substring(namespace.length()), namespaces);
+    }
+
+    private static String toJcrName(final String namespace, final String localName,
+            final NamespaceRegistry namespaces) throws RepositoryException {
+        if (namespace.isEmpty()) {
+            return localName;
+        }
+        try {
+            final String prefix = namespaces.getPrefix(namespace);
+            return prefix.isEmpty() ? localName : prefix + ":" + localName;
+        } catch (final NamespaceException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the JCR path of a raw ModeShape path with "{namespace}name" segments, or null if a namespace is not
+     *         registered
+     */
+    private static String toJcrPath(final String modePath, final NamespaceRegistry namespaces)
+            throws RepositoryException {
+        if (!modePath.startsWith("/{")) {
+            return modePath.isEmpty() ? "/" : modePath;
+        }
+        final StringBuilder path = new StringBuilder();
+        for (final String segment : modePath.substring(1).split("/\\{")) {
+            final String withBrace = segment.startsWith("{") ? segment : "{" + segment;
+            final int close = withBrace.indexOf('}');
+            if (close < 0) {
+                return null;
+            }
+            final String jcrName = toJcrName(withBrace.substring(1, close), withBrace.substring(close + 1),
+                    namespaces);
+            if (jcrName == null) {
+                return null;
+            }
+            path.append('/').append(jcrName);
+        }
+        return path.toString();
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        if (!(other instanceof ResidualConstraint)) {
+            return false;
+        }
+        final ResidualConstraint that = (ResidualConstraint) other;
+        return kind == that.kind && Objects.equals(name, that.name) && Objects.equals(value, that.value) &&
+                operands.equals(that.operands);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(kind, name, value, operands);
+    }
+
+    @Override
+    public String toString() {
+        switch (kind) {
+            case AND:
+            case OR:
+                final StringBuilder s = new StringBuilder().append(kind.name().toLowerCase()).append('(');
+                for (int i = 0; i < operands.size(); i++) {
+                    s.append(i > 0 ? ", " : "").append(operands.get(i));
+                }
+                return s.append(')').toString();
+            case NOT:
+                return "not(" + operands.get(0) + ")";
+            case TRUE:
+            case FALSE:
+                return kind.name().toLowerCase();
+            default:
+                return kind.name().toLowerCase() + "(" + name + (value == null ? "" : ", " + value) + ")";
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Coalesces concurrent loads of the same key: the first caller runs the load and every caller that asks for the
+ * key while it runs waits for that result instead of loading again. Nothing is kept once a load completes, so
+ * a later call loads again; caching the result is up to the caller.
+ *
+ * In-flight loads are kept in a map striped by key hash, and the load counters are striped the same way, so
+ * callers for different keys do not contend.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+final class SingleFlight<K, V> {
+
+    private static final int STRIPES = 64;
+
+    private final ConcurrentMap<K, FutureTask<V>> inFlight = new ConcurrentHashMap<>(STRIPES, 0.75f, STRIPES);
+
+    private final AtomicLongArray loads = new AtomicLongArray(STRIPES);
+
+    private final AtomicLongArray coalesced = new AtomicLongArray(STRIPES);
+
+    /**
+     * Runs the loader, or waits for the load of the same key that is already running.
+     *
+     * @param key the key
+     * @param loader loads the value for the key
+     * @return the loaded value
+     * @throws ExecutionException if the load threw, for every caller that waited for it
+     */
+    V load(final K key, final Callable<V> loader) throws ExecutionException {
+        final int stripe = (key.hashCode() & Integer.MAX_VALUE) % STRIPES;
+        final FutureTask<V> task = new FutureTask<>(loader);
+        final FutureTask<V> running = inFlight.putIfAbsent(key, task);
+        if (running != null) {
+            coalesced.incrementAndGet(stripe);
+            return Uninterruptibles.getUninterruptibly(running);
+        }
+
+        loads.incrementAndGet(stripe);
+        try {
+            task.run();
+        } finally {
+            inFlight.remove(key, task);
+        }
+        return Uninterruptibles.getUninterruptibly(task);
+    }
+
+    /**
+     * @return the number of loads that were run
+     */
+    long getLoads() {
+        return sum(loads);
+    }
+
+    /**
+     * @return the number of calls that waited for a load already running instead of loading
+     */
+    long getCoalesced() {
+        return sum(coalesced);
+    }
+
+    private static long sum(final AtomicLongArray counters) {
+        long total = 0;
+        for (int i = 0; i < counters.length(); i++) {
+            total += counters.get(i);
+        }
+        return total;
+    }
+}
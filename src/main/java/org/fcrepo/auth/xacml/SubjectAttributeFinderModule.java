@@ -0,0 +1,383 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static com.google.common.util.concurrent.Futures.immediateFuture;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonList;
+import static java.util.Collections.unmodifiableSet;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.fcrepo.auth.xacml.URIConstants.SUBJECT_CATEGORY_ACCESS_SUBJECT;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.SUBJECT_TARGET;
+import static org.jboss.security.xacml.sunxacml.attr.BagAttribute.createEmptyBag;
+import static org.jboss.security.xacml.sunxacml.ctx.Status.STATUS_PROCESSING_ERROR;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.jcr.Session;
+
+import org.jboss.security.xacml.sunxacml.EvaluationCtx;
+import org.jboss.security.xacml.sunxacml.ParsingException;
+import org.jboss.security.xacml.sunxacml.UnknownIdentifierException;
+import org.jboss.security.xacml.sunxacml.attr.AttributeFactory;
+import org.jboss.security.xacml.sunxacml.attr.AttributeValue;
+import org.jboss.security.xacml.sunxacml.attr.BagAttribute;
+import org.jboss.security.xacml.sunxacml.cond.EvaluationResult;
+import org.jboss.security.xacml.sunxacml.ctx.Status;
+import org.jboss.security.xacml.sunxacml.finder.AttributeFinderModule;
+import org.slf4j.Logger;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Finds access subject attributes in a {@link SubjectAttributeSource}, such as a directory of users. A lookup is
+ * made once per user and kept for all sessions of the user: it is refreshed in the background once it is older
+ * than the refresh interval, while the previous attributes are still used, and dropped once it is older than the
+ * time to live. A user the source does not know, or a lookup that fails, is kept as well, for the shorter negative
+ * time to live, so that a missing or unreachable directory does not cost a lookup per authorization check. A
+ * failed refresh keeps the previous attributes.
+ *
+ * Each session sees the attributes of its user as they were on first use by {@link #forSession}, so that the
+ * decisions within one session do not change with a refresh.
+ */
+public class SubjectAttributeFinderModule extends AttributeFinderModule {
+
+    private static final Logger LOGGER = getLogger(SubjectAttributeFinderModule.class);
+
+    /**
+     * Supported designator types.
+     */
+    private static final Set<Integer> DESIGNATOR_TYPES = unmodifiableSet(singleton(SUBJECT_TARGET));
+
+    private final SubjectAttributeSource source;
+
+    private long timeToLive = 600000;
+
+    private long refreshInterval = 60000;
+
+    private long negativeTimeToLive = 10000;
+
+    private int maxPrincipals = 10000;
+
+    /**
+     * Refreshes lookups in the background.
+     */
+    private ExecutorService refreshExecutor;
+
+    /**
+     * The lookups of recent users, by principal name.
+     */
+    private LoadingCache<String, Lookup> lookups;
+
+    /**
+     * The attribute finder of each open session, dropped once the session is.
+     */
+    private final Cache<Session, SessionAttributes> sessions = CacheBuilder.newBuilder().weakKeys().build();
+
+    /**
+     * Constructor
+     *
+     * @param source the directory of user attributes
+     */
+    public SubjectAttributeFinderModule(final SubjectAttributeSource source) {
+        if (null == source) {
+            throw new IllegalArgumentException("Subject attribute source is null!");
+        }
+        this.source = source;
+    }
+
+    /**
+     * @param timeToLive the time in milliseconds after which the attributes of a user are looked up again before
+     *        they are used
+     */
+    public void setTimeToLive(final long timeToLive) {
+        if (timeToLive < 1) {
+            throw new IllegalArgumentException("Subject attribute time to live must be positive!");
+        }
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * @param refreshInterval the time in milliseconds after which the attributes of a user are looked up again in
+     *        the background, while the previous ones are still used
+     */
+    public void setRefreshInterval(final long refreshInterval) {
+        if (refreshInterval < 1) {
+            throw new IllegalArgumentException("Subject attribute refresh interval must be positive!");
+        }
+        this.refreshInterval = refreshInterval;
+    }
+
+    /**
+     * @param negativeTimeToLive the time in milliseconds after which a user the source did not know, or whose
+     *        lookup failed, is looked up again
+     */
+    public void setNegativeTimeToLive(final long negativeTimeToLive) {
+        if (negativeTimeToLive < 1) {
+            throw new IllegalArgumentException("Subject attribute negative time to live must be positive!");
+        }
+        this.negativeTimeToLive = negativeTimeToLive;
+    }
+
+    /**
+     * @param maxPrincipals the number of users whose attributes are kept
+     */
+    public void setMaxPrincipals(final int maxPrincipals) {
+        if (maxPrincipals < 1) {
+            throw new IllegalArgumentException("Number of cached principals must be positive!");
+        }
+        this.maxPrincipals = maxPrincipals;
+    }
+
+    /**
+     * Creates the cache of lookups.
+     */
+    @PostConstruct
+    public void init() {
+        refreshExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("xacml-subject-attributes-%d").setDaemon(true).build());
+        lookups = CacheBuilder.newBuilder().maximumSize(maxPrincipals).expireAfterWrite(timeToLive, MILLISECONDS)
+                .refreshAfterWrite(refreshInterval, MILLISECONDS)
+                .build(CacheLoader.asyncReloading(new Loader(), refreshExecutor));
+    }
+
+    /**
+     * Stops the background refresh.
+     */
+    @PreDestroy
+    public void close() {
+        if (refreshExecutor != null) {
+            refreshExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Finds the attributes of the user of a session. The finder looks the user up on first use, and answers from
+     * the same attributes for as long as the session is used.
+     *
+     * @param session the ModeShape session
+     * @param principalName the user principal name of the session, or null
+     * @return the attribute finder module for requests of the session
+     */
+    public AttributeFinderModule forSession(final Session session, final String principalName) {
+        SessionAttributes attributes = sessions.getIfPresent(session);
+        if (attributes == null) {
+            attributes = new SessionAttributes(principalName);
+            sessions.put(session, attributes);
+        }
+        return attributes;
+    }
+
+    /**
+     * Supports designators.
+     *
+     * @return true
+     */
+    @Override
+    public final boolean isDesignatorSupported() {
+        return true;
+    }
+
+    /**
+     * Supports subject designators.
+     *
+     * @return the subject designator type
+     */
+    @Override
+    public final Set<Integer> getSupportedDesignatorTypes() {
+        return DESIGNATOR_TYPES;
+    }
+
+    /**
+     * Finds the values of a subject attribute of the user of a Fedora request, without keeping them for the
+     * session, see {@link #forSession}.
+     */
+    @Override
+    public final EvaluationResult findAttribute(final URI attributeType,
+                                                final URI attributeId,
+                                                final URI issuer,
+                                                final URI subjectCategory,
+                                                final EvaluationCtx context,
+                                                final int designatorType) {
+        if (!isAccessSubject(subjectCategory, designatorType) || !(context instanceof FedoraEvaluationCtx)) {
+            return new EvaluationResult(createEmptyBag(attributeType));
+        }
+        return bag(attributeType, attributeId, lookup(((FedoraEvaluationCtx) context).getPrincipalName()));
+    }
+
+    /**
+     * Finds the attributes of a user, starting a new lookup in the background if the user was not known when the
+     * last lookup is older than the negative time to live.
+     *
+     * @param principalName the user principal name, or null
+     * @return the lookup of the user
+     */
+    private Lookup lookup(final String principalName) {
+        if (principalName == null) {
+            return Lookup.UNKNOWN;
+        }
+        final Lookup lookup = lookups.getUnchecked(principalName);
+        if (lookup.attributes == null && System.nanoTime() - lookup.made > MILLISECONDS.toNanos(negativeTimeToLive)) {
+            lookups.refresh(principalName);
+        }
+        return lookup;
+    }
+
+    private static boolean isAccessSubject(final URI subjectCategory, final int designatorType) {
+        return designatorType == SUBJECT_TARGET &&
+                (subjectCategory == null || SUBJECT_CATEGORY_ACCESS_SUBJECT.equals(subjectCategory));
+    }
+
+    /**
+     * @return the values of an attribute of a user, as a bag of the designated type
+     */
+    private static EvaluationResult bag(final URI attributeType, final URI attributeId, final Lookup lookup) {
+        final Set<String> values = lookup.attributes == null ? null : lookup.attributes.get(attributeId.toString());
+        if (values == null || values.isEmpty()) {
+            return new EvaluationResult(createEmptyBag(attributeType));
+        }
+        final AttributeFactory factory = AttributeFactory.getInstance();
+        final List<AttributeValue> bag = new ArrayList<>(values.size());
+        try {
+            for (final String value : values) {
+                bag.add(factory.createValue(attributeType, value));
+            }
+        } catch (final UnknownIdentifierException | ParsingException e) {
+            LOGGER.warn("Cannot make {} values of subject attribute {}", attributeType, attributeId, e);
+            return new EvaluationResult(new Status(singletonList(STATUS_PROCESSING_ERROR),
+                    "Cannot make values of subject attribute " + attributeId));
+        }
+        return new EvaluationResult(new BagAttribute(attributeType, bag));
+    }
+
+    /**
+     * The attributes of a user as one lookup found them.
+     */
+    private static final class Lookup {
+
+        private static final Lookup UNKNOWN = new Lookup(null);
+
+        /**
+         * The values of each attribute by attribute ID, or null if the user was not known.
+         */
+        private final Map<String, Set<String>> attributes;
+
+        /**
+         * The time of the lookup, as {@link System#nanoTime()}.
+         */
+        private final long made = System.nanoTime();
+
+        private Lookup(final Map<String, Set<String>> attributes) {
+            if (attributes == null) {
+                this.attributes = null;
+            } else {
+                this.attributes = new HashMap<>(attributes.size());
+                for (final Map.Entry<String, Set<String>> attribute : attributes.entrySet()) {
+                    this.attributes.put(attribute.getKey(), new HashSet<>(attribute.getValue()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Looks users up in the source. A failed first lookup is kept as an unknown user, while a failed refresh is
+     * left to the cache, which keeps the previous lookup.
+     */
+    private class Loader extends CacheLoader<String, Lookup> {
+
+        @Override
+        public Lookup load(final String principalName) {
+            try {
+                return new Lookup(source.getAttributes(principalName));
+            } catch (final RuntimeException e) {
+                LOGGER.warn("Cannot look up the attributes of {}", principalName, e);
+                return Lookup.UNKNOWN;
+            }
+        }
+
+        @Override
+        public ListenableFuture<Lookup> reload(final String principalName, final Lookup previous) {
+            LOGGER.debug("Refreshing the attributes of {}", principalName);
+            return immediateFuture(new Lookup(source.getAttributes(principalName)));
+        }
+    }
+
+    /**
+     * The attribute finder of one session, which keeps the attributes of its user and the bags made from them.
+     */
+    private class SessionAttributes extends AttributeFinderModule {
+
+        private final String principalName;
+
+        private volatile Lookup lookup;
+
+        private final Map<List<URI>, EvaluationResult> bags = new ConcurrentHashMap<>();
+
+        private SessionAttributes(final String principalName) {
+            this.principalName = principalName;
+        }
+
+        @Override
+        public boolean isDesignatorSupported() {
+            return true;
+        }
+
+        @Override
+        public Set<Integer> getSupportedDesignatorTypes() {
+            return DESIGNATOR_TYPES;
+        }
+
+        @Override
+        public EvaluationResult findAttribute(final URI attributeType,
+                                              final URI attributeId,
+                                              final URI issuer,
+                                              final URI subjectCategory,
+                                              final EvaluationCtx context,
+                                              final int designatorType) {
+            if (!isAccessSubject(subjectCategory, designatorType)) {
+                return new EvaluationResult(createEmptyBag(attributeType));
+            }
+            final List<URI> key = asList(attributeType, attributeId);
+            EvaluationResult bag = bags.get(key);
+            if (bag == null) {
+                if (lookup == null) {
+                    lookup = lookup(principalName);
+                }
+                bag = bag(attributeType, attributeId, lookup);
+                bags.put(key, bag);
+            }
+            return bag;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Looks up the attributes of a user in a directory outside the repository, such as the department or clearance
+ * that a policy tests with a subject attribute designator. A source is consulted through
+ * {@link SubjectAttributeFinderModule}, which caches what it returns, so a lookup may be slow.
+ */
+public interface SubjectAttributeSource {
+
+    /**
+     * Looks up the attributes of a user.
+     *
+     * @param principalName the user principal name
+     * @return the values of each attribute of the user, by attribute ID, or null if the user is unknown
+     */
+    Map<String, Set<String>> getAttributes(String principalName);
+}
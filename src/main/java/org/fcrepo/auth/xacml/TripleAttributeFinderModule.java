@@ -15,22 +15,41 @@
  */
 package org.fcrepo.auth.xacml;
 
+import static com.google.common.util.concurrent.MoreExecutors.listeningDecorator;
+import static com.google.common.util.concurrent.Uninterruptibles.getUninterruptibly;
 import static java.util.Collections.singleton;
 import static java.util.Collections.singletonList;
 import static java.util.Collections.unmodifiableSet;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static javax.jcr.observation.Event.NODE_MOVED;
+import static javax.jcr.observation.Event.NODE_REMOVED;
+import static javax.jcr.observation.Event.PROPERTY_ADDED;
+import static javax.jcr.observation.Event.PROPERTY_CHANGED;
+import static javax.jcr.observation.Event.PROPERTY_REMOVED;
 import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.RESOURCE_TARGET;
 import static org.jboss.security.xacml.sunxacml.attr.BagAttribute.createEmptyBag;
 import static org.jboss.security.xacml.sunxacml.ctx.Status.STATUS_PROCESSING_ERROR;
+import static org.modeshape.jcr.api.JcrConstants.JCR_CONTENT;
 import static org.slf4j.LoggerFactory.getLogger;
 
 import java.net.URI;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
-
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.PreDestroy;
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
 
 import org.fcrepo.http.commons.session.SessionFactory;
 import org.fcrepo.kernel.FedoraResource;
@@ -51,6 +70,11 @@ import org.slf4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.RDFNode;
 import com.hp.hpl.jena.rdf.model.Resource;
@@ -68,9 +92,46 @@ public class TripleAttributeFinderModule extends AttributeFinderModule {
 
     private static final Logger LOGGER = getLogger(TripleAttributeFinderModule.class);
 
-    private static BagAttribute empty_bag;
+    private static final int PARENT_EVENT_TYPES =
+            PROPERTY_ADDED | PROPERTY_CHANGED | PROPERTY_REMOVED | NODE_REMOVED | NODE_MOVED;
+
+    /**
+     * Number of change counters that parent paths are spread over.
+     */
+    private static final int CHANGE_STRIPES = 64;
+
+    private boolean prefetchEnabled = true;
+
+    private ListeningExecutorService prefetchExecutor =
+            newPrefetchExecutor(Runtime.getRuntime().availableProcessors() * 2);
+
+    private boolean parentCacheEnabled = true;
+
+    private boolean coalesceLoads = true;
+
+    /**
+     * Property loads in progress, by normalized ModeShape path and the change count of its stripe.
+     */
+    private final SingleFlight<String, ResourceTriples> tripleLoads = new SingleFlight<>();
+
+    /**
+     * Properties of the parents of recently added nodes and set properties, by normalized ModeShape path.
+     */
+    private Cache<String, ResourceTriples> parentTriples =
+            CacheBuilder.newBuilder().maximumSize(1000).expireAfterWrite(5000, MILLISECONDS).build();
+
+    /**
+     * Counts changes to the properties of nodes, so that properties read while a parent changes are not cached
+     * and loads started before a change are not joined after it.
+     */
+    private final AtomicLongArray parentChanges = new AtomicLongArray(CHANGE_STRIPES);
+
+    private final ParentChangeListener parentChangeListener = new ParentChangeListener();
 
-    private static IdentifierConverter<Resource,Node> idTranslator;
+    /**
+     * The session that receives repository events for the parent cache, opened on first use.
+     */
+    private volatile Session eventSession;
 
     /**
      * Fedora's ModeShape session factory.
@@ -126,7 +187,7 @@ public class TripleAttributeFinderModule extends AttributeFinderModule {
         LOGGER.debug("findAttribute({}, {}, {}, {}, {}, {})",
                      attributeType, attributeId, issuer, subjectCategory, context, designatorType);
 
-        empty_bag = createEmptyBag(attributeType);
+        final BagAttribute empty_bag = createEmptyBag(attributeType);
 
         // Make sure this is a Resource attribute
         if (designatorType != RESOURCE_TARGET) {
@@ -134,94 +195,407 @@ public class TripleAttributeFinderModule extends AttributeFinderModule {
             return new EvaluationResult(empty_bag);
         }
 
-        final Session session;
+        final String resourceId = getTriplesResourceId(context);
+        if (resourceId == null) {
+            LOGGER.debug("Context should have a resource-id attribute!");
+            final Status status = new Status(singletonList(STATUS_PROCESSING_ERROR), "Resource Id not found!");
+            return new EvaluationResult(status);
+        }
+
+        final ResourceTriples triples;
         try {
-            session = sessionFactory.getInternalSession();
-        } catch (final RepositoryRuntimeException e) {
-            LOGGER.debug("Error getting session!");
-            final Status status = new Status(singletonList(STATUS_PROCESSING_ERROR), "Error getting session");
+            final ListenableFuture<ResourceTriples> prefetched = context instanceof FedoraEvaluationCtx ?
+                    ((FedoraEvaluationCtx) context).getResourceTriples() : null;
+            triples = prefetched == null ? loadTriples(resourceId, usesParent(context)) :
+                    getUninterruptibly(prefetched);
+        } catch (final RepositoryRuntimeException | ExecutionException e) {
+            LOGGER.debug("Cannot retrieve any properties for [{}]:  {}", resourceId, e);
+            final Status status =
+                    new Status(singletonList(STATUS_PROCESSING_ERROR),
+                               "Error retrieving properties for [" + resourceId + "]!");
             return new EvaluationResult(status);
         }
 
+        if (triples == null) {
+            return new EvaluationResult(empty_bag);
+        }
+        final Model properties = triples.properties;
+        final Resource graphNode = triples.subject;
+
+        LOGGER.debug("Looking for properties on graph node: {}", graphNode.getURI());
+
+        // Get the values of the properties matching the type
+        final Iterator<RDFNode> matches =
+                properties.listObjectsOfProperty(graphNode, properties.createProperty(attributeId.toString()));
+
+        final Set<AttributeValue> attr_bag = new HashSet<>();
+
+        // Add the properties to the bag
+        while (matches.hasNext()) {
+            final RDFNode match = matches.next();
+            final String uri = match.asResource().getURI();
+            LOGGER.debug("Found property: {}", uri);
+            attr_bag.add(new AnyURIAttribute(URI.create(uri)));
+        }
+
+        // Return the results, or any empty bag
+        if (attr_bag.isEmpty()) {
+            LOGGER.debug("No matching properties found");
+            return new EvaluationResult(empty_bag);
+        }
+
+        return new EvaluationResult(new BagAttribute(attributeType, attr_bag));
+    }
+
+    /**
+     * Starts loading the properties of the requested resource on the prefetch threads, so that the repository
+     * lookup overlaps with policy resolution. Every resource attribute designator in the policies is then answered
+     * from the same properties, instead of each one loading them again as the PDP reaches it. It is only worth
+     * calling for requests whose policy reads resource properties.
+     *
+     * If all prefetch threads are busy, nothing is prefetched, and the properties are loaded when the PDP first
+     * asks for them.
+     *
+     * @param context the evaluation context of a request that has not been evaluated yet
+     */
+    public void prefetch(final FedoraEvaluationCtx context) {
+        if (!prefetchEnabled) {
+            return;
+        }
+        final String resourceId = getTriplesResourceId(context);
+        if (resourceId != null) {
+            final boolean parent = usesParent(context);
+            try {
+                context.setResourceTriples(prefetchExecutor.submit(new Callable<ResourceTriples>() {
+
+                    @Override
+                    public ResourceTriples call() {
+                        return loadTriples(resourceId, parent);
+                    }
+                }));
+            } catch (final RejectedExecutionException e) {
+                LOGGER.debug("Prefetch threads are busy, not prefetching properties of {}", resourceId);
+            }
+        }
+    }
+
+    /**
+     * Drops the prefetch of a request whose evaluation has ended, so that a load that has not started yet does
+     * not run.
+     *
+     * @param context the evaluation context
+     */
+    public void cancelPrefetch(final FedoraEvaluationCtx context) {
+        final ListenableFuture<ResourceTriples> prefetched = context.getResourceTriples();
+        if (prefetched != null) {
+            prefetched.cancel(false);
+        }
+    }
+
+    /**
+     * @return whether resource properties are loaded ahead of evaluation, see {@link #prefetch}
+     */
+    public boolean isPrefetchEnabled() {
+        return prefetchEnabled;
+    }
+
+    /**
+     * @param prefetchEnabled whether resource properties are loaded ahead of evaluation, see {@link #prefetch}
+     */
+    public void setPrefetchEnabled(final boolean prefetchEnabled) {
+        this.prefetchEnabled = prefetchEnabled;
+    }
+
+    /**
+     * @param prefetchThreads the number of threads that load resource properties ahead of evaluation
+     */
+    public void setPrefetchThreads(final int prefetchThreads) {
+        if (prefetchThreads < 1) {
+            throw new IllegalArgumentException("Number of prefetch threads must be positive!");
+        }
+        final ListeningExecutorService previous = prefetchExecutor;
+        prefetchExecutor = newPrefetchExecutor(prefetchThreads);
+        previous.shutdown();
+    }
+
+    /**
+     * @param parentCacheEnabled whether the properties of the parent are kept for the next add_node or
+     *        set_property request below the same parent
+     */
+    public void setParentCacheEnabled(final boolean parentCacheEnabled) {
+        this.parentCacheEnabled = parentCacheEnabled;
+    }
+
+    /**
+     * @param coalesceLoads whether concurrent requests for the properties of the same resource wait for a single
+     *        load
+     */
+    public void setCoalesceLoads(final boolean coalesceLoads) {
+        this.coalesceLoads = coalesceLoads;
+    }
+
+    /**
+     * @return the number of times the properties of a resource were read from the repository
+     */
+    public long getTripleLoads() {
+        return tripleLoads.getLoads();
+    }
+
+    /**
+     * @return the number of property lookups that waited for a concurrent load of the same resource
+     */
+    public long getCoalescedTripleLoads() {
+        return tripleLoads.getCoalesced();
+    }
+
+    /**
+     * Repository events are delivered asynchronously, so a change to a parent may take a moment to be seen, and
+     * the properties are never older than this time.
+     *
+     * @param parentCacheTtl the time in milliseconds for which the properties of a parent are kept
+     */
+    public void setParentCacheTtl(final long parentCacheTtl) {
+        if (parentCacheTtl < 1) {
+            throw new IllegalArgumentException("Parent cache time to live must be positive!");
+        }
+        parentTriples = CacheBuilder.newBuilder().maximumSize(1000).expireAfterWrite(parentCacheTtl, MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * Stops the prefetch threads and the parent change events.
+     */
+    @PreDestroy
+    public void destroy() {
+        prefetchExecutor.shutdownNow();
+        synchronized (parentChangeListener) {
+            if (eventSession != null) {
+                try {
+                    eventSession.getWorkspace().getObservationManager().removeEventListener(parentChangeListener);
+                } catch (final RepositoryException e) {
+                    LOGGER.warn("Cannot remove the parent change listener", e);
+                }
+                eventSession.logout();
+                eventSession = null;
+            }
+        }
+        parentTriples.invalidateAll();
+    }
+
+    /**
+     * Gets the path of the resource whose triples describe the request: the requested node, or its parent if
+     * the request sets a property or adds a child node.
+     *
+     * @param context the evaluation context
+     * @return the path, or null if the context has no resource-id
+     */
+    private static String getTriplesResourceId(final EvaluationCtx context) {
         // The resourceId is the path of the object be acted on, retrieved from the PDP evaluation context
-        final EvaluationResult ridEvalRes =
-                context.getResourceAttribute(URI.create("http://www.w3.org/2001/XMLSchema#string"),
-                        URIConstants.ATTRIBUTEID_RESOURCE_ID, null);
+        final EvaluationResult ridEvalRes = context.getResourceAttribute(URIConstants.XML_SCHEMA_STRING,
+                URIConstants.ATTRIBUTEID_RESOURCE_ID, null);
         final AttributeValue resourceIdAttValue = ridEvalRes.getAttributeValue();
         if (resourceIdAttValue.getValue().toString().isEmpty()) {
-            LOGGER.debug("Context should have a resource-id attribute!");
-            final Status status = new Status(singletonList(STATUS_PROCESSING_ERROR), "Resource Id not found!");
-            return new EvaluationResult(status);
+            return null;
         }
 
         String resourceId = (String) resourceIdAttValue.getValue();
 
         // if dealing with set_property action, use parent node for triples
-        final Set<String> actions = PolicyUtil.getActions(context);
-        if (actions.contains("set_property") || actions.contains("add_node")) {
+        if (usesParent(context)) {
             resourceId = resourceId.substring(0, resourceId.lastIndexOf("/{"));
             if (resourceId.length() == 0) {
                 resourceId = "/";
             }
         }
+        return resourceId;
+    }
+
+    /**
+     * @return whether the request sets a property or adds a child node, which is decided by the parent's triples
+     */
+    private static boolean usesParent(final EvaluationCtx context) {
+        final Set<String> actions = PolicyUtil.getActions(context);
+        return actions.contains("set_property") || actions.contains("add_node");
+    }
+
+    /**
+     * Loads the properties of a resource, from the parent cache if the resource is the parent of the requested
+     * node or property. Concurrent loads of the same resource are coalesced, unless a change to its properties
+     * has been seen since the running load started.
+     *
+     * @param resourceId the path of the resource
+     * @param parent whether the resource is the parent
+     * @return the properties, or null if there is no such resource
+     * @throws RepositoryRuntimeException if the properties cannot be read
+     */
+    private ResourceTriples loadTriples(final String resourceId, final boolean parent) {
+        final boolean cacheParent = parent && parentCacheEnabled;
+        if (!(cacheParent || coalesceLoads) || !listenForParentChanges()) {
+            return loadTriples(resourceId);
+        }
+        final String key = PolicyUtil.normalizeModePath(resourceId);
+        if (cacheParent) {
+            final ResourceTriples cached = parentTriples.getIfPresent(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        final int stripe = stripe(key);
+        final long changes = parentChanges.get(stripe);
+        final ResourceTriples triples = coalesceLoads ? coalescedLoad(resourceId, key + "#" + changes) :
+                loadTriples(resourceId);
+        if (cacheParent && triples != null && parentChanges.get(stripe) == changes) {
+            parentTriples.put(key, triples);
+        }
+        return triples;
+    }
+
+    private ResourceTriples coalescedLoad(final String resourceId, final String flightKey) {
+        try {
+            return tripleLoads.load(flightKey, new Callable<ResourceTriples>() {
+
+                @Override
+                public ResourceTriples call() {
+                    return loadTriples(resourceId);
+                }
+            });
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof RepositoryRuntimeException) {
+                throw (RepositoryRuntimeException) e.getCause();
+            }
+            throw new RepositoryRuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Registers for the events that invalidate cached parent properties.
+     *
+     * @return whether changes to parents are seen, so that their properties can be cached
+     */
+    private boolean listenForParentChanges() {
+        synchronized (parentChangeListener) {
+            if (eventSession == null) {
+                final Session session = sessionFactory.getInternalSession();
+                eventSession = session;
+                try {
+                    session.getWorkspace().getObservationManager().addEventListener(parentChangeListener,
+                            PARENT_EVENT_TYPES, "/", true, null, null, false);
+                } catch (final RepositoryException e) {
+                    LOGGER.warn("Cannot listen for property changes, not caching or coalescing property loads", e);
+                    eventSession = null;
+                    session.logout();
+                    parentCacheEnabled = false;
+                    coalesceLoads = false;
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static int stripe(final String key) {
+        return (key.hashCode() & Integer.MAX_VALUE) % CHANGE_STRIPES;
+    }
+
+    /**
+     * Loads the properties of a resource.
+     *
+     * @param resourceId the path of the resource
+     * @return the properties, or null if there is no such resource
+     * @throws RepositoryRuntimeException if the properties cannot be read
+     */
+    private ResourceTriples loadTriples(final String resourceId) {
+        final Session session = sessionFactory.getInternalSession();
 
         // Get the resource to be acted on
         final FedoraResource resource;
         final String path;
+        final IdentifierConverter<Resource,Node> idTranslator;
         try {
             resource = nodeService.getObject(session, resourceId);
             if (resource == null) {
                 LOGGER.debug("Cannot find a fedora resource for {}", resourceId);
-                return new EvaluationResult(empty_bag);
+                return null;
             }
             path = resource.getPath();
             idTranslator = new DefaultIdentifierTranslator(session);
         } catch (final RepositoryRuntimeException e) {
             // If the object does not exist, it may be due to the action being "create"
-            return new EvaluationResult(empty_bag);
+            return null;
         }
 
         LOGGER.debug("Looking for properties on modeshape path {} with repo path {}", resourceId, path);
 
         // Get the properties of the resource
-        Model properties;
-        try {
-            properties = resource.getTriples(idTranslator, PropertiesRdfContext.class).asModel();
+        final Model properties = resource.getTriples(idTranslator, PropertiesRdfContext.class).asModel();
+        return new ResourceTriples(properties, idTranslator.toDomain(path));
+    }
 
-        } catch (final RepositoryRuntimeException e) {
-            LOGGER.debug("Cannot retrieve any properties for [{}]:  {}", resourceId, e);
-            final Status status =
-                    new Status(singletonList(STATUS_PROCESSING_ERROR),
-                               "Error retrieving properties for [" + path + "]!");
-            return new EvaluationResult(status);
+    private static ListeningExecutorService newPrefetchExecutor(final int threads) {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * 16),
+                // a saturated pool rejects the prefetch rather than queueing without bound
+                new ThreadFactoryBuilder().setNameFormat("xacml-attribute-prefetch-%d").setDaemon(true).build());
+        return listeningDecorator(executor);
+    }
+
+    /**
+     * Drops the cached properties of nodes as they change. The properties of a datastream include those of its
+     * jcr:content node, so a change below jcr:content also drops the datastream.
+     */
+    private class ParentChangeListener implements EventListener {
+
+        @Override
+        public void onEvent(final EventIterator events) {
+            while (events.hasNext()) {
+                final Event event = events.nextEvent();
+                try {
+                    if (event.getType() == NODE_REMOVED || event.getType() == NODE_MOVED) {
+                        forgetAll();
+                        continue;
+                    }
+                    final String propertyPath = event.getPath();
+                    final String nodePath = propertyPath.substring(0, Math.max(propertyPath.lastIndexOf('/'), 1));
+                    forget(nodePath);
+                    final int content = (nodePath + "/").indexOf("/" + JCR_CONTENT + "/");
+                    if (content >= 0) {
+                        forget(content == 0 ? "/" : nodePath.substring(0, content));
+                    }
+                } catch (final RepositoryException e) {
+                    LOGGER.warn("Cannot read change event, dropping all parent properties", e);
+                    forgetAll();
+                }
+            }
         }
 
-        Resource graphNode;
-        graphNode = idTranslator.toDomain(resource.getPath());
+        private void forget(final String nodePath) throws RepositoryException {
+            final String key = "/".equals(nodePath) ? nodePath :
+                    PolicyUtil.normalizeModePath(PolicyUtil.getModePath(nodePath, eventSession));
+            parentChanges.incrementAndGet(stripe(key));
+            parentTriples.invalidate(key);
+        }
 
-        LOGGER.debug("Looking for properties on graph node: {}", graphNode.getURI());
+        private void forgetAll() {
+            for (int i = 0; i < CHANGE_STRIPES; i++) {
+                parentChanges.incrementAndGet(i);
+            }
+            parentTriples.invalidateAll();
+        }
+    }
 
-        // Get the values of the properties matching the type
-        final Iterator<RDFNode> matches =
-                properties.listObjectsOfProperty(graphNode, properties.createProperty(attributeId.toString()));
+    /**
+     * The properties of a resource and its node in the properties graph.
+     */
+    static final class ResourceTriples {
 
-        final Set<AttributeValue> attr_bag = new HashSet<>();
+        private final Model properties;
 
-        // Add the properties to the bag
-        while (matches.hasNext()) {
-            final RDFNode match = matches.next();
-            final String uri = match.asResource().getURI();
-            LOGGER.debug("Found property: {}", uri);
-            attr_bag.add(new AnyURIAttribute(URI.create(uri)));
-        }
+        private final Resource subject;
 
-        // Return the results, or any empty bag
-        if (attr_bag.isEmpty()) {
-            LOGGER.debug("No matching properties found");
-            return new EvaluationResult(empty_bag);
+        ResourceTriples(final Model properties, final Resource subject) {
+            this.properties = properties;
+            this.subject = subject;
         }
-
-        return new EvaluationResult(new BagAttribute(attributeType, attr_bag));
     }
 
 }
@@ -27,6 +27,17 @@ import org.jboss.security.xacml.interfaces.XACMLConstants;
  */
 public abstract class URIConstants {
 
+    /**
+     * Data type of string attributes.
+     */
+    public static final URI XML_SCHEMA_STRING = URI.create("http://www.w3.org/2001/XMLSchema#string");
+
+    /**
+     * Category of the subject that makes the request.
+     */
+    public static final URI SUBJECT_CATEGORY_ACCESS_SUBJECT =
+            URI.create("urn:oasis:names:tc:xacml:1.0:subject-category:access-subject");
+
     /**
      * ID of the subject (user principal).
      */
@@ -84,4 +95,22 @@ public abstract class URIConstants {
     public static final URI ATTRIBUTEID_ENVIRONMENT_ORIGINAL_IP_ADDRESS = URI
             .create("urn:fedora:xacml:2.0:environment:original-ip-address");
 
+    /**
+     * Current time of the request.
+     */
+    public static final URI ATTRIBUTEID_ENVIRONMENT_CURRENT_TIME = URI
+            .create("urn:oasis:names:tc:xacml:1.0:environment:current-time");
+
+    /**
+     * Current date of the request.
+     */
+    public static final URI ATTRIBUTEID_ENVIRONMENT_CURRENT_DATE = URI
+            .create("urn:oasis:names:tc:xacml:1.0:environment:current-date");
+
+    /**
+     * Current date and time of the request.
+     */
+    public static final URI ATTRIBUTEID_ENVIRONMENT_CURRENT_DATETIME = URI
+            .create("urn:oasis:names:tc:xacml:1.0:environment:current-dateTime");
+
 }
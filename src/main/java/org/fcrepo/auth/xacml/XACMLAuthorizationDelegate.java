@@ -16,30 +16,54 @@
 
 package org.fcrepo.auth.xacml;
 
-import java.io.ByteArrayOutputStream;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
 import java.io.IOException;
 import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.servlet.http.HttpServletRequest;
 
 import org.fcrepo.auth.roles.common.AbstractRolesAuthorizationDelegate;
 import org.fcrepo.auth.roles.common.AccessRolesProvider;
+import org.fcrepo.auth.xacml.EffectivePolicyIndex.PolicyVersion;
 import org.fcrepo.http.commons.session.SessionFactory;
 import org.fcrepo.kernel.services.NodeService;
-import org.jboss.security.xacml.sunxacml.EvaluationCtx;
 import org.jboss.security.xacml.sunxacml.PDP;
 import org.jboss.security.xacml.sunxacml.ctx.ResponseCtx;
 import org.jboss.security.xacml.sunxacml.ctx.Result;
-import org.jboss.security.xacml.sunxacml.finder.impl.CurrentEnvModule;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 /**
  * Responsible for resolving Fedora's permissions within ModeShape via a XACML
  * Policy Decision Point (PDP).
@@ -54,16 +78,6 @@ public class XACMLAuthorizationDelegate extends AbstractRolesAuthorizationDelega
      */
     private static final Logger LOGGER = LoggerFactory.getLogger(XACMLAuthorizationDelegate.class);
 
-    /**
-     * The name of Fedora's subject finder module bean. (prototype)
-     */
-    private static final String SUBJECT_ATTRIBUTE_FINDER_BEAN = "subjectAttributeFinderModule";
-
-    /**
-     * The name of Fedora's environment finder module bean. (prototype)
-     */
-    private static final String ENVIRONMENT_ATTRIBUTE_FINDER_BEAN = "environmentAttributeFinderModule";
-
     @Autowired
     private PDPFactory pdpFactory;
 
@@ -73,9 +87,10 @@ public class XACMLAuthorizationDelegate extends AbstractRolesAuthorizationDelega
     private PDP pdp = null;
 
     /**
-     * The standard environment attribute finder, supplies date/time.
+     * The environment attribute finder, supplies date/time and deployment attributes.
      */
-    private CurrentEnvModule currentEnvironmentAttributeModule = new CurrentEnvModule();
+    @Autowired
+    private EnvironmentAttributeFinderModule environmentAttributeFinderModule;
 
     /**
      * The triple-based resource attribute finder module.
@@ -89,6 +104,12 @@ public class XACMLAuthorizationDelegate extends AbstractRolesAuthorizationDelega
     @Autowired
     private SparqlResourceAttributeFinderModule sparqlResourceAttributeFinderModule;
 
+    /**
+     * The optional finder of subject attributes from outside the repository.
+     */
+    @Autowired(required = false)
+    private SubjectAttributeFinderModule subjectAttributeFinderModule;
+
     /**
      * The provider for access roles.
      */
@@ -104,6 +125,111 @@ public class XACMLAuthorizationDelegate extends AbstractRolesAuthorizationDelega
     @Autowired
     private NodeService nodeService;
 
+    /**
+     * The optional trace of recent decisions.
+     */
+    @Autowired(required = false)
+    private DecisionTrace decisionTrace;
+
+    /**
+     * The optional audit trail of decisions.
+     */
+    @Autowired(required = false)
+    private DecisionAuditLog auditLog;
+
+    /**
+     * The index of policy assignments, which finds the policy in effect for a path in memory, for the permission
+     * matrix and for deciding whether resource properties are prefetched.
+     */
+    @Autowired(required = false)
+    private EffectivePolicyIndex effectivePolicyIndex;
+
+    /**
+     * The policy finder, which tells whether the policies in effect read resource properties.
+     */
+    @Autowired(required = false)
+    private FedoraPolicyFinderModule fedoraPolicyFinderModule;
+
+    /**
+     * Whether the policies in effect at a node read resource properties, by node, for the cached generation.
+     */
+    private final Cache<String, Boolean> propertyReaders = CacheBuilder.newBuilder().maximumSize(10000).build();
+
+    private long propertyReadersGeneration = -1;
+
+    private boolean usePermissionMatrix = true;
+
+    /**
+     * Answers requests whose decision does not depend on attributes without evaluation, or null if every request
+     * is evaluated.
+     */
+    private PermissionMatrix permissionMatrix;
+
+    private int asyncThreads = Runtime.getRuntime().availableProcessors() * 2;
+
+    private int asyncQueueSize = 1000;
+
+    private long asyncTimeout = 5000;
+
+    private boolean denyOnTimeout = true;
+
+    /**
+     * Runs asynchronous evaluations, see {@link #rolesHavePermissionAsync}.
+     */
+    private ListeningExecutorService asyncExecutor;
+
+    /**
+     * Times out asynchronous evaluations.
+     */
+    private ScheduledThreadPoolExecutor timeoutExecutor;
+
+    /**
+     * @param asyncThreads the number of threads that run asynchronous evaluations
+     */
+    public void setAsyncThreads(final int asyncThreads) {
+        if (asyncThreads < 1) {
+            throw new IllegalArgumentException("Number of authorization threads must be positive!");
+        }
+        this.asyncThreads = asyncThreads;
+    }
+
+    /**
+     * @param asyncQueueSize the number of asynchronous evaluations that may wait for a thread before new ones
+     *        are rejected
+     */
+    public void setAsyncQueueSize(final int asyncQueueSize) {
+        if (asyncQueueSize < 1) {
+            throw new IllegalArgumentException("Authorization queue size must be positive!");
+        }
+        this.asyncQueueSize = asyncQueueSize;
+    }
+
+    /**
+     * @param asyncTimeout the time in milliseconds after which an asynchronous evaluation is abandoned
+     */
+    public void setAsyncTimeout(final long asyncTimeout) {
+        if (asyncTimeout < 1) {
+            throw new IllegalArgumentException("Authorization timeout must be positive!");
+        }
+        this.asyncTimeout = asyncTimeout;
+    }
+
+    /**
+     * @param denyOnTimeout whether an asynchronous evaluation that times out completes with a denial, rather than
+     *        failing with a {@link TimeoutException}
+     */
+    public void setDenyOnTimeout(final boolean denyOnTimeout) {
+        this.denyOnTimeout = denyOnTimeout;
+    }
+
+    /**
+     * @param usePermissionMatrix whether requests whose decision does not depend on attributes are answered from
+     *        a matrix of earlier decisions, instead of being evaluated
+     */
+    public void setUsePermissionMatrix(final boolean usePermissionMatrix) {
+        this.usePermissionMatrix = usePermissionMatrix;
+    }
+
     /**
      * Configures the delegate.
      *
@@ -116,6 +242,30 @@ public class XACMLAuthorizationDelegate extends AbstractRolesAuthorizationDelega
         if (pdp == null) {
             throw new Error("There is no PDP wired by the factory in the Spring context.");
         }
+
+        final ThreadFactory threads = new ThreadFactoryBuilder().setNameFormat("xacml-authorization-%d")
+                .setDaemon(true).build();
+        asyncExecutor = MoreExecutors.listeningDecorator(
+                new ThreadPoolExecutor(asyncThreads, asyncThreads, 0, MILLISECONDS,
+                        new ArrayBlockingQueue<Runnable>(asyncQueueSize), threads));
+        timeoutExecutor = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactoryBuilder().setNameFormat("xacml-authorization-timeout").setDaemon(true).build());
+        timeoutExecutor.setRemoveOnCancelPolicy(true);
+
+        if (effectivePolicyIndex != null && usePermissionMatrix) {
+            permissionMatrix = new PermissionMatrix();
+        }
+    }
+
+    /**
+     * Stops the asynchronous evaluation threads.
+     */
+    @PreDestroy
+    public final void destroy() {
+        if (asyncExecutor != null) {
+            asyncExecutor.shutdownNow();
+            timeoutExecutor.shutdownNow();
+        }
     }
 
     /*
@@ -129,28 +279,242 @@ public class XACMLAuthorizationDelegate extends AbstractRolesAuthorizationDelega
                                        final String absPath,
                                        final String[] actions,
                                        final Set<String> roles) {
-        final EvaluationCtx evaluationCtx = buildEvaluationContext(session, absPath, actions, roles);
-        final ResponseCtx resp = pdp.evaluate(evaluationCtx);
+        final DecisionRecord trace = traceRequest(session, absPath, actions, roles);
+        final PolicyVersion policy = policyVersion(absPath);
+        final Boolean known = matrixDecision(session, absPath, actions, roles, policy, trace);
+        if (known != null) {
+            return known;
+        }
+        return evaluate(buildEvaluationContext(session, absPath, actions, roles, policy), policy, trace);
+    }
+
+    /**
+     * Asynchronous form of {@link #rolesHavePermission}. The request attributes are read from the session on the
+     * calling thread, since sessions may not be shared between threads, and the policy decision, with its policy
+     * and resource attribute lookups in the repository, is made on a bounded pool of authorization threads.
+     *
+     * The returned future fails with a {@link RejectedExecutionException} if all authorization threads are busy
+     * and the queue of waiting evaluations is full. An evaluation that does not complete within the configured
+     * timeout is interrupted, and its future completes with a denial or fails with a {@link TimeoutException},
+     * depending on the deny-on-timeout setting.
+     *
+     * @param session the ModeShape session
+     * @param absPath the node or property path
+     * @param actions the actions requested
+     * @param roles the effective roles of the user
+     * @return a future of the decision, true if every action is permitted
+     */
+    public ListenableFuture<Boolean> rolesHavePermissionAsync(final Session session,
+                                                              final String absPath,
+                                                              final String[] actions,
+                                                              final Set<String> roles) {
+        final DecisionRecord trace = traceRequest(session, absPath, actions, roles);
+        final PolicyVersion policy = policyVersion(absPath);
+        final Boolean known = matrixDecision(session, absPath, actions, roles, policy, trace);
+        if (known != null) {
+            return Futures.immediateFuture(known);
+        }
+        final FedoraEvaluationCtx evaluationCtx = buildEvaluationContext(session, absPath, actions, roles, policy);
+
+        final ListenableFuture<Boolean> evaluation;
+        try {
+            evaluation = asyncExecutor.submit(new Callable<Boolean>() {
+
+                @Override
+                public Boolean call() {
+                    return evaluate(evaluationCtx, policy, trace);
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            LOGGER.warn("Rejected authorization of {}, all authorization threads are busy", absPath);
+            tripleResourceAttributeFinderModule.cancelPrefetch(evaluationCtx);
+            return Futures.immediateFailedFuture(e);
+        }
+
+        final SettableFuture<Boolean> decision = SettableFuture.create();
+        final ScheduledFuture<?> timeout = timeoutExecutor.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                final boolean timedOut = denyOnTimeout ? decision.set(false) : decision.setException(
+                        new TimeoutException("Authorization of " + absPath + " took over " + asyncTimeout + " ms"));
+                if (timedOut) {
+                    LOGGER.warn("Authorization of {} timed out after {} ms", absPath, asyncTimeout);
+                    // do not interrupt an evaluation that has started, it may be reading through the session
+                    evaluation.cancel(false);
+                }
+            }
+        }, asyncTimeout, MILLISECONDS);
+        Futures.addCallback(evaluation, new FutureCallback<Boolean>() {
+
+            @Override
+            public void onSuccess(final Boolean permit) {
+                timeout.cancel(false);
+                decision.set(permit);
+            }
+
+            @Override
+            public void onFailure(final Throwable t) {
+                timeout.cancel(false);
+                decision.setException(t);
+            }
+        });
+        return decision;
+    }
+
+    /**
+     * @return the version of the policy in effect for a path, which kept decisions are checked against and which
+     *         tells whether resource properties are prefetched, or null if it is not known or neither needs it
+     */
+    private PolicyVersion policyVersion(final String absPath) {
+        if (effectivePolicyIndex == null ||
+                permissionMatrix == null && !tripleResourceAttributeFinderModule.isPrefetchEnabled()) {
+            return null;
+        }
+        return effectivePolicyIndex.getPolicyVersion("".equals(absPath.trim()) ? "/" : absPath);
+    }
+
+    /**
+     * Tells whether the policies in effect read resource properties, reading the policies once per node and
+     * generation.
+     *
+     * @param policy the version of the policy in effect
+     * @return false if no policy reads resource properties, or a policy is not loaded yet
+     */
+    private boolean readsResourceProperties(final PolicyVersion policy) {
+        if (fedoraPolicyFinderModule == null) {
+            return false;
+        }
+        synchronized (propertyReaders) {
+            if (policy.getGeneration() != propertyReadersGeneration) {
+                propertyReaders.invalidateAll();
+                propertyReadersGeneration = policy.getGeneration();
+            }
+        }
+        final Boolean cached = propertyReaders.getIfPresent(policy.getNode());
+        if (cached != null) {
+            return cached;
+        }
+        final Boolean reads = fedoraPolicyFinderModule.readsResourceProperties(policy.getNode());
+        if (reads == null) {
+            return false;
+        }
+        if (effectivePolicyIndex.getGeneration() == policy.getGeneration()) {
+            propertyReaders.put(policy.getNode(), reads);
+        }
+        return reads;
+    }
+
+    /**
+     * Asks the PDP for a decision.
+     *
+     * @param evaluationCtx the request
+     * @param policy the version of the policy in effect, found before the evaluation, or null
+     * @param trace the request as it is traced, or null if it is not traced
+     * @return true if every result is a permit
+     */
+    private boolean evaluate(final FedoraEvaluationCtx evaluationCtx, final PolicyVersion policy,
+            final DecisionRecord trace) {
+        final long start = System.nanoTime();
+        evaluationCtx.resetAttributeUse();
+        final ResponseCtx resp;
+        try {
+            resp = pdp.evaluate(evaluationCtx);
+        } finally {
+            tripleResourceAttributeFinderModule.cancelPrefetch(evaluationCtx);
+        }
 
         boolean permit = true;
         for (final Object o : resp.getResults()) {
             final Result res = (Result) o;
-            if (LOGGER.isDebugEnabled()) {
-                try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-                    res.encode(baos);
-                    LOGGER.debug("ResponseCtx dump:\n{}", baos.toString("utf-8"));
-                } catch (final IOException e) {
-                    LOGGER.info("Cannot print response context", e);
-                }
-            }
             if (Result.DECISION_PERMIT != res.getDecision()) {
                 permit = false;
                 break;
             }
         }
+
+        if (permissionMatrix != null) {
+            permissionMatrix.learn(evaluationCtx, resp, policy);
+        }
+
+        final long elapsed = System.nanoTime() - start;
+        if (trace != null) {
+            decisionTrace.add(trace.withDecision(permit, resp.getResults(), NANOSECONDS.toMillis(elapsed)));
+        }
+        if (auditLog != null) {
+            auditLog.record(evaluationCtx.getPrincipalName(), evaluationCtx.getRoles(), evaluationCtx.getResourcePath(),
+                    evaluationCtx.getActions(), evaluationCtx.getEffectivePolicyId(), permit,
+                    NANOSECONDS.toMicros(elapsed));
+        }
         return permit;
     }
 
+    /**
+     * Answers a request from the permission matrix, if it has a decision for it.
+     *
+     * @param policy the version of the policy in effect, or null
+     * @param trace the request as it is traced, or null if it is not traced
+     * @return the decision, or null if the request must be evaluated
+     */
+    private Boolean matrixDecision(final Session session,
+                                   final String absPath,
+                                   final String[] actions,
+                                   final Set<String> roles,
+                                   final PolicyVersion policy,
+                                   final DecisionRecord trace) {
+        if (permissionMatrix == null) {
+            return null;
+        }
+        final long start = System.nanoTime();
+        final PermissionMatrix.Decision decision = permissionMatrix.lookup(policy, roles, actions);
+        if (decision == null) {
+            return null;
+        }
+
+        final long elapsed = System.nanoTime() - start;
+        if (trace != null) {
+            decisionTrace.add(trace.withDecision(decision.isPermit(), Collections.emptyList(),
+                    NANOSECONDS.toMillis(elapsed)));
+        }
+        if (auditLog != null) {
+            final Principal user = (Principal) session.getAttribute(FEDORA_USER_PRINCIPAL);
+            auditLog.record(user.getName(), roles, absPath, Arrays.asList(actions), decision.getPolicyId(),
+                    decision.isPermit(), NANOSECONDS.toMicros(elapsed));
+        }
+        return decision.isPermit();
+    }
+
+    /**
+     * Captures the attributes of a request for the decision trace, if the trace is configured and selects it.
+     *
+     * @return the request as it is traced, or null if it is not traced
+     */
+    private DecisionRecord traceRequest(final Session session,
+                                        final String absPath,
+                                        final String[] actions,
+                                        final Set<String> roles) {
+        if (decisionTrace == null || !decisionTrace.isEnabled()) {
+            return null;
+        }
+        final Principal user = (Principal) session.getAttribute(FEDORA_USER_PRINCIPAL);
+        if (!decisionTrace.isTraced(user.getName(), absPath, actions)) {
+            return null;
+        }
+
+        final List<String> groups = new ArrayList<>();
+        final Set<Principal> allGroups = (Set<Principal>) session.getAttribute(FEDORA_ALL_PRINCIPALS);
+        if (allGroups != null) {
+            for (final Principal group : allGroups) {
+                if (!group.equals(user)) {
+                    groups.add(group.getName());
+                }
+            }
+        }
+        final HttpServletRequest request = (HttpServletRequest) session.getAttribute(FEDORA_SERVLET_REQUEST);
+        return new DecisionRecord(user.getName(), roles, groups, absPath, actions, request.getRemoteAddr(),
+                session.getWorkspace().getName());
+    }
+
     /**
      * Builds a global attribute finder from injected modules that may use
      * current session information.
@@ -158,42 +522,29 @@ public class XACMLAuthorizationDelegate extends AbstractRolesAuthorizationDelega
      * @param session the ModeShape session
      * @param absPath the node or property path
      * @param actions the actions requested
-     * @return an attribute finder
+     * @param policy the version of the policy in effect, or null
+     * @return an evaluation context, with the resource properties being prefetched if the policy reads them
      */
-    private EvaluationCtx buildEvaluationContext(final Session session,
+    private FedoraEvaluationCtx buildEvaluationContext(final Session session,
                                                  final String absPath,
                                                  final String[] actions,
-                                                 final Set<String> roles) {
+                                                 final Set<String> roles,
+                                                 final PolicyVersion policy) {
         final FedoraEvaluationCtxBuilder builder = new FedoraEvaluationCtxBuilder();
-        builder.addFinderModule(currentEnvironmentAttributeModule);
+        builder.addFinderModule(environmentAttributeFinderModule);
         builder.addFinderModule(sparqlResourceAttributeFinderModule);
 
-        // A subject attribute finder prototype is injected with Session
-        // AttributeFinderModule subjectAttributeFinder = null;
-        // if (applicationContext
-        // .containsBeanDefinition(SUBJECT_ATTRIBUTE_FINDER_BEAN)) {
-        // subjectAttributeFinder =
-        // (AttributeFinderModule) applicationContext.getBean(
-        // SUBJECT_ATTRIBUTE_FINDER_BEAN, session);
-        // builder.addFinderModule(subjectAttributeFinder);
-        // }
-
-        // environment attribute finder is injected with Session
-        // AttributeFinderModule environmentAttributeFinder = null;
-        // if (applicationContext
-        // .containsBeanDefinition(ENVIRONMENT_ATTRIBUTE_FINDER_BEAN)) {
-        // environmentAttributeFinder =
-        // (AttributeFinderModule) applicationContext.getBean(
-        // ENVIRONMENT_ATTRIBUTE_FINDER_BEAN, session);
-        // builder.addFinderModule(environmentAttributeFinder);
-        // }
+        // The subject attribute finder keeps the attributes of the user for the session
+        final Principal user = (Principal) session.getAttribute(FEDORA_USER_PRINCIPAL);
+        if (subjectAttributeFinderModule != null) {
+            builder.addFinderModule(subjectAttributeFinderModule.forSession(session, user.getName()));
+        }
 
         // Triple attribute finder will look in modeshape for any valid
         // predicate URI, therefore it falls last in this list.
         builder.addFinderModule(tripleResourceAttributeFinderModule);
         LOGGER.debug("effective roles: {}", roles);
 
-        final Principal user = (Principal) session.getAttribute(FEDORA_USER_PRINCIPAL);
         builder.addSubject(user.getName(), roles);
         builder.addResourceID(absPath);
         builder.addWorkspace(session.getWorkspace().getName());
@@ -208,7 +559,12 @@ public class XACMLAuthorizationDelegate extends AbstractRolesAuthorizationDelega
         LOGGER.debug("effective groups: {}", allGroups);
         builder.addGroups(user, allGroups);
 
-        return builder.build();
+        final FedoraEvaluationCtx evaluationCtx = builder.build();
+        if (policy != null && tripleResourceAttributeFinderModule.isPrefetchEnabled() &&
+                readsResourceProperties(policy)) {
+            tripleResourceAttributeFinderModule.prefetch(evaluationCtx);
+        }
+        return evaluationCtx;
     }
 
 }
@@ -15,10 +15,20 @@
  */
 package org.fcrepo.auth.xacml;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
@@ -28,6 +38,7 @@ import javax.jcr.nodetype.NodeTypeIterator;
 import javax.jcr.nodetype.NodeTypeTemplate;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.commons.io.FileUtils;
 import org.fcrepo.http.commons.session.SessionFactory;
 import org.fcrepo.kernel.FedoraBinary;
@@ -37,6 +48,7 @@ import org.modeshape.jcr.api.nodetype.NodeTypeManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.w3c.dom.Document;
 
 /**
  * Sets up node types and default policies for the XACML Authorization Delegate.
@@ -59,10 +71,26 @@ public class XACMLWorkspaceInitializer {
     @Autowired
     private BinaryService binaryService;
 
+    /**
+     * Optional store of pre-parsed policies, filled as the initial policies are written.
+     */
+    @Autowired(required = false)
+    private PolicyArtifactStore artifactStore;
+
     private File initialPoliciesDirectory;
 
     private File initialRootPolicyFile;
 
+    /**
+     * Maximum number of threads used to parse and validate initial policy files.
+     */
+    private int importThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Number of policies written to the repository per session save.
+     */
+    private int importBatchSize = 50;
+
     /**
      * Constructor
      *
@@ -85,6 +113,26 @@ public class XACMLWorkspaceInitializer {
         this.initialRootPolicyFile = initialRootPolicyFile;
     }
 
+    /**
+     * @param importThreads the maximum number of threads used to parse initial policies
+     */
+    public void setImportThreads(final int importThreads) {
+        if (importThreads < 1) {
+            throw new IllegalArgumentException("importThreads must be at least 1");
+        }
+        this.importThreads = importThreads;
+    }
+
+    /**
+     * @param importBatchSize the number of initial policies committed per session save
+     */
+    public void setImportBatchSize(final int importBatchSize) {
+        if (importBatchSize < 1) {
+            throw new IllegalArgumentException("importBatchSize must be at least 1");
+        }
+        this.importBatchSize = importBatchSize;
+    }
+
     /**
      * Initializes default policies.
      */
@@ -146,31 +194,175 @@ public class XACMLWorkspaceInitializer {
 
     /**
      * Create nodes for the default XACML policy set. Policies are created at paths according to their IDs.
+     * Policy files are collected from the initial policies directory and its subdirectories, parsed and validated
+     * in parallel, and then written to the repository in file order, saving the session once per batch.
+     * Files that cannot be parsed as a XACML policy or policy set are reported and skipped.
      */
     private void loadInitialPolicies() {
+        final long start = System.currentTimeMillis();
+        final List<File> files = new ArrayList<>();
+        collectPolicyFiles(initialPoliciesDirectory, files);
+
+        final Map<File, String> failures = new LinkedHashMap<>();
+        final List<ParsedPolicy> parsed = parsePolicies(files, failures);
+        final long parsedAt = System.currentTimeMillis();
+
         Session session = null;
         try {
             session = sessionFactory.getInternalSession();
-            for (final File p : initialPoliciesDirectory.listFiles()) {
-                final String id = PolicyUtil.getID(FileUtils.openInputStream(p));
-                final String repoPath = PolicyUtil.getPathForId(id);
-                final FedoraBinary binary = binaryService.findOrCreateBinary(session, repoPath);
-                binary.setContent(new FileInputStream(p),
+            int pending = 0;
+            for (final ParsedPolicy p : parsed) {
+                final FedoraBinary binary = binaryService.findOrCreateBinary(session, p.repoPath);
+                binary.setContent(new ByteArrayInputStream(p.content),
                                   "application/xml",
                                   null,
-                                  p.getName(),
+                                  p.file.getName(),
                                   null);
 
-                LOGGER.info("Add initial policy {} at {}", p.getAbsolutePath(), binary.getPath());
+                LOGGER.info("Add initial policy {} at {}", p.file.getAbsolutePath(), binary.getPath());
+                storeArtifact(binary, p.doc);
+                if (++pending == importBatchSize) {
+                    session.save();
+                    pending = 0;
+                }
             }
             session.save();
-        } catch (final RepositoryException | InvalidChecksumException | IOException e) {
+        } catch (final RepositoryException | InvalidChecksumException e) {
             throw new Error("Cannot create default root policies", e);
         } finally {
             if (session != null) {
                 session.logout();
             }
         }
+
+        final long end = System.currentTimeMillis();
+        LOGGER.info("Imported {} of {} initial policy files in {} ms (parse {} ms, commit {} ms, {} failures)",
+                    parsed.size(), files.size(), end - start, parsedAt - start, end - parsedAt, failures.size());
+        for (final Map.Entry<File, String> failure : failures.entrySet()) {
+            LOGGER.error("Skipped initial policy file {}: {}", failure.getKey().getAbsolutePath(), failure.getValue());
+        }
+    }
+
+    /**
+     * Stores the pre-parsed form of a policy that has just been written, if an artifact store is configured.
+     *
+     * @param binary the policy binary
+     * @param doc the parsed policy content
+     */
+    private void storeArtifact(final FedoraBinary binary, final Document doc) {
+        if (artifactStore == null) {
+            return;
+        }
+        final String version = PolicyUtil.getPolicyVersion(binary);
+        if (version != null && binary.getPath() != null) {
+            artifactStore.put(binary.getPath(), version, PolicyCodec.encode(doc.getDocumentElement()));
+        }
+    }
+
+    /**
+     * Recursively collects the regular files below a directory, in name order.
+     *
+     * @param dir the directory to walk
+     * @param files the list to add files to
+     */
+    private static void collectPolicyFiles(final File dir, final List<File> files) {
+        final File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        Arrays.sort(children);
+        for (final File child : children) {
+            if (child.isDirectory()) {
+                collectPolicyFiles(child, files);
+            } else if (child.isFile() && !child.isHidden()) {
+                files.add(child);
+            }
+        }
+    }
+
+    /**
+     * Parses and validates policy files on a bounded pool.
+     *
+     * @param files the policy files
+     * @param failures receives the files that could not be parsed, with the reason
+     * @return the valid policies, in file order
+     */
+    private List<ParsedPolicy> parsePolicies(final List<File> files, final Map<File, String> failures) {
+        final List<ParsedPolicy> result = new ArrayList<>(files.size());
+        if (files.isEmpty()) {
+            return result;
+        }
+
+        final ExecutorService pool = Executors.newFixedThreadPool(Math.min(importThreads, files.size()),
+                new ThreadFactoryBuilder().setNameFormat("xacml-policy-import-%d").setDaemon(true).build());
+        try {
+            final List<Future<ParsedPolicy>> futures = new ArrayList<>(files.size());
+            for (final File file : files) {
+                futures.add(pool.submit(new Callable<ParsedPolicy>() {
+
+                    @Override
+                    public ParsedPolicy call() throws Exception {
+                        return parsePolicy(file);
+                    }
+                }));
+            }
+
+            final Map<String, File> byPath = new LinkedHashMap<>();
+            for (int i = 0; i < files.size(); i++) {
+                final File file = files.get(i);
+                try {
+                    final ParsedPolicy p = futures.get(i).get();
+                    final File previous = byPath.put(p.repoPath, file);
+                    if (previous != null) {
+                        LOGGER.warn("Initial policy {} replaces {} at {}", file, previous, p.repoPath);
+                    }
+                    result.add(p);
+                } catch (final ExecutionException e) {
+                    failures.put(file, String.valueOf(e.getCause()));
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new Error("Interrupted while parsing initial policies", e);
+        } finally {
+            pool.shutdownNow();
+        }
+        return result;
+    }
+
+    /**
+     * Reads, parses and validates a single policy file.
+     *
+     * @param file the policy file
+     * @return the parsed policy
+     * @throws Exception if the file is not a valid policy or policy set
+     */
+    private static ParsedPolicy parsePolicy(final File file) throws Exception {
+        final byte[] content = FileUtils.readFileToByteArray(file);
+        final Document doc = PolicyUtil.parse(new ByteArrayInputStream(content));
+        PolicyUtil.validatePolicy(doc.getDocumentElement(), null);
+        return new ParsedPolicy(file, PolicyUtil.getPathForId(PolicyUtil.getID(doc)), content, doc);
+    }
+
+    /**
+     * An initial policy file that has been parsed and validated.
+     */
+    private static class ParsedPolicy {
+
+        private final File file;
+
+        private final String repoPath;
+
+        private final byte[] content;
+
+        private final Document doc;
+
+        ParsedPolicy(final File file, final String repoPath, final byte[] content, final Document doc) {
+            this.file = file;
+            this.repoPath = repoPath;
+            this.content = content;
+            this.doc = doc;
+        }
     }
 
     /**
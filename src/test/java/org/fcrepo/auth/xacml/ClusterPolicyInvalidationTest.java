@@ -0,0 +1,85 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static org.fcrepo.auth.xacml.XACMLTestUtil.clusteredCacheManager;
+import static org.fcrepo.auth.xacml.XACMLTestUtil.localCacheManager;
+import static org.fcrepo.http.commons.test.util.TestHelpers.setField;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+public class ClusterPolicyInvalidationTest {
+
+    @Mock
+    private EffectivePolicyIndex mockIndexA;
+
+    @Mock
+    private EffectivePolicyIndex mockIndexB;
+
+    @Before
+    public void setUp() {
+        initMocks(this);
+    }
+
+    @Test
+    public void testPublish() throws InterruptedException {
+        final EmbeddedCacheManager managerA = clusteredCacheManager("a");
+        final EmbeddedCacheManager managerB = clusteredCacheManager("b");
+        try {
+            final ClusterPolicyInvalidation nodeA = new ClusterPolicyInvalidation(managerA);
+            final ClusterPolicyInvalidation nodeB = new ClusterPolicyInvalidation(managerB);
+            setField(nodeA, "effectivePolicyIndex", mockIndexA);
+            setField(nodeB, "effectivePolicyIndex", mockIndexB);
+            nodeA.init();
+            nodeB.init();
+            assertEquals(2, managerA.getMembers().size());
+
+            nodeA.publish();
+            nodeA.publish();
+            for (int i = 0; i < 100 && nodeB.getReceived() < 2; i++) {
+                Thread.sleep(50);
+            }
+
+            assertEquals(2, nodeB.getReceived());
+            assertEquals(0, nodeA.getReceived());
+            verify(mockIndexA, never()).invalidateFromCluster();
+            verify(mockIndexB, times(2)).invalidateFromCluster();
+            nodeA.close();
+            nodeB.close();
+        } finally {
+            managerA.stop();
+            managerB.stop();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNotClustered() {
+        final EmbeddedCacheManager local = localCacheManager();
+        try {
+            new ClusterPolicyInvalidation(local);
+        } finally {
+            local.stop();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests the decision audit log.
+ */
+public class DecisionAuditLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    private DecisionAuditLog auditLog;
+
+    @Before
+    public void setUp() {
+        file = new File(folder.getRoot(), "audit/decisions.log");
+        auditLog = new DecisionAuditLog(file);
+    }
+
+    @Test
+    public void testRecord() throws Exception {
+        auditLog.start();
+        auditLog.record("user", singleton("admin"), "/{}path", asList("read", "write"),
+                "info:fedora/policies/GlobalRolesPolicySet", true, 120);
+        auditLog.record("user\tname", null, "/{}path", asList("read"), null, false, 80);
+        auditLog.close();
+
+        final List<String> lines = Files.readAllLines(file.toPath(), UTF_8);
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0).endsWith(
+                "\tuser\tadmin\t/{}path\tread,write\tinfo:fedora/policies/GlobalRolesPolicySet\tPERMIT\t120"));
+        assertTrue(lines.get(1).endsWith("\tuser name\t-\t/{}path\tread\t-\tDENY\t80"));
+        assertEquals(2, auditLog.getWrittenCount());
+    }
+
+    @Test
+    public void testDropWhenFull() throws Exception {
+        auditLog.setCapacity(2);
+        assertTrue(auditLog.record("user", null, "/{}path", asList("read"), null, true, 1));
+        assertTrue(auditLog.record("user", null, "/{}path", asList("read"), null, true, 1));
+        assertFalse(auditLog.record("user", null, "/{}path", asList("read"), null, true, 1));
+
+        auditLog.start();
+        auditLog.close();
+
+        assertEquals(1, auditLog.getDroppedCount());
+        assertEquals(2, Files.readAllLines(file.toPath(), UTF_8).size());
+    }
+
+    @Test
+    public void testRotate() throws Exception {
+        auditLog.setMaxFileSize(100);
+        auditLog.setMaxFiles(2);
+        auditLog.start();
+        for (int i = 0; i < 10; i++) {
+            auditLog.record("user", null, "/{}path" + i, asList("read"), null, true, 1);
+        }
+        auditLog.close();
+
+        assertTrue(file.length() <= 100);
+        assertTrue(new File(file.getPath() + ".1").exists());
+        assertTrue(new File(file.getPath() + ".2").exists());
+        assertFalse(new File(file.getPath() + ".3").exists());
+        final List<String> lines = Files.readAllLines(file.toPath(), UTF_8);
+        assertTrue(lines.get(lines.size() - 1).contains("/{}path9"));
+    }
+
+    @Test
+    public void testWriteFailureRecovers() throws Exception {
+        auditLog.setFlushInterval(10);
+        // a directory in place of the file cannot be opened for writing
+        assertTrue(file.mkdirs());
+        auditLog.start();
+        auditLog.record("user", null, "/{}path1", asList("read"), null, true, 1);
+        waitFor(false);
+
+        assertEquals(1, auditLog.getDroppedCount());
+        assertEquals(0, auditLog.getWrittenCount());
+
+        assertTrue(file.delete());
+        auditLog.record("user", null, "/{}path2", asList("read"), null, true, 1);
+        waitFor(true);
+        auditLog.close();
+
+        final List<String> lines = Files.readAllLines(file.toPath(), UTF_8);
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).contains("/{}path2"));
+        assertEquals(1, auditLog.getWrittenCount());
+    }
+
+    @Test
+    public void testWriteFailureOnClose() throws Exception {
+        assertTrue(file.mkdirs());
+        auditLog.record("user", null, "/{}path", asList("read"), null, true, 1);
+        auditLog.record("user", null, "/{}path", asList("read"), null, true, 1);
+        auditLog.start();
+        auditLog.close();
+
+        assertFalse(auditLog.isHealthy());
+        assertEquals(2, auditLog.getDroppedCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorIllegalArg() {
+        new DecisionAuditLog(null);
+    }
+
+    private void waitFor(final boolean healthy) throws InterruptedException {
+        for (int i = 0; i < 500 && (auditLog.isHealthy() != healthy || auditLog.getWrittenCount() +
+                auditLog.getDroppedCount() == 0); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(healthy, auditLog.isHealthy());
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.ObjectName;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the decision trace.
+ */
+public class DecisionTraceTest {
+
+    private DecisionTrace trace;
+
+    @Before
+    public void setUp() {
+        trace = new DecisionTrace();
+        trace.setEnabled(true);
+    }
+
+    @Test
+    public void testDisabled() {
+        trace.setEnabled(false);
+
+        assertFalse(trace.isTraced("user", "/{}path", new String[] {"read"}));
+    }
+
+    @Test
+    public void testFilters() {
+        trace.setPrincipalFilter("user");
+        trace.setPathPrefixFilter("/{}path");
+        trace.setActionFilter("read");
+
+        assertTrue(trace.isTraced("user", "/{}path/{}child", new String[] {"read", "write"}));
+        assertFalse(trace.isTraced("other", "/{}path/{}child", new String[] {"read"}));
+        assertFalse(trace.isTraced("user", "/{}other", new String[] {"read"}));
+        assertFalse(trace.isTraced("user", "/{}path", new String[] {"write"}));
+
+        trace.setPrincipalFilter("");
+        assertTrue(trace.isTraced("other", "/{}path", new String[] {"read"}));
+    }
+
+    @Test
+    public void testSampleRate() {
+        trace.setSampleRate(0);
+
+        assertFalse(trace.isTraced("user", "/{}path", new String[] {"read"}));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSampleRateIllegalArg() {
+        trace.setSampleRate(2);
+    }
+
+    @Test
+    public void testRingBuffer() {
+        trace.setCapacity(3);
+        for (int i = 0; i < 5; i++) {
+            trace.add(record("/{}path" + i));
+        }
+
+        final List<DecisionRecord> decisions = trace.getDecisions();
+        assertEquals(3, decisions.size());
+        assertEquals("/{}path2", decisions.get(0).getPath());
+        assertEquals("/{}path4", decisions.get(2).getPath());
+        assertEquals(5, trace.getTracedCount());
+    }
+
+    @Test
+    public void testChangeCapacity() {
+        trace.setCapacity(3);
+        for (int i = 0; i < 5; i++) {
+            trace.add(record("/{}path" + i));
+        }
+        trace.setCapacity(2);
+        assertEquals(asList("/{}path3", "/{}path4"), paths(trace.getDecisions()));
+
+        trace.setCapacity(4);
+        trace.add(record("/{}path5"));
+        assertEquals(asList("/{}path3", "/{}path4", "/{}path5"), paths(trace.getDecisions()));
+    }
+
+    @Test
+    public void testClear() {
+        trace.add(record("/{}path"));
+        trace.clear();
+
+        assertTrue(trace.getDecisions().isEmpty());
+        assertEquals(0, trace.getTracedCount());
+    }
+
+    @Test
+    public void testRegister() throws Exception {
+        final ObjectName name = new ObjectName(DecisionTrace.OBJECT_NAME);
+        trace.register();
+        try {
+            trace.add(record("/{}path"));
+            assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "TracedCount"));
+        } finally {
+            trace.unregister();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+
+    private static DecisionRecord record(final String path) {
+        return new DecisionRecord("user", singleton("admin"), null, path, new String[] {"read"}, "127.0.0.1",
+                "default");
+    }
+
+    private static List<String> paths(final List<DecisionRecord> decisions) {
+        final List<String> paths = new ArrayList<>();
+        for (final DecisionRecord decision : decisions) {
+            paths.add(decision.getPath());
+        }
+        return paths;
+    }
+}
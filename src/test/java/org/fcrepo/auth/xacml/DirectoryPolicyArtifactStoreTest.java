@@ -0,0 +1,119 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests the directory-backed policy artifact store.
+ */
+public class DirectoryPolicyArtifactStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DirectoryPolicyArtifactStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new DirectoryPolicyArtifactStore(folder.newFolder("artifacts"));
+    }
+
+    @Test
+    public void testPutGet() {
+        final byte[] artifact = new byte[] {1, 2, 3};
+        store.put("/policies/GlobalRolesPolicySet", "urn:sha1:abc", artifact);
+
+        assertEquals(ByteBuffer.wrap(artifact), store.get("/policies/GlobalRolesPolicySet", "urn:sha1:abc"));
+    }
+
+    @Test
+    public void testStaleVersion() {
+        store.put("/policies/GlobalRolesPolicySet", "urn:sha1:abc", new byte[] {1});
+
+        assertNull(store.get("/policies/GlobalRolesPolicySet", "urn:sha1:def"));
+    }
+
+    @Test
+    public void testReplace() {
+        store.put("/policies/GlobalRolesPolicySet", "urn:sha1:abc", new byte[] {1});
+        store.put("/policies/GlobalRolesPolicySet", "urn:sha1:def", new byte[] {2});
+
+        assertEquals(ByteBuffer.wrap(new byte[] {2}), store.get("/policies/GlobalRolesPolicySet", "urn:sha1:def"));
+    }
+
+    @Test
+    public void testMissing() {
+        assertNull(store.get("/policies/None", "urn:sha1:abc"));
+    }
+
+    @Test
+    public void testCorruptLength() throws IOException {
+        store.put("/policies/GlobalRolesPolicySet", "urn:sha1:abc", new byte[] {1, 2, 3});
+        final File file = artifactFile();
+        try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(file.length() - 7);
+            raf.writeInt(Integer.MAX_VALUE);
+        }
+
+        assertNull(store.get("/policies/GlobalRolesPolicySet", "urn:sha1:abc"));
+    }
+
+    @Test
+    public void testNegativeLength() throws IOException {
+        store.put("/policies/GlobalRolesPolicySet", "urn:sha1:abc", new byte[] {1, 2, 3});
+        final File file = artifactFile();
+        try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(file.length() - 7);
+            raf.writeInt(-1);
+        }
+
+        assertNull(store.get("/policies/GlobalRolesPolicySet", "urn:sha1:abc"));
+    }
+
+    @Test
+    public void testTruncated() throws IOException {
+        store.put("/policies/GlobalRolesPolicySet", "urn:sha1:abc", new byte[] {1, 2, 3});
+        final File file = artifactFile();
+        try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(file.length() - 1);
+        }
+
+        assertNull(store.get("/policies/GlobalRolesPolicySet", "urn:sha1:abc"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorIllegalArg() {
+        new DirectoryPolicyArtifactStore(null);
+    }
+
+    private File artifactFile() {
+        final File[] files = new File(folder.getRoot(), "artifacts").listFiles();
+        assertEquals(1, files.length);
+        return files[0];
+    }
+}
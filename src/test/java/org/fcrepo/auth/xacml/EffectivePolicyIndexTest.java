@@ -0,0 +1,269 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static javax.jcr.observation.Event.NODE_REMOVED;
+import static javax.jcr.observation.Event.PROPERTY_ADDED;
+import static javax.jcr.observation.Event.PROPERTY_CHANGED;
+import static org.fcrepo.http.commons.test.util.TestHelpers.setField;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Session;
+import javax.jcr.Workspace;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.ObservationManager;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.QueryResult;
+
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+/**
+ * Tests the index of policy assignments.
+ */
+public class EffectivePolicyIndexTest {
+
+    @Mock
+    private SessionFactory mockSessionFactory;
+
+    @Mock
+    private FedoraPolicyFinderModule mockPolicyFinderModule;
+
+    @Mock
+    private Session mockSession;
+
+    @Mock
+    private Workspace mockWorkspace;
+
+    @Mock
+    private ObservationManager mockObservationManager;
+
+    @Mock
+    private QueryManager mockQueryManager;
+
+    @Mock
+    private Query mockQuery;
+
+    @Mock
+    private QueryResult mockQueryResult;
+
+    @Mock
+    private NodeIterator mockNodes;
+
+    @Mock
+    private Node mockRootNode;
+
+    @Mock
+    private Node mockPolicyNode;
+
+    @Mock
+    private EventIterator mockEvents;
+
+    @Mock
+    private Event mockEvent;
+
+    private EffectivePolicyIndex index;
+
+    @Before
+    public void setUp() throws Exception {
+        initMocks(this);
+        when(mockSessionFactory.getInternalSession()).thenReturn(mockSession);
+        when(mockSession.getWorkspace()).thenReturn(mockWorkspace);
+        when(mockSession.getNamespaceURI("test")).thenReturn("info:test#");
+        when(mockWorkspace.getObservationManager()).thenReturn(mockObservationManager);
+        when(mockWorkspace.getQueryManager()).thenReturn(mockQueryManager);
+        when(mockQueryManager.createQuery(anyString(), anyString())).thenReturn(mockQuery);
+        when(mockQuery.execute()).thenReturn(mockQueryResult);
+        when(mockQueryResult.getNodes()).thenReturn(mockNodes);
+        when(mockNodes.hasNext()).thenReturn(true, true, false);
+        when(mockNodes.nextNode()).thenReturn(mockRootNode, mockPolicyNode);
+        when(mockRootNode.getDepth()).thenReturn(0);
+        when(mockPolicyNode.getDepth()).thenReturn(2);
+        when(mockPolicyNode.getPath()).thenReturn("/test:a/b");
+
+        when(mockEvents.hasNext()).thenReturn(true, false);
+        when(mockEvents.nextEvent()).thenReturn(mockEvent);
+
+        index = new EffectivePolicyIndex();
+        setField(index, "sessionFactory", mockSessionFactory);
+        setField(index, "fedoraPolicyFinderModule", mockPolicyFinderModule);
+    }
+
+    @Test
+    public void testEffectivePolicyNode() {
+        assertEquals("/test:a/b", index.getEffectivePolicyNode("/{info:test#}a/{}b"));
+        assertEquals("/test:a/b", index.getEffectivePolicyNode("/{info:test#}a/b/{info:test#}c/{}d"));
+        assertEquals("/", index.getEffectivePolicyNode("/{info:test#}a"));
+        assertEquals("/", index.getEffectivePolicyNode("/"));
+    }
+
+    @Test
+    public void testPolicyVersion() throws Exception {
+        assertEquals("/test:a/b", index.getPolicyVersion("/{info:test#}a/{}b").getNode());
+        assertEquals(0, index.getPolicyVersion("/{info:test#}a/{}b").getGeneration());
+
+        when(mockPolicyFinderModule.isPolicyPath("/policies/test/jcr:content")).thenReturn(true);
+        when(mockEvent.getType()).thenReturn(PROPERTY_CHANGED);
+        when(mockEvent.getPath()).thenReturn("/policies/test/jcr:content/jcr:data");
+        index.onEvent(mockEvents);
+
+        assertEquals(1, index.getPolicyVersion("/{info:test#}a/{}b").getGeneration());
+    }
+
+    @Test
+    public void testNoRootPolicy() {
+        when(mockNodes.hasNext()).thenReturn(false);
+
+        assertNull(index.getEffectivePolicyNode("/{info:test#}a"));
+    }
+
+    @Test
+    public void testReadOnce() throws Exception {
+        index.getEffectivePolicyNode("/{info:test#}a");
+        index.getEffectivePolicyNode("/{info:test#}c");
+
+        verify(mockQuery).execute();
+        verify(mockObservationManager).addEventListener(index, PROPERTY_ADDED | PROPERTY_CHANGED
+                | Event.PROPERTY_REMOVED | NODE_REMOVED | Event.NODE_MOVED, "/", true, null, null, false);
+    }
+
+    @Test
+    public void testPolicyAssigned() throws Exception {
+        index.getEffectivePolicyNode("/{info:test#}a");
+        when(mockEvent.getType()).thenReturn(PROPERTY_ADDED);
+        when(mockEvent.getPath()).thenReturn("/test:a/authz:policy");
+
+        index.onEvent(mockEvents);
+        index.getEffectivePolicyNode("/{info:test#}a");
+
+        assertEquals(1, index.getGeneration());
+        verify(mockQuery, times(2)).execute();
+        verify(mockPolicyFinderModule).precompileAssigned("/test:a/authz:policy");
+    }
+
+    @Test
+    public void testPolicyContentChanged() throws Exception {
+        index.getEffectivePolicyNode("/{info:test#}a");
+        when(mockPolicyFinderModule.isPolicyPath("/policies/test/jcr:content")).thenReturn(true);
+        when(mockEvent.getType()).thenReturn(PROPERTY_CHANGED);
+        when(mockEvent.getPath()).thenReturn("/policies/test/jcr:content/jcr:data");
+
+        index.onEvent(mockEvents);
+        index.getEffectivePolicyNode("/{info:test#}a");
+
+        assertEquals(1, index.getGeneration());
+        verify(mockQuery).execute();
+        verify(mockPolicyFinderModule).precompile("/policies/test/jcr:content");
+    }
+
+    @Test
+    public void testPolicyContentPrecompiledOnce() throws Exception {
+        when(mockPolicyFinderModule.isPolicyPath("/policies/test/jcr:content")).thenReturn(true);
+        when(mockEvents.hasNext()).thenReturn(true, true, false);
+        when(mockEvent.getType()).thenReturn(PROPERTY_CHANGED);
+        when(mockEvent.getPath()).thenReturn("/policies/test/jcr:content/jcr:data",
+                "/policies/test/jcr:content/jcr:mimeType");
+
+        index.onEvent(mockEvents);
+
+        assertEquals(2, index.getGeneration());
+        verify(mockPolicyFinderModule).precompile("/policies/test/jcr:content");
+    }
+
+    @Test
+    public void testPolicyUnassigned() throws Exception {
+        when(mockEvent.getType()).thenReturn(Event.PROPERTY_REMOVED);
+        when(mockEvent.getPath()).thenReturn("/test:a/authz:policy");
+
+        index.onEvent(mockEvents);
+
+        assertEquals(1, index.getGeneration());
+        verify(mockPolicyFinderModule, never()).precompileAssigned(anyString());
+    }
+
+    @Test
+    public void testUnrelatedChange() throws Exception {
+        index.getEffectivePolicyNode("/{info:test#}a");
+        when(mockEvent.getType()).thenReturn(PROPERTY_CHANGED);
+        when(mockEvent.getPath()).thenReturn("/test:c/jcr:data");
+
+        index.onEvent(mockEvents);
+
+        assertEquals(0, index.getGeneration());
+    }
+
+    @Test
+    public void testPolicyNodeRemoved() throws Exception {
+        index.getEffectivePolicyNode("/{info:test#}a");
+        when(mockEvent.getType()).thenReturn(NODE_REMOVED);
+        when(mockEvent.getPath()).thenReturn("/test:a");
+
+        index.onEvent(mockEvents);
+
+        assertEquals(1, index.getGeneration());
+    }
+
+    @Test
+    public void testPolicyChangePublished() throws Exception {
+        final ClusterPolicyInvalidation mockCluster = mock(ClusterPolicyInvalidation.class);
+        setField(index, "clusterPolicyInvalidation", mockCluster);
+        index.getEffectivePolicyNode("/{info:test#}a");
+        when(mockEvent.getType()).thenReturn(PROPERTY_ADDED);
+        when(mockEvent.getPath()).thenReturn("/test:a/authz:policy");
+
+        index.onEvent(mockEvents);
+
+        verify(mockCluster).publish();
+    }
+
+    @Test
+    public void testUnrelatedChangeNotPublished() throws Exception {
+        final ClusterPolicyInvalidation mockCluster = mock(ClusterPolicyInvalidation.class);
+        setField(index, "clusterPolicyInvalidation", mockCluster);
+        index.getEffectivePolicyNode("/{info:test#}a");
+        when(mockEvent.getType()).thenReturn(PROPERTY_CHANGED);
+        when(mockEvent.getPath()).thenReturn("/test:c/jcr:data");
+
+        index.onEvent(mockEvents);
+
+        verify(mockCluster, never()).publish();
+    }
+
+    @Test
+    public void testInvalidateFromCluster() throws Exception {
+        index.getEffectivePolicyNode("/{info:test#}a");
+
+        index.invalidateFromCluster();
+        index.getEffectivePolicyNode("/{info:test#}a");
+
+        assertEquals(1, index.getGeneration());
+        verify(mockQuery, times(2)).execute();
+    }
+}
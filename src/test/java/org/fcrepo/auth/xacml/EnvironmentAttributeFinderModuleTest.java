@@ -0,0 +1,165 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.util.Collections.singletonMap;
+import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_ENVIRONMENT_CURRENT_DATE;
+import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_ENVIRONMENT_CURRENT_DATETIME;
+import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_ENVIRONMENT_CURRENT_TIME;
+import static org.fcrepo.auth.xacml.URIConstants.XML_SCHEMA_STRING;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.ENVIRONMENT_TARGET;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.SUBJECT_TARGET;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+
+import org.jboss.security.xacml.sunxacml.attr.BagAttribute;
+import org.jboss.security.xacml.sunxacml.attr.DateAttribute;
+import org.jboss.security.xacml.sunxacml.attr.DateTimeAttribute;
+import org.jboss.security.xacml.sunxacml.attr.StringAttribute;
+import org.jboss.security.xacml.sunxacml.attr.TimeAttribute;
+import org.jboss.security.xacml.sunxacml.cond.EvaluationResult;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EnvironmentAttributeFinderModuleTest {
+
+    private static final URI TIME = URI.create(TimeAttribute.identifier);
+
+    private static final URI DATE = URI.create(DateAttribute.identifier);
+
+    private static final URI DATETIME = URI.create(DateTimeAttribute.identifier);
+
+    private static final URI MAINTENANCE = URI.create("urn:fedora:xacml:2.0:environment:maintenance-mode");
+
+    private EnvironmentAttributeFinderModule module;
+
+    @Before
+    public void setUp() {
+        module = new EnvironmentAttributeFinderModule();
+    }
+
+    @Test
+    public void testCurrentTimeShared() {
+        module.setResolution(60000);
+
+        final EvaluationResult time = find(TIME, ATTRIBUTEID_ENVIRONMENT_CURRENT_TIME);
+        assertTrue(time.getAttributeValue() instanceof BagAttribute);
+        assertTrue(((BagAttribute) time.getAttributeValue()).iterator().next() instanceof TimeAttribute);
+        assertSame(time, find(TIME, ATTRIBUTEID_ENVIRONMENT_CURRENT_TIME));
+        assertSame(find(DATE, ATTRIBUTEID_ENVIRONMENT_CURRENT_DATE), find(DATE, ATTRIBUTEID_ENVIRONMENT_CURRENT_DATE));
+        assertSame(find(DATETIME, ATTRIBUTEID_ENVIRONMENT_CURRENT_DATETIME),
+                find(DATETIME, ATTRIBUTEID_ENVIRONMENT_CURRENT_DATETIME));
+    }
+
+    @Test
+    public void testClockAdvances() throws InterruptedException {
+        module.setResolution(1);
+        final EvaluationResult time = find(TIME, ATTRIBUTEID_ENVIRONMENT_CURRENT_TIME);
+
+        Thread.sleep(5);
+
+        assertNotSame(time, find(TIME, ATTRIBUTEID_ENVIRONMENT_CURRENT_TIME));
+    }
+
+    @Test
+    public void testDefaultResolution() throws InterruptedException {
+        final EvaluationResult time = find(TIME, ATTRIBUTEID_ENVIRONMENT_CURRENT_TIME);
+
+        Thread.sleep(5);
+
+        assertNotSame(time, find(TIME, ATTRIBUTEID_ENVIRONMENT_CURRENT_TIME));
+    }
+
+    @Test
+    public void testCurrentTimeNotRoundedDown() {
+        module.setResolution(3600000);
+        final long before = System.currentTimeMillis();
+
+        final EvaluationResult dateTime = find(DATETIME, ATTRIBUTEID_ENVIRONMENT_CURRENT_DATETIME);
+
+        final DateTimeAttribute value =
+                (DateTimeAttribute) ((BagAttribute) dateTime.getAttributeValue()).iterator().next();
+        assertTrue(value.getValue().getTime() >= before);
+    }
+
+    @Test
+    public void testCurrentTimeOtherType() {
+        assertTrue(isEmpty(find(XML_SCHEMA_STRING, ATTRIBUTEID_ENVIRONMENT_CURRENT_TIME)));
+    }
+
+    @Test
+    public void testDeploymentAttribute() {
+        module.setAttributes(singletonMap(MAINTENANCE.toString(), "true"));
+
+        final EvaluationResult maintenance = find(XML_SCHEMA_STRING, MAINTENANCE);
+        assertEquals(new StringAttribute("true"),
+                ((BagAttribute) maintenance.getAttributeValue()).iterator().next());
+        assertSame(maintenance, find(XML_SCHEMA_STRING, MAINTENANCE));
+    }
+
+    @Test
+    public void testSetAttribute() {
+        module.setAttribute(MAINTENANCE.toString(), "true");
+        find(XML_SCHEMA_STRING, MAINTENANCE);
+
+        module.setAttribute(MAINTENANCE.toString(), "false");
+        assertEquals(new StringAttribute("false"),
+                ((BagAttribute) find(XML_SCHEMA_STRING, MAINTENANCE).getAttributeValue()).iterator().next());
+        assertEquals(singletonMap(MAINTENANCE.toString(), "false"), module.getAttributes());
+
+        module.setAttribute(MAINTENANCE.toString(), null);
+        assertTrue(isEmpty(find(XML_SCHEMA_STRING, MAINTENANCE)));
+    }
+
+    @Test
+    public void testUndefinedAttribute() {
+        assertTrue(isEmpty(find(XML_SCHEMA_STRING, MAINTENANCE)));
+    }
+
+    @Test
+    public void testUnknownType() {
+        module.setAttributes(singletonMap(MAINTENANCE.toString(), "true"));
+
+        assertTrue(find(URI.create("http://example.org/unknown-type"), MAINTENANCE).indeterminate());
+    }
+
+    @Test
+    public void testOtherDesignator() {
+        module.setAttributes(singletonMap(MAINTENANCE.toString(), "true"));
+
+        final EvaluationResult result = module.findAttribute(XML_SCHEMA_STRING, MAINTENANCE, null, null, null,
+                SUBJECT_TARGET);
+
+        assertTrue(isEmpty(result));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetResolutionIllegalArg() {
+        module.setResolution(0);
+    }
+
+    private EvaluationResult find(final URI type, final URI id) {
+        return module.findAttribute(type, id, null, null, null, ENVIRONMENT_TARGET);
+    }
+
+    private static boolean isEmpty(final EvaluationResult result) {
+        return ((BagAttribute) result.getAttributeValue()).isEmpty();
+    }
+}
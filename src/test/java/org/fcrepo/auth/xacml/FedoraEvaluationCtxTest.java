@@ -0,0 +1,154 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
+import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_ACTION_ID;
+import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_RESOURCE_ID;
+import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_RESOURCE_WORKSPACE;
+import static org.fcrepo.auth.xacml.URIConstants.FCREPO_SUBJECT_GROUP;
+import static org.fcrepo.auth.xacml.URIConstants.FCREPO_SUBJECT_ROLE;
+import static org.fcrepo.auth.xacml.URIConstants.SUBJECT_CATEGORY_ACCESS_SUBJECT;
+import static org.fcrepo.auth.xacml.URIConstants.XML_SCHEMA_STRING;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.ENVIRONMENT_TARGET;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.RESOURCE_TARGET;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.SUBJECT_TARGET;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.net.URI;
+import java.util.Collections;
+
+import org.jboss.security.xacml.sunxacml.EvaluationCtx;
+import org.jboss.security.xacml.sunxacml.attr.AttributeValue;
+import org.jboss.security.xacml.sunxacml.attr.StringAttribute;
+import org.jboss.security.xacml.sunxacml.cond.EvaluationResult;
+import org.jboss.security.xacml.sunxacml.finder.AttributeFinder;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+/**
+ * Tests the evaluation context of Fedora requests.
+ */
+public class FedoraEvaluationCtxTest {
+
+    private static final URI MIME_TYPE = URI.create("info:fedora/test/mimeType");
+
+    @Mock
+    private AttributeFinder mockFinder;
+
+    @Mock
+    private EvaluationResult mockFound;
+
+    private FedoraEvaluationCtx ctx;
+
+    @Before
+    public void setUp() {
+        initMocks(this);
+        when(mockFinder.findAttribute(any(URI.class), any(URI.class), any(URI.class), any(URI.class),
+                any(EvaluationCtx.class), anyInt())).thenReturn(mockFound);
+        ctx = new FedoraEvaluationCtx(mockFinder, "user", singleton("reader"), asList("group"), "/{}path",
+                "default", asList("read"), "127.0.0.1");
+    }
+
+    @Test
+    public void testRequestAttributes() {
+        final EvaluationResult roles =
+                ctx.getSubjectAttribute(XML_SCHEMA_STRING, FCREPO_SUBJECT_ROLE, SUBJECT_CATEGORY_ACCESS_SUBJECT);
+        assertNotNull(roles);
+        assertSame(roles,
+                ctx.getSubjectAttribute(XML_SCHEMA_STRING, FCREPO_SUBJECT_ROLE, SUBJECT_CATEGORY_ACCESS_SUBJECT));
+        assertNotSame(mockFound,
+                ctx.getSubjectAttribute(XML_SCHEMA_STRING, FCREPO_SUBJECT_GROUP, SUBJECT_CATEGORY_ACCESS_SUBJECT));
+        assertNotSame(mockFound, ctx.getResourceAttribute(XML_SCHEMA_STRING, ATTRIBUTEID_RESOURCE_ID, null));
+        assertNotSame(mockFound, ctx.getResourceAttribute(XML_SCHEMA_STRING, ATTRIBUTEID_RESOURCE_WORKSPACE, null));
+        assertNotSame(mockFound, ctx.getActionAttribute(XML_SCHEMA_STRING, ATTRIBUTEID_ACTION_ID, null));
+
+        verify(mockFinder, never()).findAttribute(any(URI.class), any(URI.class), any(URI.class), any(URI.class),
+                any(EvaluationCtx.class), anyInt());
+    }
+
+    @Test
+    public void testFinderAttributes() {
+        assertSame(mockFound, ctx.getResourceAttribute(XML_SCHEMA_STRING, MIME_TYPE, null));
+        assertSame(mockFound, ctx.getEnvironmentAttribute(XML_SCHEMA_STRING, MIME_TYPE, null));
+
+        verify(mockFinder).findAttribute(XML_SCHEMA_STRING, MIME_TYPE, null, null, ctx, RESOURCE_TARGET);
+        verify(mockFinder).findAttribute(XML_SCHEMA_STRING, MIME_TYPE, null, null, ctx, ENVIRONMENT_TARGET);
+    }
+
+    @Test
+    public void testOtherTypeIssuerOrCategory() {
+        final URI otherCategory = URI.create("urn:oasis:names:tc:xacml:1.0:subject-category:recipient-subject");
+        final URI anyUri = URI.create("http://www.w3.org/2001/XMLSchema#anyURI");
+
+        assertSame(mockFound, ctx.getSubjectAttribute(XML_SCHEMA_STRING, FCREPO_SUBJECT_ROLE, otherCategory));
+        assertSame(mockFound, ctx.getSubjectAttribute(anyUri, FCREPO_SUBJECT_ROLE, SUBJECT_CATEGORY_ACCESS_SUBJECT));
+        assertSame(mockFound, ctx.getSubjectAttribute(XML_SCHEMA_STRING, FCREPO_SUBJECT_ROLE, anyUri,
+                SUBJECT_CATEGORY_ACCESS_SUBJECT));
+
+        verify(mockFinder).findAttribute(XML_SCHEMA_STRING, FCREPO_SUBJECT_ROLE, null, otherCategory, ctx,
+                SUBJECT_TARGET);
+    }
+
+    @Test
+    public void testNoGroups() {
+        ctx = new FedoraEvaluationCtx(mockFinder, null, singleton("reader"), Collections.<String>emptyList(),
+                "/{}path", null, asList("read"), null);
+
+        assertSame(mockFound,
+                ctx.getSubjectAttribute(XML_SCHEMA_STRING, FCREPO_SUBJECT_GROUP, SUBJECT_CATEGORY_ACCESS_SUBJECT));
+    }
+
+    @Test
+    public void testResourceId() {
+        final AttributeValue other = new StringAttribute("/{}other");
+        final EvaluationResult before = ctx.getResourceAttribute(XML_SCHEMA_STRING, ATTRIBUTEID_RESOURCE_ID, null);
+
+        ctx.setResourceId(other);
+
+        assertSame(other, ctx.getResourceId());
+        assertNotSame(before, ctx.getResourceAttribute(XML_SCHEMA_STRING, ATTRIBUTEID_RESOURCE_ID, null));
+        assertEquals(EvaluationCtx.SCOPE_IMMEDIATE, ctx.getScope());
+    }
+
+    @Test
+    public void testAttributeDependent() {
+        ctx.getSubjectAttribute(XML_SCHEMA_STRING, FCREPO_SUBJECT_ROLE, SUBJECT_CATEGORY_ACCESS_SUBJECT);
+        ctx.getActionAttribute(XML_SCHEMA_STRING, ATTRIBUTEID_ACTION_ID, null);
+        assertFalse(ctx.isAttributeDependent());
+
+        ctx.getResourceAttribute(XML_SCHEMA_STRING, MIME_TYPE, null);
+        assertTrue(ctx.isAttributeDependent());
+
+        ctx.resetAttributeUse();
+        assertFalse(ctx.isAttributeDependent());
+        ctx.getCurrentDateTime();
+        assertTrue(ctx.isAttributeDependent());
+    }
+}
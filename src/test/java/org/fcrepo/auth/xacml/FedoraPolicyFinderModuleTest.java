@@ -15,21 +15,30 @@
  */
 package org.fcrepo.auth.xacml;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.fcrepo.auth.xacml.URIConstants.POLICY_URI_PREFIX;
 import static org.fcrepo.auth.xacml.URIConstants.XACML_POLICY_PROPERTY;
 import static org.fcrepo.http.commons.test.util.TestHelpers.setField;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -43,6 +52,7 @@ import org.fcrepo.kernel.FedoraBinary;
 import org.fcrepo.kernel.services.BinaryService;
 import org.jboss.security.xacml.sunxacml.EvaluationCtx;
 import org.jboss.security.xacml.sunxacml.PolicyReference;
+import org.jboss.security.xacml.sunxacml.PolicySet;
 import org.jboss.security.xacml.sunxacml.attr.AttributeValue;
 import org.jboss.security.xacml.sunxacml.combine.PolicyCombinerElement;
 import org.jboss.security.xacml.sunxacml.finder.AttributeFinderModule;
@@ -51,6 +61,7 @@ import org.jboss.security.xacml.sunxacml.finder.PolicyFinderResult;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
+import org.w3c.dom.Document;
 
 /**
  * @author Andrew Woods
@@ -107,6 +118,7 @@ public class FedoraPolicyFinderModuleTest {
         when(context.getResourceId()).thenReturn(mockResourceId);
 
         when(mockSessionFactory.getInternalSession()).thenReturn(mockSession);
+        when(mockSession.nodeExists(anyString())).thenReturn(true);
         when(mockSession.getNode(anyString())).thenReturn(mockNode);
 
         when(mockNode.getParent()).thenReturn(mockParentNode);
@@ -170,6 +182,61 @@ public class FedoraPolicyFinderModuleTest {
         assertNotNull(result.getPolicy());
     }
 
+    @Test
+    public void testFindPolicyByIdReferenceCached() throws Exception {
+        final String policyPath = "/path/to/policy";
+        final URI idReference = new URI(POLICY_URI_PREFIX + policyPath);
+
+        when(mockPolicyBinary.getPath()).thenReturn(policyPath);
+        when(mockPolicyBinary.getContentDigest()).thenReturn(new URI("urn:sha1:abc"));
+        when(mockPolicyBinary.getContent()).thenReturn(this.getClass().getResourceAsStream("/xacml/testPolicy.xml"));
+        when(mockBinaryService.findOrCreateBinary(any(Session.class), eq(policyPath))).thenReturn(mockPolicyBinary);
+
+        final PolicyFinderResult first = finderModule.findPolicy(idReference, 0, null, null);
+        final PolicyFinderResult second = finderModule.findPolicy(idReference, 0, null, null);
+
+        assertNotNull(first.getPolicy());
+        assertSame(first.getPolicy(), second.getPolicy());
+        verify(mockPolicyBinary, times(1)).getContent();
+    }
+
+    @Test
+    public void testFindPolicyByIdReferenceChanged() throws Exception {
+        final String policyPath = "/path/to/policy";
+        final URI idReference = new URI(POLICY_URI_PREFIX + policyPath);
+
+        when(mockPolicyBinary.getPath()).thenReturn(policyPath);
+        when(mockPolicyBinary.getContentDigest()).thenReturn(new URI("urn:sha1:abc"), new URI("urn:sha1:def"));
+        when(mockPolicyBinary.getContent()).thenReturn(this.getClass().getResourceAsStream("/xacml/testPolicy.xml"),
+                this.getClass().getResourceAsStream("/xacml/testPolicy.xml"));
+        when(mockBinaryService.findOrCreateBinary(any(Session.class), eq(policyPath))).thenReturn(mockPolicyBinary);
+
+        finderModule.findPolicy(idReference, 0, null, null);
+        finderModule.findPolicy(idReference, 0, null, null);
+
+        verify(mockPolicyBinary, times(2)).getContent();
+    }
+
+    @Test
+    public void testFindPolicyFromArtifact() throws Exception {
+        final String policyPath = "/path/to/policy";
+        final URI idReference = new URI(POLICY_URI_PREFIX + policyPath);
+        final PolicyArtifactStore store = mock(PolicyArtifactStore.class);
+        final Document doc = PolicyUtil.parse(this.getClass().getResourceAsStream("/xacml/testPolicy.xml"));
+        final ByteBuffer artifact = ByteBuffer.wrap(PolicyCodec.encode(doc.getDocumentElement()));
+        when(store.get(policyPath, "urn:sha1:abc")).thenReturn(artifact);
+        setField(finderModule, "artifactStore", store);
+
+        when(mockPolicyBinary.getPath()).thenReturn(policyPath);
+        when(mockPolicyBinary.getContentDigest()).thenReturn(new URI("urn:sha1:abc"));
+        when(mockBinaryService.findOrCreateBinary(any(Session.class), eq(policyPath))).thenReturn(mockPolicyBinary);
+
+        final PolicyFinderResult result = finderModule.findPolicy(idReference, 0, null, null);
+
+        assertNotNull(result.getPolicy());
+        verify(mockPolicyBinary, never()).getContent();
+    }
+
     @Test
     public void testFindPolicySet() throws Exception {
 
@@ -206,5 +273,228 @@ public class FedoraPolicyFinderModuleTest {
         assertEquals("URI for policy reference was not the expected value", "fcrepo:policies/AdminPermissionPolicySet",
                 policyRef.getReference().toString());
     }
-}
 
+    @Test
+    public void testFindPolicyNotInherited() throws Exception {
+        when(mockNode.hasProperty(eq(XACML_POLICY_PROPERTY))).thenReturn(true);
+        when(mockNode.getProperty(eq(XACML_POLICY_PROPERTY))).thenReturn(mockPolicyProperty);
+        when(mockPolicyBinary.getContent()).thenReturn(this.getClass().getResourceAsStream("/xacml/testPolicy.xml"));
+
+        final FedoraEvaluationCtxBuilder ctxBuilder = new FedoraEvaluationCtxBuilder();
+        ctxBuilder.addResourceID("/{}myPath");
+        ctxBuilder.addSubject("test", new HashSet<String>());
+
+        final PolicyFinderResult result = finderModule.findPolicy(ctxBuilder.build());
+
+        assertNotNull(result.getPolicy());
+        verify(mockParentNode, never()).hasProperty(XACML_POLICY_PROPERTY);
+    }
+
+    @Test
+    public void testFindPolicyInherited() throws Exception {
+        finderModule.setInheritPolicies(true);
+
+        when(mockNode.getDepth()).thenReturn(1);
+        when(mockNode.getPath()).thenReturn("/myPath");
+        when(mockNode.hasProperty(eq(XACML_POLICY_PROPERTY))).thenReturn(true);
+        when(mockNode.getProperty(eq(XACML_POLICY_PROPERTY))).thenReturn(mockPolicyProperty);
+        when(mockPolicyBinary.getPath()).thenReturn("/policies/nearest");
+        when(mockPolicyBinary.getContentDigest()).thenReturn(new URI("urn:sha1:abc"));
+        when(mockPolicyBinary.getContent()).thenReturn(this.getClass().getResourceAsStream("/xacml/testPolicy.xml"));
+
+        final Property parentPolicyProperty = mock(Property.class);
+        final Node parentPolicyNode = mock(Node.class);
+        final FedoraBinary parentPolicyBinary = mock(FedoraBinary.class);
+        when(mockParentNode.getDepth()).thenReturn(0);
+        when(mockParentNode.hasProperty(eq(XACML_POLICY_PROPERTY))).thenReturn(true);
+        when(mockParentNode.getProperty(eq(XACML_POLICY_PROPERTY))).thenReturn(parentPolicyProperty);
+        when(parentPolicyProperty.getNode()).thenReturn(parentPolicyNode);
+        when(mockBinaryService.asBinary(parentPolicyNode)).thenReturn(parentPolicyBinary);
+        when(parentPolicyBinary.getPath()).thenReturn("/policies/root");
+        when(parentPolicyBinary.getContentDigest()).thenReturn(new URI("urn:sha1:def"));
+        when(parentPolicyBinary.getContent()).thenReturn(this.getClass().getResourceAsStream("/xacml/testPolicy.xml"));
+
+        final FedoraEvaluationCtxBuilder ctxBuilder = new FedoraEvaluationCtxBuilder();
+        ctxBuilder.addResourceID("/{}myPath");
+        ctxBuilder.addSubject("test", new HashSet<String>());
+
+        final PolicyFinderResult first = finderModule.findPolicy(ctxBuilder.build());
+        final PolicyFinderResult second = finderModule.findPolicy(ctxBuilder.build());
+
+        assertFalse(first.notApplicable());
+        assertFalse(first.indeterminate());
+        assertTrue(first.getPolicy() instanceof PolicySet);
+        assertEquals(2, first.getPolicy().getChildren().size());
+        assertSame(first.getPolicy(), second.getPolicy());
+        verify(parentPolicyBinary, times(1)).getContent();
+    }
+
+    @Test
+    public void testFindPolicyInheritedInvalid() throws Exception {
+        finderModule.setInheritPolicies(true);
+
+        when(mockNode.getDepth()).thenReturn(1);
+        when(mockNode.getPath()).thenReturn("/myPath");
+        when(mockNode.hasProperty(eq(XACML_POLICY_PROPERTY))).thenReturn(true);
+        when(mockNode.getProperty(eq(XACML_POLICY_PROPERTY))).thenReturn(mockPolicyProperty);
+        when(mockPolicyBinary.getPath()).thenReturn("/policies/nearest");
+        when(mockPolicyBinary.getContentDigest()).thenReturn(new URI("urn:sha1:abc"));
+        when(mockPolicyBinary.getContent()).thenReturn(this.getClass().getResourceAsStream("/xacml/testPolicy.xml"));
+
+        final Property parentPolicyProperty = mock(Property.class);
+        final Node parentPolicyNode = mock(Node.class);
+        final FedoraBinary parentPolicyBinary = mock(FedoraBinary.class);
+        when(mockParentNode.getDepth()).thenReturn(0);
+        when(mockParentNode.hasProperty(eq(XACML_POLICY_PROPERTY))).thenReturn(true);
+        when(mockParentNode.getProperty(eq(XACML_POLICY_PROPERTY))).thenReturn(parentPolicyProperty);
+        when(parentPolicyProperty.getNode()).thenReturn(parentPolicyNode);
+        when(mockBinaryService.asBinary(parentPolicyNode)).thenReturn(parentPolicyBinary);
+        when(parentPolicyBinary.getPath()).thenReturn("/policies/root");
+        when(parentPolicyBinary.getContentDigest()).thenReturn(new URI("urn:sha1:def"));
+        when(parentPolicyBinary.getContent()).thenReturn(invalidPolicy());
+
+        final FedoraEvaluationCtxBuilder ctxBuilder = new FedoraEvaluationCtxBuilder();
+        ctxBuilder.addResourceID("/{}myPath");
+        ctxBuilder.addSubject("test", new HashSet<String>());
+
+        final PolicyFinderResult result = finderModule.findPolicy(ctxBuilder.build());
+
+        // an ancestor policy that is left out could have denied the request
+        assertTrue(result.indeterminate());
+        assertNull(result.getPolicy());
+    }
+
+    @Test
+    public void testFindPolicyInvalid() throws Exception {
+        when(mockNode.hasProperty(eq(XACML_POLICY_PROPERTY))).thenReturn(true);
+        when(mockNode.getProperty(eq(XACML_POLICY_PROPERTY))).thenReturn(mockPolicyProperty);
+        when(mockPolicyBinary.getPath()).thenReturn("/path/to/policy");
+        when(mockPolicyBinary.getContentDigest()).thenReturn(new URI("urn:sha1:abc"));
+        when(mockPolicyBinary.getContent()).thenReturn(invalidPolicy());
+
+        final FedoraEvaluationCtxBuilder ctxBuilder = new FedoraEvaluationCtxBuilder();
+        ctxBuilder.addResourceID("/{}myPath");
+        ctxBuilder.addSubject("test", new HashSet<String>());
+
+        final PolicyFinderResult result = finderModule.findPolicy(ctxBuilder.build());
+
+        assertTrue(result.indeterminate());
+    }
+
+    @Test
+    public void testFindPolicyRejectedOnce() throws Exception {
+        final String policyPath = "/path/to/policy";
+        final URI idReference = new URI(POLICY_URI_PREFIX + policyPath);
+        when(mockPolicyBinary.getPath()).thenReturn(policyPath);
+        when(mockPolicyBinary.getContentDigest()).thenReturn(new URI("urn:sha1:abc"));
+        when(mockPolicyBinary.getContent()).thenReturn(invalidPolicy());
+        when(mockBinaryService.findOrCreateBinary(any(Session.class), eq(policyPath))).thenReturn(mockPolicyBinary);
+
+        finderModule.findPolicy(idReference, 0, null, null);
+        finderModule.findPolicy(idReference, 0, null, null);
+
+        verify(mockPolicyBinary, times(1)).getContent();
+    }
+
+    @Test
+    public void testFindPolicyRejectedFailsClosed() throws Exception {
+        final String policyPath = "/path/to/policy";
+        final URI idReference = new URI(POLICY_URI_PREFIX + policyPath);
+        when(mockPolicyBinary.getPath()).thenReturn(policyPath);
+        when(mockPolicyBinary.getContentDigest()).thenReturn(new URI("urn:sha1:abc"), new URI("urn:sha1:def"));
+        when(mockPolicyBinary.getContent()).thenReturn(this.getClass().getResourceAsStream("/xacml/testPolicy.xml"),
+                invalidPolicy());
+        when(mockBinaryService.findOrCreateBinary(any(Session.class), eq(policyPath))).thenReturn(mockPolicyBinary);
+
+        final PolicyFinderResult valid = finderModule.findPolicy(idReference, 0, null, null);
+        final PolicyFinderResult rejected = finderModule.findPolicy(idReference, 0, null, null);
+        final PolicyFinderResult again = finderModule.findPolicy(idReference, 0, null, null);
+
+        // the previous valid version is not used, whether or not it is still cached
+        assertNotNull(valid.getPolicy());
+        assertNull(rejected.getPolicy());
+        assertTrue(rejected.indeterminate());
+        assertTrue(again.indeterminate());
+    }
+
+    @Test
+    public void testGetPolicyElementRejected() throws Exception {
+        when(mockPolicyBinary.getPath()).thenReturn("/path/to/policy");
+        when(mockPolicyBinary.getContentDigest()).thenReturn(new URI("urn:sha1:abc"));
+        when(mockPolicyBinary.getContent()).thenReturn(invalidPolicy());
+
+        assertNull(finderModule.getPolicyElement(mockPolicyBinary));
+        assertNull(finderModule.getPolicyElement(mockPolicyBinary));
+
+        verify(mockPolicyBinary, times(1)).getContent();
+    }
+
+    @Test
+    public void testPrecompile() throws Exception {
+        when(mockBinaryService.asBinary(mockNode)).thenReturn(mockPolicyBinary);
+        when(mockPolicyBinary.getPath()).thenReturn("/path/to/policy");
+        when(mockPolicyBinary.getContentDigest()).thenReturn(new URI("urn:sha1:abc"));
+        when(mockPolicyBinary.getContent()).thenReturn(this.getClass().getResourceAsStream("/xacml/testPolicy.xml"));
+
+        assertTrue(finderModule.precompile("/path/to/policy"));
+        assertTrue(finderModule.isPolicyPath("/path/to/policy"));
+        verify(mockSession).logout();
+    }
+
+    @Test
+    public void testPrecompileInvalid() throws Exception {
+        when(mockBinaryService.asBinary(mockNode)).thenReturn(mockPolicyBinary);
+        when(mockPolicyBinary.getPath()).thenReturn("/path/to/policy");
+        when(mockPolicyBinary.getContentDigest()).thenReturn(new URI("urn:sha1:abc"));
+        when(mockPolicyBinary.getContent()).thenReturn(invalidPolicy());
+        when(mockBinaryService.findOrCreateBinary(any(Session.class), eq("/path/to/policy")))
+                .thenReturn(mockPolicyBinary);
+
+        assertFalse(finderModule.precompile("/path/to/policy"));
+        finderModule.findPolicy(new URI(POLICY_URI_PREFIX + "/path/to/policy"), 0, null, null);
+
+        verify(mockPolicyBinary, times(1)).getContent();
+    }
+
+    @Test
+    public void testPrecompileAssigned() throws Exception {
+        when(mockSession.propertyExists("/path/authz:policy")).thenReturn(true);
+        when(mockSession.getProperty("/path/authz:policy")).thenReturn(mockPolicyProperty);
+        when(mockPolicyBinary.getPath()).thenReturn("/path/to/policy");
+        when(mockPolicyBinary.getContentDigest()).thenReturn(new URI("urn:sha1:abc"));
+        when(mockPolicyBinary.getContent()).thenReturn(this.getClass().getResourceAsStream("/xacml/testPolicy.xml"));
+
+        assertTrue(finderModule.precompileAssigned("/path/authz:policy"));
+    }
+
+    @Test
+    public void testPrecompileMissing() throws Exception {
+        when(mockSession.nodeExists("/path/to/policy")).thenReturn(false);
+
+        assertFalse(finderModule.precompile("/path/to/policy"));
+    }
+
+    @Test
+    public void testReadsResourceProperties() throws Exception {
+        assertTrue(FedoraPolicyFinderModule.readsResourceProperties(PolicyUtil.parse(this.getClass()
+                .getResourceAsStream("/policies/WriteNormalNodePermissionPolicySet.xml")).getDocumentElement()));
+        assertFalse(FedoraPolicyFinderModule.readsResourceProperties(PolicyUtil.parse(this.getClass()
+                .getResourceAsStream("/xacml/testPolicy.xml")).getDocumentElement()));
+        // the resource ID is in the request
+        assertFalse(FedoraPolicyFinderModule.readsResourceProperties(PolicyUtil.parse(new ByteArrayInputStream(
+                ("<Policy xmlns=\"urn:oasis:names:tc:xacml:2.0:policy:schema:os\" PolicyId=\"p\">" +
+                "<ResourceAttributeDesignator AttributeId=\"urn:oasis:names:tc:xacml:1.0:resource:resource-id\"" +
+                " DataType=\"http://www.w3.org/2001/XMLSchema#string\"/></Policy>").getBytes(UTF_8)))
+                .getDocumentElement()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInheritanceCombiningAlgorithmUnknown() {
+        finderModule.setInheritanceCombiningAlgorithm("urn:example:no-such-algorithm");
+    }
+
+    private static InputStream invalidPolicy() {
+        return new ByteArrayInputStream("<Policy xmlns=\"urn:example:not-xacml\" PolicyId=\"invalid\"/>"
+                .getBytes(UTF_8));
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static org.fcrepo.auth.xacml.XACMLTestUtil.clusteredCacheManager;
+import static org.fcrepo.auth.xacml.XACMLTestUtil.localCacheManager;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.junit.Test;
+
+public class InfinispanPolicyArtifactStoreTest {
+
+    private static final byte[] ARTIFACT = {1, 2, 3, 4};
+
+    @Test
+    public void testLocal() {
+        final EmbeddedCacheManager manager = localCacheManager();
+        try {
+            final InfinispanPolicyArtifactStore store = new InfinispanPolicyArtifactStore(manager);
+            store.put("/policies/a", "v1", ARTIFACT);
+
+            final ByteBuffer artifact = store.get("/policies/a", "v1");
+            assertTrue(artifact.isReadOnly());
+            assertArrayEquals(ARTIFACT, toArray(artifact));
+            assertNull(store.get("/policies/a", "v2"));
+            assertNull(store.get("/policies/b", "v1"));
+        } finally {
+            manager.stop();
+        }
+    }
+
+    @Test
+    public void testSharedByCluster() {
+        final EmbeddedCacheManager managerA = clusteredCacheManager("a");
+        final EmbeddedCacheManager managerB = clusteredCacheManager("b");
+        try {
+            final InfinispanPolicyArtifactStore storeA = new InfinispanPolicyArtifactStore(managerA);
+            final InfinispanPolicyArtifactStore storeB = new InfinispanPolicyArtifactStore(managerB);
+
+            storeA.put("/policies/a", "v1", ARTIFACT);
+            assertArrayEquals(ARTIFACT, toArray(storeB.get("/policies/a", "v1")));
+
+            storeB.put("/policies/a", "v2", new byte[] {5});
+            assertNull(storeA.get("/policies/a", "v1"));
+            assertArrayEquals(new byte[] {5}, toArray(storeA.get("/policies/a", "v2")));
+        } finally {
+            managerA.stop();
+            managerB.stop();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNullCacheManager() {
+        new InfinispanPolicyArtifactStore(null);
+    }
+
+    private static byte[] toArray(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
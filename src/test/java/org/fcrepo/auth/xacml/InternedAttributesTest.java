@@ -0,0 +1,46 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+/**
+ * Tests the shared attribute values.
+ */
+public class InternedAttributesTest {
+
+    @Test
+    public void testShared() {
+        final InternedAttributes roles = new InternedAttributes();
+
+        assertSame(roles.get("admin"), roles.get("admin"));
+        assertNotSame(roles.get("admin"), roles.get("reader"));
+    }
+
+    @Test
+    public void testBounded() {
+        final InternedAttributes roles = new InternedAttributes();
+        for (int i = 0; i < 1024; i++) {
+            roles.get("role" + i);
+        }
+
+        assertSame(roles.get("role0"), roles.get("role0"));
+        assertNotSame(roles.get("extra"), roles.get("extra"));
+    }
+}
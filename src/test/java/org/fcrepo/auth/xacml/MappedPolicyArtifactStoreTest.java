@@ -0,0 +1,164 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests the memory-mapped policy artifact store.
+ */
+public class MappedPolicyArtifactStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    private MappedPolicyArtifactStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(folder.getRoot(), "cache/policies.cache");
+        store = new MappedPolicyArtifactStore(file);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+    }
+
+    @Test
+    public void testPutGet() {
+        store.put("/policies/GlobalRolesPolicySet", "urn:sha1:abc", new byte[] {1, 2, 3});
+
+        assertEquals(ByteBuffer.wrap(new byte[] {1, 2, 3}), store.get("/policies/GlobalRolesPolicySet",
+                                                                      "urn:sha1:abc"));
+    }
+
+    @Test
+    public void testStaleVersion() {
+        store.put("/policies/GlobalRolesPolicySet", "urn:sha1:abc", new byte[] {1});
+
+        assertNull(store.get("/policies/GlobalRolesPolicySet", "urn:sha1:def"));
+        assertNull(store.get("/policies/None", "urn:sha1:abc"));
+    }
+
+    @Test
+    public void testReplace() {
+        store.put("/policies/GlobalRolesPolicySet", "urn:sha1:abc", new byte[] {1});
+        store.put("/policies/GlobalRolesPolicySet", "urn:sha1:def", new byte[] {2});
+
+        assertEquals(ByteBuffer.wrap(new byte[] {2}), store.get("/policies/GlobalRolesPolicySet", "urn:sha1:def"));
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        store.put("/policies/GlobalRolesPolicySet", "urn:sha1:abc", new byte[] {1});
+        store.close();
+        store = new MappedPolicyArtifactStore(file);
+
+        assertEquals(ByteBuffer.wrap(new byte[] {1}), store.get("/policies/GlobalRolesPolicySet", "urn:sha1:abc"));
+    }
+
+    @Test
+    public void testSharedAppend() throws Exception {
+        store.get("/policies/GlobalRolesPolicySet", "urn:sha1:abc");
+        try (final MappedPolicyArtifactStore other = new MappedPolicyArtifactStore(file)) {
+            other.put("/policies/GlobalRolesPolicySet", "urn:sha1:abc", new byte[] {1});
+        }
+
+        assertEquals(ByteBuffer.wrap(new byte[] {1}), store.get("/policies/GlobalRolesPolicySet", "urn:sha1:abc"));
+    }
+
+    @Test
+    public void testSharedRebuild() throws Exception {
+        store.put("/policies/GlobalRolesPolicySet", "urn:sha1:abc", new byte[] {1});
+        try (final MappedPolicyArtifactStore other = new MappedPolicyArtifactStore(file)) {
+            other.setMaxSize(file.length() + 10);
+            other.put("/policies/AdminPolicy", "urn:sha1:abc", new byte[100]);
+        }
+
+        assertEquals(ByteBuffer.wrap(new byte[] {1}), store.get("/policies/GlobalRolesPolicySet", "urn:sha1:abc"));
+    }
+
+    @Test
+    public void testRebuildWhenFull() {
+        store.setMaxSize(200);
+        for (int i = 0; i < 10; i++) {
+            store.put("/policies/GlobalRolesPolicySet", "urn:sha1:" + i, new byte[] {(byte) i});
+        }
+
+        assertTrue(file.length() <= 200);
+        assertEquals(ByteBuffer.wrap(new byte[] {9}), store.get("/policies/GlobalRolesPolicySet", "urn:sha1:9"));
+    }
+
+    @Test
+    public void testDamagedTail() throws Exception {
+        store.put("/policies/GlobalRolesPolicySet", "urn:sha1:abc", new byte[] {1});
+        try (final FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(new byte[] {0, 0, 1, 0, 7, 7, 7});
+        }
+        store.put("/policies/AdminPolicy", "urn:sha1:abc", new byte[] {2});
+
+        assertEquals(ByteBuffer.wrap(new byte[] {1}), store.get("/policies/GlobalRolesPolicySet", "urn:sha1:abc"));
+        assertEquals(ByteBuffer.wrap(new byte[] {2}), store.get("/policies/AdminPolicy", "urn:sha1:abc"));
+    }
+
+    @Test
+    public void testIncompatibleFile() throws Exception {
+        store.close();
+        try (final FileOutputStream out = new FileOutputStream(file)) {
+            out.write("not a policy cache".getBytes("UTF-8"));
+        }
+        store = new MappedPolicyArtifactStore(file);
+        store.put("/policies/GlobalRolesPolicySet", "urn:sha1:abc", new byte[] {1});
+
+        assertEquals(ByteBuffer.wrap(new byte[] {1}), store.get("/policies/GlobalRolesPolicySet", "urn:sha1:abc"));
+    }
+
+    @Test(timeout = 10000)
+    public void testObsoleteFile() throws Exception {
+        store.put("/policies/GlobalRolesPolicySet", "urn:sha1:abc", new byte[] {1});
+        store.close();
+        try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(4);
+            raf.writeInt(1);
+        }
+        store = new MappedPolicyArtifactStore(file);
+
+        assertNull(store.get("/policies/GlobalRolesPolicySet", "urn:sha1:abc"));
+        store.put("/policies/GlobalRolesPolicySet", "urn:sha1:abc", new byte[] {1});
+        assertEquals(ByteBuffer.wrap(new byte[] {1}), store.get("/policies/GlobalRolesPolicySet", "urn:sha1:abc"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorIllegalArg() {
+        new MappedPolicyArtifactStore(null);
+    }
+}
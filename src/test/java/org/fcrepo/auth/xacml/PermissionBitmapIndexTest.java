@@ -0,0 +1,331 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static com.google.common.util.concurrent.MoreExecutors.newDirectExecutorService;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static javax.jcr.observation.Event.NODE_ADDED;
+import static javax.jcr.observation.Event.NODE_REMOVED;
+import static org.fcrepo.auth.xacml.ResidualConstraint.and;
+import static org.fcrepo.auth.xacml.ResidualConstraint.attribute;
+import static org.fcrepo.auth.xacml.ResidualConstraint.not;
+import static org.fcrepo.auth.xacml.ResidualConstraint.sameNode;
+import static org.fcrepo.http.commons.test.util.TestHelpers.setField;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Workspace;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.ObservationManager;
+
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class PermissionBitmapIndexTest {
+
+    private static final Set<String> READER = singleton("reader");
+
+    private static final Set<String> NO_GROUPS = Collections.<String>emptySet();
+
+    @Mock
+    private SessionFactory mockSessionFactory;
+
+    @Mock
+    private QueryAuthorizationFilter mockFilter;
+
+    @Mock
+    private EffectivePolicyIndex mockPolicyIndex;
+
+    @Mock
+    private FedoraPolicyFinderModule mockPolicyFinderModule;
+
+    @Mock
+    private Session mockSession;
+
+    @Mock
+    private Workspace mockWorkspace;
+
+    @Mock
+    private ObservationManager mockObservationManager;
+
+    @Mock
+    private EventIterator mockEvents;
+
+    @Mock
+    private Event mockEvent;
+
+    private PermissionBitmapIndex index;
+
+    @Before
+    public void setUp() throws RepositoryException {
+        initMocks(this);
+        when(mockSessionFactory.getInternalSession()).thenReturn(mockSession);
+        when(mockSession.getWorkspace()).thenReturn(mockWorkspace);
+        when(mockWorkspace.getObservationManager()).thenReturn(mockObservationManager);
+        when(mockEvents.hasNext()).thenReturn(true, false);
+        when(mockEvents.nextEvent()).thenReturn(mockEvent);
+
+        final Node b = node("/a/b", node("/a/b/x"));
+        final Node root = node("/", node("/jcr:system"), node("/a", b, node("/a/c")));
+        when(mockSession.getRootNode()).thenReturn(root);
+
+        when(mockPolicyIndex.getPolicyNodesBelow("/")).thenReturn(asList("/a/b"));
+        when(mockPolicyIndex.getEffectivePolicyNode("/")).thenReturn("/");
+        when(mockFilter.permitted(eq(mockSession), eq("/"), anyAttributes())).thenReturn(ResidualConstraint.TRUE);
+        when(mockFilter.permitted(eq(mockSession), eq("/a/b"), anyAttributes()))
+                .thenReturn(not(sameNode("/a/b")));
+
+        index = new PermissionBitmapIndex();
+        setField(index, "sessionFactory", mockSessionFactory);
+        setField(index, "queryAuthorizationFilter", mockFilter);
+        setField(index, "effectivePolicyIndex", mockPolicyIndex);
+        setField(index, "fedoraPolicyFinderModule", mockPolicyFinderModule);
+        index.setThreads(2);
+        index.init();
+        // build bitmaps on the calling thread, after the filter that asks for them
+        setField(index, "builder", newDirectExecutorService());
+    }
+
+    @After
+    public void tearDown() {
+        index.close();
+    }
+
+    @Test
+    public void testFilter() throws RepositoryException {
+        assertNull(index.filter(asList("/a"), READER, NO_GROUPS, "read"));
+        assertEquals(asList("/a/c", "/a", "/a/b/x"),
+                index.filter(asList("/a/c", "/a/b", "/a", "/a/b/x"), READER, NO_GROUPS, "read"));
+        assertEquals(asList("/a"), index.filter(asList("/a"), READER, NO_GROUPS, "read"));
+
+        verify(mockFilter, times(2)).permitted(any(Session.class), any(String.class), anyAttributes());
+        verify(mockObservationManager).addEventListener(index, Event.NODE_ADDED | Event.NODE_REMOVED |
+                Event.NODE_MOVED | Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED, "/",
+                true, null, null, false);
+    }
+
+    @Test
+    public void testFilterUnknownNode() {
+        index.filter(asList("/a"), READER, NO_GROUPS, "read");
+        assertNull(index.filter(asList("/a", "/jcr:system"), READER, NO_GROUPS, "read"));
+    }
+
+    @Test
+    public void testBuiltAgainForNewGeneration() throws RepositoryException {
+        index.filter(asList("/a"), READER, NO_GROUPS, "read");
+        when(mockPolicyIndex.getGeneration()).thenReturn(1L);
+        index.filter(asList("/a"), READER, NO_GROUPS, "read");
+
+        verify(mockFilter, times(4)).permitted(any(Session.class), any(String.class), anyAttributes());
+        verify(mockSession).getRootNode();
+    }
+
+    @Test
+    public void testNodeAdded() throws RepositoryException {
+        index.filter(asList("/a"), READER, NO_GROUPS, "read");
+        node("/a/b/y");
+        when(mockEvent.getType()).thenReturn(NODE_ADDED);
+        when(mockEvent.getPath()).thenReturn("/a/b/y");
+
+        index.onEvent(mockEvents);
+
+        assertEquals(asList("/a/b/y"), index.filter(asList("/a/b", "/a/b/y"), READER, NO_GROUPS, "read"));
+    }
+
+    @Test
+    public void testNodeRemoved() throws RepositoryException {
+        index.filter(asList("/a"), READER, NO_GROUPS, "read");
+        when(mockEvent.getType()).thenReturn(NODE_REMOVED);
+        when(mockEvent.getPath()).thenReturn("/a/b");
+
+        index.onEvent(mockEvents);
+
+        assertNull(index.filter(asList("/a/b/x"), READER, NO_GROUPS, "read"));
+        assertEquals(asList("/a"), index.filter(asList("/a"), READER, NO_GROUPS, "read"));
+    }
+
+    @Test
+    public void testFilterDoesNotWaitForBuild() throws Exception {
+        setField(index, "builder", Executors.newSingleThreadExecutor());
+        final CountDownLatch building = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        when(mockFilter.permitted(eq(mockSession), eq("/a/b"), anyAttributes()))
+                .thenAnswer(new Answer<ResidualConstraint>() {
+
+                    @Override
+                    public ResidualConstraint answer(final InvocationOnMock invocation) throws InterruptedException {
+                        building.countDown();
+                        release.await();
+                        return not(sameNode("/a/b"));
+                    }
+                });
+
+        assertNull(index.filter(asList("/a"), READER, NO_GROUPS, "read"));
+        assertTrue(building.await(10, SECONDS));
+        assertNull(index.filter(asList("/a"), READER, NO_GROUPS, "read"));
+        release.countDown();
+
+        verify(mockFilter, times(1)).permitted(eq(mockSession), eq("/a/b"), anyAttributes());
+    }
+
+    @Test
+    public void testRemovedNumbersReused() throws Exception {
+        index.filter(asList("/a"), READER, NO_GROUPS, "read");
+        when(mockEvent.getType()).thenReturn(NODE_REMOVED);
+        when(mockEvent.getPath()).thenReturn("/a/b");
+        index.onEvent(mockEvents);
+
+        node("/a/d");
+        when(mockEvents.hasNext()).thenReturn(true, false);
+        when(mockEvent.getType()).thenReturn(NODE_ADDED);
+        when(mockEvent.getPath()).thenReturn("/a/d");
+        index.onEvent(mockEvents);
+
+        assertEquals(asList("/a", "/a/d"), index.filter(asList("/a", "/a/d"), READER, NO_GROUPS, "read"));
+        assertEquals(5, ((List<?>) getField(index, "paths")).size());
+    }
+
+    @Test
+    public void testRolesAssignedBelowRoot() throws RepositoryException {
+        index.filter(asList("/a"), READER, NO_GROUPS, "read");
+        node("/a/authz:rbacl");
+        when(mockEvent.getType()).thenReturn(NODE_ADDED);
+        when(mockEvent.getPath()).thenReturn("/a/authz:rbacl");
+        index.onEvent(mockEvents);
+
+        assertNull(index.filter(asList("/a"), READER, NO_GROUPS, "read"));
+
+        when(mockEvents.hasNext()).thenReturn(true, false);
+        when(mockEvent.getType()).thenReturn(NODE_REMOVED);
+        index.onEvent(mockEvents);
+
+        assertEquals(asList("/a"), index.filter(asList("/a"), READER, NO_GROUPS, "read"));
+    }
+
+    @Test
+    public void testRolesAssignedAtRoot() throws RepositoryException {
+        index.filter(asList("/a"), READER, NO_GROUPS, "read");
+        node("/authz:rbacl");
+        when(mockEvent.getType()).thenReturn(NODE_ADDED);
+        when(mockEvent.getPath()).thenReturn("/authz:rbacl");
+        index.onEvent(mockEvents);
+
+        assertEquals(asList("/a"), index.filter(asList("/a"), READER, NO_GROUPS, "read"));
+    }
+
+    @Test
+    public void testOpaquePolicy() throws RepositoryException {
+        when(mockFilter.permitted(eq(mockSession), eq("/a/b"), anyAttributes()))
+                .thenReturn(ResidualConstraint.opaque("condition"));
+
+        assertNull(index.filter(asList("/a"), READER, NO_GROUPS, "read"));
+    }
+
+    @Test
+    public void testMasterFileNotPermitted() throws RepositoryException {
+        final Node master = mockSession.getNode("/a/b/x");
+        final Property mimeType = mock(Property.class);
+        when(master.isNodeType("example-mixins:master")).thenReturn(true);
+        when(master.hasProperty("jcr:mimeType")).thenReturn(true);
+        when(master.getProperty("jcr:mimeType")).thenReturn(mimeType);
+        when(mimeType.getString()).thenReturn("image/tiff");
+        when(mockFilter.permitted(eq(mockSession), eq("/a/b"), anyAttributes())).thenReturn(not(and(
+                attribute("http://fedora.info/definitions/v4/repository#mimeType", "image/tiff"),
+                attribute("http://www.w3.org/1999/02/22-rdf-syntax-ns#type", "http://example.com/mixins#master"))));
+
+        final List<String> permitted = index.filter(asList("/a", "/a/b/x"), READER, NO_GROUPS, "read");
+
+        assertTrue(permitted == null || !permitted.contains("/a/b/x"));
+    }
+
+    @Test
+    public void testInheritedPolicies() {
+        when(mockPolicyFinderModule.isInheritPolicies()).thenReturn(true);
+
+        assertNull(index.filter(asList("/a"), READER, NO_GROUPS, "read"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetThreadsIllegalArg() {
+        index.setThreads(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetMaxBitmapsIllegalArg() {
+        index.setMaxBitmaps(0);
+    }
+
+    private static Object getField(final Object object, final String name) throws ReflectiveOperationException {
+        final Field field = object.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(object);
+    }
+
+    private static Map<String, Set<String>> anyAttributes() {
+        return any();
+    }
+
+    private Node node(final String path, final Node... children) throws RepositoryException {
+        final Node node = mock(Node.class);
+        final NodeIterator iterator = mock(NodeIterator.class);
+        when(node.getPath()).thenReturn(path);
+        when(node.getName()).thenReturn(path.substring(path.lastIndexOf('/') + 1));
+        when(node.getNodes()).thenReturn(iterator);
+        if (children.length == 0) {
+            when(iterator.hasNext()).thenReturn(false);
+        } else {
+            final Boolean[] more = new Boolean[children.length];
+            for (int i = 0; i < children.length - 1; i++) {
+                more[i] = true;
+            }
+            more[children.length - 1] = false;
+            when(iterator.hasNext()).thenReturn(true, more);
+            when(iterator.nextNode()).thenReturn(children[0], asList(children).subList(1, children.length)
+                    .toArray(new Node[0]));
+        }
+        when(mockSession.getNode(path)).thenReturn(node);
+        return node;
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Round trips policies through the binary policy form.
+ */
+public class PolicyCodecTest {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        for (final File f : new File("src/main/resources/policies").listFiles()) {
+            final Document doc;
+            try (final InputStream in = new FileInputStream(f)) {
+                doc = PolicyUtil.parse(in);
+            }
+            final byte[] encoded = PolicyCodec.encode(doc.getDocumentElement());
+            assertTrue("Encoded policy should be smaller than the XML", encoded.length < f.length());
+
+            final Document decoded = PolicyCodec.decode(encoded);
+            assertEquals(PolicyUtil.getID(doc), PolicyUtil.getID(decoded));
+            assertTrue("Decoded policy differs from " + f.getName(),
+                    strip(doc.getDocumentElement()).isEqualNode(strip(decoded.getDocumentElement())));
+        }
+    }
+
+    @Test
+    public void testRoundTripKeepsNamespaces() throws Exception {
+        final Document doc = PolicyUtil.parse(getClass().getResourceAsStream("/xacml/adminRolePolicySet.xml"));
+        final Element root = PolicyCodec.decode(PolicyCodec.encode(doc.getDocumentElement())).getDocumentElement();
+
+        assertEquals("urn:oasis:names:tc:xacml:2.0:policy:schema:os", root.getNamespaceURI());
+        assertEquals("PolicySet", root.getLocalName());
+        assertNull(root.getPrefix());
+    }
+
+    @Test(expected = IOException.class)
+    public void testDecodeNotAPolicy() throws Exception {
+        PolicyCodec.decode("<PolicySet/>".getBytes("UTF-8"));
+    }
+
+    /**
+     * Removes the whitespace-only text that the encoding does not keep.
+     */
+    private static Element strip(final Element element) {
+        for (org.w3c.dom.Node child = element.getFirstChild(); child != null;) {
+            final org.w3c.dom.Node next = child.getNextSibling();
+            if (child.getNodeType() == org.w3c.dom.Node.ELEMENT_NODE) {
+                strip((Element) child);
+            } else if (child.getNodeType() == org.w3c.dom.Node.TEXT_NODE &&
+                    child.getNodeValue().trim().isEmpty() && element.getElementsByTagName("*").getLength() > 0) {
+                element.removeChild(child);
+            }
+            child = next;
+        }
+        return element;
+    }
+}
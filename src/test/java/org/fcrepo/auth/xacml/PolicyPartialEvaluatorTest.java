@@ -0,0 +1,151 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.singleton;
+import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_ACTION_ID;
+import static org.fcrepo.auth.xacml.URIConstants.FCREPO_SUBJECT_GROUP_VALUE;
+import static org.fcrepo.auth.xacml.URIConstants.FCREPO_SUBJECT_ROLE_VALUE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+public class PolicyPartialEvaluatorTest {
+
+    private static final String MIME_TYPE = "http://fedora.info/definitions/v4/repository#mimeType";
+
+    private static final String RDF_TYPE = "http://www.w3.org/1999/02/22-rdf-syntax-ns#type";
+
+    private static final String TITLE = "http://purl.org/dc/elements/1.1/title";
+
+    /**
+     * Resolves references to the shipped policies.
+     */
+    private final PolicyPartialEvaluator.PolicyResolver resolver = new PolicyPartialEvaluator.PolicyResolver() {
+
+        @Override
+        public Element resolve(final String policyId) {
+            return shippedPolicy(policyId.substring(policyId.lastIndexOf('/') + 1));
+        }
+    };
+
+    @Test
+    public void testRolePermitsAction() {
+        final Element global = shippedPolicy("GlobalRolesPolicySet");
+
+        assertTrue(evaluator("reader", "read").permitted(global).isTrue());
+        assertTrue(evaluator("admin", "modify_access_control").permitted(global).isTrue());
+        assertTrue(evaluator("reader", "add_node").permitted(global).isFalse());
+        assertTrue(evaluator("nobody", "read").permitted(global).isFalse());
+    }
+
+    @Test
+    public void testResourceResidual() {
+        final ResidualConstraint permitted =
+                evaluator("reader", "read").permitted(shippedPolicy("PreventReadingMasterFilesPolicySet"));
+
+        // the mime type is stored on the jcr:content node of a binary
+        assertTrue(permitted.isOpaque());
+        assertEquals(ResidualConstraint.not(ResidualConstraint.and(
+                ResidualConstraint.attribute(MIME_TYPE, "image/tiff"),
+                ResidualConstraint.attribute(RDF_TYPE, "http://example.com/mixins#master"))), permitted);
+    }
+
+    @Test
+    public void testUnsupportedMatchOpaque() {
+        // the writer policies match the resource-id with a regular expression
+        assertTrue(evaluator("writer", "set_property").permitted(shippedPolicy("WriterRolePolicySet")).isOpaque());
+    }
+
+    @Test
+    public void testUnsupportedMatchSimplifiedAway() {
+        // the regular expression is only reached for actions other than read
+        final ResidualConstraint permitted =
+                evaluator("writer", "read").permitted(shippedPolicy("WriterRolePolicySet"));
+
+        assertTrue(permitted.isTrue());
+    }
+
+    @Test
+    public void testUnknownAttributeOpaque() {
+        final Map<String, Set<String>> attributes = new HashMap<>();
+        attributes.put(ATTRIBUTEID_ACTION_ID.toString(), singleton("read"));
+
+        final PolicyPartialEvaluator evaluator = new PolicyPartialEvaluator(resolver, attributes);
+
+        assertTrue(evaluator.permitted(shippedPolicy("GlobalRolesPolicySet")).isOpaque());
+    }
+
+    @Test
+    public void testMissingResourceAttributeDenies() throws Exception {
+        final Element policy = parse("<Policy xmlns=\"urn:oasis:names:tc:xacml:2.0:policy:schema:os\" " +
+                "PolicyId=\"test\" " +
+                "RuleCombiningAlgId=\"urn:oasis:names:tc:xacml:1.0:rule-combining-algorithm:deny-overrides\">" +
+                "<Target/>" +
+                "<Rule RuleId=\"deny-draft\" Effect=\"Deny\"><Target><Resources><Resource>" +
+                "<ResourceMatch MatchId=\"urn:oasis:names:tc:xacml:1.0:function:string-equal\">" +
+                "<AttributeValue DataType=\"http://www.w3.org/2001/XMLSchema#string\">draft</AttributeValue>" +
+                "<ResourceAttributeDesignator AttributeId=\"" + TITLE + "\" MustBePresent=\"true\" " +
+                "DataType=\"http://www.w3.org/2001/XMLSchema#string\"/>" +
+                "</ResourceMatch></Resource></Resources></Target></Rule>" +
+                "<Rule RuleId=\"permit\" Effect=\"Permit\"/>" +
+                "</Policy>");
+
+        assertEquals(ResidualConstraint.and(ResidualConstraint.not(ResidualConstraint.attribute(TITLE, "draft")),
+                ResidualConstraint.present(TITLE)), evaluator("reader", "read").permitted(policy));
+    }
+
+    @Test
+    public void testUnresolvedReferenceOpaque() throws Exception {
+        final Element policySet = parse("<PolicySet xmlns=\"urn:oasis:names:tc:xacml:2.0:policy:schema:os\" " +
+                "PolicySetId=\"test\" " +
+                "PolicyCombiningAlgId=\"urn:oasis:names:tc:xacml:1.0:policy-combining-algorithm:permit-overrides\">" +
+                "<Target/><PolicySetIdReference>info:fedora/policies/Missing</PolicySetIdReference></PolicySet>");
+
+        assertTrue(evaluator("reader", "read").permitted(policySet).isOpaque());
+    }
+
+    private PolicyPartialEvaluator evaluator(final String role, final String action) {
+        final Map<String, Set<String>> attributes = new HashMap<>();
+        attributes.put(FCREPO_SUBJECT_ROLE_VALUE, singleton(role));
+        attributes.put(FCREPO_SUBJECT_GROUP_VALUE, Collections.<String>emptySet());
+        attributes.put(ATTRIBUTEID_ACTION_ID.toString(), singleton(action));
+        return new PolicyPartialEvaluator(resolver, attributes);
+    }
+
+    private static Element shippedPolicy(final String name) {
+        try (final InputStream in = PolicyPartialEvaluatorTest.class.getResourceAsStream("/policies/" + name +
+                ".xml")) {
+            return in == null ? null : PolicyUtil.parse(in).getDocumentElement();
+        } catch (final Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static Element parse(final String xml) throws Exception {
+        return PolicyUtil.parse(new ByteArrayInputStream(xml.getBytes(UTF_8))).getDocumentElement();
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLStreamException;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Reads policies with the streaming policy reader.
+ */
+public class PolicyReaderTest {
+
+    @Test
+    public void testReadId() throws Exception {
+        assertEquals("info:fedora/policies/GlobalRolesPolicySet",
+                PolicyReader.readId(new FileInputStream("src/main/resources/policies/GlobalRolesPolicySet.xml")));
+        assertEquals("x", PolicyReader.readId(stream("<p:Policy xmlns:p=\"urn:example\" PolicyId=\"x\"/>")));
+    }
+
+    @Test
+    public void testReadIdStopsAtRoot() throws Exception {
+        assertEquals("x", PolicyReader.readId(stream("<!-- c --><PolicySet PolicySetId=\"x\"><Policy></PolicySet>")));
+    }
+
+    @Test
+    public void testReadIdNotAPolicy() throws Exception {
+        assertNull(PolicyReader.readId(stream("<Request PolicyId=\"x\"/>")));
+    }
+
+    @Test(expected = XMLStreamException.class)
+    public void testReadIdNotXml() throws Exception {
+        PolicyReader.readId(stream("PolicyId"));
+    }
+
+    @Test
+    public void testReadMatchesDocumentBuilder() throws Exception {
+        final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setIgnoringComments(true);
+        factory.setNamespaceAware(true);
+        for (final File f : new File("src/main/resources/policies").listFiles()) {
+            final Document expected = factory.newDocumentBuilder().parse(f);
+            final Document read;
+            try (final InputStream in = new FileInputStream(f)) {
+                read = PolicyReader.read(in);
+            }
+            assertTrue("Read policy differs from " + f.getName(),
+                    strip(expected.getDocumentElement()).isEqualNode(read.getDocumentElement()));
+        }
+    }
+
+    @Test
+    public void testReadDropsWhitespaceBetweenElements() throws Exception {
+        final Element root = PolicyReader.read(stream(
+                "<a xmlns=\"urn:example\">\n  <b> x </b><!-- c -->\n  <c>  </c>\n</a>")).getDocumentElement();
+
+        assertEquals("urn:example", root.getNamespaceURI());
+        assertEquals(2, root.getChildNodes().getLength());
+        assertEquals(" x ", root.getFirstChild().getTextContent());
+        assertEquals("  ", root.getLastChild().getTextContent());
+    }
+
+    @Test
+    public void testReadCoalescesText() throws Exception {
+        final Element root = PolicyReader.read(stream("<a>x &amp; <![CDATA[<y>]]></a>")).getDocumentElement();
+
+        assertEquals(1, root.getChildNodes().getLength());
+        assertEquals("x & <y>", root.getFirstChild().getNodeValue());
+    }
+
+    @Test(expected = XMLStreamException.class)
+    public void testReadNotWellFormed() throws Exception {
+        PolicyReader.read(stream("<Policy><Rule></Policy>"));
+    }
+
+    private static InputStream stream(final String xml) {
+        return new ByteArrayInputStream(xml.getBytes(UTF_8));
+    }
+
+    /**
+     * Removes the whitespace-only text that the reader does not keep.
+     */
+    private static Element strip(final Element element) {
+        final boolean hasElementChild = element.getElementsByTagName("*").getLength() > 0;
+        for (Node child = element.getFirstChild(); child != null;) {
+            final Node next = child.getNextSibling();
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                strip((Element) child);
+            } else if (child.getNodeType() == Node.TEXT_NODE && hasElementChild &&
+                    child.getNodeValue().trim().isEmpty()) {
+                element.removeChild(child);
+            }
+            child = next;
+        }
+        return element;
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.emptySet;
+import static java.util.Collections.singleton;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+import org.jboss.security.xacml.sunxacml.AbstractPolicy;
+import org.jboss.security.xacml.sunxacml.finder.AttributeFinder;
+import org.jboss.security.xacml.sunxacml.finder.PolicyFinder;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PolicyTargetIndexTest {
+
+    private PolicyTargetIndex index;
+
+    @Before
+    public void setUp() throws Exception {
+        index = PolicyTargetIndex.build(PolicyUtil.parse(
+                getClass().getResourceAsStream("/policyIndex/targetIndexPolicySet.xml")).getDocumentElement());
+        assertNotNull(index);
+    }
+
+    @Test
+    public void testRoleAndAction() {
+        assertEquals(bits(0, 2, 3), index.candidates(ctx(singleton("reader"), asList("others"), "read")));
+        assertEquals(bits(2, 3), index.candidates(ctx(singleton("reader"), asList("others"), "add_node")));
+        assertEquals(bits(1, 2, 3), index.candidates(ctx(singleton("admin"), asList("others"), "read")));
+    }
+
+    @Test
+    public void testGroup() {
+        assertEquals(bits(1, 2, 3), index.candidates(ctx(singleton("writer"), asList("editors"), "remove")));
+        assertEquals(bits(2, 3), index.candidates(ctx(singleton("writer"), asList("others"), "remove")));
+    }
+
+    @Test
+    public void testGroupExclusionIsAttributeDependent() {
+        // same roles and action, so a kept decision for one would be served to the other
+        final FedoraEvaluationCtx member = ctx(singleton("writer"), asList("editors"), "remove");
+        final FedoraEvaluationCtx nonMember = ctx(singleton("writer"), asList("others"), "remove");
+
+        assertEquals(bits(1, 2, 3), index.candidates(member));
+        assertEquals(bits(2, 3), index.candidates(nonMember));
+        assertTrue(nonMember.isAttributeDependent());
+    }
+
+    @Test
+    public void testRoleExclusionIsNotAttributeDependent() {
+        final FedoraEvaluationCtx ctx = ctx(singleton("admin"), asList("others"), "read");
+
+        assertEquals(bits(1, 2, 3), index.candidates(ctx));
+        assertFalse(ctx.isAttributeDependent());
+    }
+
+    @Test
+    public void testNoRequestValues() {
+        // without roles or groups in the request, an attribute finder may supply them
+        assertEquals(bits(0, 1, 2, 3), index.candidates(ctx(emptySet(), emptyList(), "read")));
+        assertEquals(bits(0, 1, 2, 3), index.candidates(ctx(singleton("reader"), emptyList(), "read")));
+    }
+
+    @Test
+    public void testAllCandidates() {
+        final AbstractPolicy policy = mock(AbstractPolicy.class);
+        final FedoraEvaluationCtx ctx = ctx(emptySet(), emptyList(), "read");
+        assertSame(policy, index.select(ctx, policy, mock(PolicyFinder.class)));
+    }
+
+    @Test
+    public void testPolicyNotIndexed() throws Exception {
+        assertNull(PolicyTargetIndex.build(PolicyUtil.parse(
+                getClass().getResourceAsStream("/xacml/testPolicy.xml")).getDocumentElement()));
+        assertNull(PolicyTargetIndex.build(PolicyUtil.parse(
+                getClass().getResourceAsStream("/policies/GlobalRolesPolicySet.xml")).getDocumentElement()));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static FedoraEvaluationCtx ctx(final Set<?> roles, final Collection<?> groups, final String action) {
+        return new FedoraEvaluationCtx(mock(AttributeFinder.class), "user", (Set<String>) roles,
+                (List<String>) groups, "/{}path", "default", asList(action), null);
+    }
+
+    private static BitSet bits(final int... positions) {
+        final BitSet bits = new BitSet();
+        for (final int position : positions) {
+            bits.set(position);
+        }
+        return bits;
+    }
+}
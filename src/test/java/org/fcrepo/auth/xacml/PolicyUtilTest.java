@@ -15,13 +15,31 @@
  */
 package org.fcrepo.auth.xacml;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.fcrepo.auth.xacml.URIConstants.XACML_POLICY_PROPERTY;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
 import java.io.File;
 
+import javax.jcr.Node;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.Session;
+
 import org.apache.commons.io.FileUtils;
+import org.jboss.security.xacml.sunxacml.ParsingException;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.w3c.dom.Element;
+
 
 /**
  * @author Gregory Jansen
@@ -47,4 +65,82 @@ public class PolicyUtilTest {
         Assert.assertEquals("/policies/GlobalRolesPolicySet", path);
     }
 
+    @Test(expected = ParsingException.class)
+    public void testValidatePolicyNamespace() throws Exception {
+        PolicyUtil.validatePolicy(parse("<Policy xmlns=\"urn:example:not-xacml\" PolicyId=\"x\"/>"), null);
+    }
+
+    @Test(expected = ParsingException.class)
+    public void testValidatePolicyWithoutId() throws Exception {
+        PolicyUtil.validatePolicy(parse("<Policy xmlns=\"urn:oasis:names:tc:xacml:2.0:policy:schema:os\"/>"), null);
+    }
+
+    @Test
+    public void testValidatePolicy() throws Exception {
+        final Element root = PolicyUtil.parse(FileUtils.openInputStream(
+                new File("src/main/resources/policies/GlobalRolesPolicySet.xml"))).getDocumentElement();
+
+        Assert.assertNotNull(PolicyUtil.validatePolicy(root, null));
+    }
+
+    @Test
+    public void testGetEffectivePolicyNode() throws Exception {
+        final Session session = mock(Session.class);
+        final Node root = mock(Node.class);
+        final Node parent = mock(Node.class);
+        final Node node = mock(Node.class);
+        when(session.getNode("/{}a/{}b/{}c")).thenThrow(new PathNotFoundException());
+        when(session.nodeExists("/{}a/{}b")).thenReturn(true);
+        when(session.getNode("/{}a/{}b")).thenReturn(node);
+        when(node.getDepth()).thenReturn(2);
+        when(node.getParent()).thenReturn(parent);
+        when(parent.getDepth()).thenReturn(1);
+        when(parent.getParent()).thenReturn(root);
+        when(parent.hasProperty(XACML_POLICY_PROPERTY)).thenReturn(true);
+
+        Assert.assertEquals(parent, PolicyUtil.getEffectivePolicyNode("/{}a/{}b/{}c", session));
+
+        when(parent.hasProperty(XACML_POLICY_PROPERTY)).thenReturn(false);
+        Assert.assertNull(PolicyUtil.getEffectivePolicyNode("/{}a/{}b/{}c", session));
+    }
+
+    @Test
+    public void testGetFirstRealNodeMissingPaths() throws Exception {
+        final Session session = mock(Session.class);
+        final Node node = mock(Node.class);
+        when(session.nodeExists("/{}a")).thenReturn(true);
+        when(session.getNode("/{}a")).thenReturn(node);
+        final Cache<String, Boolean> missingPaths = CacheBuilder.newBuilder().build();
+
+        Assert.assertEquals(node, PolicyUtil.getFirstRealNode("/{}a/{}b/{}c", session, missingPaths));
+        Assert.assertEquals(node, PolicyUtil.getFirstRealNode("/{}a/{}b/{}c", session, missingPaths));
+        Assert.assertEquals(node, PolicyUtil.getFirstRealNode("/{}a/{}b", session, missingPaths));
+
+        verify(session, times(1)).nodeExists("/{}a/{}b/{}c");
+        verify(session, times(1)).nodeExists("/{}a/{}b");
+        verify(session, never()).getNode("/{}a/{}b/{}c");
+        Assert.assertNotNull(missingPaths.getIfPresent("/{}a/{}b"));
+    }
+
+    @Test
+    public void testGetFirstRealNodeRoot() throws Exception {
+        final Session session = mock(Session.class);
+        final Node root = mock(Node.class);
+        when(session.getRootNode()).thenReturn(root);
+
+        Assert.assertEquals(root, PolicyUtil.getFirstRealNode("/{}a/{}b", session));
+    }
+
+    @Test
+    public void testGetModePath() throws Exception {
+        final Session session = mock(Session.class);
+        when(session.getNamespaceURI("test")).thenReturn("info:test#");
+
+        Assert.assertEquals("/{info:test#}a/{}b", PolicyUtil.getModePath("/test:a/b", session));
+    }
+
+
+    private static Element parse(final String xml) throws Exception {
+        return PolicyUtil.parse(new ByteArrayInputStream(xml.getBytes(UTF_8))).getDocumentElement();
+    }
 }
@@ -0,0 +1,175 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
+import static org.fcrepo.auth.xacml.URIConstants.XACML_POLICY_PROPERTY;
+import static org.fcrepo.http.commons.test.util.TestHelpers.setField;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.io.InputStream;
+import java.util.Collections;
+
+import javax.jcr.NamespaceException;
+import javax.jcr.NamespaceRegistry;
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.Session;
+import javax.jcr.Workspace;
+
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.fcrepo.kernel.FedoraBinary;
+import org.fcrepo.kernel.services.BinaryService;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+public class QueryAuthorizationFilterTest {
+
+    private QueryAuthorizationFilter filter;
+
+    @Mock
+    private SessionFactory mockSessionFactory;
+
+    @Mock
+    private Session mockSession;
+
+    @Mock
+    private Workspace mockWorkspace;
+
+    @Mock
+    private NamespaceRegistry mockNamespaces;
+
+    @Mock
+    private BinaryService mockBinaryService;
+
+    @Mock
+    private FedoraPolicyFinderModule mockPolicyFinderModule;
+
+    @Mock
+    private EffectivePolicyIndex mockPolicyIndex;
+
+    @Before
+    public void setUp() throws Exception {
+        initMocks(this);
+        filter = new QueryAuthorizationFilter();
+        setField(filter, "sessionFactory", mockSessionFactory);
+        setField(filter, "binaryService", mockBinaryService);
+        setField(filter, "fedoraPolicyFinderModule", mockPolicyFinderModule);
+        setField(filter, "effectivePolicyIndex", mockPolicyIndex);
+
+        when(mockSessionFactory.getInternalSession()).thenReturn(mockSession);
+        when(mockSession.getWorkspace()).thenReturn(mockWorkspace);
+        when(mockWorkspace.getNamespaceRegistry()).thenReturn(mockNamespaces);
+        doThrow(new NamespaceException()).when(mockNamespaces).getPrefix(anyString());
+        doReturn("jcr").when(mockNamespaces).getPrefix("http://www.jcp.org/jcr/1.0");
+        doReturn("example-mixins").when(mockNamespaces).getPrefix("http://example.com/mixins#");
+
+        when(mockPolicyIndex.getEffectivePolicyNode("/{}a")).thenReturn("/");
+        when(mockPolicyIndex.getPolicyNodesBelow("/a")).thenReturn(asList("/a/b"));
+        when(mockPolicyIndex.getEffectivePolicyNode("/{}c")).thenReturn("/c");
+        when(mockPolicyIndex.getPolicyNodesBelow("/c")).thenReturn(Collections.<String>emptyList());
+        assignPolicy("/", "GlobalRolesPolicySet");
+        assignPolicy("/a/b", "PreventReadingMasterFilesPolicySet");
+        assignPolicy("/c", "GlobalRolesPolicySet");
+        referencePolicies();
+    }
+
+    @Test
+    public void testConstraint() {
+        assertEquals("(ISSAMENODE(n, [/c]) OR ISDESCENDANTNODE(n, [/c]))",
+                filter.getConstraint("n", "/c", singleton("reader"), Collections.<String>emptySet(),
+                        singleton("read")));
+    }
+
+    @Test
+    public void testNoConstraintForMimeType() {
+        // the mime type is the jcr:mimeType of the jcr:content node, which a constraint on n cannot test
+        assertNull(filter.getConstraint("n", "/a", singleton("reader"), Collections.<String>emptySet(),
+                singleton("read")));
+    }
+
+    @Test
+    public void testNoConstraintForOpaquePolicy() {
+        assertNull(filter.getConstraint("n", "/a", singleton("writer"), Collections.<String>emptySet(),
+                singleton("set_property")));
+    }
+
+    @Test
+    public void testNoConstraintForTooManyRegions() {
+        filter.setMaxRegions(1);
+
+        assertNull(filter.getConstraint("n", "/a", singleton("reader"), Collections.<String>emptySet(),
+                singleton("read")));
+    }
+
+    @Test
+    public void testNoConstraintWhenInheriting() {
+        when(mockPolicyFinderModule.isInheritPolicies()).thenReturn(true);
+
+        assertNull(filter.getConstraint("n", "/a", singleton("reader"), Collections.<String>emptySet(),
+                singleton("read")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetMaxRegionsIllegalArg() {
+        filter.setMaxRegions(0);
+    }
+
+    /**
+     * Makes the shipped policies that the assigned policies reference resolvable.
+     */
+    private void referencePolicies() throws Exception {
+        for (final String name : asList("ReaderRolePolicySet", "WriterRolePolicySet", "AdminRolePolicySet",
+                "GlobalPermissionPolicySet", "ReadNormalNodePermissionPolicySet", "WriteNormalNodePermissionPolicySet",
+                "AdminPermissionPolicySet")) {
+            final String policyPath = "/policies/" + name;
+            final Node referenced = mock(Node.class);
+            final FedoraBinary referencedBinary = mock(FedoraBinary.class);
+            when(mockSession.nodeExists(policyPath)).thenReturn(true);
+            when(mockSession.getNode(policyPath)).thenReturn(referenced);
+            when(mockBinaryService.asBinary(referenced)).thenReturn(referencedBinary);
+            try (final InputStream in = getClass().getResourceAsStream(policyPath + ".xml")) {
+                when(mockPolicyFinderModule.getPolicyElement(referencedBinary)).thenReturn(PolicyUtil.parse(in)
+                        .getDocumentElement());
+            }
+        }
+    }
+
+    private void assignPolicy(final String path, final String policyName) throws Exception {
+        final Node node = mock(Node.class);
+        final Property property = mock(Property.class);
+        final Node policyNode = mock(Node.class);
+        final FedoraBinary binary = mock(FedoraBinary.class);
+        when(mockSession.getNode(path)).thenReturn(node);
+        when(node.getProperty(XACML_POLICY_PROPERTY)).thenReturn(property);
+        when(property.getNode()).thenReturn(policyNode);
+        when(mockBinaryService.asBinary(policyNode)).thenReturn(binary);
+        try (final InputStream in = getClass().getResourceAsStream("/policies/" + policyName + ".xml")) {
+            when(mockPolicyFinderModule.getPolicyElement(binary)).thenReturn(PolicyUtil.parse(in)
+                    .getDocumentElement());
+        }
+
+    }
+}
@@ -0,0 +1,210 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static org.fcrepo.auth.xacml.ResidualConstraint.FALSE;
+import static org.fcrepo.auth.xacml.ResidualConstraint.TRUE;
+import static org.fcrepo.auth.xacml.ResidualConstraint.and;
+import static org.fcrepo.auth.xacml.ResidualConstraint.attribute;
+import static org.fcrepo.auth.xacml.ResidualConstraint.descendant;
+import static org.fcrepo.auth.xacml.ResidualConstraint.not;
+import static org.fcrepo.auth.xacml.ResidualConstraint.opaque;
+import static org.fcrepo.auth.xacml.ResidualConstraint.or;
+import static org.fcrepo.auth.xacml.ResidualConstraint.resourceId;
+import static org.fcrepo.auth.xacml.ResidualConstraint.sameNode;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import javax.jcr.NamespaceException;
+import javax.jcr.NamespaceRegistry;
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Workspace;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+public class ResidualConstraintTest {
+
+    private static final String RDF_TYPE = "http://www.w3.org/1999/02/22-rdf-syntax-ns#type";
+
+    private static final String MIME_TYPE = "http://fedora.info/definitions/v4/repository#mimeType";
+
+    private static final String CREATED_BY = "http://fedora.info/definitions/v4/repository#createdBy";
+
+    private static final String TITLE = "http://purl.org/dc/elements/1.1/title";
+
+    @Mock
+    private NamespaceRegistry mockNamespaces;
+
+    @Mock
+    private Node mockNode;
+
+    @Mock
+    private Node mockContent;
+
+    @Mock
+    private Property mockProperty;
+
+    @Mock
+    private Property mockMimeType;
+
+    @Mock
+    private Session mockSession;
+
+    @Mock
+    private Workspace mockWorkspace;
+
+    @Before
+    public void setUp() throws RepositoryException {
+        initMocks(this);
+        doThrow(new NamespaceException()).when(mockNamespaces).getPrefix(anyString());
+        doReturn("jcr").when(mockNamespaces).getPrefix("http://www.jcp.org/jcr/1.0");
+        doReturn("dc").when(mockNamespaces).getPrefix("http://purl.org/dc/elements/1.1/");
+        doReturn("fedora").when(mockNamespaces).getPrefix("http://fedora.info/definitions/v4/rest-api#");
+        doReturn("example-mixins").when(mockNamespaces).getPrefix("http://example.com/mixins#");
+        when(mockNode.getSession()).thenReturn(mockSession);
+        when(mockSession.getWorkspace()).thenReturn(mockWorkspace);
+        when(mockWorkspace.getNamespaceRegistry()).thenReturn(mockNamespaces);
+        when(mockNode.getPath()).thenReturn("/a/b");
+        when(mockNode.getDepth()).thenReturn(2);
+        when(mockNode.isNodeType("example-mixins:master")).thenReturn(true);
+        when(mockNode.hasProperty("dc:title")).thenReturn(true);
+        when(mockNode.getProperty("dc:title")).thenReturn(mockProperty);
+        when(mockProperty.getString()).thenReturn("master copy");
+        // as FedoraBinaryImpl stores it
+        when(mockNode.hasNode("jcr:content")).thenReturn(true);
+        when(mockNode.getNode("jcr:content")).thenReturn(mockContent);
+        when(mockContent.hasProperty("jcr:mimeType")).thenReturn(true);
+        when(mockContent.getProperty("jcr:mimeType")).thenReturn(mockMimeType);
+        when(mockMimeType.getString()).thenReturn("image/tiff");
+    }
+
+    @Test
+    public void testSimplify() {
+        final ResidualConstraint tiff = attribute(TITLE, "master copy");
+
+        assertSame(FALSE, and(tiff, FALSE));
+        assertSame(TRUE, or(tiff, TRUE));
+        assertEquals(tiff, and(tiff, TRUE, tiff));
+        assertEquals(tiff, not(not(tiff)));
+        assertSame(FALSE, and(tiff, not(tiff)));
+        assertSame(TRUE, or(not(tiff), tiff));
+        assertEquals(and(tiff, sameNode("/a"), descendant("/b")), and(tiff, and(sameNode("/a"), descendant("/b"))));
+    }
+
+    @Test
+    public void testOpaque() {
+        assertTrue(or(attribute(TITLE, "master copy"), opaque("condition")).isOpaque());
+        assertFalse(and(FALSE, opaque("condition")).isOpaque());
+    }
+
+    @Test
+    public void testOpaqueMimeType() {
+        final ResidualConstraint notMaster = not(and(attribute(MIME_TYPE, "image/tiff"),
+                attribute(RDF_TYPE, "http://example.com/mixins#master")));
+
+        assertTrue(notMaster.isOpaque());
+        assertTrue(ResidualConstraint.present(MIME_TYPE).isOpaque());
+    }
+
+    @Test
+    public void testOpaqueComputedTriples() {
+        assertTrue(attribute("http://fedora.info/definitions/v4/repository#numberOfChildren", "0").isOpaque());
+        assertTrue(attribute(RDF_TYPE, "http://www.w3.org/ns/ldp#Container").isOpaque());
+        assertTrue(attribute("http://www.loc.gov/premis/rdf/v1#hasSize", "0").isOpaque());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testHoldsForMimeType() throws RepositoryException {
+        not(and(attribute(MIME_TYPE, "image/tiff"), attribute(RDF_TYPE, "http://example.com/mixins#master")))
+                .holdsFor(mockNode);
+    }
+
+    @Test
+    public void testToJcrSql2() throws RepositoryException {
+        final ResidualConstraint constraint = and(not(and(attribute(TITLE, "it's"),
+                attribute(RDF_TYPE, "http://example.com/mixins#master"))), descendant("/a"));
+
+        assertEquals("(NOT (n.[dc:title] = 'it''s' AND (n.[jcr:primaryType] = 'example-mixins:master' OR " +
+                "n.[jcr:mixinTypes] = 'example-mixins:master')) AND ISDESCENDANTNODE(n, [/a]))",
+                constraint.toJcrSql2("n", mockNamespaces));
+    }
+
+    @Test
+    public void testToJcrSql2RepositoryNamespace() throws RepositoryException {
+        assertEquals("n.[jcr:createdBy] = 'bob'", attribute(CREATED_BY, "bob").toJcrSql2("n", mockNamespaces));
+    }
+
+    @Test
+    public void testToJcrSql2ResourceId() throws RepositoryException {
+        assertEquals("ISSAMENODE(n, [/fedora:a/b])",
+                resourceId("/{http://fedora.info/definitions/v4/rest-api#}a/{}b").toJcrSql2("n", mockNamespaces));
+    }
+
+    @Test
+    public void testToJcrSql2UnregisteredNamespace() throws RepositoryException {
+        final ResidualConstraint constraint = or(attribute("http://unknown.example/ns#p", "v"), sameNode("/a"));
+
+        assertEquals("ISSAMENODE(n, [/a])", constraint.toJcrSql2("n", mockNamespaces));
+        assertEquals("n.[jcr:primaryType] IS NULL",
+                attribute("http://unknown.example/ns#p", "v").toJcrSql2("n", mockNamespaces));
+        assertEquals("n.[jcr:primaryType] IS NOT NULL", TRUE.toJcrSql2("n", mockNamespaces));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testToJcrSql2Opaque() throws RepositoryException {
+        and(descendant("/a"), opaque("condition")).toJcrSql2("n", mockNamespaces);
+    }
+
+    @Test
+    public void testHoldsFor() throws RepositoryException {
+        final ResidualConstraint master = attribute(RDF_TYPE, "http://example.com/mixins#master");
+
+        assertTrue(and(master, attribute(TITLE, "master copy"), descendant("/a")).holdsFor(mockNode));
+        assertFalse(and(master, not(attribute(TITLE, "master copy"))).holdsFor(mockNode));
+        assertFalse(or(attribute(RDF_TYPE, "http://example.com/mixins#other"), sameNode("/a"),
+                descendant("/a/b"), attribute("http://unknown.example/ns#p", "v")).holdsFor(mockNode));
+        assertTrue(resourceId("/{}a/{}b").holdsFor(mockNode));
+    }
+
+    @Test
+    public void testHoldsForRepositoryNamespace() throws RepositoryException {
+        final Property createdBy = mock(Property.class);
+        when(mockNode.hasProperty("jcr:createdBy")).thenReturn(true);
+        when(mockNode.getProperty("jcr:createdBy")).thenReturn(createdBy);
+        when(createdBy.getString()).thenReturn("bob");
+
+        assertTrue(attribute(CREATED_BY, "bob").holdsFor(mockNode));
+        assertFalse(attribute(CREATED_BY, "alice").holdsFor(mockNode));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testHoldsForOpaque() throws RepositoryException {
+        and(descendant("/a"), opaque("condition")).holdsFor(mockNode);
+    }
+}
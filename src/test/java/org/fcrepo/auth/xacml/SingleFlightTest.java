@@ -0,0 +1,137 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests the coalescing of concurrent loads.
+ */
+public class SingleFlightTest {
+
+    @Test
+    public void testConcurrentLoadsCoalesced() throws Exception {
+        final SingleFlight<String, Object> flights = new SingleFlight<>();
+        final Object value = new Object();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<Object> loader = new Callable<Object>() {
+
+            @Override
+            public Object call() throws Exception {
+                started.countDown();
+                release.await();
+                return value;
+            }
+        };
+
+        final ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            final Future<Object> first = pool.submit(new Load(flights, "key", loader));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            final Future<Object> second = pool.submit(new Load(flights, "key", loader));
+            final Future<Object> third = pool.submit(new Load(flights, "key", loader));
+            while (flights.getCoalesced() < 2) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+
+            assertSame(value, first.get(5, TimeUnit.SECONDS));
+            assertSame(value, second.get(5, TimeUnit.SECONDS));
+            assertSame(value, third.get(5, TimeUnit.SECONDS));
+            assertEquals(1, flights.getLoads());
+            assertEquals(2, flights.getCoalesced());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSequentialLoadsNotCoalesced() throws ExecutionException {
+        final SingleFlight<String, String> flights = new SingleFlight<>();
+        final Callable<String> loader = new Callable<String>() {
+
+            @Override
+            public String call() {
+                return "value";
+            }
+        };
+
+        assertEquals("value", flights.load("key", loader));
+        assertEquals("value", flights.load("key", loader));
+        assertEquals(2, flights.getLoads());
+        assertEquals(0, flights.getCoalesced());
+    }
+
+    @Test
+    public void testFailedLoadNotKept() throws ExecutionException {
+        final SingleFlight<String, String> flights = new SingleFlight<>();
+        final IllegalStateException failure = new IllegalStateException();
+        try {
+            flights.load("key", new Callable<String>() {
+
+                @Override
+                public String call() {
+                    throw failure;
+                }
+            });
+            fail("The load failure should be thrown");
+        } catch (final ExecutionException e) {
+            assertSame(failure, e.getCause());
+        }
+
+        assertEquals("value", flights.load("key", new Callable<String>() {
+
+            @Override
+            public String call() {
+                return "value";
+            }
+        }));
+    }
+
+    private static class Load implements Callable<Object> {
+
+        private final SingleFlight<String, Object> flights;
+
+        private final String key;
+
+        private final Callable<Object> loader;
+
+        Load(final SingleFlight<String, Object> flights, final String key, final Callable<Object> loader) {
+            this.flights = flights;
+            this.key = key;
+            this.loader = loader;
+        }
+
+        @Override
+        public Object call() throws Exception {
+            return flights.load(key, loader);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonMap;
+import static org.fcrepo.auth.xacml.URIConstants.SUBJECT_CATEGORY_ACCESS_SUBJECT;
+import static org.fcrepo.auth.xacml.URIConstants.XML_SCHEMA_STRING;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.RESOURCE_TARGET;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.SUBJECT_TARGET;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.net.URI;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.Session;
+
+import org.jboss.security.xacml.sunxacml.attr.BagAttribute;
+import org.jboss.security.xacml.sunxacml.attr.StringAttribute;
+import org.jboss.security.xacml.sunxacml.cond.EvaluationResult;
+import org.jboss.security.xacml.sunxacml.finder.AttributeFinderModule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SubjectAttributeFinderModuleTest {
+
+    private static final URI DEPARTMENT = URI.create("http://example.org/directory#department");
+
+    private InMemoryDirectory directory;
+
+    private SubjectAttributeFinderModule module;
+
+    @Before
+    public void setUp() {
+        directory = new InMemoryDirectory();
+        directory.setDepartment("alice", "history");
+        module = new SubjectAttributeFinderModule(directory);
+    }
+
+    @After
+    public void tearDown() {
+        module.close();
+    }
+
+    @Test
+    public void testFindAttribute() {
+        module.init();
+
+        assertEquals("history", department(module.forSession(mock(Session.class), "alice")));
+    }
+
+    @Test
+    public void testFindAttributeFromContext() {
+        module.init();
+        final FedoraEvaluationCtx context = mock(FedoraEvaluationCtx.class);
+        when(context.getPrincipalName()).thenReturn("alice");
+
+        final EvaluationResult result = module.findAttribute(XML_SCHEMA_STRING, DEPARTMENT, null,
+                SUBJECT_CATEGORY_ACCESS_SUBJECT, context, SUBJECT_TARGET);
+
+        assertEquals(new StringAttribute("history"), ((BagAttribute) result.getAttributeValue()).iterator().next());
+    }
+
+    @Test
+    public void testOneLookupPerUser() {
+        module.init();
+        final Session session = mock(Session.class);
+        for (int i = 0; i < 10; i++) {
+            department(module.forSession(session, "alice"));
+        }
+        department(module.forSession(mock(Session.class), "alice"));
+
+        assertEquals(1, directory.lookups.get());
+    }
+
+    @Test
+    public void testSessionKeepsAttributes() throws InterruptedException {
+        module.setRefreshInterval(1);
+        module.init();
+        final AttributeFinderModule first = module.forSession(mock(Session.class), "alice");
+        assertEquals("history", department(first));
+
+        directory.setDepartment("alice", "physics");
+        String refreshed = null;
+        for (int i = 0; i < 100 && !"physics".equals(refreshed); i++) {
+            Thread.sleep(20);
+            refreshed = department(module.forSession(mock(Session.class), "alice"));
+        }
+
+        assertEquals("physics", refreshed);
+        assertEquals("history", department(first));
+    }
+
+    @Test
+    public void testUnknownUser() {
+        module.init();
+
+        assertEquals(null, department(module.forSession(mock(Session.class), "bob")));
+        assertEquals(null, department(module.forSession(mock(Session.class), "bob")));
+        assertEquals(1, directory.lookups.get());
+    }
+
+    @Test
+    public void testUnknownUserLookedUpAgain() throws InterruptedException {
+        module.setNegativeTimeToLive(1);
+        module.init();
+        assertEquals(null, department(module.forSession(mock(Session.class), "bob")));
+
+        directory.setDepartment("bob", "history");
+        String found = null;
+        for (int i = 0; i < 100 && found == null; i++) {
+            Thread.sleep(20);
+            found = department(module.forSession(mock(Session.class), "bob"));
+        }
+
+        assertEquals("history", found);
+    }
+
+    @Test
+    public void testFailedLookup() {
+        directory.down = true;
+        module.init();
+
+        assertEquals(null, department(module.forSession(mock(Session.class), "alice")));
+        assertEquals(null, department(module.forSession(mock(Session.class), "alice")));
+        assertEquals(1, directory.lookups.get());
+    }
+
+    @Test
+    public void testFailedRefreshKeepsAttributes() throws InterruptedException {
+        module.setRefreshInterval(1);
+        module.init();
+        assertEquals("history", department(module.forSession(mock(Session.class), "alice")));
+
+        directory.down = true;
+        for (int i = 0; i < 100 && directory.lookups.get() < 3; i++) {
+            Thread.sleep(20);
+            department(module.forSession(mock(Session.class), "alice"));
+        }
+
+        assertTrue(directory.lookups.get() >= 3);
+        assertEquals("history", department(module.forSession(mock(Session.class), "alice")));
+    }
+
+    @Test
+    public void testOtherDesignator() {
+        module.init();
+
+        final EvaluationResult result = module.forSession(mock(Session.class), "alice").findAttribute(
+                XML_SCHEMA_STRING, DEPARTMENT, null, null, null, RESOURCE_TARGET);
+
+        assertTrue(((BagAttribute) result.getAttributeValue()).isEmpty());
+        assertEquals(0, directory.lookups.get());
+    }
+
+    @Test
+    public void testAnonymous() {
+        module.init();
+
+        assertEquals(null, department(module.forSession(mock(Session.class), null)));
+        assertEquals(0, directory.lookups.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNullSource() {
+        new SubjectAttributeFinderModule(null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetTimeToLiveIllegalArg() {
+        module.setTimeToLive(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetRefreshIntervalIllegalArg() {
+        module.setRefreshInterval(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetNegativeTimeToLiveIllegalArg() {
+        module.setNegativeTimeToLive(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetMaxPrincipalsIllegalArg() {
+        module.setMaxPrincipals(0);
+    }
+
+    /**
+     * @return the single department of the user of a session, or null if it has none
+     */
+    private static String department(final AttributeFinderModule finder) {
+        final EvaluationResult result = finder.findAttribute(XML_SCHEMA_STRING, DEPARTMENT, null,
+                SUBJECT_CATEGORY_ACCESS_SUBJECT, null, SUBJECT_TARGET);
+        final Iterator<?> values = ((BagAttribute) result.getAttributeValue()).iterator();
+        return values.hasNext() ? ((StringAttribute) values.next()).getValue() : null;
+    }
+
+    /**
+     * A directory of users held in memory, which counts its lookups and can be taken down.
+     */
+    private static class InMemoryDirectory implements SubjectAttributeSource {
+
+        private final Map<String, Map<String, Set<String>>> users = new ConcurrentHashMap<>();
+
+        private final AtomicInteger lookups = new AtomicInteger();
+
+        private volatile boolean down;
+
+        private void setDepartment(final String user, final String department) {
+            users.put(user, singletonMap(DEPARTMENT.toString(), singleton(department)));
+        }
+
+        @Override
+        public Map<String, Set<String>> getAttributes(final String principalName) {
+            lookups.incrementAndGet();
+            if (down) {
+                throw new IllegalStateException("Directory is down");
+            }
+            return users.get(principalName);
+        }
+    }
+}
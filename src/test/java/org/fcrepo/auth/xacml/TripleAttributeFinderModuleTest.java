@@ -15,6 +15,7 @@
  */
 package org.fcrepo.auth.xacml;
 
+import static javax.jcr.observation.Event.PROPERTY_CHANGED;
 import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.RESOURCE_TARGET;
 import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.SUBJECT_TARGET;
 import static org.junit.Assert.assertEquals;
@@ -23,18 +24,29 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
 import java.net.URI;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.Workspace;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.ObservationManager;
 
+import org.fcrepo.auth.xacml.TripleAttributeFinderModule.ResourceTriples;
 import org.fcrepo.http.commons.session.SessionFactory;
 import org.fcrepo.kernel.FedoraResource;
 import org.fcrepo.kernel.exception.RepositoryRuntimeException;
@@ -53,7 +65,11 @@ import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.NodeIterator;
 import com.hp.hpl.jena.rdf.model.Property;
@@ -98,6 +114,12 @@ public class TripleAttributeFinderModuleTest {
     @Mock
     private RDFNode mockRDFNode;
 
+    @Mock
+    private Workspace mockWorkspace;
+
+    @Mock
+    private ObservationManager mockObservationManager;
+
 
     @Before
     public void setUp() throws Exception {
@@ -108,11 +130,13 @@ public class TripleAttributeFinderModuleTest {
         finder.nodeService = mockNodeService;
 
         when(mockSessionFactory.getInternalSession()).thenReturn(mockSession);
+        when(mockSession.getWorkspace()).thenReturn(mockWorkspace);
+        when(mockWorkspace.getObservationManager()).thenReturn(mockObservationManager);
     }
 
     @After
     public void tearDown() throws Exception {
-
+        finder.destroy();
     }
 
     @Test
@@ -189,6 +213,173 @@ public class TripleAttributeFinderModuleTest {
         assertEquals(value.toString(), "SamIAm");
     }
 
+    @Test
+    public void testFindAttributePrefetched() throws RepositoryException {
+
+        final String resourceId = "/{ns}path/{ns}to/{ns}resource";
+
+        when(mockNodeService.getObject(mockSession, resourceId)).thenReturn(mockFedoraResource);
+        when(mockFedoraResource.getTriples(any(IdentifierConverter.class), eq(PropertiesRdfContext.class))).thenReturn(
+                mockRdfStream);
+        when(mockFedoraResource.getPath()).thenReturn(resourceId);
+        when(mockRdfStream.asModel()).thenReturn(mockModel);
+        when(mockModel.listObjectsOfProperty(any(Resource.class),
+                any(Property.class))).thenReturn(mockMatches);
+        when(mockMatches.hasNext()).thenReturn(true, false, true, false);
+        when(mockMatches.next()).thenReturn(mockRDFNode);
+        when(mockRDFNode.asResource()).thenReturn(mockResource);
+        when(mockResource.getURI()).thenReturn("SamIAm");
+
+        final URI attributeType = URI.create("http://www.w3.org/2001/XMLSchema#anyURI");
+        final FedoraEvaluationCtx context = evaluationCtx(resourceId, null);
+        finder.prefetch(context);
+        assertNotNull("Resource properties should be prefetched!", context.getResourceTriples());
+
+        final EvaluationResult first =
+                finder.findAttribute(attributeType, URI.create("uri:att-id"), null, null, context, RESOURCE_TARGET);
+        final EvaluationResult second =
+                finder.findAttribute(attributeType, URI.create("uri:att-id2"), null, null, context, RESOURCE_TARGET);
+
+        assertEquals("SamIAm", first.getAttributeValue().getValue().toString());
+        assertEquals("SamIAm", second.getAttributeValue().getValue().toString());
+        verify(mockNodeService, times(1)).getObject(mockSession, resourceId);
+    }
+
+    @Test
+    public void testPrefetchDisabled() {
+        finder.setPrefetchEnabled(false);
+        final FedoraEvaluationCtx context = evaluationCtx("/{ns}path/{ns}to/{ns}resource", null);
+        finder.prefetch(context);
+
+        assertNull("Resource properties should not be prefetched!", context.getResourceTriples());
+    }
+
+    @Test
+    public void testPrefetchSaturated() throws Exception {
+        final String resourceId = "/{ns}path/{ns}to/{ns}resource";
+        final CountDownLatch release = new CountDownLatch(1);
+        when(mockNodeService.getObject(mockSession, resourceId)).thenAnswer(new Answer<FedoraResource>() {
+
+            @Override
+            public FedoraResource answer(final InvocationOnMock invocation) throws InterruptedException {
+                release.await();
+                return null;
+            }
+        });
+        finder.setPrefetchThreads(1);
+        finder.setCoalesceLoads(false);
+        try {
+            // one running and 16 queued
+            for (int i = 0; i < 17; i++) {
+                finder.prefetch(evaluationCtx(resourceId, null));
+            }
+            final FedoraEvaluationCtx context = evaluationCtx(resourceId, null);
+            finder.prefetch(context);
+
+            assertNull("A saturated pool should not prefetch!", context.getResourceTriples());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void testCancelPrefetch() {
+        final FedoraEvaluationCtx context = evaluationCtx("/{ns}path/{ns}to/{ns}resource", null);
+        final ListenableFuture<ResourceTriples> prefetched = SettableFuture.create();
+        context.setResourceTriples(prefetched);
+
+        finder.cancelPrefetch(context);
+        finder.cancelPrefetch(evaluationCtx("/{ns}path/{ns}to/{ns}resource", null));
+
+        assertTrue("Prefetch should be cancelled!", prefetched.isCancelled());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetPrefetchThreadsIllegalArg() {
+        finder.setPrefetchThreads(0);
+    }
+
+    @Test
+    public void testParentTriplesCached() throws RepositoryException {
+        final String parentId = "/{ns}path/{ns}to/{ns}node";
+        mockParent(parentId);
+
+        doFindAttribute(parentId + "/{ns}child1", new String[] { "add_node" });
+        doFindAttribute(parentId + "/{ns}child2", new String[] { "add_node" });
+        doFindAttribute(parentId + "/{ns}property", new String[] { "set_property" });
+
+        verify(mockNodeService, times(1)).getObject(mockSession, parentId);
+    }
+
+    @Test
+    public void testParentTriplesChanged() throws RepositoryException {
+        final String parentId = "/{ns}path/{ns}to/{ns}node";
+        mockParent(parentId);
+        when(mockSession.getNamespaceURI("ns")).thenReturn("ns");
+
+        doFindAttribute(parentId + "/{ns}child1", new String[] { "add_node" });
+
+        final ArgumentCaptor<EventListener> listener = ArgumentCaptor.forClass(EventListener.class);
+        verify(mockObservationManager).addEventListener(listener.capture(), anyInt(), eq("/"), eq(true),
+                any(String[].class), any(String[].class), eq(false));
+        final Event event = mock(Event.class);
+        when(event.getType()).thenReturn(PROPERTY_CHANGED);
+        when(event.getPath()).thenReturn("/ns:path/ns:to/ns:node/ns:title");
+        final EventIterator events = mock(EventIterator.class);
+        when(events.hasNext()).thenReturn(true, false);
+        when(events.nextEvent()).thenReturn(event);
+        listener.getValue().onEvent(events);
+
+        doFindAttribute(parentId + "/{ns}child2", new String[] { "add_node" });
+
+        verify(mockNodeService, times(2)).getObject(mockSession, parentId);
+    }
+
+    @Test
+    public void testParentTriplesContentChanged() throws RepositoryException {
+        final String parentId = "/{ns}path/{ns}to/{ns}datastream";
+        mockParent(parentId);
+        when(mockSession.getNamespaceURI("ns")).thenReturn("ns");
+        when(mockSession.getNamespaceURI("jcr")).thenReturn("http://www.jcp.org/jcr/1.0");
+
+        doFindAttribute(parentId + "/{ns}property", new String[] { "set_property" });
+
+        final ArgumentCaptor<EventListener> listener = ArgumentCaptor.forClass(EventListener.class);
+        verify(mockObservationManager).addEventListener(listener.capture(), anyInt(), eq("/"), eq(true),
+                any(String[].class), any(String[].class), eq(false));
+        final Event event = mock(Event.class);
+        when(event.getType()).thenReturn(PROPERTY_CHANGED);
+        when(event.getPath()).thenReturn("/ns:path/ns:to/ns:datastream/jcr:content/ns:mimeType");
+        final EventIterator events = mock(EventIterator.class);
+        when(events.hasNext()).thenReturn(true, false);
+        when(events.nextEvent()).thenReturn(event);
+        listener.getValue().onEvent(events);
+
+        doFindAttribute(parentId + "/{ns}property", new String[] { "set_property" });
+
+        verify(mockNodeService, times(2)).getObject(mockSession, parentId);
+    }
+
+    @Test
+    public void testParentCacheDisabled() throws RepositoryException {
+        final String parentId = "/{ns}path/{ns}to/{ns}node";
+        mockParent(parentId);
+        finder.setParentCacheEnabled(false);
+        finder.setCoalesceLoads(false);
+
+        doFindAttribute(parentId + "/{ns}child1", new String[] { "add_node" });
+        doFindAttribute(parentId + "/{ns}child2", new String[] { "add_node" });
+
+        verify(mockNodeService, times(2)).getObject(mockSession, parentId);
+        verify(mockObservationManager, never()).addEventListener(any(EventListener.class), anyInt(),
+                any(String.class), any(Boolean.class), any(String[].class), any(String[].class), any(Boolean.class));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetParentCacheTtlIllegalArg() {
+        finder.setParentCacheTtl(0);
+    }
+
     @Test
     public void testFindAttributeBySelector() {
         final URI attributeType = URI.create("uri:att-type");
@@ -334,6 +525,15 @@ public class TripleAttributeFinderModuleTest {
         assertNull("EvaluationResult value should be null!", value);
     }
 
+    private void mockParent(final String parentId) {
+        when(mockNodeService.getObject(mockSession, parentId)).thenReturn(mockFedoraResource);
+        when(mockFedoraResource.getTriples(any(IdentifierConverter.class), eq(PropertiesRdfContext.class))).thenReturn(
+                mockRdfStream);
+        when(mockFedoraResource.getPath()).thenReturn(parentId);
+        when(mockRdfStream.asModel()).thenReturn(mockModel);
+        when(mockModel.listObjectsOfProperty(any(Resource.class), any(Property.class))).thenReturn(mockMatches);
+    }
+
     private EvaluationResult doFindAttribute(final String resourceId) {
         return doFindAttribute(-1, resourceId, null);
     }
@@ -362,7 +562,7 @@ public class TripleAttributeFinderModuleTest {
         return result;
     }
 
-    private EvaluationCtx evaluationCtx(final String resourceId, final String[] actions) {
+    private FedoraEvaluationCtx evaluationCtx(final String resourceId, final String[] actions) {
         final FedoraEvaluationCtxBuilder builder = new FedoraEvaluationCtxBuilder();
         if (resourceId != null) {
             builder.addResourceID(resourceId);
@@ -15,32 +15,57 @@
  */
 package org.fcrepo.auth.xacml;
 
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.fcrepo.auth.common.FedoraAuthorizationDelegate.FEDORA_SERVLET_REQUEST;
 import static org.fcrepo.auth.common.FedoraAuthorizationDelegate.FEDORA_USER_PRINCIPAL;
 import static org.fcrepo.http.commons.test.util.TestHelpers.setField;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
+import java.net.URI;
 import java.security.Principal;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.servlet.http.HttpServletRequest;
 
+import org.fcrepo.auth.xacml.EffectivePolicyIndex.PolicyVersion;
 import org.jboss.security.xacml.sunxacml.EvaluationCtx;
 import org.jboss.security.xacml.sunxacml.PDP;
 import org.jboss.security.xacml.sunxacml.ctx.ResponseCtx;
 import org.jboss.security.xacml.sunxacml.ctx.Result;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.modeshape.jcr.api.Session;
 import org.modeshape.jcr.api.Workspace;
 
+import com.google.common.util.concurrent.Futures;
+
 /**
  * @author Andrew Woods
  *         Date: 5/9/14
@@ -56,6 +81,9 @@ public class XACMLAuthorizationDelegateTest {
     @Mock
     private FedoraResourceFinderModule mockFedoraRFM;
 
+    @Mock
+    private EffectivePolicyIndex mockPolicyIndex;
+
     @Mock
     private PDPFactory mockPdpFactory;
 
@@ -103,6 +131,7 @@ public class XACMLAuthorizationDelegateTest {
         setField(xacmlAD, "pdpFactory", mockPdpFactory);
         setField(xacmlAD, "tripleResourceAttributeFinderModule", mockTripleAFM);
         setField(xacmlAD, "sparqlResourceAttributeFinderModule", mockSparqlRAFM);
+        setField(xacmlAD, "environmentAttributeFinderModule", new EnvironmentAttributeFinderModule());
     }
 
     private Set getFakeResultSet() {
@@ -111,6 +140,11 @@ public class XACMLAuthorizationDelegateTest {
         return fakeResults;
     }
 
+    @After
+    public void tearDown() {
+        xacmlAD.destroy();
+    }
+
     @Test(expected = Error.class)
     public void testInitPdpNull() throws Exception {
         when(mockPdpFactory.makePDP()).thenReturn(null);
@@ -130,6 +164,9 @@ public class XACMLAuthorizationDelegateTest {
         xacmlAD.init();
         xacmlAD.rolesHavePermission(mockSession, "/fake/path", getFakeActions(), getFakeRoles());
 
+        // the policy in effect is not known, so its properties are loaded when it reads them
+        verify(mockTripleAFM, never()).prefetch(any(FedoraEvaluationCtx.class));
+        verify(mockTripleAFM).cancelPrefetch(any(FedoraEvaluationCtx.class));
         verify(mockPdp).evaluate(any(EvaluationCtx.class));
         verify(mockSession).getAttribute(FEDORA_USER_PRINCIPAL);
         verify(mockSession).getAttribute(FEDORA_SERVLET_REQUEST);
@@ -138,6 +175,55 @@ public class XACMLAuthorizationDelegateTest {
         verify(mockResult).getDecision();
     }
 
+    @Test
+    public void testRolesHavePermissionPrefetch() throws Exception {
+        setPolicyIndex(true);
+        xacmlAD.setUsePermissionMatrix(false);
+        xacmlAD.init();
+        xacmlAD.rolesHavePermission(mockSession, "/fake/path", getFakeActions(), getFakeRoles());
+
+        verify(mockTripleAFM).prefetch(any(FedoraEvaluationCtx.class));
+        verify(mockTripleAFM).cancelPrefetch(any(FedoraEvaluationCtx.class));
+    }
+
+    @Test
+    public void testRolesHavePermissionNoPrefetch() throws Exception {
+        setPolicyIndex(false);
+        xacmlAD.setUsePermissionMatrix(false);
+        xacmlAD.init();
+        xacmlAD.rolesHavePermission(mockSession, "/fake/path", getFakeActions(), getFakeRoles());
+
+        verify(mockTripleAFM, never()).prefetch(any(FedoraEvaluationCtx.class));
+    }
+
+    @Test
+    public void testRolesHavePermissionPrefetchPoliciesReadPerGeneration() throws Exception {
+        setPolicyIndex(true);
+        xacmlAD.setUsePermissionMatrix(false);
+        xacmlAD.init();
+
+        xacmlAD.rolesHavePermission(mockSession, "/fake/path", getFakeActions(), getFakeRoles());
+        xacmlAD.rolesHavePermission(mockSession, "/fake/path", getFakeActions(), getFakeRoles());
+        when(mockPolicyIndex.getPolicyVersion(anyString())).thenReturn(new PolicyVersion("/", 1));
+        when(mockPolicyIndex.getGeneration()).thenReturn(1L);
+        xacmlAD.rolesHavePermission(mockSession, "/fake/path", getFakeActions(), getFakeRoles());
+
+        verify(mockFedoraPFM, times(2)).readsResourceProperties("/");
+        verify(mockTripleAFM, times(3)).prefetch(any(FedoraEvaluationCtx.class));
+    }
+
+    @Test
+    public void testRolesHavePermissionNoPolicyVersionNeeded() throws Exception {
+        setPolicyIndex(true);
+        when(mockTripleAFM.isPrefetchEnabled()).thenReturn(false);
+        xacmlAD.setUsePermissionMatrix(false);
+        xacmlAD.init();
+        xacmlAD.rolesHavePermission(mockSession, "/fake/path", getFakeActions(), getFakeRoles());
+
+        verify(mockPolicyIndex, never()).getPolicyVersion(anyString());
+        verify(mockFedoraPFM, never()).readsResourceProperties(anyString());
+    }
+
     @Test
     public void testRolesHavePermissionTrue() throws Exception {
         xacmlAD.init();
@@ -151,6 +237,312 @@ public class XACMLAuthorizationDelegateTest {
         assertFalse(xacmlAD.rolesHavePermission(mockSession, "/fake/path", getFakeActions(), getFakeRoles()));
     }
 
+    @Test
+    public void testRolesHavePermissionTraced() throws Exception {
+        final DecisionTrace trace = new DecisionTrace();
+        trace.setEnabled(true);
+        setField(xacmlAD, "decisionTrace", trace);
+        when(mockUser.getName()).thenReturn("fakeUser");
+        when(mockHttpServletRequest.getRemoteAddr()).thenReturn("127.0.0.1");
+        when(mockWorkspace.getName()).thenReturn("default");
+        xacmlAD.init();
+
+        xacmlAD.rolesHavePermission(mockSession, "/fake/path", getFakeActions(), getFakeRoles());
+
+        final List<DecisionRecord> decisions = trace.getDecisions();
+        assertEquals(1, decisions.size());
+        assertEquals("fakeUser", decisions.get(0).getPrincipal());
+        assertEquals("/fake/path", decisions.get(0).getPath());
+        assertTrue(decisions.get(0).isPermit());
+        assertEquals("Permit", decisions.get(0).getResults()[0]);
+    }
+
+    @Test
+    public void testRolesHavePermissionSubjectAttributes() throws Exception {
+        final SubjectAttributeFinderModule subjectAFM = mock(SubjectAttributeFinderModule.class);
+        setField(xacmlAD, "subjectAttributeFinderModule", subjectAFM);
+        when(mockUser.getName()).thenReturn("fakeUser");
+        xacmlAD.init();
+
+        xacmlAD.rolesHavePermission(mockSession, "/fake/path", getFakeActions(), getFakeRoles());
+
+        verify(subjectAFM).forSession(mockSession, "fakeUser");
+    }
+
+    @Test
+    public void testRolesHavePermissionAudited() throws Exception {
+        final DecisionAuditLog auditLog = mock(DecisionAuditLog.class);
+        setField(xacmlAD, "auditLog", auditLog);
+        when(mockUser.getName()).thenReturn("fakeUser");
+        xacmlAD.init();
+
+        xacmlAD.rolesHavePermission(mockSession, "/fake/path", getFakeActions(), getFakeRoles());
+
+        verify(auditLog).record(eq("fakeUser"), eq(getFakeRoles()), eq("/fake/path"),
+                eq(asList(getFakeActions())), anyString(), eq(true), anyLong());
+    }
+
+    @Test
+    public void testRolesHavePermissionAsync() throws Exception {
+        xacmlAD.init();
+        assertTrue(xacmlAD.rolesHavePermissionAsync(mockSession, "/fake/path", getFakeActions(), getFakeRoles())
+                .get());
+    }
+
+    @Test
+    public void testRolesHavePermissionAsyncDenyOnTimeout() throws Exception {
+        xacmlAD.setAsyncTimeout(50);
+        xacmlAD.init();
+        when(mockPdp.evaluate(any(EvaluationCtx.class))).thenAnswer(slowResponse(5000));
+
+        assertFalse(xacmlAD.rolesHavePermissionAsync(mockSession, "/fake/path", getFakeActions(), getFakeRoles())
+                .get());
+    }
+
+    @Test
+    public void testRolesHavePermissionAsyncTimeout() throws Exception {
+        xacmlAD.setAsyncTimeout(50);
+        xacmlAD.setDenyOnTimeout(false);
+        xacmlAD.init();
+        when(mockPdp.evaluate(any(EvaluationCtx.class))).thenAnswer(slowResponse(5000));
+
+        try {
+            xacmlAD.rolesHavePermissionAsync(mockSession, "/fake/path", getFakeActions(), getFakeRoles()).get();
+            fail("Evaluation should have timed out");
+        } catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+    }
+
+    @Test
+    public void testRolesHavePermissionAsyncTimeoutNotInterrupted() throws Exception {
+        xacmlAD.setAsyncThreads(1);
+        xacmlAD.setAsyncTimeout(50);
+        xacmlAD.init();
+        final CountDownLatch finished = new CountDownLatch(1);
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        when(mockPdp.evaluate(any(EvaluationCtx.class))).thenAnswer(new Answer<ResponseCtx>() {
+
+            @Override
+            public ResponseCtx answer(final InvocationOnMock invocation) {
+                try {
+                    Thread.sleep(300);
+                } catch (final InterruptedException e) {
+                    interrupted.set(true);
+                }
+                finished.countDown();
+                return mockResponseCtx;
+            }
+        });
+
+        assertFalse(xacmlAD.rolesHavePermissionAsync(mockSession, "/fake/path", getFakeActions(), getFakeRoles())
+                .get());
+        // queued behind the first, and abandoned before it starts
+        assertFalse(xacmlAD.rolesHavePermissionAsync(mockSession, "/fake/path", getFakeActions(), getFakeRoles())
+                .get());
+
+        assertTrue(finished.await(5, SECONDS));
+        Thread.sleep(100);
+        assertFalse(interrupted.get());
+        verify(mockPdp).evaluate(any(EvaluationCtx.class));
+    }
+
+    @Test
+    public void testRolesHavePermissionAsyncRejected() throws Exception {
+        xacmlAD.setAsyncThreads(1);
+        xacmlAD.setAsyncQueueSize(1);
+        xacmlAD.init();
+        when(mockPdp.evaluate(any(EvaluationCtx.class))).thenAnswer(slowResponse(500));
+
+        xacmlAD.rolesHavePermissionAsync(mockSession, "/fake/path", getFakeActions(), getFakeRoles());
+        xacmlAD.rolesHavePermissionAsync(mockSession, "/fake/path", getFakeActions(), getFakeRoles());
+        try {
+            xacmlAD.rolesHavePermissionAsync(mockSession, "/fake/path", getFakeActions(), getFakeRoles()).get();
+            fail("Evaluation should have been rejected");
+        } catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+
+    @Test
+    public void testRolesHavePermissionMatrix() throws Exception {
+        setPermissionMatrix();
+        when(mockPdp.evaluate(any(EvaluationCtx.class))).thenAnswer(policyResponse(null, false));
+        xacmlAD.init();
+
+        assertTrue(xacmlAD.rolesHavePermission(mockSession, "/fake/path", new String[] {"read"}, adminRole()));
+        assertTrue(xacmlAD.rolesHavePermission(mockSession, "/fake/path", new String[] {"read"}, adminRole()));
+
+        // only the first request is evaluated
+        verify(mockPdp).evaluate(any(EvaluationCtx.class));
+        verify(mockTripleAFM).prefetch(any(FedoraEvaluationCtx.class));
+    }
+
+    @Test
+    public void testRolesHavePermissionMatrixPerRoles() throws Exception {
+        setPermissionMatrix();
+        when(mockPdp.evaluate(any(EvaluationCtx.class))).thenAnswer(policyResponse(null, false));
+        xacmlAD.init();
+
+        xacmlAD.rolesHavePermission(mockSession, "/fake/path", getFakeActions(), getFakeRoles());
+        xacmlAD.rolesHavePermission(mockSession, "/fake/path", new String[] {"read"}, adminRole());
+        xacmlAD.rolesHavePermission(mockSession, "/fake/path", getFakeActions(), getFakeRoles());
+        xacmlAD.rolesHavePermission(mockSession, "/fake/path", new String[] {"read"}, adminRole());
+
+        verify(mockPdp, times(2)).evaluate(any(EvaluationCtx.class));
+    }
+
+    @Test
+    public void testRolesHavePermissionMatrixPerPolicy() throws Exception {
+        setPermissionMatrix();
+        when(mockPdp.evaluate(any(EvaluationCtx.class))).thenAnswer(policyResponse(null, false));
+        when(mockPolicyIndex.getPolicyVersion("/fake/path")).thenReturn(new PolicyVersion("/fake", 0));
+        xacmlAD.init();
+
+        xacmlAD.rolesHavePermission(mockSession, "/fake/path", new String[] {"read"}, adminRole());
+        xacmlAD.rolesHavePermission(mockSession, "/other/path", new String[] {"read"}, adminRole());
+        xacmlAD.rolesHavePermission(mockSession, "/fake/path", new String[] {"read"}, adminRole());
+        xacmlAD.rolesHavePermission(mockSession, "/other/path", new String[] {"read"}, adminRole());
+
+        verify(mockPdp, times(2)).evaluate(any(EvaluationCtx.class));
+    }
+
+    @Test
+    public void testRolesHavePermissionMatrixOtherPolicy() throws Exception {
+        setPermissionMatrix();
+        // the PDP found another policy than the index
+        when(mockPdp.evaluate(any(EvaluationCtx.class))).thenAnswer(policyResponse("/fake", false));
+        xacmlAD.init();
+
+        xacmlAD.rolesHavePermission(mockSession, "/fake/path/child", new String[] {"read"}, adminRole());
+        xacmlAD.rolesHavePermission(mockSession, "/fake/path/child", new String[] {"read"}, adminRole());
+
+        verify(mockPdp, times(2)).evaluate(any(EvaluationCtx.class));
+    }
+
+    @Test
+    public void testRolesHavePermissionMatrixAttributeDependent() throws Exception {
+        setPermissionMatrix();
+        when(mockPdp.evaluate(any(EvaluationCtx.class))).thenAnswer(policyResponse(null, true));
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(final InvocationOnMock invocation) {
+                // the resource has no properties
+                final FedoraEvaluationCtx ctx = (FedoraEvaluationCtx) invocation.getArguments()[0];
+                ctx.setResourceTriples(Futures.<TripleAttributeFinderModule.ResourceTriples>immediateFuture(null));
+                return null;
+            }
+        }).when(mockTripleAFM).prefetch(any(FedoraEvaluationCtx.class));
+        xacmlAD.init();
+
+        xacmlAD.rolesHavePermission(mockSession, "/fake/path", new String[] {"read"}, adminRole());
+        xacmlAD.rolesHavePermission(mockSession, "/fake/path", new String[] {"read"}, adminRole());
+
+        verify(mockPdp, times(2)).evaluate(any(EvaluationCtx.class));
+        verify(mockTripleAFM, times(2)).prefetch(any(FedoraEvaluationCtx.class));
+    }
+
+    @Test
+    public void testRolesHavePermissionMatrixPolicyChanged() throws Exception {
+        setPermissionMatrix();
+        when(mockPdp.evaluate(any(EvaluationCtx.class))).thenAnswer(policyResponse(null, false));
+        xacmlAD.init();
+
+        assertTrue(xacmlAD.rolesHavePermission(mockSession, "/fake/path", new String[] {"read"}, adminRole()));
+        // the repository event of a policy change started a new generation
+        when(mockPolicyIndex.getPolicyVersion(anyString())).thenReturn(new PolicyVersion("/", 1));
+        when(mockPolicyIndex.getGeneration()).thenReturn(1L);
+        when(mockResult.getDecision()).thenReturn(Result.DECISION_DENY);
+        assertFalse(xacmlAD.rolesHavePermission(mockSession, "/fake/path", new String[] {"read"}, adminRole()));
+        assertFalse(xacmlAD.rolesHavePermission(mockSession, "/fake/path", new String[] {"read"}, adminRole()));
+
+        verify(mockPdp, times(2)).evaluate(any(EvaluationCtx.class));
+    }
+
+    @Test
+    public void testRolesHavePermissionMatrixNoPolicy() throws Exception {
+        setPermissionMatrix();
+        when(mockPolicyIndex.getPolicyVersion(anyString())).thenReturn(null);
+        when(mockPdp.evaluate(any(EvaluationCtx.class))).thenAnswer(policyResponse("/", false));
+        xacmlAD.init();
+
+        xacmlAD.rolesHavePermission(mockSession, "/fake/path", new String[] {"read"}, adminRole());
+        xacmlAD.rolesHavePermission(mockSession, "/fake/path", new String[] {"read"}, adminRole());
+
+        verify(mockPdp, times(2)).evaluate(any(EvaluationCtx.class));
+    }
+
+    @Test
+    public void testRolesHavePermissionMatrixDisabled() throws Exception {
+        setPermissionMatrix();
+        xacmlAD.setUsePermissionMatrix(false);
+        when(mockPdp.evaluate(any(EvaluationCtx.class))).thenAnswer(policyResponse(null, false));
+        xacmlAD.init();
+
+        xacmlAD.rolesHavePermission(mockSession, "/fake/path", new String[] {"read"}, adminRole());
+        xacmlAD.rolesHavePermission(mockSession, "/fake/path", new String[] {"read"}, adminRole());
+
+        verify(mockPdp, times(2)).evaluate(any(EvaluationCtx.class));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetAsyncThreadsIllegalArg() {
+        xacmlAD.setAsyncThreads(0);
+    }
+
+    private void setPermissionMatrix() {
+        setPolicyIndex(true);
+    }
+
+    /**
+     * Puts every path under the root policy, in generation 0.
+     *
+     * @param readsProperties whether the root policy reads resource properties
+     */
+    private void setPolicyIndex(final boolean readsProperties) {
+        setField(xacmlAD, "effectivePolicyIndex", mockPolicyIndex);
+        setField(xacmlAD, "fedoraPolicyFinderModule", mockFedoraPFM);
+        when(mockPolicyIndex.getPolicyVersion(anyString())).thenReturn(new PolicyVersion("/", 0));
+        when(mockFedoraPFM.readsResourceProperties(anyString())).thenReturn(readsProperties);
+        when(mockTripleAFM.isPrefetchEnabled()).thenReturn(true);
+    }
+
+    /**
+     * Answers as the policy of the given node would, or of the node that the index finds for the path.
+     */
+    private Answer<ResponseCtx> policyResponse(final String node, final boolean useMimeType) {
+        return new Answer<ResponseCtx>() {
+
+            @Override
+            public ResponseCtx answer(final InvocationOnMock invocation) {
+                final FedoraEvaluationCtx ctx = (FedoraEvaluationCtx) invocation.getArguments()[0];
+                ctx.setEffectivePolicyNode(node != null ? node :
+                        mockPolicyIndex.getPolicyVersion(ctx.getResourcePath()).getNode());
+                if (useMimeType) {
+                    ctx.getResourceAttribute(URI.create("http://www.w3.org/2001/XMLSchema#string"),
+                            URI.create("info:fedora/test/mimeType"), null);
+                }
+                return mockResponseCtx;
+            }
+        };
+    }
+
+    private Set<String> adminRole() {
+        return Collections.singleton("admin");
+    }
+
+    private Answer<ResponseCtx> slowResponse(final long millis) {
+        return new Answer<ResponseCtx>() {
+
+            @Override
+            public ResponseCtx answer(final InvocationOnMock invocation) throws InterruptedException {
+                Thread.sleep(millis);
+                return mockResponseCtx;
+            }
+        };
+    }
+
     private String[] getFakeActions() {
         final String[] fakeActions =  new String[2];
         fakeActions[0] = "fakeAction1";
@@ -29,6 +29,9 @@ import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPatch;
 import org.apache.http.entity.BasicHttpEntity;
 import org.fcrepo.auth.roles.common.integration.RolesFadTestObjectBean;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -109,4 +112,28 @@ public class XACMLTestUtil {
         final HttpResponse response = client.execute(patch);
         assertEquals(NO_CONTENT.getStatusCode(), response.getStatusLine().getStatusCode());
     }
+
+    /**
+     * Starts a cache manager that clusters with the others started in this JVM, over an in-process transport.
+     *
+     * @param nodeName the name of the node in the cluster
+     * @return the started cache manager
+     */
+    public static EmbeddedCacheManager clusteredCacheManager(final String nodeName) {
+        return new DefaultCacheManager(new GlobalConfigurationBuilder().clusteredDefault()
+                .transport().clusterName("xacml-test").nodeName(nodeName)
+                .addProperty("configurationFile", "infinispan/jgroups-loopback.xml")
+                .globalJmxStatistics().allowDuplicateDomains(true)
+                .build());
+    }
+
+    /**
+     * Starts a cache manager that is not clustered.
+     *
+     * @return the started cache manager
+     */
+    public static EmbeddedCacheManager localCacheManager() {
+        return new DefaultCacheManager(new GlobalConfigurationBuilder().globalJmxStatistics()
+                .allowDuplicateDomains(true).build());
+    }
 }
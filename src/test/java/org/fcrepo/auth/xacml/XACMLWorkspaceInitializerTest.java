@@ -123,6 +123,29 @@ public class XACMLWorkspaceInitializerTest {
         verify(mockNode).setProperty(eq("authz:policy"), any(Node.class));
     }
 
+    @Test
+    public void testInitNestedPolicies() throws Exception {
+        xacmlWI.init();
+
+        verify(mockBinaryService).findOrCreateBinary(mockSession, "/policies/tenants/TenantPolicySet");
+    }
+
+    @Test
+    public void testInitBatches() throws Exception {
+        xacmlWI.setImportThreads(2);
+        xacmlWI.setImportBatchSize(1);
+        xacmlWI.init();
+
+        // four policy files, one save per batch, the final save, and the root policy link
+        verify(mockBinaryService, times(4)).findOrCreateBinary(eq(mockSession), anyString());
+        verify(mockSession, times(6)).save();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetImportThreadsIllegalArg() {
+        xacmlWI.setImportThreads(0);
+    }
+
     @Test(expected = RepositoryRuntimeException.class)
     public void testInitInitialPoliciesException() throws Exception {
         when(mockSessionFactory.getInternalSession()).thenThrow(new RepositoryRuntimeException("expected"));
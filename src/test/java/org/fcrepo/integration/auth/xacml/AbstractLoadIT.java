@@ -0,0 +1,361 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.integration.auth.xacml;
+
+import static java.lang.Integer.parseInt;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPatch;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Drives a mixed read and write workload over HTTP and reports throughput, latency percentiles and allocation for
+ * one authorization setup. Subclasses supply the Spring container to run against, so that the same workload can
+ * be compared with and without XACML.
+ *
+ * The load tests run only in the load-test profile. Each run appends its report to target/load-test/report.txt.
+ */
+public abstract class AbstractLoadIT {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AbstractLoadIT.class);
+
+    protected static final String SERVER_ADDRESS = "http://localhost:" + System.getProperty("test.port", "8080")
+            + "/rest/";
+
+    private static final int THREADS = parseInt(System.getProperty("fcrepo.load.threads", "8"));
+
+    private static final int SECS = parseInt(System.getProperty("fcrepo.load.seconds", "60"));
+
+    private static final int WARMUP_SECS = parseInt(System.getProperty("fcrepo.load.warmup.seconds", "15"));
+
+    private static final int OBJECTS = parseInt(System.getProperty("fcrepo.load.objects", "100"));
+
+    private static final String[] USERS = { "reader", "writer", "admin" };
+
+    private static final String ROLES = "{\"readerUser\":[\"reader\"],\"writerUser\":[\"writer\"]," +
+            "\"adminUser\":[\"admin\"]}";
+
+    private static final String SPARQL_UPDATE = "INSERT { <> <http://purl.org/dc/elements/1.1/title> \"load\" } " +
+            "WHERE { }";
+
+    private static final File REPORT = new File("target/load-test/report.txt");
+
+    private enum Operation {
+        GET, PATCH, PUT
+    }
+
+    private PoolingHttpClientConnectionManager connectionManager;
+
+    private CloseableHttpClient client;
+
+    private String container;
+
+    private final AtomicLong errors = new AtomicLong();
+
+    /**
+     * @return a short name for the authorization setup, used in container names and the report
+     */
+    protected abstract String getMode();
+
+    /**
+     * @return the path, relative to the REST endpoint and ending in a slash, below which the test container is
+     *         created, or an empty string for the root
+     */
+    protected String getParentPath() {
+        return "";
+    }
+
+    /**
+     * Creates the container, its access roles and the objects the workload reads and updates.
+     *
+     * @throws IOException
+     */
+    @Before
+    public void setUp() throws IOException {
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(THREADS * 2);
+        connectionManager.setDefaultMaxPerRoute(THREADS * 2);
+        client = HttpClientBuilder.create().setConnectionManager(connectionManager).build();
+
+        container = SERVER_ADDRESS + getParentPath() + "loadtest-" + getMode() + "-" + System.currentTimeMillis();
+        assertStatus(201, execute(new HttpPut(container), "fedoraAdmin"));
+
+        final HttpPost roles = new HttpPost(container + "/fcr:accessroles");
+        roles.setEntity(new StringEntity(ROLES, UTF_8));
+        roles.setHeader("Content-Type", "application/json");
+        assertStatus(201, execute(roles, "fedoraAdmin"));
+
+        for (int i = 0; i < OBJECTS; i++) {
+            assertStatus(201, execute(new HttpPut(objectPath(i)), "fedoraAdmin"));
+        }
+    }
+
+    /**
+     * Releases the HTTP client.
+     *
+     * @throws IOException
+     */
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        connectionManager.shutdown();
+    }
+
+    /**
+     * Runs the warmup and the measured period, then writes the report.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testLoad() throws Exception {
+        LOGGER.info("Warming up {} for {}s with {} threads", getMode(), WARMUP_SECS, THREADS);
+        runWorkers(WARMUP_SECS);
+        errors.set(0);
+
+        final long allocatedBefore = allocatedBytes();
+        final long start = System.nanoTime();
+        final List<Worker> workers = runWorkers(SECS);
+        final long elapsed = System.nanoTime() - start;
+        final long allocated = allocatedBytes() - allocatedBefore;
+
+        writeReport(workers, elapsed, allocated);
+        assertEquals("Requests failed during the load test", 0, errors.get());
+    }
+
+    private List<Worker> runWorkers(final int seconds) throws InterruptedException {
+        final long deadline = System.nanoTime() + SECONDS.toNanos(seconds);
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        final List<Worker> workers = new ArrayList<>(THREADS);
+        for (int i = 0; i < THREADS; i++) {
+            final Worker worker = new Worker(USERS[i % USERS.length], new Random(i), deadline, done);
+            workers.add(worker);
+            new Thread(worker, "load-" + getMode() + "-" + i).start();
+        }
+        done.await();
+        return workers;
+    }
+
+    private void writeReport(final List<Worker> workers, final long elapsed, final long allocated)
+            throws IOException {
+        final double secs = elapsed / (double) SECONDS.toNanos(1);
+        final StringBuilder report = new StringBuilder();
+        report.append(String.format("%s: %d threads, %d objects, %.1fs measured%n", getMode(), THREADS, OBJECTS,
+                secs));
+        for (final Operation op : Operation.values()) {
+            final LatencyLog merged = new LatencyLog();
+            for (final Worker worker : workers) {
+                merged.addAll(worker.latencies[op.ordinal()]);
+            }
+            final long[] sorted = merged.sorted();
+            if (sorted.length == 0) {
+                continue;
+            }
+            report.append(String.format("  %-5s %8d requests %9.1f/s  p50 %7.2fms  p99 %7.2fms%n", op,
+                    sorted.length, sorted.length / secs, millis(percentile(sorted, 50)),
+                    millis(percentile(sorted, 99))));
+        }
+        report.append(String.format("  allocated %.1f MB/s (server and client threads), %d errors%n",
+                allocated / secs / (1024 * 1024), errors.get()));
+
+        LOGGER.info("Load test results\n{}", report);
+        assertTrue("Cannot create " + REPORT.getParent(), REPORT.getParentFile().isDirectory() ||
+                REPORT.getParentFile().mkdirs());
+        try (final PrintWriter out = new PrintWriter(new FileWriter(REPORT, true))) {
+            out.print(report);
+        }
+    }
+
+    private static double millis(final long nanos) {
+        return nanos / (double) MILLISECONDS.toNanos(1);
+    }
+
+    private static long percentile(final long[] sorted, final int percentile) {
+        final int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, index)];
+    }
+
+    /**
+     * Sums the bytes allocated so far by all live threads. Threads that end between two readings are not counted,
+     * so the workers are still running or have just finished when this is read.
+     */
+    private static long allocatedBytes() {
+        final java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return 0;
+        }
+        final com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+        long total = 0;
+        for (final long bytes : sunThreads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+
+    private String objectPath(final int i) {
+        return container + "/object" + i;
+    }
+
+    private int execute(final HttpUriRequest request, final String username) throws IOException {
+        final String credentials = username + ":password";
+        request.setHeader("Authorization", "Basic " + Base64.encodeBase64String(credentials.getBytes(UTF_8)));
+        final HttpResponse response = client.execute(request);
+        EntityUtils.consume(response.getEntity());
+        return response.getStatusLine().getStatusCode();
+    }
+
+    private static void assertStatus(final int expected, final int status) {
+        assertEquals("Unexpected status while preparing the load test", expected, status);
+    }
+
+    /**
+     * Issues requests as one user until the deadline. Readers only read; writers and admins read 60% of the time,
+     * update an existing object 25% of the time and create a new object otherwise.
+     */
+    private class Worker implements Runnable {
+
+        private final String username;
+
+        private final Random random;
+
+        private final long deadline;
+
+        private final CountDownLatch done;
+
+        private final LatencyLog[] latencies = new LatencyLog[Operation.values().length];
+
+        private int created;
+
+        Worker(final String username, final Random random, final long deadline, final CountDownLatch done) {
+            this.username = username;
+            this.random = random;
+            this.deadline = deadline;
+            this.done = done;
+            for (int i = 0; i < latencies.length; i++) {
+                latencies[i] = new LatencyLog();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (System.nanoTime() < deadline) {
+                    request();
+                }
+            } finally {
+                done.countDown();
+            }
+        }
+
+        private void request() {
+            final int roll = username.equals("reader") ? 0 : random.nextInt(100);
+            final Operation op;
+            final HttpUriRequest request;
+            final int expected;
+            if (roll < 60) {
+                op = Operation.GET;
+                request = new HttpGet(objectPath(random.nextInt(OBJECTS)));
+                expected = 200;
+            } else if (roll < 85) {
+                op = Operation.PATCH;
+                final HttpPatch patch = new HttpPatch(objectPath(random.nextInt(OBJECTS)));
+                patch.setEntity(new StringEntity(SPARQL_UPDATE, UTF_8));
+                patch.setHeader("Content-Type", "application/sparql-update");
+                request = patch;
+                expected = 204;
+            } else {
+                op = Operation.PUT;
+                request = new HttpPut(container + "/" + Thread.currentThread().getName() + "-" + created++);
+                expected = 201;
+            }
+
+            final long start = System.nanoTime();
+            try {
+                final int status = execute(request, username);
+                latencies[op.ordinal()].add(System.nanoTime() - start);
+                if (status != expected) {
+                    LOGGER.warn("{} {} as {} returned {}", op, request.getURI(), username, status);
+                    errors.incrementAndGet();
+                }
+            } catch (final IOException e) {
+                LOGGER.warn("{} {} as {} failed", op, request.getURI(), username, e);
+                errors.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Growable list of latencies in nanoseconds, owned by one worker while it runs.
+     */
+    private static class LatencyLog {
+
+        private long[] values = new long[1024];
+
+        private int size;
+
+        void add(final long nanos) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = nanos;
+        }
+
+        void addAll(final LatencyLog other) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.values[i]);
+            }
+        }
+
+        long[] sorted() {
+            final long[] copy = Arrays.copyOf(values, size);
+            Arrays.sort(copy);
+            return copy;
+        }
+    }
+}
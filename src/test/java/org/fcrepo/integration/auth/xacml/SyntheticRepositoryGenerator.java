@@ -0,0 +1,401 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.integration.auth.xacml;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.fcrepo.auth.xacml.URIConstants.FCREPO_SUBJECT_ROLE_VALUE;
+import static org.fcrepo.auth.xacml.URIConstants.POLICY_URI_PREFIX;
+import static org.fcrepo.auth.xacml.URIConstants.XACML_POLICY_PROPERTY;
+import static org.fcrepo.auth.xacml.URIConstants.XML_SCHEMA_STRING;
+
+import java.io.ByteArrayInputStream;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.fcrepo.auth.xacml.PolicyUtil;
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.fcrepo.kernel.exception.InvalidChecksumException;
+import org.fcrepo.kernel.services.BinaryService;
+import org.fcrepo.kernel.services.ObjectService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Fills a repository with a synthetic tree of objects and policies, for benchmarks and soak tests that need a
+ * repository much larger than the test fixtures.
+ *
+ * The tree below the base path has the configured fanout and depth, so a fanout of 10 and a depth of 6 creates
+ * over a million objects. Two kinds of policy set are generated. Role policy sets target one synthetic role each
+ * and reference earlier role policy sets, which makes a reference graph without cycles. Assignable policy sets
+ * have no target and reference the global roles policy set and some role policy sets. Objects between the minimum
+ * and maximum policy depth get a random assignable policy set with the configured density. Generation is
+ * repeatable for a given seed.
+ */
+public class SyntheticRepositoryGenerator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SyntheticRepositoryGenerator.class);
+
+    private static final String POLICY_ID_PREFIX = POLICY_URI_PREFIX + "/policies/synthetic/";
+
+    private static final String GLOBAL_ROLES_POLICY_SET = POLICY_URI_PREFIX + "/policies/GlobalRolesPolicySet";
+
+    private static final String READ_PERMISSION_POLICY_SET = POLICY_URI_PREFIX +
+            "/policies/ReadNormalNodePermissionPolicySet";
+
+    private static final String PERMIT_OVERRIDES =
+            "urn:oasis:names:tc:xacml:1.0:policy-combining-algorithm:permit-overrides";
+
+    @Autowired
+    private SessionFactory sessionFactory;
+
+    @Autowired
+    private ObjectService objectService;
+
+    @Autowired
+    private BinaryService binaryService;
+
+    private final String basePath;
+
+    private int fanout = 10;
+
+    private int depth = 3;
+
+    private double policyDensity = 0.01;
+
+    private int policyMinDepth = 1;
+
+    private int policyMaxDepth = Integer.MAX_VALUE;
+
+    private int rolePolicySets = 1000;
+
+    private int assignablePolicySets = 100;
+
+    private int references = 3;
+
+    private int roles = 100;
+
+    private long seed = 0;
+
+    private int batchSize = 1000;
+
+    /**
+     * Constructor
+     *
+     * @param basePath the repository path of the object at the top of the generated tree
+     */
+    public SyntheticRepositoryGenerator(final String basePath) {
+        if (basePath == null || !basePath.startsWith("/") || basePath.length() < 2) {
+            throw new IllegalArgumentException("Base path must be an absolute path below the root!");
+        }
+        this.basePath = basePath;
+    }
+
+    /**
+     * @param fanout the number of children of every object above the maximum depth
+     */
+    public void setFanout(final int fanout) {
+        if (fanout < 1) {
+            throw new IllegalArgumentException("Fanout must be positive!");
+        }
+        this.fanout = fanout;
+    }
+
+    /**
+     * @param depth the number of levels below the base object
+     */
+    public void setDepth(final int depth) {
+        if (depth < 0) {
+            throw new IllegalArgumentException("Depth must not be negative!");
+        }
+        this.depth = depth;
+    }
+
+    /**
+     * @param policyDensity the fraction of eligible objects that get a policy, from 0 to 1
+     */
+    public void setPolicyDensity(final double policyDensity) {
+        if (policyDensity < 0 || policyDensity > 1) {
+            throw new IllegalArgumentException("Policy density must be between 0 and 1!");
+        }
+        this.policyDensity = policyDensity;
+    }
+
+    /**
+     * @param policyMinDepth the shallowest level at which objects get a policy, the base object being level 0
+     */
+    public void setPolicyMinDepth(final int policyMinDepth) {
+        if (policyMinDepth < 0) {
+            throw new IllegalArgumentException("Policy minimum depth must not be negative!");
+        }
+        this.policyMinDepth = policyMinDepth;
+    }
+
+    /**
+     * @param policyMaxDepth the deepest level at which objects get a policy
+     */
+    public void setPolicyMaxDepth(final int policyMaxDepth) {
+        if (policyMaxDepth < 0) {
+            throw new IllegalArgumentException("Policy maximum depth must not be negative!");
+        }
+        this.policyMaxDepth = policyMaxDepth;
+    }
+
+    /**
+     * @param rolePolicySets the number of role policy sets to generate
+     */
+    public void setRolePolicySets(final int rolePolicySets) {
+        if (rolePolicySets < 1) {
+            throw new IllegalArgumentException("Role policy sets must be positive!");
+        }
+        this.rolePolicySets = rolePolicySets;
+    }
+
+    /**
+     * @param assignablePolicySets the number of policy sets to assign to objects
+     */
+    public void setAssignablePolicySets(final int assignablePolicySets) {
+        if (assignablePolicySets < 1) {
+            throw new IllegalArgumentException("Assignable policy sets must be positive!");
+        }
+        this.assignablePolicySets = assignablePolicySets;
+    }
+
+    /**
+     * @param references the number of role policy sets each generated policy set references, where that many exist
+     */
+    public void setReferences(final int references) {
+        if (references < 0) {
+            throw new IllegalArgumentException("References must not be negative!");
+        }
+        this.references = references;
+    }
+
+    /**
+     * @param roles the number of distinct synthetic roles targeted by the role policy sets
+     */
+    public void setRoles(final int roles) {
+        if (roles < 1) {
+            throw new IllegalArgumentException("Roles must be positive!");
+        }
+        this.roles = roles;
+    }
+
+    /**
+     * @param seed the seed for the random choices
+     */
+    public void setSeed(final long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * @param batchSize the number of objects or policies written per session save
+     */
+    public void setBatchSize(final int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive!");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * The ID of a role policy set.
+     *
+     * @param index the index of the role policy set
+     * @return the policy set ID
+     */
+    public static String getRolePolicySetId(final int index) {
+        return POLICY_ID_PREFIX + "RolePolicySet-" + index;
+    }
+
+    /**
+     * The ID of an assignable policy set.
+     *
+     * @param index the index of the assignable policy set
+     * @return the policy set ID
+     */
+    public static String getAssignablePolicySetId(final int index) {
+        return POLICY_ID_PREFIX + "AssignablePolicySet-" + index;
+    }
+
+    /**
+     * The synthetic role targeted by a role policy set.
+     *
+     * @param index the index of the role
+     * @return the role name
+     */
+    public static String getRole(final int index) {
+        return "synthetic-role-" + index;
+    }
+
+    /**
+     * Writes the policies and then the object tree. Policies are written first so that objects can reference them.
+     */
+    public void generate() {
+        final long start = System.currentTimeMillis();
+        final Random random = new Random(seed);
+        final Batch batch = new Batch();
+        try {
+            writePolicies(batch, random);
+            final long policiesAt = System.currentTimeMillis();
+            LOGGER.info("Generated {} role and {} assignable policy sets in {} ms", rolePolicySets,
+                    assignablePolicySets, policiesAt - start);
+
+            writeTree(batch, random, basePath, 0);
+            batch.close();
+            LOGGER.info("Generated {} objects with {} policy assignments below {} in {} ms", batch.objects,
+                    batch.assignments, basePath, System.currentTimeMillis() - policiesAt);
+        } catch (final RepositoryException | InvalidChecksumException e) {
+            throw new Error("Cannot generate synthetic repository at " + basePath, e);
+        } finally {
+            batch.logout();
+        }
+    }
+
+    private void writePolicies(final Batch batch, final Random random) throws RepositoryException,
+            InvalidChecksumException {
+        for (int i = 0; i < rolePolicySets; i++) {
+            final Set<String> refs = pickRolePolicySets(random, i);
+            refs.add(READ_PERMISSION_POLICY_SET);
+            writePolicy(batch, getRolePolicySetId(i), rolePolicySet(getRolePolicySetId(i), getRole(i % roles), refs));
+        }
+        for (int i = 0; i < assignablePolicySets; i++) {
+            final Set<String> refs = new LinkedHashSet<>();
+            refs.add(GLOBAL_ROLES_POLICY_SET);
+            refs.addAll(pickRolePolicySets(random, rolePolicySets));
+            writePolicy(batch, getAssignablePolicySetId(i), rolePolicySet(getAssignablePolicySetId(i), null, refs));
+        }
+    }
+
+    private void writePolicy(final Batch batch, final String id, final String xml) throws RepositoryException,
+            InvalidChecksumException {
+        final String path = PolicyUtil.getPathForId(id);
+        binaryService.findOrCreateBinary(batch.session(), path).setContent(
+                new ByteArrayInputStream(xml.getBytes(UTF_8)), "application/xml", null,
+                path.substring(path.lastIndexOf('/') + 1) + ".xml", null);
+        batch.written();
+    }
+
+    /**
+     * Picks distinct role policy sets with an index below the bound, so references never form a cycle.
+     */
+    private Set<String> pickRolePolicySets(final Random random, final int bound) {
+        final Set<String> refs = new LinkedHashSet<>();
+        final int count = Math.min(references, bound);
+        while (refs.size() < count) {
+            refs.add(getRolePolicySetId(random.nextInt(bound)));
+        }
+        return refs;
+    }
+
+    private void writeTree(final Batch batch, final Random random, final String path, final int level)
+            throws RepositoryException {
+        final Node node = objectService.findOrCreateObject(batch.session(), path).getNode();
+        batch.objects++;
+        if (level >= policyMinDepth && level <= policyMaxDepth && random.nextDouble() < policyDensity) {
+            final String policyPath = PolicyUtil.getPathForId(
+                    getAssignablePolicySetId(random.nextInt(assignablePolicySets)));
+            if (!node.isNodeType("authz:xacmlAssignable")) {
+                node.addMixin("authz:xacmlAssignable");
+            }
+            node.setProperty(XACML_POLICY_PROPERTY, batch.session().getNode(policyPath));
+            batch.assignments++;
+        }
+        batch.written();
+
+        if (level < depth) {
+            for (int i = 0; i < fanout; i++) {
+                writeTree(batch, random, path + "/n" + i, level + 1);
+            }
+        }
+    }
+
+    /**
+     * A policy set with an optional subject role target and the given policy set references.
+     */
+    private static String rolePolicySet(final String id, final String role, final Set<String> refs) {
+        final StringBuilder xml = new StringBuilder(512);
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                .append("<PolicySet xmlns=\"urn:oasis:names:tc:xacml:2.0:policy:schema:os\"\n")
+                .append("        PolicySetId=\"").append(id).append("\"\n")
+                .append("        PolicyCombiningAlgId=\"").append(PERMIT_OVERRIDES).append("\">\n");
+        if (role == null) {
+            xml.append("  <Target/>\n");
+        } else {
+            xml.append("  <Target><Subjects><Subject>\n")
+                    .append("    <SubjectMatch MatchId=\"urn:oasis:names:tc:xacml:1.0:function:string-equal\">\n")
+                    .append("      <AttributeValue DataType=\"").append(XML_SCHEMA_STRING).append("\">")
+                    .append(role).append("</AttributeValue>\n")
+                    .append("      <SubjectAttributeDesignator AttributeId=\"").append(FCREPO_SUBJECT_ROLE_VALUE)
+                    .append("\" DataType=\"").append(XML_SCHEMA_STRING).append("\"/>\n")
+                    .append("    </SubjectMatch>\n")
+                    .append("  </Subject></Subjects></Target>\n");
+        }
+        for (final String ref : refs) {
+            xml.append("  <PolicySetIdReference>").append(ref).append("</PolicySetIdReference>\n");
+        }
+        return xml.append("</PolicySet>\n").toString();
+    }
+
+    /**
+     * Writes through a session that is saved and replaced every batch, so that memory use does not grow with the
+     * size of the generated repository.
+     */
+    private class Batch {
+
+        private Session session;
+
+        private int pending;
+
+        private long objects;
+
+        private long assignments;
+
+        Session session() throws RepositoryException {
+            if (session == null) {
+                session = sessionFactory.getInternalSession();
+            }
+            return session;
+        }
+
+        void written() throws RepositoryException {
+            if (++pending >= batchSize) {
+                close();
+            }
+        }
+
+        void close() throws RepositoryException {
+            if (session != null) {
+                session.save();
+                logout();
+            }
+            pending = 0;
+        }
+
+        void logout() {
+            if (session != null) {
+                session.logout();
+                session = null;
+            }
+        }
+    }
+}
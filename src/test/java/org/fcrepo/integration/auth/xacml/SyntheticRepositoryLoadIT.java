@@ -0,0 +1,52 @@
+/**
+ * Copyright 2014 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.integration.auth.xacml;
+
+import static java.lang.Integer.parseInt;
+
+import org.junit.runner.RunWith;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+/**
+ * Runs the load test with XACML against a repository filled by {@link SyntheticRepositoryGenerator}. The test
+ * container is created at the deepest level of the generated tree, so every request resolves its effective policy
+ * through the generated objects and policy sets. Compare with {@link XACMLLoadIT} to see how the policy finder,
+ * resource finder and caches scale with repository size.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = {"/spring-test/test-container-scale.xml"})
+@DirtiesContext
+public class SyntheticRepositoryLoadIT extends AbstractLoadIT {
+
+    @Override
+    protected String getMode() {
+        return "synthetic";
+    }
+
+    @Override
+    protected String getParentPath() {
+        final StringBuilder path = new StringBuilder(System.getProperty("fcrepo.scale.base.path", "/synthetic")
+                .substring(1));
+        for (int i = parseInt(System.getProperty("fcrepo.scale.depth", "3")); i > 0; i--) {
+            path.append("/n0");
+        }
+        return path.append('/').toString();
+    }
+
+}